@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fr.uga.miashs.dciss.chatservice.common.BlobProtocol;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Client side of the files posted to groups (see BlobProtocol): uploads the
+ * files the server asks for, and downloads the files of the descriptors on
+ * demand. A download keeps two FETCH requests in flight, and its data is
+ * checked against the hash of the file before the file is made visible.
+ */
+class BlobClient implements MessageListener {
+
+	// octets demandés par requête FETCH
+	private static final int FETCH_SIZE = BlobProtocol.MAX_FETCH_CHUNKS * BlobProtocol.CHUNK_SIZE;
+
+	private final ClientMsg client;
+	// fichiers proposés au serveur, par empreinte
+	private final Map<String, File> offered = new ConcurrentHashMap<>();
+	private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+
+	BlobClient(ClientMsg client) {
+		this.client = client;
+	}
+
+	/**
+	 * Posts a file to a group. Returns the hash of the file.
+	 */
+	byte[] post(int groupId, File file, byte kind) throws IOException {
+		byte[] hash = BlobProtocol.sha256(file);
+		offered.put(BlobProtocol.key(hash), file);
+		client.sendPacket(0, BlobProtocol.offer(hash, file.length(), groupId, kind, file.getName()));
+		return hash;
+	}
+
+	/**
+	 * Downloads the file of a descriptor into target. The future fails if the
+	 * server does not have the file anymore, or if the data does not match its
+	 * hash.
+	 */
+	CompletableFuture<File> fetch(BlobProtocol.Descriptor d, File target) {
+		Download dl = new Download(d, target);
+		Download current = downloads.putIfAbsent(d.key(), dl);
+		if (current != null)
+			return current.result.thenApply(f -> copy(f, target));
+		try {
+			dl.start();
+		} catch (IOException e) {
+			dl.fail(e);
+		}
+		return dl.result;
+	}
+
+	// un même fichier demandé deux fois n'est téléchargé qu'une fois
+	private static File copy(File from, File to) {
+		try {
+			if (!from.equals(to))
+				Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return to;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void messageReceived(Packet p) {
+		if (p.srcId != 0 || !BlobProtocol.isBlob(p))
+			return;
+		byte type = BlobProtocol.type(p);
+		String key = BlobProtocol.key(p);
+		if (type == BlobProtocol.UPLOAD) {
+			File file = offered.remove(key);
+			if (file != null)
+				upload(BlobProtocol.hash(p), file, BlobProtocol.offset(p));
+		} else if (type == BlobProtocol.DATA) {
+			Download dl = downloads.get(key);
+			if (dl != null)
+				dl.data(p);
+		} else if (type == BlobProtocol.MISSING) {
+			Download dl = downloads.get(key);
+			if (dl != null)
+				dl.fail(new IOException("File " + dl.descriptor.name + " is no longer available"));
+		}
+	}
+
+	/*
+	 * Envoi du fichier au serveur depuis un thread dédié, pour que les messages
+	 * reçus pendant ce temps soient traités
+	 */
+	private void upload(byte[] hash, File file, long from) {
+		if (from >= file.length())
+			return;
+		new Thread(() -> {
+			try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer header = ByteBuffer.allocate(BlobProtocol.DATA_HEADER);
+				for (long pos = from; pos < in.size(); pos += BlobProtocol.CHUNK_SIZE) {
+					int length = (int) Math.min(BlobProtocol.CHUNK_SIZE, in.size() - pos);
+					header.clear();
+					BlobProtocol.dataHeader(header, hash, pos);
+					header.flip();
+					client.sendRegion(0, header, in, pos, length);
+				}
+			} catch (IOException e) {
+				// connexion perdue : le fichier devra être posté à nouveau
+			}
+		}, "blob-upload-" + BlobProtocol.key(hash).substring(0, 8)).start();
+	}
+
+	private class Download {
+		final BlobProtocol.Descriptor descriptor;
+		final File target;
+		final File part;
+		final CompletableFuture<File> result = new CompletableFuture<>();
+		final MessageDigest md = BlobProtocol.newDigest();
+		FileChannel out;
+		long received;
+		long requested;
+
+		Download(BlobProtocol.Descriptor descriptor, File target) {
+			this.descriptor = descriptor;
+			this.target = target;
+			this.part = new File(target.getPath() + ".part");
+		}
+
+		void start() throws IOException {
+			out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			if (descriptor.size == 0) {
+				complete();
+				return;
+			}
+			request();
+			request();
+		}
+
+		private void request() {
+			if (requested >= descriptor.size)
+				return;
+			int length = (int) Math.min(FETCH_SIZE, descriptor.size - requested);
+			client.sendPacket(0, BlobProtocol.fetch(descriptor.hash, requested, length));
+			requested += length;
+		}
+
+		// les morceaux arrivent dans l'ordre, la boucle de réception étant unique
+		void data(Packet p) {
+			try {
+				if (BlobProtocol.offset(p) != received)
+					throw new IOException("Unexpected offset " + BlobProtocol.offset(p));
+				ByteBuffer data = ByteBuffer.wrap(p.data, BlobProtocol.DATA_HEADER, p.length - BlobProtocol.DATA_HEADER);
+				md.update(data.duplicate());
+				while (data.hasRemaining())
+					received += out.write(data, received);
+				if (received >= descriptor.size)
+					complete();
+				else if (received % FETCH_SIZE == 0)
+					// une requête est terminée, la suivante est envoyée
+					request();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void complete() throws IOException {
+			out.close();
+			if (received != descriptor.size || !MessageDigest.isEqual(descriptor.hash, md.digest()))
+				throw new IOException("File " + descriptor.name + " does not match its hash");
+			Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			downloads.remove(descriptor.key(), this);
+			result.complete(target);
+		}
+
+		void fail(IOException e) {
+			if (!downloads.remove(descriptor.key(), this))
+				return;
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException ex) {
+				// ignoré
+			}
+			part.delete();
+			result.completeExceptionally(e);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.client;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * MessageListener that can read the data of a file chunk directly from the
+ * socket, instead of receiving it copied into a Packet. The chunks consumed
+ * this way are not notified to the other listeners.
+ */
+interface ChunkReceiver {
+
+	/**
+	 * Called by the receive loop of ClientMsg when a CHUNK message arrives, once
+	 * its header has been read.
+	 *
+	 * @param crc    CRC32C of the data announced by the sender
+	 * @param length number of data bytes following the header in ch
+	 * @return true if the chunk has been consumed, in which case exactly length
+	 *         bytes have been read from ch; false, without reading anything, if
+	 *         the chunk is not for this receiver
+	 */
+	boolean receiveChunk(int srcId, long transferId, int seq, int crc, ReadableByteChannel ch, int length)
+			throws IOException;
+}
@@ -12,13 +12,33 @@
 package fr.uga.miashs.dciss.chatservice.client;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import fr.uga.miashs.dciss.chatservice.client.database.Message;
+import fr.uga.miashs.dciss.chatservice.client.database.MessageRepository;
+import fr.uga.miashs.dciss.chatservice.common.BlobProtocol;
+import fr.uga.miashs.dciss.chatservice.common.BufferPool;
+import fr.uga.miashs.dciss.chatservice.common.Compression;
+import fr.uga.miashs.dciss.chatservice.common.DirectoryProtocol;
+import fr.uga.miashs.dciss.chatservice.common.FileStream;
+import fr.uga.miashs.dciss.chatservice.common.HeartbeatProtocol;
 import fr.uga.miashs.dciss.chatservice.common.ImageTransfer;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.PresenceProtocol;
+import fr.uga.miashs.dciss.chatservice.common.ReceiptProtocol;
+import fr.uga.miashs.dciss.chatservice.common.ResumeProtocol;
+import fr.uga.miashs.dciss.chatservice.common.RosterProtocol;
 
 /**
  * Manages the connection to a ServerMsg. Method startSession() is used to
@@ -34,6 +54,7 @@ public class ClientMsg {
 	private int serverPort;
 
 	private Socket s;
+	private SocketChannel channel;
 	private DataOutputStream dos;
 	private DataInputStream dis;
 
@@ -42,6 +63,33 @@ public class ClientMsg {
 	private List<MessageListener> mListeners;
 	private List<ConnectionListener> cListeners;
 
+	// tampons des paquets reçus
+	private int maxFrameSize = Packet.DEFAULT_MAX_FRAME_SIZE;
+	private BufferPool bufferPool;
+
+	// compression des trames, si le serveur l'accepte
+	private boolean compression;
+	private Compression.Compressor compressor;
+	private Compression.Decompressor inflater;
+
+	// reprise des sessions, si le serveur l'accepte (voir ResumeProtocol)
+	private static final int ACK_EVERY = 64;
+	private boolean resume;
+	// la session courante acquitte les trames
+	private boolean acking;
+	// numéro de la dernière trame traitée, et de la dernière acquittée
+	private long received;
+	private long acked;
+
+	// envoi des fichiers par morceaux
+	private final FileSender fileSender = new FileSender(this);
+	private final List<ChunkReceiver> chunkReceivers = new CopyOnWriteArrayList<>();
+	private final byte[] chunkHeader = new byte[FileStream.CHUNK_HEADER];
+	// fichiers postés dans les groupes, stockés par le serveur
+	private final BlobClient blobClient = new BlobClient(this);
+	// recherche des pseudos et des noms de groupes sur le serveur
+	private final DirectoryClient directory = new DirectoryClient(this);
+
 	/**
 	 * Create a client with an existing id, that will connect to the server at the
 	 * given address and port
@@ -60,6 +108,21 @@ public class ClientMsg {
 		identifier = id;
 		mListeners = new ArrayList<>();
 		cListeners = new ArrayList<>();
+		// reçoit les acceptations et acquittements des fichiers envoyés, et reprend
+		// les envois interrompus lors d'une reconnexion
+		mListeners.add(fileSender);
+		cListeners.add(fileSender);
+		mListeners.add(blobClient);
+		mListeners.add(directory);
+		cListeners.add(directory);
+		// le serveur ferme les connexions qui ne répondent pas à ses pings
+		mListeners.add(p -> {
+			if (HeartbeatProtocol.isPing(p)) {
+				sendPacket(0, HeartbeatProtocol.pong());
+				// une session peu active acquitte ses trames à chaque ping
+				acknowledge();
+			}
+		});
 	}
 
 	/**
@@ -82,6 +145,8 @@ public class ClientMsg {
 	public void addMessageListener(MessageListener l) {
 		if (l != null)
 			mListeners.add(l);
+		if (l instanceof ChunkReceiver)
+			chunkReceivers.add((ChunkReceiver) l);
 	}
 
 	protected void notifyMessageListeners(Packet p) {
@@ -107,6 +172,59 @@ public class ClientMsg {
 		return identifier;
 	}
 
+	/**
+	 * Sets the largest payload accepted from the server, the session is closed
+	 * if a longer frame is announced.
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize < 1)
+			throw new IllegalArgumentException("maxFrameSize must be greater than 0");
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Makes the received packets use buffers from the given pool. The payload of
+	 * a packet (its first length bytes) is then only valid during the call to the
+	 * MessageListeners: a listener that keeps the packet has to call retain(),
+	 * then release() when done, or copy it with toByteArray().
+	 */
+	public void setBufferPool(BufferPool pool) {
+		this.bufferPool = pool;
+	}
+
+	/**
+	 * Asks the server, at the next session start, to compress the frames (see
+	 * Compression). The frames are compressed in both directions only if the
+	 * server accepts it.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Asks the server, at the next session start, to number the frames so that
+	 * a new session resumes after the last frame processed (see ResumeProtocol):
+	 * the frames lost with a broken connection are sent again, and only them.
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Number of the last frame processed, counted since the first session of
+	 * the user if the sessions are resumed.
+	 */
+	public long getLastFrame() {
+		return received;
+	}
+
+	/**
+	 * Tells if the frames of the current session are compressed.
+	 */
+	public boolean isCompressed() {
+		return inflater != null;
+	}
+
 	/**
 	 * Method to be called to establish the connection.
 	 * 
@@ -116,13 +234,39 @@ public class ClientMsg {
 	public void startSession() throws UnknownHostException {
 		if (s == null || s.isClosed()) {
 			try {
-				s = new Socket(serverAddress, serverPort);
+				// socket obtenue depuis un canal pour envoyer les fichiers sans copie
+				channel = SocketChannel.open(new InetSocketAddress(serverAddress, serverPort));
+				s = channel.socket();
+				s.setTcpNoDelay(true);
 				dos = new DataOutputStream(s.getOutputStream());
 				dis = new DataInputStream(s.getInputStream());
+				compressor = null;
+				inflater = null;
+				boolean hello = compression || resume;
+				if (hello) {
+					// capacités annoncées avant l'identifiant
+					dos.writeInt(Compression.HELLO);
+					dos.writeInt((compression ? Compression.DEFLATE : 0) | (resume ? ResumeProtocol.RESUME : 0));
+				}
 				dos.writeInt(identifier);
+				// la session reprend après la dernière trame traitée
+				if (resume)
+					dos.writeLong(received);
 				dos.flush();
+				int flags = hello ? dis.readInt() : 0;
+				if ((flags & Compression.DEFLATE) != 0) {
+					compressor = new Compression.Compressor(Compression.DEFAULT_THRESHOLD);
+					inflater = new Compression.Decompressor();
+				}
+				int newId = identifier == 0 ? dis.readInt() : 0;
+				acking = (flags & ResumeProtocol.RESUME) != 0;
+				if (acking) {
+					// le serveur numérote la prochaine trame, qui suit celles déjà reçues
+					received = dis.readLong() - 1;
+					acked = received;
+				}
 				if (identifier == 0) {
-					identifier = dis.readInt();
+					identifier = newId;
 					// Demander un pseudo à l'utilisateur
 					System.out.print("Choisissez votre pseudo : ");
 					Scanner sc = new Scanner(System.in);
@@ -158,11 +302,25 @@ public class ClientMsg {
 	 * @param data   the data to be sent
 	 */
 	public void sendPacket(int destId, byte[] data) {
+		sendPacket(destId, data, 0, data.length);
+	}
+
+	/**
+	 * Send length bytes of data, from offset, to the specified destination
+	 */
+	public void sendPacket(int destId, byte[] data, int offset, int length) {
 		try {
 			synchronized (dos) {
+				Compression.Compressor z = compressor;
+				int n = z != null && z.accepts(data, offset, length) ? z.deflate(data, offset, length) : -1;
 				dos.writeInt(destId);
-				dos.writeInt(data.length);
-				dos.write(data);
+				if (n >= 0) {
+					dos.writeInt(Compression.FLAG | n);
+					dos.write(z.buffer(), 0, n);
+				} else {
+					dos.writeInt(length);
+					dos.write(data, offset, length);
+				}
 				dos.flush();
 			}
 		} catch (IOException e) {
@@ -173,38 +331,60 @@ public class ClientMsg {
 	}
 
 	/**
-	 * Envoie un fichier à un destinataire spécifique
+	 * Envoie un fichier à un destinataire spécifique. Le fichier est proposé au
+	 * destinataire puis envoyé par morceaux en arrière-plan (voir FileStream),
+	 * sans être chargé en mémoire. Un fichier envoyé à un groupe est envoyé une
+	 * seule fois au serveur, qui le stocke et le fournit aux membres qui le
+	 * demandent (voir BlobProtocol).
 	 * 
 	 * @param destId ID du destinataire (utilisateur ou groupe)
 	 * @param file   Fichier à envoyer
-	 * @throws IOException Si une erreur survient pendant la lecture ou l'envoi du
-	 *                     fichier
+	 * @return l'identifiant du transfert
+	 * @throws IOException Si le fichier n'est pas accessible
 	 */
-	public void sendFile(int destId, File file) throws IOException {
+	public long sendFile(int destId, File file) throws IOException {
 		if (!file.exists() || !file.isFile()) {
 			throw new FileNotFoundException("Le fichier n'existe pas ou n'est pas accessible" + file.getAbsolutePath());
 		}
+		if (destId < 0)
+			return ByteBuffer.wrap(blobClient.post(destId, file, BlobProtocol.KIND_FILE)).getLong();
+		return fileSender.send(destId, file);
+	}
 
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(bos);
-
-		// Structure du message:
-		// [TYPE=5][NOM_FICHIER][TAILLE_FICHIER][CONTENU_FICHIER]
-		dos.writeByte(5); // Type 5 pour transfert de fichier
-		dos.writeUTF(file.getName()); // Nom du fichier
+	/**
+	 * Télécharge dans target le fichier annoncé par un descripteur reçu d'un
+	 * groupe. Le résultat échoue si le serveur ne l'a plus ou si son contenu ne
+	 * correspond pas à son empreinte.
+	 */
+	public CompletableFuture<File> fetchBlob(BlobProtocol.Descriptor descriptor, File target) {
+		return blobClient.fetch(descriptor, target);
+	}
 
-		// Lecture et envoi du contenu du fichier
-		byte[] fileContent = new byte[(int) file.length()];
-		try (FileInputStream fis = new FileInputStream(file)) {
-			fis.read(fileContent);
-		}
+	/**
+	 * Cherche les pseudos commençant par prefix, sans distinction de casse, par
+	 * ordre alphabétique.
+	 * 
+	 * @param after le dernier pseudo de la page précédente, null pour la première
+	 * @param limit nombre maximal de pseudos, au plus DirectoryProtocol.MAX_RESULTS
+	 */
+	public CompletableFuture<DirectoryProtocol.Result> searchUsers(String prefix, String after, int limit) {
+		return directory.query(DirectoryProtocol.USERS, prefix, after, limit);
+	}
 
-		dos.writeLong(fileContent.length); // Taille du fichier
-		dos.write(fileContent); // Contenu du fichier
-		dos.flush();
+	/**
+	 * Cherche les noms de groupes commençant par prefix, comme searchUsers.
+	 */
+	public CompletableFuture<DirectoryProtocol.Result> searchGroups(String prefix, String after, int limit) {
+		return directory.query(DirectoryProtocol.GROUPS, prefix, after, limit);
+	}
 
-		// Envoi du paquet
-		sendPacket(destId, bos.toByteArray());
+	/**
+	 * Identifiant de l'utilisateur ayant ce pseudo, sans distinction de casse, ou
+	 * null s'il n'existe pas.
+	 */
+	public CompletableFuture<Integer> lookupUser(String nickname) {
+		return searchUsers(nickname, null, 1).thenApply(r -> r.ids.length == 1 && r.names[0].equalsIgnoreCase(nickname)
+				? r.ids[0] : null);
 	}
 
 	// transfer de l'image
@@ -213,18 +393,24 @@ public class ClientMsg {
 			throw new FileNotFoundException("L'image n'existe pas ou n'est pas accessible");
 		}
 
-		// Vérifier que c'est bien une image
-		String name = imageFile.getName().toLowerCase();
-		if (!name.endsWith(".png") && !name.endsWith(".jpg") && !name.endsWith(".jpeg")) {
+		// Vérifier que c'est bien une image, d'après la signature du fichier
+		String format = ImageTransfer.sniffFormat(imageFile);
+		if (format == null) {
 			throw new IllegalArgumentException("Format d'image non supporté");
 		}
 
-		// Convertir l'image en ImageTransfer
-		ImageTransfer imageTransfer = ImageTransfer.fromImage(imageFile);
+		// une image postée dans un groupe est stockée une seule fois par le serveur
+		if (destId < 0) {
+			blobClient.post(destId, imageFile, BlobProtocol.KIND_IMAGE);
+			return;
+		}
 
-		// Sérialiser et envoyer
-		byte[] data = ImageTransfer.toBytes(imageTransfer);
-		sendPacket(destId, data);
+		// les octets de l'image passent du fichier à la socket sans être décodés
+		try (FileChannel in = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ)) {
+			int length = (int) in.size();
+			byte[] header = ImageTransfer.header(imageFile.getName(), format, length);
+			sendRegion(destId, ByteBuffer.wrap(header), in, 0, length);
+		}
 	}
 
 	/**
@@ -237,10 +423,34 @@ public class ClientMsg {
 				int sender = dis.readInt();
 				int dest = dis.readInt();
 				int length = dis.readInt();
-				byte[] data = new byte[length];
-				dis.readFully(data);
-				notifyMessageListeners(new Packet(sender, dest, data));
-
+				if (inflater != null && (length & Compression.FLAG) != 0) {
+					receiveDeflated(sender, dest, length & ~Compression.FLAG);
+					processed();
+					continue;
+				}
+				if (length < 0 || length > maxFrameSize)
+					throw new IOException("Invalid frame length " + length);
+				int read = 0;
+				if (length >= FileStream.CHUNK_HEADER && !chunkReceivers.isEmpty()) {
+					// un morceau de fichier peut être lu directement depuis la socket
+					dis.readFully(chunkHeader);
+					if (chunkHeader[0] == FileStream.CHUNK && receiveChunk(sender, length - FileStream.CHUNK_HEADER)) {
+						processed();
+						continue;
+					}
+					read = FileStream.CHUNK_HEADER;
+				}
+				BufferPool pool = bufferPool;
+				byte[] data = pool != null ? pool.acquire(length) : new byte[length];
+				System.arraycopy(chunkHeader, 0, data, 0, read);
+				dis.readFully(data, read, length - read);
+				Packet p = new Packet(sender, dest, data, length, pool);
+				try {
+					notifyMessageListeners(p);
+				} finally {
+					p.release();
+				}
+				processed();
 			}
 		} catch (IOException e) {
 			// error, connection closed
@@ -248,6 +458,148 @@ public class ClientMsg {
 		closeSession();
 	}
 
+	// une trame a été traitée, elle est acquittée avec les suivantes
+	private void processed() {
+		received++;
+		if (acking && received - acked >= ACK_EVERY)
+			acknowledge();
+	}
+
+	private void acknowledge() {
+		if (acking && received > acked) {
+			acked = received;
+			sendPacket(0, ResumeProtocol.ack(received));
+		}
+	}
+
+	// trame compressée : la charge utile décompressée est notifiée comme les autres
+	private void receiveDeflated(int sender, int dest, int length) throws IOException {
+		if (length > maxFrameSize)
+			throw new IOException("Invalid frame length " + length);
+		BufferPool pool = bufferPool;
+		byte[] deflated = pool != null ? pool.acquire(length) : new byte[length];
+		dis.readFully(deflated, 0, length);
+		int raw = Compression.Decompressor.rawLength(deflated, 0, length);
+		if (raw < 0 || raw > maxFrameSize)
+			throw new IOException("Invalid frame length " + raw);
+		byte[] data = pool != null ? pool.acquire(raw) : new byte[raw];
+		inflater.inflate(deflated, 0, length, data, raw);
+		if (pool != null)
+			pool.release(deflated);
+		Packet p = new Packet(sender, dest, data, raw, pool);
+		try {
+			notifyMessageListeners(p);
+		} finally {
+			p.release();
+		}
+	}
+
+	private boolean receiveChunk(int sender, int length) throws IOException {
+		ByteBuffer header = ByteBuffer.wrap(chunkHeader, 1, FileStream.CHUNK_HEADER - 1);
+		long transferId = header.getLong();
+		int seq = header.getInt();
+		int crc = header.getInt();
+		for (ChunkReceiver r : chunkReceivers) {
+			if (r.receiveChunk(sender, transferId, seq, crc, channel, length))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Envoie un morceau de fichier : les entêtes sont écrites puis les données,
+	 * lues dans la projection mémoire du fichier sur laquelle la somme de
+	 * contrôle a été calculée, sans copie dans le tas Java
+	 */
+	void sendChunk(int destId, long transferId, int seq, int crc, ByteBuffer chunk) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(FileStream.CHUNK_HEADER);
+		FileStream.chunkHeader(header, transferId, seq, crc);
+		header.flip();
+		int length = chunk.remaining();
+		if (deflates(header, length)) {
+			// contenu compressible : il passe par le tas pour être compressé
+			byte[] data = new byte[header.remaining() + length];
+			int h = header.remaining();
+			header.get(data, 0, h);
+			chunk.get(data, h, length);
+			sendPacket(destId, data);
+			if (!isConnected())
+				throw new IOException("Connection closed");
+			return;
+		}
+		ByteBuffer frame = ByteBuffer.allocate(8).putInt(destId).putInt(header.remaining() + length);
+		frame.flip();
+		ByteBuffer[] out = { frame, header, chunk };
+		try {
+			synchronized (dos) {
+				// écriture groupée : le morceau part en dernier
+				while (header.hasRemaining() || chunk.hasRemaining())
+					channel.write(out);
+			}
+		} catch (IOException e) {
+			// la trame est incomplète, la connexion ne peut plus servir
+			closeSession();
+			throw e;
+		}
+	}
+
+	// la session compresse les trames dont la charge utile commence par header
+	private boolean deflates(ByteBuffer header, int length) {
+		Compression.Compressor z = compressor;
+		if (z == null || !header.hasArray())
+			return false;
+		synchronized (dos) {
+			return z.accepts(header.array(), header.arrayOffset() + header.position(), header.remaining() + length);
+		}
+	}
+
+	/*
+	 * Envoie une trame composée de l'entête donnée suivie de length octets du
+	 * fichier à partir de pos. Si la session est compressée, les morceaux qui ne
+	 * sont pas connus pour être incompressibles sont lus puis compressés.
+	 */
+	void sendRegion(int destId, ByteBuffer header, FileChannel in, long pos, int length) throws IOException {
+		if (deflates(header, length)) {
+			// contenu compressible : il passe par le tas pour être compressé
+			byte[] data = new byte[header.remaining() + length];
+			int h = header.remaining();
+			header.get(data, 0, h);
+			ByteBuffer b = ByteBuffer.wrap(data, h, length);
+			while (b.hasRemaining())
+				if (in.read(b, pos + b.position() - h) < 0)
+					throw new EOFException("File truncated during the transfer");
+			sendPacket(destId, data);
+			if (!isConnected())
+				throw new IOException("Connection closed");
+			return;
+		}
+		ByteBuffer frame = ByteBuffer.allocate(8).putInt(destId).putInt(header.remaining() + length);
+		frame.flip();
+		try {
+			synchronized (dos) {
+				while (frame.hasRemaining())
+					channel.write(frame);
+				while (header.hasRemaining())
+					channel.write(header);
+				for (long done = 0; done < length;) {
+					long n = in.transferTo(pos + done, length - done, channel);
+					if (n <= 0 && pos + done >= in.size())
+						throw new EOFException("File truncated during the transfer");
+					done += n;
+				}
+			}
+		} catch (IOException e) {
+			// la trame est incomplète, la connexion ne peut plus servir
+			closeSession();
+			throw e;
+		}
+	}
+
+	public boolean isConnected() {
+		Socket sock = s;
+		return sock != null && !sock.isClosed();
+	}
+
 	public void closeSession() {
 		try {
 			if (s != null)
@@ -264,32 +616,24 @@ public class ClientMsg {
 		Map<Integer, String> idToPseudo = new HashMap<>();
 		Map<Integer, String> groupIdToName = new HashMap<>();
 
+		// Messages numérotés, enregistrés avec leurs accusés de réception et de lecture
+		ReceiptListener receipts = new ReceiptListener(c, new MessageRepository(), 200,
+				(conversationId, messageId, status) -> {
+					if (status == Message.STATUS_READ)
+						System.out.println("[lu] par " + idToPseudo.getOrDefault(conversationId, "#" + conversationId));
+				});
+		c.addMessageListener(receipts);
+		c.addConnectionListener(receipts);
+
 		// Listener principal de messages texte
 		c.addMessageListener(p -> {
-			String msg = new String(p.data).trim();
-
-			// Pseudo annoncé
-			if (msg.startsWith("NOUVEAU_PSEUDO:")) {
-				String[] parts = msg.split(":", 3);
-				if (parts.length == 3) {
-					int userId = Integer.parseInt(parts[1]);
-					String pseudo = parts[2];
-
-					// Si déjà enregistré, ne rien faire
-					if (pseudoToId.containsKey(pseudo.toLowerCase()))
-						return;
-
-					// Enregistrer le pseudo et l'ID dans les maps
-					pseudoToId.put(pseudo.toLowerCase(), userId);
-					idToPseudo.put(userId, pseudo);
-
-					// Afficher le message de connexion d'un nouveau utilisateur
-					if (userId != c.getIdentifier()) {
-						System.out.println(pseudo + " vient de se connecter !");
-					}
-				}
+			// les morceaux de fichiers sont traités par FileMessageListener
+			boolean numbered = p.length > 0 && p.data[0] == ReceiptProtocol.MESSAGE;
+			if (FileStream.isFileStream(p) || BlobProtocol.isBlob(p) || RosterProtocol.isRoster(p)
+					|| PresenceProtocol.isPresence(p) || DirectoryProtocol.isDirectory(p)
+					|| HeartbeatProtocol.isHeartbeat(p) || (ReceiptProtocol.isReceipt(p) && !numbered))
 				return;
-			}
+			String msg = numbered ? ReceiptProtocol.text(p).trim() : new String(p.data, 0, p.length).trim();
 
 			// Affichage du message "Bienvenue ..."
 			if (msg.toLowerCase().startsWith("bienvenue ") && p.srcId == 0) {
@@ -339,11 +683,38 @@ public class ClientMsg {
 			String to = idToPseudo.containsKey(p.destId) ? idToPseudo.get(p.destId)
 					: groupIdToName.getOrDefault(p.destId, "ID inconnu #" + p.destId);
 			System.out.println(from + " says to " + to + " : " + msg);
+			// le message est lu dès qu'il est affiché
+			if (numbered)
+				receipts.markRead(p.destId == c.getIdentifier() ? p.srcId : p.destId);
+		});
+
+		// Pseudos annoncés par le roster du serveur
+		RosterListener roster = new RosterListener(c, (userId, previous, pseudo) -> {
+			if (previous != null)
+				pseudoToId.remove(previous.toLowerCase());
+			if (pseudo == null) {
+				idToPseudo.remove(userId);
+				return;
+			}
+			pseudoToId.put(pseudo.toLowerCase(), userId);
+			idToPseudo.put(userId, pseudo);
+		});
+		c.addMessageListener(roster);
+		c.addConnectionListener(roster);
+
+		// Connexions des membres de nos groupes annoncées par le serveur
+		PresenceListener presence = new PresenceListener(c, (userId, online) -> {
+			String pseudo = idToPseudo.getOrDefault(userId, "Utilisateur #" + userId);
+			if (c.isConnected())
+				System.out.println(pseudo + (online ? " est en ligne" : " s'est déconnecté"));
 		});
+		c.addMessageListener(presence);
+		c.addConnectionListener(presence);
 
 		// Listeners pour fichiers et images
-		c.addMessageListener(new FileMessageListener("downloads"));
-		c.addMessageListener(new ImageMessageListener("images"));
+		c.addMessageListener(new FileMessageListener(c, "downloads"));
+		ImageMessageListener images = new ImageMessageListener(c, "images");
+		c.addMessageListener(images);
 
 		// Listener de déconnexion
 		c.addConnectionListener(active ->
@@ -363,7 +734,7 @@ public class ClientMsg {
 
 		while (!"\\quit".equalsIgnoreCase(lu)) {
 			System.out
-					.println("A qui voulez vous écrire ? ou tapez \\add, \\remove, \\create, \\file, \\photo, \\quit");
+					.println("A qui voulez vous écrire ? ou tapez \\add, \\remove, \\create, \\file, \\photo, \\open, \\search, \\quit");
 			lu = sc.nextLine();
 
 			switch (lu) {
@@ -373,6 +744,7 @@ public class ClientMsg {
 						String pseudo = sc.nextLine();
 						System.out.print("Chemin du fichier à envoyer : ");
 						String path = sc.nextLine();
+						resolve(c, pseudo, pseudoToId);
 						ControleChat.SendFile(c, pseudo, path, pseudoToId);
 					} catch (Exception e) {
 						System.out.println("Erreur lors de l'envoi du fichier.");
@@ -385,12 +757,35 @@ public class ClientMsg {
 						String pseudo = sc.nextLine();
 						System.out.print("Chemin de l'image à envoyer : ");
 						String path = sc.nextLine();
+						resolve(c, pseudo, pseudoToId);
 						ControleChat.SendImage(c, pseudo, path, pseudoToId);
 					} catch (Exception e) {
 						System.out.println("Erreur lors de l'envoi de l'image.");
 					}
 					break;
 
+				case "\\search":
+					System.out.print("Début du pseudo : ");
+					String prefix = sc.nextLine().trim();
+					try {
+						DirectoryProtocol.Result r = c.searchUsers(prefix, null, 20).get(5, TimeUnit.SECONDS);
+						for (int i = 0; i < r.ids.length; i++)
+							System.out.println("  " + r.names[i] + " (id = " + r.ids[i] + ")");
+						if (r.more)
+							System.out.println("  ...");
+					} catch (Exception e) {
+						System.out.println("Erreur lors de la recherche.");
+					}
+					break;
+
+				case "\\open":
+					System.out.print("Nom de l'image : ");
+					images.open(sc.nextLine().trim()).whenComplete((f, e) -> {
+						if (e != null)
+							System.out.println("Erreur lors de l'ouverture de l'image : " + e.getMessage());
+					});
+					break;
+
 				case "\\create":
 					try {
 						System.out.print("Nom du groupe : ");
@@ -403,6 +798,7 @@ public class ClientMsg {
 						for (int i = 0; i < nb; i++) {
 							System.out.print("Pseudo du membre " + (i + 1) + " : ");
 							pseudos.add(sc.nextLine());
+							resolve(c, pseudos.get(i), pseudoToId);
 						}
 
 						ControleChat.CreateGroup(c, pseudos, pseudoToId, groupName);
@@ -418,6 +814,7 @@ public class ClientMsg {
 						int groupId = Integer.parseInt(sc.nextLine());
 						System.out.print("Pseudo à ajouter : ");
 						String pseudo = sc.nextLine();
+						resolve(c, pseudo, pseudoToId);
 						ControleChat.AddMemberToGroup(c, groupId, pseudo, pseudoToId);
 					} catch (Exception e) {
 						System.out.println("Erreur lors de l'ajout.");
@@ -430,6 +827,7 @@ public class ClientMsg {
 						int groupId = Integer.parseInt(sc.nextLine());
 						System.out.print("Pseudo à retirer : ");
 						String pseudo = sc.nextLine();
+						resolve(c, pseudo, pseudoToId);
 						ControleChat.RemoveMemberFromGroup(c, groupId, pseudo, pseudoToId);
 					} catch (Exception e) {
 						System.out.println("Erreur lors de la suppression.");
@@ -441,7 +839,8 @@ public class ClientMsg {
 					if (!lu.startsWith("\\")) {
 						System.out.println("Votre message ? ");
 						String message = sc.nextLine();
-						ControleChat.SendMessage(c, lu, message, pseudoToId);
+						resolve(c, lu, pseudoToId);
+						ControleChat.SendMessage(receipts, lu, message, pseudoToId);
 					}
 					break;
 			}
@@ -450,4 +849,17 @@ public class ClientMsg {
 		c.closeSession();
 	}
 
+	// pseudo absent du roster : il est cherché sur le serveur
+	private static void resolve(ClientMsg c, String pseudo, Map<String, Integer> pseudoToId) {
+		if (pseudoToId.containsKey(pseudo.toLowerCase()))
+			return;
+		try {
+			Integer id = c.lookupUser(pseudo).get(5, TimeUnit.SECONDS);
+			if (id != null)
+				pseudoToId.put(pseudo.toLowerCase(), id);
+		} catch (Exception e) {
+			// le pseudo reste inconnu
+		}
+	}
+
 }
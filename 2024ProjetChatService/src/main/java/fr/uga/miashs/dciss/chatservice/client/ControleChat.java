@@ -20,6 +20,20 @@ public class ControleChat {
         client.sendPacket(destId, message.getBytes());
     }
 
+    /**
+     * Sends a numbered message, whose delivery and reading are acknowledged.
+     */
+    public static void SendMessage(ReceiptListener receipts, String destPseudo, String message,
+            Map<String, Integer> pseudoToId) {
+        Integer destId = pseudoToId.get(destPseudo.toLowerCase());
+        if (destId == null) {
+            System.out.println("Pseudo inconnu !");
+            return;
+        }
+
+        receipts.send(destId, message);
+    }
+
     public static void CreateGroup(ClientMsg client, List<String> pseudos, Map<String, Integer> pseudoToId,String groupName) {
         try {
             List<Integer> membres = new ArrayList<>();
@@ -115,7 +129,7 @@ public class ControleChat {
             }
 
             client.sendFile(dest, file);
-            System.out.println("Fichier envoyé !");
+            System.out.println("Fichier proposé, l'envoi commence dès qu'il est accepté.");
         } catch (IOException e) {
             System.out.println("Erreur lors de l'envoi du fichier.");
         }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.client;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.uga.miashs.dciss.chatservice.common.DirectoryProtocol;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Client side of the search of names (see DirectoryProtocol): sends the
+ * queries and completes their results as they arrive.
+ */
+class DirectoryClient implements MessageListener, ConnectionListener {
+
+	private final ClientMsg client;
+	private final AtomicInteger nextQueryId = new AtomicInteger();
+	private final Map<Integer, CompletableFuture<DirectoryProtocol.Result>> pending = new ConcurrentHashMap<>();
+
+	DirectoryClient(ClientMsg client) {
+		this.client = client;
+	}
+
+	CompletableFuture<DirectoryProtocol.Result> query(byte kind, String prefix, String after, int limit) {
+		int id = nextQueryId.incrementAndGet();
+		CompletableFuture<DirectoryProtocol.Result> res = new CompletableFuture<>();
+		pending.put(id, res);
+		client.sendPacket(0, DirectoryProtocol.query(id, kind, prefix, after, limit));
+		return res;
+	}
+
+	@Override
+	public void messageReceived(Packet p) {
+		if (p.srcId != 0 || p.length == 0 || p.data[0] != DirectoryProtocol.RESULT)
+			return;
+		try {
+			DirectoryProtocol.Result r = DirectoryProtocol.Result.fromPacket(p);
+			CompletableFuture<DirectoryProtocol.Result> f = pending.remove(r.queryId);
+			if (f != null)
+				f.complete(r);
+		} catch (IOException e) {
+			System.err.println("Invalid directory result: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void connectionEvent(boolean active) {
+		// les réponses des requêtes en cours ne viendront plus
+		if (!active) {
+			for (Integer id : pending.keySet()) {
+				CompletableFuture<DirectoryProtocol.Result> f = pending.remove(id);
+				if (f != null)
+					f.completeExceptionally(new IOException("Connection closed"));
+			}
+		}
+	}
+}
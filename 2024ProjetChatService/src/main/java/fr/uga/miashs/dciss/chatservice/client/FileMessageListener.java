@@ -1,12 +1,50 @@
 package fr.uga.miashs.dciss.chatservice.client;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+import fr.uga.miashs.dciss.chatservice.common.BlobProtocol;
+import fr.uga.miashs.dciss.chatservice.common.FileStream;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
 
-public class FileMessageListener implements MessageListener {
+/**
+ * Saves the files received in a directory. The chunks of the files streamed by
+ * ClientMsg.sendFile are read from the socket into a direct buffer, checked
+ * against their CRC32C as they go through and written at their offset in a
+ * ".part" file, without going through the Java heap. A ".manifest" file next to
+ * it records the chunks verified so far, so that an interrupted transfer
+ * offered again is resumed from the first missing chunk, even after a restart.
+ *
+ * The files posted to a group are announced by a descriptor, and downloaded
+ * from the server as soon as it is received.
+ */
+public class FileMessageListener implements MessageListener, ChunkReceiver {
+    private static final String PART = ".part";
+    private static final String MANIFEST = ".manifest";
+    // fréquence d'écriture du manifeste, en morceaux
+    private static final int MANIFEST_INTERVAL = 64;
+
+    private final ClientMsg client;
     private final String downloadDir;
+    // transferts par morceaux en cours de réception
+    private final Map<Long, Incoming> transfers = new ConcurrentHashMap<>();
+    // tampon de réception des morceaux, utilisé par la seule boucle de réception
+    private final ByteBuffer chunkBuf = ByteBuffer.allocateDirect(64 * 1024);
 
-    public FileMessageListener(String downloadDirectory) {
+    /**
+     * @param client client used to accept the files and acknowledge the chunks
+     */
+    public FileMessageListener(ClientMsg client, String downloadDirectory) {
+        this.client = client;
         this.downloadDir = downloadDirectory;
         // Créer le répertoire de téléchargement s'il n'existe pas
         new File(downloadDir).mkdirs();
@@ -14,33 +52,250 @@ public class FileMessageListener implements MessageListener {
 
     @Override
     public void messageReceived(Packet p) {
+        if (FileStream.isFileStream(p)) {
+            receiveStream(p);
+            return;
+        }
+        if (BlobProtocol.isBlob(p)) {
+            if (BlobProtocol.type(p) == BlobProtocol.DESCRIPTOR)
+                receiveDescriptor(p);
+            return;
+        }
         try {
-            // Vérifier si c'est un fichier (type 5)
-            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(p.data));
+            // Vérifier si c'est un fichier (type 5), envoyé d'un seul bloc par un ancien client
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(p.data, 0, p.length));
             byte type = dis.readByte();
-            
+
             if (type == 5) { // Type fichier
                 // Lire les métadonnées du fichier
                 String fileName = dis.readUTF();
                 long fileSize = dis.readLong();
-                
+
                 // Créer le fichier dans le répertoire de téléchargement
                 File outputFile = new File(downloadDir, fileName);
-                
+
                 // Lire le contenu du fichier
                 byte[] fileContent = new byte[(int)fileSize];
                 dis.readFully(fileContent);
-                
+
                 // Écrire le fichier
                 try (FileOutputStream fos = new FileOutputStream(outputFile)) {
                     fos.write(fileContent);
                 }
-                
-                System.out.println("Fichier reçu: " + fileName + " de " + p.srcId + 
+
+                System.out.println("Fichier reçu: " + fileName + " de " + p.srcId +
                                  " (" + fileSize + " bytes)");
             }
         } catch (IOException e) {
             System.err.println("Erreur lors de la réception du fichier: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean receiveChunk(int srcId, long transferId, int seq, int crc, ReadableByteChannel ch, int length)
+            throws IOException {
+        Incoming t = transfers.get(transferId);
+        if (t == null || t.srcId != srcId)
+            return false;
+        boolean inOrder = t.begin(seq);
+        // les octets du morceau sont toujours lus, même s'ils sont ignorés
+        for (int remaining = length; remaining > 0;) {
+            chunkBuf.clear().limit(Math.min(chunkBuf.capacity(), remaining));
+            if (ch.read(chunkBuf) < 0)
+                throw new EOFException();
+            chunkBuf.flip();
+            remaining -= chunkBuf.remaining();
+            if (inOrder)
+                t.write(chunkBuf);
+        }
+        if (inOrder)
+            t.end(crc);
+        return true;
+    }
+
+    // Fichier posté dans un groupe : il est téléchargé depuis le serveur
+    private void receiveDescriptor(Packet p) {
+        try {
+            BlobProtocol.Descriptor d = BlobProtocol.Descriptor.fromPacket(p);
+            if (d.kind != BlobProtocol.KIND_FILE)
+                return;
+            File target = new File(downloadDir, new File(d.name).getName());
+            client.fetchBlob(d, target).whenComplete((f, e) -> {
+                if (e == null)
+                    System.out.println("Fichier reçu: " + f.getName() + " de " + p.srcId + " dans le groupe "
+                            + p.destId + " (" + d.size + " bytes)");
+                else
+                    System.err.println("Erreur lors de la réception du fichier: " + e.getMessage());
+            });
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la réception du fichier: " + e.getMessage());
+        }
+    }
+
+    // Transfert par morceaux : chaque morceau est écrit directement dans le fichier
+    private void receiveStream(Packet p) {
+        byte type = FileStream.type(p);
+        long id = FileStream.transferId(p);
+        Incoming t = transfers.get(id);
+        if (type != FileStream.OFFER && (t == null || t.srcId != p.srcId))
+            return;
+        try {
+            if (type == FileStream.OFFER) {
+                if (t == null || t.srcId != p.srcId) {
+                    t = new Incoming(FileStream.Offer.fromPacket(p), p.srcId, p.destId);
+                    transfers.put(id, t);
+                }
+                // reprise à partir du premier morceau manquant
+                if (p.destId > 0)
+                    client.sendPacket(p.srcId, FileStream.control(FileStream.ACCEPT, id, t.nextSeq));
+            } else if (type == FileStream.CHUNK) {
+                if (t.begin(FileStream.intArg(p))) {
+                    t.write(ByteBuffer.wrap(p.data, FileStream.CHUNK_HEADER, p.length - FileStream.CHUNK_HEADER));
+                    t.end(FileStream.chunkCrc(p));
+                }
+            } else if (type == FileStream.END) {
+                transfers.remove(id);
+                if (t.nextSeq == FileStream.intArg(p)) {
+                    t.complete();
+                    System.out.println("Fichier reçu: " + t.file.getName() + " de " + p.srcId +
+                                     " (" + t.offer.size + " bytes)");
+                } else {
+                    t.suspend();
+                    System.err.println("Fichier incomplet, il sera repris: " + t.file.getName());
+                }
+            } else if (type == FileStream.CANCEL) {
+                transfers.remove(id);
+                t.suspend();
+                System.err.println("Transfert interrompu: " + t.file.getName());
+            }
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la réception du fichier: " + e.getMessage());
+            if (t != null && transfers.remove(id) != null) {
+                t.suspend();
+                client.sendPacket(p.srcId, FileStream.cancel(id));
+            }
+        }
+    }
+
+    private class Incoming {
+        final FileStream.Offer offer;
+        final int srcId;
+        final int destId;
+        final File file;
+        final File part;
+        final File manifest;
+        final FileChannel out;
+        final CRC32C crc = new CRC32C();
+        int nextSeq;
+        long pos;
+        boolean failed;
+
+        Incoming(FileStream.Offer offer, int srcId, int destId) throws IOException {
+            this.offer = offer;
+            this.srcId = srcId;
+            this.destId = destId;
+            // seul le nom est conservé, pour ne pas écrire hors du répertoire
+            String name = new File(offer.name).getName();
+            file = new File(downloadDir, name);
+            part = new File(downloadDir, name + PART);
+            manifest = new File(downloadDir, name + MANIFEST);
+            nextSeq = verifiedChunks();
+            out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (nextSeq == 0)
+                out.truncate(0);
+        }
+
+        // morceaux déjà vérifiés d'un transfert précédent du même fichier
+        private int verifiedChunks() {
+            if (!manifest.exists() || !part.exists())
+                return 0;
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(manifest)) {
+                props.load(in);
+            } catch (IOException e) {
+                return 0;
+            }
+            if (!Long.toString(offer.transferId).equals(props.getProperty("transferId"))
+                    || !Long.toString(offer.size).equals(props.getProperty("size"))
+                    || !Integer.toString(offer.chunkSize).equals(props.getProperty("chunkSize")))
+                return 0;
+            int chunks = Integer.parseInt(props.getProperty("chunks", "0"));
+            // le fichier partiel doit contenir les morceaux annoncés
+            return (int) Math.min(chunks, part.length() / offer.chunkSize);
+        }
+
+        private void saveManifest() throws IOException {
+            Properties props = new Properties();
+            props.setProperty("transferId", Long.toString(offer.transferId));
+            props.setProperty("sender", Integer.toString(srcId));
+            props.setProperty("name", offer.name);
+            props.setProperty("size", Long.toString(offer.size));
+            props.setProperty("chunkSize", Integer.toString(offer.chunkSize));
+            props.setProperty("chunks", Integer.toString(nextSeq));
+            try (OutputStream os = new FileOutputStream(manifest)) {
+                props.store(os, null);
+            }
+        }
+
+        /*
+         * Début d'un morceau : retourne false s'il n'est pas celui attendu (doublon
+         * après une reprise, ou morceau qui suit un morceau corrompu)
+         */
+        boolean begin(int seq) {
+            if (seq != nextSeq)
+                return false;
+            pos = (long) seq * offer.chunkSize;
+            crc.reset();
+            failed = false;
+            return true;
+        }
+
+        // la somme de contrôle est calculée au passage des octets
+        void write(ByteBuffer data) {
+            crc.update(data.duplicate());
+            try {
+                while (!failed && data.hasRemaining())
+                    pos += out.write(data, pos);
+            } catch (IOException e) {
+                System.err.println("Erreur lors de l'écriture du fichier: " + e.getMessage());
+                failed = true;
+            }
+        }
+
+        void end(int expectedCrc) throws IOException {
+            if (failed)
+                throw new IOException("Écriture impossible dans " + part);
+            if ((int) crc.getValue() != expectedCrc) {
+                // morceau corrompu : on redemande la suite à partir de celui-ci
+                if (destId > 0)
+                    client.sendPacket(srcId, FileStream.control(FileStream.ACCEPT, offer.transferId, nextSeq));
+                else
+                    throw new IOException("Morceau " + nextSeq + " corrompu");
+                return;
+            }
+            nextSeq++;
+            if (nextSeq % MANIFEST_INTERVAL == 0)
+                saveManifest();
+            // acquittement toutes les demi-fenêtres et à la fin (pas pour les groupes)
+            int chunks = FileStream.chunkCount(offer.size, offer.chunkSize);
+            if (destId > 0 && (nextSeq % (FileStream.WINDOW / 2) == 0 || nextSeq == chunks))
+                client.sendPacket(srcId, FileStream.control(FileStream.ACK, offer.transferId, nextSeq));
+        }
+
+        void complete() throws IOException {
+            out.close();
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            manifest.delete();
+        }
+
+        // le fichier partiel et son manifeste sont gardés pour une reprise
+        void suspend() {
+            try {
+                out.close();
+                saveManifest();
+            } catch (IOException e) {
+                // ignoré
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import fr.uga.miashs.dciss.chatservice.common.FileStream;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Sending side of the chunked file transfer (see FileStream). The chunks are
+ * sent from a dedicated thread, so that chat messages sent meanwhile are
+ * interleaved with them. Each chunk is read once, from a memory mapping of the
+ * file: its CRC32C is computed on the mapped bytes, which are then written to
+ * the socket from the same buffer, without copy into the Java heap.
+ *
+ * A transfer to a user interrupted by the loss of the connection is offered
+ * again when the session restarts, and the receiver tells from which chunk it
+ * has to resume.
+ */
+class FileSender implements MessageListener, ConnectionListener {
+
+	// abandon si le destinataire ne répond plus
+	private static final long ACK_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+	// taille des projections du fichier d'où partent les morceaux
+	private static final long MAP_SIZE = 16L * 1024 * 1024;
+
+	private final ClientMsg client;
+	private final Map<Long, Outgoing> transfers = new ConcurrentHashMap<>();
+
+	FileSender(ClientMsg client) {
+		this.client = client;
+	}
+
+	long send(int destId, File file) {
+		long id = FileStream.transferId(client.getIdentifier(), destId, file);
+		Outgoing t = transfers.computeIfAbsent(id, k -> new Outgoing(k, destId, file, FileStream.DEFAULT_CHUNK_SIZE));
+		t.offer();
+		return id;
+	}
+
+	@Override
+	public void connectionEvent(boolean active) {
+		// reprise des transferts interrompus par la déconnexion
+		if (active)
+			transfers.values().forEach(Outgoing::offer);
+	}
+
+	@Override
+	public void messageReceived(Packet p) {
+		if (!FileStream.isFileStream(p))
+			return;
+		byte type = FileStream.type(p);
+		if (type != FileStream.ACCEPT && type != FileStream.ACK && type != FileStream.CANCEL)
+			return;
+		Outgoing t = transfers.get(FileStream.transferId(p));
+		if (t == null || t.destId != p.srcId)
+			return;
+		if (type == FileStream.ACCEPT)
+			t.start(FileStream.intArg(p));
+		else if (type == FileStream.ACK)
+			t.acknowledged(FileStream.intArg(p));
+		else
+			t.cancel();
+	}
+
+	private class Outgoing implements Runnable {
+		final long id;
+		final int destId;
+		final File file;
+		final long size;
+		final int chunkSize;
+		final int chunks;
+
+		private boolean running;
+		private int first;
+		private int acked;
+		// morceau demandé à nouveau par le destinataire, -1 sinon
+		private int restartAt = -1;
+		private boolean cancelled;
+
+		private MappedByteBuffer region;
+		private long regionStart;
+		private final CRC32C crc = new CRC32C();
+
+		Outgoing(long id, int destId, File file, int chunkSize) {
+			this.id = id;
+			this.destId = destId;
+			this.file = file;
+			this.size = file.length();
+			this.chunkSize = chunkSize;
+			this.chunks = FileStream.chunkCount(size, chunkSize);
+		}
+
+		void offer() {
+			client.sendPacket(destId, FileStream.offer(id, file.getName(), size, chunkSize));
+			// les membres d'un groupe n'acceptent pas individuellement
+			if (destId < 0)
+				start(0);
+		}
+
+		synchronized void start(int from) {
+			from = Math.max(0, Math.min(from, chunks));
+			acked = from;
+			if (running) {
+				// reprise demandée pendant l'envoi, par exemple après un morceau corrompu
+				restartAt = from;
+				notifyAll();
+				return;
+			}
+			running = true;
+			cancelled = false;
+			first = from;
+			new Thread(this, "file-sender-" + id).start();
+		}
+
+		synchronized void acknowledged(int count) {
+			if (count > acked) {
+				acked = count;
+				notifyAll();
+			}
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+
+		private synchronized int nextSeq(int seq) {
+			if (restartAt >= 0) {
+				seq = restartAt;
+				restartAt = -1;
+			}
+			return seq;
+		}
+
+		/*
+		 * Attend que moins de window morceaux avant seq restent à acquitter, ou
+		 * qu'une reprise soit demandée. Retourne false si le transfert doit être
+		 * interrompu.
+		 */
+		private synchronized boolean await(int seq, int window) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+			while (destId > 0 && !cancelled && restartAt < 0 && seq >= acked + window) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0 || !client.isConnected())
+					return false;
+				wait(Math.min(wait, 1000));
+			}
+			return !cancelled;
+		}
+
+		private synchronized boolean restartPending() {
+			return restartAt >= 0;
+		}
+
+		private synchronized void stopped(boolean finished) {
+			running = false;
+			// un transfert interrompu reste connu pour être repris
+			if (finished || cancelled) {
+				transfers.remove(id);
+			} else if (restartAt >= 0) {
+				// reprise acceptée pendant l'arrêt du thread
+				int from = restartAt;
+				restartAt = -1;
+				start(from);
+			}
+		}
+
+		// octets d'un morceau dans une projection mémoire du fichier
+		private ByteBuffer chunk(FileChannel in, long pos, int length) throws IOException {
+			if (region == null || pos < regionStart || pos + length > regionStart + region.capacity()) {
+				regionStart = pos;
+				region = in.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_SIZE, size - pos));
+			}
+			int off = (int) (pos - regionStart);
+			return region.duplicate().position(off).limit(off + length);
+		}
+
+		// somme de contrôle des octets envoyés, sans déplacer leur position
+		private int checksum(ByteBuffer chunk) {
+			crc.reset();
+			crc.update(chunk.duplicate());
+			return (int) crc.getValue();
+		}
+
+		@Override
+		public void run() {
+			boolean finished = false;
+			try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				int seq = first;
+				while (true) {
+					seq = nextSeq(seq);
+					// après le dernier morceau, on attend qu'ils soient tous acquittés
+					boolean last = seq >= chunks;
+					// destinataire muet ou connexion perdue : le transfert pourra être repris
+					if (!await(seq, last ? 1 : FileStream.WINDOW))
+						return;
+					if (restartPending())
+						continue;
+					if (last)
+						break;
+					long pos = (long) seq * chunkSize;
+					int length = (int) Math.min(chunkSize, size - pos);
+					ByteBuffer chunk = chunk(in, pos, length);
+					client.sendChunk(destId, id, seq, checksum(chunk), chunk);
+					seq++;
+				}
+				client.sendPacket(destId, FileStream.control(FileStream.END, id, chunks));
+				finished = true;
+			} catch (IOException e) {
+				// connexion perdue : le transfert sera repris à la prochaine session
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				region = null;
+				stopped(finished);
+			}
+		}
+	}
+}
@@ -1,13 +1,37 @@
 package fr.uga.miashs.dciss.chatservice.client;
 
+import fr.uga.miashs.dciss.chatservice.common.BlobProtocol;
 import fr.uga.miashs.dciss.chatservice.common.ImageTransfer;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
 import java.io.*;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Saves the images received in a directory. For an image posted to a group,
+ * only the thumbnail made by the server is received and saved; the original is
+ * downloaded when it is opened (see open).
+ */
 public class ImageMessageListener implements MessageListener {
+    private static final String THUMBNAIL_SUFFIX = "_miniature.jpg";
+
+    private final ClientMsg client;
     private final String imageDir;
+    // images dont seule la miniature a été reçue, par nom
+    private final Map<String, BlobProtocol.Descriptor> thumbnailsOnly = new ConcurrentHashMap<>();
     
     public ImageMessageListener(String imageDirectory) {
+        this(null, imageDirectory);
+    }
+
+    /**
+     * @param client client used to download the images posted to groups, which
+     *               are only announced by a descriptor
+     */
+    public ImageMessageListener(ClientMsg client, String imageDirectory) {
+        this.client = client;
         this.imageDir = imageDirectory;
         // Créer le répertoire des images s'il n'existe pas
         new File(imageDir).mkdirs();
@@ -16,26 +40,75 @@ public class ImageMessageListener implements MessageListener {
     @Override
     public void messageReceived(Packet p) {
         try {
+            // Image postée dans un groupe : elle est téléchargée depuis le serveur
+            if (BlobProtocol.isBlob(p)) {
+                if (client != null && BlobProtocol.type(p) == BlobProtocol.DESCRIPTOR)
+                    receiveDescriptor(p);
+                return;
+            }
+
             // Vérifier si c'est une image (type 6)
-            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(p.data));
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(p.data, 0, p.length));
             byte type = dis.readByte();
             
             if (type == 6) { // Type image
-                // Reconstruire l'ImageTransfer
-                ImageTransfer imageTransfer = ImageTransfer.fromBytes(p.data);
+                // Sauvegarder l'image telle qu'elle a été reçue, sans la décoder
+                File outputFile = ImageTransfer.saveImage(p.data, p.length, new File(imageDir));
                 
-                // Créer le fichier de sortie
-                File outputFile = new File(imageDir, imageTransfer.getImageName());
-                
-                // Sauvegarder l'image
-                imageTransfer.saveImage(outputFile);
-                
-                System.out.println("Image reçue: " + imageTransfer.getImageName() + 
-                                 " de " + p.srcId + " (format: " + 
-                                 imageTransfer.getImageFormat() + ")");
+                System.out.println("Image reçue: " + outputFile.getName() + 
+                                 " de " + p.srcId);
             }
         } catch (IOException e) {
             System.err.println("Erreur lors de la réception de l'image: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    private void receiveDescriptor(Packet p) throws IOException {
+        BlobProtocol.Descriptor d = BlobProtocol.Descriptor.fromPacket(p);
+        if (d.kind != BlobProtocol.KIND_IMAGE)
+            return;
+        String name = new File(d.name).getName();
+        if (d.thumbnail != null) {
+            // l'original ne sera téléchargé que s'il est ouvert
+            Files.write(thumbnailFile(name).toPath(), d.thumbnail);
+            thumbnailsOnly.put(name, d);
+            System.out.println("Miniature reçue: " + name + " de " + p.srcId + " dans le groupe " + p.destId
+                    + " (\\open pour voir l'original)");
+            return;
+        }
+        download(d, name, p.srcId, p.destId);
+    }
+
+    private File thumbnailFile(String name) {
+        int dot = name.lastIndexOf('.');
+        return new File(imageDir, (dot > 0 ? name.substring(0, dot) : name) + THUMBNAIL_SUFFIX);
+    }
+
+    // les octets de l'image sont enregistrés tels quels
+    private CompletableFuture<File> download(BlobProtocol.Descriptor d, String name, int srcId, int groupId) {
+        File outputFile = new File(imageDir, name);
+        return client.fetchBlob(d, outputFile).whenComplete((f, e) -> {
+            if (e == null)
+                System.out.println("Image reçue: " + f.getName() + " de " + srcId + " dans le groupe " + groupId);
+            else
+                System.err.println("Erreur lors de la réception de l'image: " + e.getMessage());
+        });
+    }
+
+    /**
+     * Downloads the original of an image of which only the thumbnail has been
+     * received. The result fails if no such image has been received.
+     */
+    public CompletableFuture<File> open(String name) {
+        BlobProtocol.Descriptor d = thumbnailsOnly.get(name);
+        if (d == null) {
+            CompletableFuture<File> res = new CompletableFuture<>();
+            res.completeExceptionally(new FileNotFoundException("Aucune miniature reçue pour " + name));
+            return res;
+        }
+        return download(d, name, 0, 0).thenApply(f -> {
+            thumbnailsOnly.remove(name, d);
+            return f;
+        });
+    }
+}
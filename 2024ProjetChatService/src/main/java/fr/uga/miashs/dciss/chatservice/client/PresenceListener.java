@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.PresenceProtocol;
+
+/**
+ * Presence of the members of the groups of the client and of its contacts
+ * (see PresenceProtocol). The contacts are watched again at each session
+ * start.
+ */
+public class PresenceListener implements MessageListener, ConnectionListener {
+
+    /**
+     * Called when a user connects or disconnects.
+     */
+    public interface Change {
+        void changed(int userId, boolean online);
+    }
+
+    private final ClientMsg client;
+    private final Change listener;
+    private final Set<Integer> contacts = new LinkedHashSet<>();
+    private final Set<Integer> online = new HashSet<>();
+
+    public PresenceListener(ClientMsg client, Change listener) {
+        this.client = client;
+        this.listener = listener;
+    }
+
+    /**
+     * Watches the presence of users that share no group with the client.
+     */
+    public void watch(int... userIds) {
+        synchronized (this) {
+            for (int id : userIds)
+                contacts.add(id);
+        }
+        if (client.isConnected())
+            client.sendPacket(0, PresenceProtocol.watch(userIds));
+    }
+
+    public void unwatch(int... userIds) {
+        synchronized (this) {
+            for (int id : userIds)
+                contacts.remove(id);
+        }
+        if (client.isConnected())
+            client.sendPacket(0, PresenceProtocol.unwatch(userIds));
+    }
+
+    @Override
+    public void connectionEvent(boolean active) {
+        if (active) {
+            int[] ids;
+            synchronized (this) {
+                ids = contacts.stream().mapToInt(Integer::intValue).toArray();
+            }
+            if (ids.length > 0)
+                client.sendPacket(0, PresenceProtocol.watch(ids));
+            return;
+        }
+        // sans connexion, la présence des autres n'est plus connue
+        List<Integer> gone;
+        synchronized (this) {
+            gone = new ArrayList<>(online);
+            online.clear();
+        }
+        for (int id : gone)
+            changed(id, false);
+    }
+
+    @Override
+    public void messageReceived(Packet p) {
+        if (p.length == 0 || p.data[0] != PresenceProtocol.PRESENCE)
+            return;
+        PresenceProtocol.Update u;
+        try {
+            u = PresenceProtocol.Update.fromPacket(p);
+        } catch (IOException e) {
+            System.err.println("Invalid presence update: " + e.getMessage());
+            return;
+        }
+        for (int i = 0; i < u.userIds.length; i++) {
+            boolean modified;
+            synchronized (this) {
+                modified = u.online[i] ? online.add(u.userIds[i]) : online.remove(u.userIds[i]);
+            }
+            if (modified)
+                changed(u.userIds[i], u.online[i]);
+        }
+    }
+
+    private void changed(int userId, boolean online) {
+        if (listener != null)
+            listener.changed(userId, online);
+    }
+
+    public synchronized boolean isOnline(int userId) {
+        return online.contains(userId);
+    }
+
+    public synchronized Set<Integer> getOnline() {
+        return new HashSet<>(online);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package fr.uga.miashs.dciss.chatservice.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.uga.miashs.dciss.chatservice.client.database.Message;
+import fr.uga.miashs.dciss.chatservice.client.database.MessageRepository;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.ReceiptProtocol;
+
+/**
+ * Numbered text messages and their delivery and read receipts (see
+ * ReceiptProtocol). The messages received are acknowledged by cumulative
+ * receipts, gathered during batchMillis and sent together to the server, and
+ * the statuses of the messages sent are applied to the repository in one
+ * batch of updates per status packet.
+ */
+public class ReceiptListener implements MessageListener, ConnectionListener {
+
+    /**
+     * Called when messages sent by the client reach a status.
+     */
+    public interface Change {
+        /**
+         * @param conversationId the user or group the messages were sent to
+         * @param messageId      the last message that reached the status
+         * @param status         Message.STATUS_RECEIVED or Message.STATUS_READ
+         */
+        void changed(int conversationId, long messageId, int status);
+    }
+
+    private final ClientMsg client;
+    private final MessageRepository repository;
+    private final long batchMillis;
+    private final Change listener;
+
+    // les numéros croissent d'une session à l'autre sans être enregistrés
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    // conversation -> expéditeur -> dernier message reçu pas encore lu
+    private final Map<Integer, Map<Integer, Long>> unread = new HashMap<>();
+    // accusés à envoyer : (groupe, expéditeur) -> {reçu jusqu'à, lu jusqu'à}
+    private Map<Long, long[]> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param repository  where the messages and their statuses are saved, null
+     *                    to keep them only in memory
+     * @param batchMillis time during which the receipts are gathered before
+     *                    being sent, 0 to send each one right away
+     */
+    public ReceiptListener(ClientMsg client, MessageRepository repository, long batchMillis, Change listener) {
+        this.client = client;
+        this.repository = repository;
+        this.batchMillis = batchMillis;
+        this.listener = listener;
+        timer = batchMillis == 0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "receipts");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static long key(int groupId, int senderId) {
+        return ((long) groupId << 32) | (senderId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Sends a text message to a user or a group, and returns its number.
+     */
+    public long send(int destId, String text) {
+        long id = nextId.incrementAndGet();
+        if (repository != null)
+            repository.saveMessage(client.getIdentifier(), destId, text, 1, id, Message.STATUS_SENT);
+        client.sendPacket(destId, ReceiptProtocol.message(id, text));
+        return id;
+    }
+
+    /**
+     * Marks as read the messages received in a conversation: from a user, or in
+     * a group.
+     */
+    public void markRead(int conversationId) {
+        Map<Integer, Long> last;
+        synchronized (this) {
+            last = unread.remove(conversationId);
+            if (last == null)
+                return;
+            last.forEach((senderId, id) -> {
+                int groupId = senderId == conversationId ? 0 : conversationId;
+                long[] progress = pending.computeIfAbsent(key(groupId, senderId), k -> new long[2]);
+                progress[1] = Math.max(progress[1], id);
+            });
+        }
+        if (repository != null) {
+            int me = client.getIdentifier();
+            List<MessageRepository.StatusUpdate> updates = new ArrayList<>();
+            last.forEach((senderId, id) -> updates.add(new MessageRepository.StatusUpdate(senderId,
+                    senderId == conversationId ? me : conversationId, id, Message.STATUS_READ)));
+            repository.updateMessageStatus(updates);
+        }
+        schedule();
+    }
+
+    @Override
+    public void messageReceived(Packet p) {
+        if (p.length == 0)
+            return;
+        if (p.data[0] == ReceiptProtocol.MESSAGE && p.srcId != 0)
+            received(p);
+        else if (p.data[0] == ReceiptProtocol.STATUS && p.srcId == 0)
+            status(p);
+    }
+
+    private void received(Packet p) {
+        long id;
+        try {
+            id = ReceiptProtocol.messageId(p);
+        } catch (IOException e) {
+            System.err.println("Invalid message: " + e.getMessage());
+            return;
+        }
+        // un message de groupe est adressé au groupe, les autres au client
+        boolean direct = p.destId == client.getIdentifier();
+        int conversationId = direct ? p.srcId : p.destId;
+        if (repository != null)
+            repository.saveMessage(p.srcId, p.destId, ReceiptProtocol.text(p), 1, id, Message.STATUS_RECEIVED);
+        synchronized (this) {
+            unread.computeIfAbsent(conversationId, k -> new HashMap<>()).merge(p.srcId, id, Math::max);
+            long[] progress = pending.computeIfAbsent(key(direct ? 0 : p.destId, p.srcId), k -> new long[2]);
+            progress[0] = Math.max(progress[0], id);
+        }
+        schedule();
+    }
+
+    // statuts des messages envoyés, appliqués en un seul lot
+    private void status(Packet p) {
+        ReceiptProtocol.Receipts r;
+        try {
+            r = ReceiptProtocol.Receipts.fromPacket(p);
+        } catch (IOException e) {
+            System.err.println("Invalid receipt: " + e.getMessage());
+            return;
+        }
+        if (repository != null) {
+            int me = client.getIdentifier();
+            List<MessageRepository.StatusUpdate> updates = new ArrayList<>(r.size());
+            for (int i = 0; i < r.size(); i++)
+                updates.add(new MessageRepository.StatusUpdate(me, r.conversationIds[i], r.messageIds[i], r.status[i]));
+            repository.updateMessageStatus(updates);
+        }
+        if (listener != null) {
+            for (int i = 0; i < r.size(); i++)
+                listener.changed(r.conversationIds[i], r.messageIds[i], r.status[i]);
+        }
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (flushScheduled || pending.isEmpty())
+                return;
+            flushScheduled = true;
+            if (timer != null) {
+                try {
+                    timer.schedule(this::flush, batchMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    flushScheduled = false;
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /*
+     * Envoie les accusés en attente en un seul paquet ; sans connexion, ils
+     * attendent la session suivante
+     */
+    private void flush() {
+        Map<Long, long[]> receipts;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty() || !client.isConnected())
+                return;
+            receipts = pending;
+            pending = new LinkedHashMap<>();
+        }
+        int n = 0;
+        for (long[] s : receipts.values())
+            n += (s[0] > s[1] ? 1 : 0) + (s[1] > 0 ? 1 : 0);
+        byte[] status = new byte[n];
+        int[] groupIds = new int[n];
+        int[] senderIds = new int[n];
+        long[] messageIds = new long[n];
+        int i = 0;
+        for (Map.Entry<Long, long[]> e : receipts.entrySet()) {
+            int groupId = (int) (e.getKey() >> 32);
+            int senderId = (int) (long) e.getKey();
+            long[] s = e.getValue();
+            // la lecture couvre la réception des mêmes messages
+            if (s[0] > s[1]) {
+                status[i] = ReceiptProtocol.DELIVERED;
+                groupIds[i] = groupId;
+                senderIds[i] = senderId;
+                messageIds[i++] = s[0];
+            }
+            if (s[1] > 0) {
+                status[i] = ReceiptProtocol.READ;
+                groupIds[i] = groupId;
+                senderIds[i] = senderId;
+                messageIds[i++] = s[1];
+            }
+        }
+        client.sendPacket(0, ReceiptProtocol.receipt(status, groupIds, senderIds, messageIds));
+    }
+
+    @Override
+    public void connectionEvent(boolean active) {
+        // les accusés gardés pendant la déconnexion
+        if (active)
+            schedule();
+    }
+}
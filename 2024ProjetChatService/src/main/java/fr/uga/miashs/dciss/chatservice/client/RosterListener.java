@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.RosterProtocol;
+
+/**
+ * Copy of the roster of the server (see RosterProtocol). At each session start
+ * it sends the version it knows, so that after a reconnection only the
+ * changes it missed are received.
+ */
+public class RosterListener implements MessageListener, ConnectionListener {
+
+    /**
+     * Called for each nickname that changes.
+     */
+    public interface Change {
+        /**
+         * @param previous the previous nickname, null for a new user
+         * @param nickname the new nickname, null for a removed user
+         */
+        void changed(int userId, String previous, String nickname);
+    }
+
+    private final ClientMsg client;
+    private final Change listener;
+    private final Map<Integer, String> nicknames = new HashMap<>();
+    private long epoch;
+    private long version;
+
+    public RosterListener(ClientMsg client, Change listener) {
+        this.client = client;
+        this.listener = listener;
+    }
+
+    @Override
+    public void connectionEvent(boolean active) {
+        if (active)
+            sync();
+    }
+
+    private void sync() {
+        long e, v;
+        synchronized (this) {
+            e = epoch;
+            v = version;
+        }
+        client.sendPacket(0, RosterProtocol.sync(e, v));
+    }
+
+    @Override
+    public void messageReceived(Packet p) {
+        if (p.length == 0 || p.data[0] != RosterProtocol.UPDATE)
+            return;
+        RosterProtocol.Update u;
+        try {
+            u = RosterProtocol.Update.fromPacket(p);
+        } catch (IOException e) {
+            System.err.println("Invalid roster update: " + e.getMessage());
+            return;
+        }
+        boolean missed = false;
+        synchronized (this) {
+            if (u.kind == RosterProtocol.SNAPSHOT) {
+                Map<Integer, String> previous = new HashMap<>(nicknames);
+                nicknames.clear();
+                for (int i = 0; i < u.userIds.length; i++) {
+                    nicknames.put(u.userIds[i], u.nicknames[i]);
+                    changed(u.userIds[i], previous.remove(u.userIds[i]), u.nicknames[i]);
+                }
+                // les utilisateurs absents de l'instantané ont été supprimés
+                previous.forEach((id, nickname) -> changed(id, nickname, null));
+                epoch = u.epoch;
+                version = u.to;
+            } else if (u.epoch != epoch || u.from > version) {
+                // des changements manquent : le serveur renverra ce qu'il faut
+                missed = true;
+            } else if (u.to > version) {
+                for (int i = 0; i < u.userIds.length; i++) {
+                    String nickname = u.nicknames[i];
+                    String previous = nickname == null ? nicknames.remove(u.userIds[i])
+                            : nicknames.put(u.userIds[i], nickname);
+                    changed(u.userIds[i], previous, nickname);
+                }
+                version = u.to;
+            }
+        }
+        if (missed)
+            sync();
+    }
+
+    private void changed(int userId, String previous, String nickname) {
+        if (listener != null && !Objects.equals(previous, nickname))
+            listener.changed(userId, previous, nickname);
+    }
+
+    public synchronized String getNickname(int userId) {
+        return nicknames.get(userId);
+    }
+
+    public synchronized Map<Integer, String> getNicknames() {
+        return new HashMap<>(nicknames);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+}
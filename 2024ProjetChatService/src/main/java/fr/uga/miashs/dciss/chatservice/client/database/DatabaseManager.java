@@ -2,6 +2,7 @@ package fr.uga.miashs.dciss.chatservice.client.database;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
@@ -14,14 +15,17 @@ public class DatabaseManager {
             // Chargement explicite du driver SQLite
             Class.forName("org.sqlite.JDBC");
             connection = DriverManager.getConnection(DB_URL);
-            createTables();
+            createTables(connection);
         } catch (SQLException | ClassNotFoundException e) {
             System.err.println("Erreur d'initialisation de la base de données: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
-    private static void createTables() throws SQLException {
+    /**
+     * Creates the tables and indexes missing in a database.
+     */
+    public static void createTables(Connection connection) throws SQLException {
         try (Statement stmt = connection.createStatement()) {
             // Table messages
             stmt.execute("CREATE TABLE IF NOT EXISTS messages (" +
@@ -31,8 +35,14 @@ public class DatabaseManager {
                 "content TEXT NOT NULL," +
                 "timestamp DATETIME DEFAULT (datetime('now','localtime'))," +
                 "message_type INTEGER NOT NULL," +
-                "status INTEGER DEFAULT 0" +
+                "status INTEGER DEFAULT 0," +
+                // numéro attribué par l'expéditeur, auquel se rapportent les accusés
+                "msg_id INTEGER" +
                 ")");
+            // base créée avant les accusés de réception
+            if (!hasColumn(connection, "messages", "msg_id")) {
+                stmt.execute("ALTER TABLE messages ADD COLUMN msg_id INTEGER");
+            }
 
             // Table attachments
             stmt.execute("CREATE TABLE IF NOT EXISTS attachments (" +
@@ -80,7 +90,20 @@ public class DatabaseManager {
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_sender ON messages(sender_id)");
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_receiver ON messages(receiver_id)");
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_group_members ON group_members(group_id)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_messages_msg ON messages(sender_id, receiver_id, msg_id)");
+        }
+    }
+
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return true;
+                }
+            }
         }
+        return false;
     }
 
     public static Connection getConnection() {
@@ -8,18 +8,54 @@ import fr.uga.miashs.dciss.chatservice.common.Packet;
 public class MessageRepository {
     private final Connection connection;
 
+    /**
+     * Status reached by the messages of a sender to a receiver (a user or a
+     * group), up to a number given by the sender.
+     */
+    public static class StatusUpdate {
+        public final int senderId;
+        public final int receiverId;
+        public final long msgId;
+        public final int status;
+
+        public StatusUpdate(int senderId, int receiverId, long msgId, int status) {
+            this.senderId = senderId;
+            this.receiverId = receiverId;
+            this.msgId = msgId;
+            this.status = status;
+        }
+    }
+
     public MessageRepository() {
         this.connection = DatabaseManager.getConnection();
     }
 
+    public MessageRepository(Connection connection) {
+        this.connection = connection;
+    }
+
     public long saveMessage(int senderId, int receiverId, String content, int messageType) {
-        String sql = "INSERT INTO messages (sender_id, receiver_id, content, message_type) VALUES (?, ?, ?, ?)";
+        return saveMessage(senderId, receiverId, content, messageType, 0, Message.STATUS_SENT);
+    }
+
+    /**
+     * Saves a message numbered by its sender (see ReceiptProtocol), 0 if it is
+     * not numbered.
+     */
+    public long saveMessage(int senderId, int receiverId, String content, int messageType, long msgId, int status) {
+        String sql = "INSERT INTO messages (sender_id, receiver_id, content, message_type, msg_id, status) VALUES (?, ?, ?, ?, ?, ?)";
         
         try (PreparedStatement pstmt = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             pstmt.setInt(1, senderId);
             pstmt.setInt(2, receiverId);
             pstmt.setString(3, content);
             pstmt.setInt(4, messageType);
+            if (msgId != 0) {
+                pstmt.setLong(5, msgId);
+            } else {
+                pstmt.setNull(5, Types.INTEGER);
+            }
+            pstmt.setInt(6, status);
             
             int affectedRows = pstmt.executeUpdate();
             if (affectedRows > 0) {
@@ -37,7 +73,7 @@ public class MessageRepository {
     }
 
     public void saveMessageFromPacket(Packet packet) {
-        saveMessage(packet.srcId, packet.destId, new String(packet.data), determineMessageType(packet));
+        saveMessage(packet.srcId, packet.destId, new String(packet.data, 0, packet.length), determineMessageType(packet));
     }
 
     public List<Message> getMessageHistory(int userId, int contactId) {
@@ -109,6 +145,45 @@ public class MessageRepository {
         }
     }
 
+    /**
+     * Applies statuses to all the messages they cover, in a single transaction
+     * and batch of statements. A status never goes back: a message read is not
+     * marked delivered again. Returns the number of messages updated.
+     */
+    public int updateMessageStatus(List<StatusUpdate> updates) {
+        String sql = "UPDATE messages SET status = ? WHERE sender_id = ? AND receiver_id = ? AND msg_id <= ? AND status < ?";
+        int updated = 0;
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                for (StatusUpdate u : updates) {
+                    pstmt.setInt(1, u.status);
+                    pstmt.setInt(2, u.senderId);
+                    pstmt.setInt(3, u.receiverId);
+                    pstmt.setLong(4, u.msgId);
+                    pstmt.setInt(5, u.status);
+                    pstmt.addBatch();
+                }
+                for (int n : pstmt.executeBatch()) {
+                    if (n > 0) {
+                        updated += n;
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            System.err.println("Erreur lors de la mise à jour des statuts: " + e.getMessage());
+            e.printStackTrace();
+        }
+        return updated;
+    }
+
     private int determineMessageType(Packet packet) {
         // TODO: Implémenter la logique pour déterminer le type de message
         // Par exemple: 1 = texte, 2 = fichier, 3 = image, etc.
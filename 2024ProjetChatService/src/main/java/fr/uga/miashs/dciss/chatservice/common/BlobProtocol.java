@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Messages of the files posted to a group. Instead of being relayed to every
+ * member, such a file is uploaded once to the blob store of the server, which
+ * identifies it by the SHA-256 of its content, and the members receive a small
+ * descriptor from which they fetch the bytes when they want them. The first
+ * byte of the payload is the message type:
+ * <ul>
+ * <li>OFFER [14][hash][size (long)][groupId (int)][kind][name (UTF)], client to
+ * server</li>
+ * <li>UPLOAD [15][hash][offset (long)], server to client: the bytes to send
+ * from offset, offset is the size if the server already has the file</li>
+ * <li>DATA [16][hash][offset (long)][data], in both directions</li>
+ * <li>DESCRIPTOR [17][hash][size (long)][kind][name (UTF)][thumbnail length
+ * (int)][thumbnail], sent by the server to the group on behalf of the poster;
+ * the JPEG thumbnail of an image is empty if it could not be made</li>
+ * <li>FETCH [18][hash][offset (long)][length (int)], client to server</li>
+ * <li>MISSING [19][hash], server to client: the file is no longer stored</li>
+ * </ul>
+ * Data offsets are multiples of CHUNK_SIZE, and a FETCH is answered by at most
+ * MAX_FETCH_CHUNKS DATA messages.
+ */
+public final class BlobProtocol {
+
+	public static final byte OFFER = 14;
+	public static final byte UPLOAD = 15;
+	public static final byte DATA = 16;
+	public static final byte DESCRIPTOR = 17;
+	public static final byte FETCH = 18;
+	public static final byte MISSING = 19;
+
+	// nature du fichier, pour choisir le listener qui le traite
+	public static final byte KIND_FILE = 0;
+	public static final byte KIND_IMAGE = 1;
+
+	public static final int HASH_SIZE = 32;
+	// type, empreinte, position
+	public static final int DATA_HEADER = 1 + HASH_SIZE + 8;
+	// un morceau et son entête tiennent dans le plus grand tampon du pool serveur
+	public static final int CHUNK_SIZE = 64 * 1024 - DATA_HEADER;
+	public static final int MAX_FETCH_CHUNKS = 16;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private BlobProtocol() {
+	}
+
+	/**
+	 * Tells if the packet is a message of the blob transfer.
+	 */
+	public static boolean isBlob(Packet p) {
+		return p.length >= 1 + HASH_SIZE && p.data[0] >= OFFER && p.data[0] <= MISSING;
+	}
+
+	public static byte type(Packet p) {
+		return p.data[0];
+	}
+
+	public static byte[] hash(Packet p) {
+		return Arrays.copyOfRange(p.data, 1, 1 + HASH_SIZE);
+	}
+
+	/**
+	 * Hexadecimal form of the hash of the message, used as the key of the file.
+	 */
+	public static String key(Packet p) {
+		return key(p.data, 1);
+	}
+
+	public static String key(byte[] hash) {
+		return key(hash, 0);
+	}
+
+	private static String key(byte[] b, int off) {
+		char[] c = new char[2 * HASH_SIZE];
+		for (int i = 0; i < HASH_SIZE; i++) {
+			c[2 * i] = HEX[(b[off + i] >> 4) & 0xF];
+			c[2 * i + 1] = HEX[b[off + i] & 0xF];
+		}
+		return new String(c);
+	}
+
+	/**
+	 * The long following the hash: offset of UPLOAD, DATA and FETCH.
+	 */
+	public static long offset(Packet p) {
+		return ByteBuffer.wrap(p.data, 1 + HASH_SIZE, 8).getLong();
+	}
+
+	/**
+	 * Length requested by a FETCH.
+	 */
+	public static int fetchLength(Packet p) {
+		return ByteBuffer.wrap(p.data, DATA_HEADER, 4).getInt();
+	}
+
+	/**
+	 * SHA-256 of the content of a file.
+	 */
+	public static byte[] sha256(File file) throws IOException {
+		MessageDigest md = newDigest();
+		ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (in.read(buf) >= 0) {
+				buf.flip();
+				md.update(buf);
+				buf.clear();
+			}
+		}
+		return md.digest();
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static byte[] offer(byte[] hash, long size, int groupId, byte kind, String name) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeByte(OFFER);
+			dos.write(hash);
+			dos.writeLong(size);
+			dos.writeInt(groupId);
+			dos.writeByte(kind);
+			dos.writeUTF(name);
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static byte[] descriptor(byte[] hash, long size, byte kind, String name) {
+		return descriptor(hash, size, kind, name, null);
+	}
+
+	public static byte[] descriptor(byte[] hash, long size, byte kind, String name, byte[] thumbnail) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeByte(DESCRIPTOR);
+			dos.write(hash);
+			dos.writeLong(size);
+			dos.writeByte(kind);
+			dos.writeUTF(name);
+			dos.writeInt(thumbnail == null ? 0 : thumbnail.length);
+			if (thumbnail != null)
+				dos.write(thumbnail);
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static byte[] upload(byte[] hash, long offset) {
+		return ByteBuffer.allocate(DATA_HEADER).put(UPLOAD).put(hash).putLong(offset).array();
+	}
+
+	public static byte[] fetch(byte[] hash, long offset, int length) {
+		return ByteBuffer.allocate(DATA_HEADER + 4).put(FETCH).put(hash).putLong(offset).putInt(length).array();
+	}
+
+	public static byte[] missing(byte[] hash) {
+		return ByteBuffer.allocate(1 + HASH_SIZE).put(MISSING).put(hash).array();
+	}
+
+	/**
+	 * Writes the header of a DATA message at the position of buf, the data has
+	 * to follow it.
+	 */
+	public static void dataHeader(ByteBuffer buf, byte[] hash, long offset) {
+		buf.put(DATA).put(hash).putLong(offset);
+	}
+
+	/**
+	 * Content of an OFFER or of a DESCRIPTOR message (groupId is 0 for the
+	 * latter, thumbnail is null for the former or if there is no thumbnail).
+	 */
+	public static class Descriptor {
+		public final byte[] hash;
+		public final long size;
+		public final int groupId;
+		public final byte kind;
+		public final String name;
+		public final byte[] thumbnail;
+
+		public Descriptor(byte[] hash, long size, int groupId, byte kind, String name) {
+			this(hash, size, groupId, kind, name, null);
+		}
+
+		public Descriptor(byte[] hash, long size, int groupId, byte kind, String name, byte[] thumbnail) {
+			this.hash = hash;
+			this.size = size;
+			this.groupId = groupId;
+			this.kind = kind;
+			this.name = name;
+			this.thumbnail = thumbnail;
+		}
+
+		public String key() {
+			return BlobProtocol.key(hash);
+		}
+
+		public static Descriptor fromPacket(Packet p) throws IOException {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(p.data, 0, p.length));
+			byte type = dis.readByte();
+			byte[] hash = new byte[HASH_SIZE];
+			dis.readFully(hash);
+			long size = dis.readLong();
+			int groupId = type == OFFER ? dis.readInt() : 0;
+			byte kind = dis.readByte();
+			String name = dis.readUTF();
+			byte[] thumbnail = null;
+			if (type == DESCRIPTOR && dis.available() >= 4) {
+				int n = dis.readInt();
+				if (n > 0) {
+					thumbnail = new byte[n];
+					dis.readFully(thumbnail);
+				}
+			}
+			return new Descriptor(hash, size, groupId, kind, name, thumbnail);
+		}
+	}
+}
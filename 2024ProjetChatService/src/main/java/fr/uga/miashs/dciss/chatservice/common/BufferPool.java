@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of byte arrays used as packet payloads. The arrays are sorted in size
+ * classes (powers of two from 256 bytes to maxBufferSize), an acquired array
+ * can thus be larger than requested. Requests larger than maxBufferSize are
+ * served by a plain allocation.
+ *
+ * An array that is never released is simply garbage collected, but an array
+ * must not be used anymore once released.
+ */
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 8;
+
+	private final int maxBufferSize;
+	private final List<ConcurrentLinkedQueue<byte[]>> free;
+	private final AtomicInteger[] freeCount;
+	private final int[] capacity;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param maxBufferSize  size of the largest pooled arrays, rounded up to a
+	 *                       power of two
+	 * @param maxPooledBytes approximate number of bytes that the free arrays of
+	 *                       the pool may hold, shared equally between the classes
+	 */
+	public BufferPool(int maxBufferSize, long maxPooledBytes) {
+		if (maxBufferSize < 1 || maxBufferSize > 1 << 30)
+			throw new IllegalArgumentException("invalid buffer size " + maxBufferSize);
+		int classes = classOf(maxBufferSize) + 1;
+		this.maxBufferSize = sizeOf(classes - 1);
+		free = new ArrayList<>(classes);
+		freeCount = new AtomicInteger[classes];
+		capacity = new int[classes];
+		for (int i = 0; i < classes; i++) {
+			free.add(new ConcurrentLinkedQueue<>());
+			freeCount[i] = new AtomicInteger();
+			capacity[i] = (int) Math.min(Integer.MAX_VALUE, maxPooledBytes / classes / sizeOf(i));
+		}
+	}
+
+	private static int classOf(int length) {
+		return length <= 1 << MIN_SHIFT ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+	}
+
+	private static int sizeOf(int sizeClass) {
+		return 1 << (sizeClass + MIN_SHIFT);
+	}
+
+	public int maxBufferSize() {
+		return maxBufferSize;
+	}
+
+	/**
+	 * Returns an array of at least the given length. Its content is undefined.
+	 */
+	public byte[] acquire(int length) {
+		if (length > maxBufferSize)
+			return new byte[length];
+		int c = classOf(length);
+		byte[] b = free.get(c).poll();
+		if (b != null) {
+			freeCount[c].decrementAndGet();
+			hits.increment();
+			return b;
+		}
+		misses.increment();
+		return new byte[sizeOf(c)];
+	}
+
+	/**
+	 * Gives back an array to the pool. Arrays whose length is not the one of a
+	 * size class are ignored.
+	 */
+	public void release(byte[] b) {
+		if (b.length > maxBufferSize)
+			return;
+		int c = classOf(b.length);
+		if (sizeOf(c) != b.length)
+			return;
+		// au-delà de la capacité de la classe, le tableau est laissé au GC
+		if (freeCount[c].incrementAndGet() <= capacity[c])
+			free.get(c).offer(b);
+		else
+			freeCount[c].decrementAndGet();
+	}
+
+	/**
+	 * Number of acquisitions served by a free array.
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Number of acquisitions that required an allocation.
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the frames, negotiated when the connection starts. A client
+ * asking for it sends HELLO, its capabilities and then its id, instead of its
+ * id alone; the server answers with the capabilities it accepts (followed by
+ * the new id if the client sent 0). A client that sends its id directly is
+ * never sent compressed frames. The other capabilities are described with
+ * their feature (see ResumeProtocol).
+ *
+ * Once DEFLATE is accepted, each side may compress the payloads longer than a
+ * threshold. The length of a compressed frame has its FLAG bit set, and its
+ * payload is [raw length (int)][deflated payload]. Each frame is deflated on
+ * its own with a preset dictionary made of the messages of the server, so that
+ * short notifications also shrink. The payloads that are already compressed
+ * (images, archives...) are recognized by their signature and sent raw, as
+ * well as the following chunks of the same file.
+ */
+public final class Compression {
+
+	/**
+	 * First int of the handshake of a client announcing its capabilities. It is
+	 * negative, hence not a valid id for an older server.
+	 */
+	public static final int HELLO = 0xDC155A01;
+	/**
+	 * Capability: the frames may be deflated.
+	 */
+	public static final int DEFLATE = 1;
+	/**
+	 * Bit of the length of a frame telling that its payload is compressed.
+	 */
+	public static final int FLAG = 0x80000000;
+	/**
+	 * Payloads shorter than this are not worth compressing.
+	 */
+	public static final int DEFAULT_THRESHOLD = 24;
+
+	/**
+	 * Value of Packet.getDeflated() for a payload that is sent raw.
+	 */
+	public static final byte[] RAW = new byte[0];
+
+	// les plus fréquents à la fin : les références proches coûtent moins cher
+	private static final byte[] DICTIONARY = String.join("",
+			"Un utilisateur", "GROUPE_CREE:", "GROUPE:", "Vous avez créé le groupe [", "] (id = ", ")",
+			"Vous avez été retiré du groupe ", "L'utilisateur ", " a été retiré du groupe ",
+			" a été ajouté au groupe ", " vous a ajouté au groupe ",
+			" ! Votre pseudo a été enregistré avec succès.", "Bienvenue ", "NOUVEAU_PSEUDO:",
+			"Vous avez été ajouté au groupe ")
+			.getBytes(StandardCharsets.UTF_8);
+
+	private static final int LEVEL = Deflater.BEST_SPEED;
+	// un flux dont les morceaux gagnent moins de 10 % n'est plus compressé
+	private static final int MIN_GAIN_PERCENT = 10;
+	// flux incompressibles retenus par connexion
+	private static final int MAX_STREAMS = 256;
+
+	private static final byte IMAGE = 6;
+	private static final byte FILE = 5;
+
+	private Compression() {
+	}
+
+	/*
+	 * Identifiant du fichier dont le message est un morceau (transfert par
+	 * morceaux ou fichier posté dans un groupe), 0 sinon
+	 */
+	private static long stream(byte[] data, int off, int length) {
+		if (length >= FileStream.CHUNK_HEADER && data[off] == FileStream.CHUNK
+				|| length >= BlobProtocol.DATA_HEADER && data[off] == BlobProtocol.DATA)
+			return ByteBuffer.wrap(data, off + 1, 8).getLong() ^ data[off];
+		return 0;
+	}
+
+	// début du contenu transporté par le message, après son entête
+	private static int contentOffset(byte[] data, int off, int length) {
+		if (length >= FileStream.CHUNK_HEADER && data[off] == FileStream.CHUNK)
+			return FileStream.CHUNK_HEADER;
+		if (length >= BlobProtocol.DATA_HEADER && data[off] == BlobProtocol.DATA)
+			return BlobProtocol.DATA_HEADER;
+		if (length >= 3 && data[off] == FILE)
+			// [5][nom (UTF)][taille (long)][contenu]
+			return Math.min(length, 1 + 2 + ((data[off + 1] & 0xFF) << 8 | data[off + 2] & 0xFF) + 8);
+		return 0;
+	}
+
+	/**
+	 * Tells if the content carried by a message starts with the signature of a
+	 * compressed format: images, archives, audio and video.
+	 */
+	public static boolean isCompressed(byte[] data, int off, int length) {
+		int c = contentOffset(data, off, length);
+		return isCompressedFormat(data, off + c, length - c);
+	}
+
+	private static boolean isCompressedFormat(byte[] b, int off, int n) {
+		return startsWith(b, off, n, 0x89, 'P', 'N', 'G') // PNG
+				|| startsWith(b, off, n, 0xFF, 0xD8, 0xFF) // JPEG
+				|| startsWith(b, off, n, 'G', 'I', 'F', '8') // GIF
+				|| startsWith(b, off, n, 'R', 'I', 'F', 'F') // WebP, AVI, WAV
+				|| startsWith(b, off, n, 'P', 'K', 3, 4) // zip, jar, docx...
+				|| startsWith(b, off, n, 0x1F, 0x8B) // gzip
+				|| startsWith(b, off, n, '7', 'z', 0xBC, 0xAF) // 7z
+				|| startsWith(b, off, n, 'B', 'Z', 'h') // bzip2
+				|| startsWith(b, off, n, 0xFD, '7', 'z', 'X') // xz
+				|| startsWith(b, off, n, 'I', 'D', '3') // mp3
+				|| n >= 8 && startsWith(b, off + 4, n - 4, 'f', 't', 'y', 'p'); // mp4, mov
+	}
+
+	private static boolean startsWith(byte[] b, int off, int n, int... magic) {
+		if (n < magic.length)
+			return false;
+		for (int i = 0; i < magic.length; i++)
+			if ((b[off + i] & 0xFF) != magic[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Compresses the payloads sent on a connection. The deflater is reused from
+	 * frame to frame. Not thread safe.
+	 */
+	public static class Compressor {
+		private final int threshold;
+		private Deflater deflater;
+		private byte[] buf = new byte[0];
+		// fichiers dont les morceaux ne se compressent pas, du plus ancien au plus récent
+		private final Map<Long, Boolean> incompressible = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+				return size() > MAX_STREAMS;
+			}
+		};
+		private long rawBytes;
+		private long compressedBytes;
+
+		public Compressor(int threshold) {
+			if (threshold < 1)
+				throw new IllegalArgumentException("threshold must be greater than 0");
+			this.threshold = threshold;
+		}
+
+		public int getThreshold() {
+			return threshold;
+		}
+
+		/**
+		 * Tells if a payload of the given length is worth trying to compress. Only
+		 * the header of the message is looked at, which data has to contain: the
+		 * images and the chunks of the files known to be incompressible are
+		 * refused.
+		 */
+		public boolean accepts(byte[] data, int off, int length) {
+			if (length < threshold || data[off] == IMAGE)
+				return false;
+			long s = stream(data, off, length);
+			return s == 0 || !incompressible.containsKey(s);
+		}
+
+		/**
+		 * Compresses a payload into buffer() as [raw length][deflated payload].
+		 *
+		 * @return the length of the compressed payload, or -1 if the payload has
+		 *         to be sent raw because it would not be smaller
+		 */
+		public int deflate(byte[] data, int off, int length) {
+			long s = stream(data, off, length);
+			if (isCompressed(data, off, length)) {
+				if (s != 0)
+					incompressible.put(s, Boolean.TRUE);
+				return -1;
+			}
+			if (deflater == null)
+				deflater = new Deflater(LEVEL, true);
+			// la sortie doit être plus courte que l'entrée pour être utile
+			int max = s != 0 ? length - length * MIN_GAIN_PERCENT / 100 : length - 1;
+			if (max <= 4)
+				return -1;
+			if (buf.length < max)
+				buf = new byte[max];
+			ByteBuffer.wrap(buf).putInt(length);
+			deflater.reset();
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(data, off, length);
+			deflater.finish();
+			int n = 4;
+			while (!deflater.finished() && n < max)
+				n += deflater.deflate(buf, n, max - n);
+			if (!deflater.finished()) {
+				if (s != 0)
+					incompressible.put(s, Boolean.TRUE);
+				return -1;
+			}
+			rawBytes += length;
+			compressedBytes += n;
+			return n;
+		}
+
+		/**
+		 * Buffer holding the result of the last call to deflate, overwritten by the
+		 * next one.
+		 */
+		public byte[] buffer() {
+			return buf;
+		}
+
+		/**
+		 * Compressed form of a payload, in a new array, or RAW if it has to be sent
+		 * raw.
+		 */
+		public byte[] compress(byte[] data, int off, int length) {
+			int n = accepts(data, off, length) ? deflate(data, off, length) : -1;
+			return n < 0 ? RAW : Arrays.copyOf(buf, n);
+		}
+
+		/**
+		 * Total length of the payloads compressed so far.
+		 */
+		public long getRawBytes() {
+			return rawBytes;
+		}
+
+		/**
+		 * Total length of their compressed form.
+		 */
+		public long getCompressedBytes() {
+			return compressedBytes;
+		}
+
+		/**
+		 * Frees the native memory of the deflater.
+		 */
+		public void end() {
+			if (deflater != null)
+				deflater.end();
+			deflater = null;
+		}
+	}
+
+	/**
+	 * Decompresses the payloads received on a connection. Not thread safe.
+	 */
+	public static class Decompressor {
+		private Inflater inflater;
+
+		/**
+		 * Raw length of a compressed payload.
+		 */
+		public static int rawLength(byte[] data, int off, int length) throws IOException {
+			if (length < 4)
+				throw new IOException("Compressed frame too short");
+			return ByteBuffer.wrap(data, off, 4).getInt();
+		}
+
+		/**
+		 * Inflates a compressed payload ([raw length][deflated payload]) into the
+		 * first rawLength bytes of out.
+		 *
+		 * @throws IOException if the payload is corrupted or does not have the
+		 *                     announced length
+		 */
+		public void inflate(byte[] data, int off, int length, byte[] out, int rawLength) throws IOException {
+			if (inflater == null)
+				inflater = new Inflater(true);
+			inflater.reset();
+			inflater.setDictionary(DICTIONARY);
+			inflater.setInput(data, off + 4, length - 4);
+			int n = 0;
+			try {
+				while (n < rawLength) {
+					int k = inflater.inflate(out, n, rawLength - n);
+					if (k == 0 && (inflater.finished() || inflater.needsInput()))
+						break;
+					n += k;
+				}
+				// rien de plus que la longueur annoncée
+				if (n != rawLength || !inflater.finished() && inflater.inflate(new byte[1]) > 0)
+					throw new IOException("Compressed frame does not match its length " + rawLength);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupted compressed frame", e);
+			}
+		}
+
+		public void end() {
+			if (inflater != null)
+				inflater.end();
+			inflater = null;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Search of the nicknames and group names by prefix, ignoring case. The
+ * first byte of the payload is the message type:
+ * <ul>
+ * <li>QUERY [25][queryId (int)][kind][limit (int)][prefix (UTF)][after
+ * (UTF)], client to server: the names starting with prefix that follow after
+ * in alphabetical order, an empty after for the first page.</li>
+ * <li>RESULT [26][queryId (int)][kind][more (byte)][count (int)]{[id
+ * (int)][name (UTF)]}, server to client: more is 1 if other names follow the
+ * last one.</li>
+ * </ul>
+ */
+public final class DirectoryProtocol {
+
+	public static final byte QUERY = 25;
+	public static final byte RESULT = 26;
+
+	public static final byte USERS = 0;
+	public static final byte GROUPS = 1;
+
+	/**
+	 * Maximum number of names of a result.
+	 */
+	public static final int MAX_RESULTS = 100;
+
+	private DirectoryProtocol() {
+	}
+
+	public static boolean isDirectory(Packet p) {
+		return p.length > 0 && (p.data[0] == QUERY || p.data[0] == RESULT);
+	}
+
+	public static byte[] query(int queryId, byte kind, String prefix, String after, int limit) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		try {
+			dos.writeByte(QUERY);
+			dos.writeInt(queryId);
+			dos.writeByte(kind);
+			dos.writeInt(limit);
+			dos.writeUTF(prefix);
+			dos.writeUTF(after == null ? "" : after);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bos.toByteArray();
+	}
+
+	public static byte[] result(int queryId, byte kind, boolean more, int[] ids, String[] names) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		try {
+			dos.writeByte(RESULT);
+			dos.writeInt(queryId);
+			dos.writeByte(kind);
+			dos.writeBoolean(more);
+			dos.writeInt(ids.length);
+			for (int i = 0; i < ids.length; i++) {
+				dos.writeInt(ids[i]);
+				dos.writeUTF(names[i]);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Content of a RESULT message.
+	 */
+	public static class Result {
+		public final int queryId;
+		public final byte kind;
+		// d'autres noms suivent le dernier, à demander avec after = son nom
+		public final boolean more;
+		public final int[] ids;
+		public final String[] names;
+
+		Result(int queryId, byte kind, boolean more, int[] ids, String[] names) {
+			this.queryId = queryId;
+			this.kind = kind;
+			this.more = more;
+			this.ids = ids;
+			this.names = names;
+		}
+
+		public static Result fromPacket(Packet p) throws IOException {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(p.data, 0, p.length));
+			if (dis.readByte() != RESULT)
+				throw new IOException("Not a directory result");
+			int queryId = dis.readInt();
+			byte kind = dis.readByte();
+			boolean more = dis.readBoolean();
+			int n = dis.readInt();
+			if (n < 0 || n > p.length / 6)
+				throw new IOException("Invalid number of names " + n);
+			int[] ids = new int[n];
+			String[] names = new String[n];
+			for (int i = 0; i < n; i++) {
+				ids[i] = dis.readInt();
+				names[i] = dis.readUTF();
+			}
+			return new Result(queryId, kind, more, ids, names);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Messages of the chunked file transfer. They are exchanged between two
+ * clients like ordinary messages, the server only relays them, and the first
+ * byte of the payload is the message type:
+ * <ul>
+ * <li>OFFER [8][transferId][name (UTF)][size (long)][chunkSize (int)]</li>
+ * <li>ACCEPT [9][transferId][first chunk to send (int)]</li>
+ * <li>CHUNK [10][transferId][seq (int)][CRC32C of data (int)][data]</li>
+ * <li>ACK [11][transferId][number of chunks received (int)]</li>
+ * <li>END [12][transferId][number of chunks (int)]</li>
+ * <li>CANCEL [13][transferId]</li>
+ * </ul>
+ * A file sent to a user is streamed once the receiver has accepted it, with at
+ * most WINDOW chunks not yet acknowledged. A file sent to a group is streamed
+ * right after the offer, without acknowledgement; ClientMsg posts such files
+ * to the blob store of the server instead (see BlobProtocol).
+ *
+ * The transfer id is derived from the sender, the destination and the file, so
+ * that offering the same file again resumes the transfer: the receiver keeps
+ * the chunks whose checksum has been verified and accepts from the first
+ * missing one. An ACCEPT received during the transfer (e.g. after a corrupted
+ * chunk) makes the sender restart from the given chunk.
+ */
+public final class FileStream {
+
+	public static final byte OFFER = 8;
+	public static final byte ACCEPT = 9;
+	public static final byte CHUNK = 10;
+	public static final byte ACK = 11;
+	public static final byte END = 12;
+	public static final byte CANCEL = 13;
+
+	// type, identifiant du transfert, numéro du morceau, somme de contrôle
+	public static final int CHUNK_HEADER = 1 + 8 + 4 + 4;
+	// un morceau et son entête tiennent dans le plus grand tampon du pool serveur
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 - CHUNK_HEADER;
+	// nombre de morceaux envoyés sans attendre d'acquittement
+	public static final int WINDOW = 16;
+
+	private FileStream() {
+	}
+
+	/**
+	 * Tells if the packet is a message of the chunked file transfer.
+	 */
+	public static boolean isFileStream(Packet p) {
+		return p.length >= 9 && p.data[0] >= OFFER && p.data[0] <= CANCEL;
+	}
+
+	public static byte type(Packet p) {
+		return p.data[0];
+	}
+
+	public static long transferId(Packet p) {
+		return ByteBuffer.wrap(p.data, 1, 8).getLong();
+	}
+
+	/**
+	 * The int following the transfer id: first chunk of ACCEPT, count of ACK and
+	 * END, sequence number of CHUNK.
+	 */
+	public static int intArg(Packet p) {
+		return ByteBuffer.wrap(p.data, 9, 4).getInt();
+	}
+
+	/**
+	 * CRC32C of the data of a CHUNK.
+	 */
+	public static int chunkCrc(Packet p) {
+		return ByteBuffer.wrap(p.data, 13, 4).getInt();
+	}
+
+	/**
+	 * Id of the transfer of a file from srcId to destId. It only changes if the
+	 * file is modified, so that a transfer can be resumed.
+	 */
+	public static long transferId(int srcId, int destId, File file) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update((srcId + ":" + destId + ":" + file.getAbsolutePath() + ":" + file.length() + ":"
+					+ file.lastModified()).getBytes(StandardCharsets.UTF_8));
+			return ByteBuffer.wrap(md.digest()).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static byte[] offer(long transferId, String name, long size, int chunkSize) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeByte(OFFER);
+			dos.writeLong(transferId);
+			dos.writeUTF(name);
+			dos.writeLong(size);
+			dos.writeInt(chunkSize);
+			return bos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Builds an ACCEPT, ACK or END message.
+	 */
+	public static byte[] control(byte type, long transferId, int arg) {
+		return ByteBuffer.allocate(13).put(type).putLong(transferId).putInt(arg).array();
+	}
+
+	public static byte[] cancel(long transferId) {
+		return ByteBuffer.allocate(9).put(CANCEL).putLong(transferId).array();
+	}
+
+	/**
+	 * Writes the header of a CHUNK message at the position of buf, the data has
+	 * to follow it.
+	 */
+	public static void chunkHeader(ByteBuffer buf, long transferId, int seq, int crc) {
+		buf.put(CHUNK).putLong(transferId).putInt(seq).putInt(crc);
+	}
+
+	/**
+	 * Number of chunks of a file.
+	 */
+	public static int chunkCount(long size, int chunkSize) {
+		return (int) ((size + chunkSize - 1) / chunkSize);
+	}
+
+	/**
+	 * Content of an OFFER message.
+	 */
+	public static class Offer {
+		public final long transferId;
+		public final String name;
+		public final long size;
+		public final int chunkSize;
+
+		private Offer(long transferId, String name, long size, int chunkSize) {
+			this.transferId = transferId;
+			this.name = name;
+			this.size = size;
+			this.chunkSize = chunkSize;
+		}
+
+		public static Offer fromPacket(Packet p) throws IOException {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(p.data, 1, p.length - 1));
+			return new Offer(dis.readLong(), dis.readUTF(), dis.readLong(), dis.readInt());
+		}
+	}
+}
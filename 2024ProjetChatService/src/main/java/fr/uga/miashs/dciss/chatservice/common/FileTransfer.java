@@ -2,6 +2,11 @@ package fr.uga.miashs.dciss.chatservice.common;
 
 import java.io.*;
 
+/**
+ * File sent in a single packet (type 5). ClientMsg now sends files by chunks
+ * (see FileStream); this format is still understood by FileMessageListener for
+ * the older clients.
+ */
 public class FileTransfer {
     private String fileName;
     private long fileSize;
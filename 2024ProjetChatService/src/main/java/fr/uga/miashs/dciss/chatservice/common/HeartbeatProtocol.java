@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+/**
+ * Messages checking that a connection is still alive. The server sends a PING
+ * to a connection from which nothing was received for a while, and closes it if
+ * nothing is received either after the ping. The payload is a single byte:
+ * <ul>
+ * <li>PING [27], server to client.</li>
+ * <li>PONG [28], client to server: answer to a ping.</li>
+ * </ul>
+ */
+public final class HeartbeatProtocol {
+
+	public static final byte PING = 27;
+	public static final byte PONG = 28;
+
+	private HeartbeatProtocol() {
+	}
+
+	public static boolean isHeartbeat(Packet p) {
+		return p.length == 1 && (p.data[0] == PING || p.data[0] == PONG);
+	}
+
+	public static boolean isPing(Packet p) {
+		return p.srcId == 0 && p.length == 1 && p.data[0] == PING;
+	}
+
+	public static byte[] ping() {
+		return new byte[] { PING };
+	}
+
+	public static byte[] pong() {
+		return new byte[] { PONG };
+	}
+}
@@ -1,10 +1,30 @@
 package fr.uga.miashs.dciss.chatservice.common;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.file.Files;
+import java.util.Iterator;
 
+/**
+ * Image sent in a single message of type 6. The bytes of the image file are
+ * sent as they are: the format is recognized from the first bytes of the file
+ * (see sniffFormat), and the image is only decoded when it is resized or
+ * converted to another format.
+ */
 public class ImageTransfer {
+    // signatures des formats supportés
+    private static final byte[] PNG_MAGIC = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final byte[] JPEG_MAGIC = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF };
+    // octets lus pour reconnaître le format d'un fichier
+    public static final int MAGIC_LENGTH = PNG_MAGIC.length;
+
     private String imageName;
     private String imageFormat; // "png", "jpg", etc.
     private byte[] imageData;
@@ -31,14 +51,25 @@ public class ImageTransfer {
 
     // Convertit une image en bytes pour l'envoi
     public static byte[] toBytes(ImageTransfer it) throws IOException {
+        byte[] header = header(it.imageName, it.imageFormat, it.imageData.length);
+        byte[] res = new byte[header.length + it.imageData.length];
+        System.arraycopy(header, 0, res, 0, header.length);
+        System.arraycopy(it.imageData, 0, res, header.length, it.imageData.length);
+        return res;
+    }
+
+    /**
+     * Beginning of a message of type 6, the imageLength bytes of the image
+     * have to follow it.
+     */
+    public static byte[] header(String imageName, String imageFormat, int imageLength) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(bos);
 
         dos.writeByte(6); // Type 6 = transfert d'image
-        dos.writeUTF(it.imageName);
-        dos.writeUTF(it.imageFormat);
-        dos.writeInt(it.imageData.length);
-        dos.write(it.imageData);
+        dos.writeUTF(imageName);
+        dos.writeUTF(imageFormat);
+        dos.writeInt(imageLength);
 
         return bos.toByteArray();
     }
@@ -58,34 +89,174 @@ public class ImageTransfer {
         return new ImageTransfer(imageName, imageFormat, imageData);
     }
 
+    /**
+     * Saves the image of a received message in dir, without decoding nor
+     * copying it. Returns the file written.
+     */
+    public static File saveImage(byte[] data, int length, File dir) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+        dis.skipBytes(1); // Skip type byte
+        String imageName = dis.readUTF();
+        dis.readUTF();
+        int imageLength = dis.readInt();
+        int offset = length - dis.available();
+        if (imageLength > length - offset)
+            throw new EOFException("Image tronquée: " + imageName);
+        if (sniffFormat(data, offset, imageLength) == null)
+            throw new IOException("Le message ne contient pas une image valide");
+        // seul le nom est conservé, pour ne pas écrire hors du répertoire
+        File outputFile = new File(dir, new File(imageName).getName());
+        try (OutputStream os = new FileOutputStream(outputFile)) {
+            os.write(data, offset, imageLength);
+        }
+        return outputFile;
+    }
+
     // Méthode utilitaire pour convertir une image en bytes
     public static ImageTransfer fromImage(File imageFile) throws IOException {
-        // Vérification du format de fichier
-        String format = getImageFormat(imageFile.getName());
+        // les octets du fichier sont envoyés tels quels, le format est vérifié
+        // d'après sa signature
+        byte[] data = Files.readAllBytes(imageFile.toPath());
+        String format = sniffFormat(data, 0, data.length);
+        if (format == null) {
+            throw new IOException("Format d'image non supporté: " + imageFile.getName());
+        }
+
+        return new ImageTransfer(imageFile.getName(), format, data);
+    }
+
+    /**
+     * Format of an image recognized from its first bytes ("png" or "jpg"), null
+     * if it is not a supported image.
+     */
+    public static String sniffFormat(byte[] data, int offset, int length) {
+        if (startsWith(data, offset, length, PNG_MAGIC))
+            return "png";
+        if (startsWith(data, offset, length, JPEG_MAGIC))
+            return "jpg";
+        return null;
+    }
+
+    /**
+     * Format of an image file recognized from its first bytes, null if it is not
+     * a supported image.
+     */
+    public static String sniffFormat(File imageFile) throws IOException {
+        byte[] magic = new byte[MAGIC_LENGTH];
+        int n = 0;
+        try (InputStream in = new FileInputStream(imageFile)) {
+            for (int r; n < magic.length && (r = in.read(magic, n, magic.length - n)) > 0;)
+                n += r;
+        }
+        return sniffFormat(magic, 0, n);
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] magic) {
+        if (length < magic.length)
+            return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (data[offset + i] != magic[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Image reduced so that its width and height do not exceed maxSize, in the
+     * same format. The image is returned as is if it is already small enough.
+     */
+    public ImageTransfer resize(int maxSize) throws IOException {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be greater than 0");
+        return reencode(maxSize, imageFormat);
+    }
+
+    /**
+     * Image converted to the given format ("png" or "jpg").
+     */
+    public ImageTransfer transcode(String format) throws IOException {
+        format = format.toLowerCase();
         if (!isFormatSupported(format)) {
             throw new IOException("Format d'image non supporté: " + format);
         }
+        if (format.equals("jpeg"))
+            format = "jpg";
+        return reencode(Integer.MAX_VALUE, format);
+    }
 
-        // Lecture de l'image
-        BufferedImage image = ImageIO.read(imageFile);
+    // décodage complet, utilisé seulement pour redimensionner ou convertir
+    private ImageTransfer reencode(int maxSize, String format) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData));
         if (image == null) {
             throw new IOException("Le fichier n'est pas une image valide");
         }
+        if (Math.max(image.getWidth(), image.getHeight()) <= maxSize && format.equals(imageFormat)) {
+            return this;
+        }
+        byte[] data = encode(scale(image, maxSize, format), format);
+        String name = imageName;
+        if (!format.equals(imageFormat)) {
+            int dot = name.lastIndexOf('.');
+            name = (dot > 0 ? name.substring(0, dot) : name) + "." + format;
+        }
+        return new ImageTransfer(name, format, data);
+    }
+
+    /**
+     * JPEG thumbnail of an image file, whose width and height do not exceed
+     * maxSize. The file is decoded with a subsampling close to the reduction,
+     * so that a large photo is never decoded at full resolution.
+     */
+    public static byte[] thumbnail(File imageFile, int maxSize) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(imageFile)) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Le fichier n'est pas une image valide");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int size = Math.max(reader.getWidth(0), reader.getHeight(0));
+                // au moins deux fois la taille voulue est décodée, pour le lissage
+                int step = Math.max(1, size / (2 * maxSize));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return encode(scale(reader.read(0, param), maxSize, "jpg"), "jpg");
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
 
+    private static BufferedImage scale(BufferedImage image, int maxSize, String format) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        double scale = Math.min(1.0, (double) maxSize / Math.max(w, h));
+        int tw = Math.max(1, (int) Math.round(w * scale));
+        int th = Math.max(1, (int) Math.round(h * scale));
+        // le JPEG n'a pas de canal alpha : la transparence devient blanche
+        boolean png = format.equals("png");
+        BufferedImage out = new BufferedImage(tw, th, png ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, tw, th, png ? null : Color.WHITE, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ImageIO.write(image, format, bos);
-
-        return new ImageTransfer(
-                imageFile.getName(),
-                format,
-                bos.toByteArray());
+        return bos.toByteArray();
     }
 
     // Méthode utilitaire pour sauvegarder l'image reçue
     public void saveImage(File outputFile) throws IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(imageData);
-        BufferedImage image = ImageIO.read(bis);
-        ImageIO.write(image, imageFormat, outputFile);
+        // les octets reçus sont écrits tels quels
+        Files.write(outputFile.toPath(), imageData);
     }
 
     // vérifier si les formats sont supportés
@@ -94,13 +265,4 @@ public class ImageTransfer {
                 format.equals("jpg") ||
                 format.equals("jpeg");
     }
-
-    // Extrait l'extension du fichier image
-    private static String getImageFormat(String filename) {
-        int dot = filename.lastIndexOf('.');
-        if (dot > 0) {
-            return filename.substring(dot + 1).toLowerCase();
-        }
-        return "png"; // Format par défaut
-    }
-}
\ No newline at end of file
+}
@@ -11,21 +11,141 @@
 
 package fr.uga.miashs.dciss.chatservice.common;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /*
  * Data structure to represent a packet
  */
 public class Packet {
 
+	/**
+	 * Default limit on the length of the frames read from the network.
+	 */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 32 * 1024 * 1024;
+
+	private static final AtomicIntegerFieldUpdater<Packet> REF_COUNT = AtomicIntegerFieldUpdater
+			.newUpdater(Packet.class, "refCount");
+
 	public final int srcId;
 	public final int destId;
+	// seuls les length premiers octets sont significatifs (tableau issu d'un pool)
 	public final byte[] data;
+	public final int length;
+
+	// pool d'où provient data, null si le tableau n'est pas partagé
+	private final BufferPool pool;
+	private volatile int refCount = 1;
+
+	// paquet envoyé à plusieurs clients, dont l'en-tête est sérialisé une seule fois
+	private volatile boolean shared;
+	private volatile ByteBuffer header;
+	private volatile ByteBuffer payload;
+	// charge utile compressée, calculée une seule fois pour tous les destinataires
+	private volatile byte[] deflated;
 	
 	public Packet(int srcId, int destId, byte[] data) {
-		super();
+		this(srcId, destId, data, data.length, null);
+	}
+
+	/**
+	 * Creates a packet whose payload is the first length bytes of data. If pool
+	 * is not null, data is given back to it when the last reference is released.
+	 */
+	public Packet(int srcId, int destId, byte[] data, int length, BufferPool pool) {
+		if (length < 0 || length > data.length)
+			throw new IllegalArgumentException("invalid length " + length);
 		this.srcId = srcId;
 		this.destId = destId;
 		this.data = data;
+		this.length = length;
+		this.pool = pool;
+	}
+
+	/**
+	 * Takes an additional reference on the payload. Each call has to be matched
+	 * by a call to release(). Does nothing for packets that are not pooled.
+	 */
+	public Packet retain() {
+		if (pool != null && REF_COUNT.getAndIncrement(this) <= 0)
+			throw new IllegalStateException("packet already released");
+		return this;
+	}
+
+	/**
+	 * Releases a reference on the payload, which goes back to the pool when the
+	 * last reference is released. Does nothing for packets that are not pooled.
+	 */
+	public void release() {
+		if (pool == null)
+			return;
+		int r = REF_COUNT.decrementAndGet(this);
+		if (r == 0)
+			pool.release(data);
+		else if (r < 0)
+			throw new IllegalStateException("packet already released");
+	}
+
+	/**
+	 * Copy of the payload, of exactly length bytes.
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(data, length);
+	}
+
+	/**
+	 * Returns the header [srcId][destId][length] of the frame sent by the server
+	 * for this packet. It is serialized on the first call and shared: each call
+	 * returns an independent read-only view of it.
+	 */
+	public ByteBuffer header() {
+		ByteBuffer h = header;
+		if (h == null) {
+			ByteBuffer b = ByteBuffer.allocate(12);
+			b.putInt(srcId).putInt(destId).putInt(length).flip();
+			header = h = b.asReadOnlyBuffer();
+		}
+		return h.duplicate();
+	}
+
+	/**
+	 * Returns a read-only view of the payload, backed by data: each call returns
+	 * an independent view, without copy.
+	 */
+	public ByteBuffer payload() {
+		ByteBuffer b = payload;
+		if (b == null)
+			payload = b = ByteBuffer.wrap(data, 0, length).slice().asReadOnlyBuffer();
+		return b.duplicate();
+	}
+
+	/**
+	 * Marks the packet as sent to several clients: the connections that send it
+	 * raw share its header and a view of its payload.
+	 */
+	public void setShared() {
+		shared = true;
+	}
+
+	public boolean isShared() {
+		return shared;
+	}
+
+	/**
+	 * Compressed form of the payload (see Compression), null if it has not been
+	 * computed yet, Compression.RAW if the payload is sent raw.
+	 */
+	public byte[] getDeflated() {
+		return deflated;
+	}
+
+	/**
+	 * Keeps the compressed form of the payload, to be shared by all the
+	 * connections that compress their frames.
+	 */
+	public void setDeflated(byte[] deflated) {
+		this.deflated = deflated;
 	}
-	
 	
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Messages of presence: whether users are connected. A user learns the
+ * presence of the members of its groups, and of the contacts it watches. The
+ * first byte of the payload is the message type:
+ * <ul>
+ * <li>WATCH [22][count (int)]{[userId (int)]}, client to server: watches
+ * contacts until the end of the session. The client receives their current
+ * presence, then their changes.</li>
+ * <li>UNWATCH [23][count (int)]{[userId (int)]}, client to server.</li>
+ * <li>PRESENCE [24][count (int)]{[userId (int)][online (byte)]}, server to
+ * client.</li>
+ * </ul>
+ */
+public final class PresenceProtocol {
+
+	public static final byte WATCH = 22;
+	public static final byte UNWATCH = 23;
+	public static final byte PRESENCE = 24;
+
+	private PresenceProtocol() {
+	}
+
+	public static boolean isPresence(Packet p) {
+		return p.length > 0 && p.data[0] >= WATCH && p.data[0] <= PRESENCE;
+	}
+
+	public static byte[] watch(int... userIds) {
+		return ids(WATCH, userIds);
+	}
+
+	public static byte[] unwatch(int... userIds) {
+		return ids(UNWATCH, userIds);
+	}
+
+	private static byte[] ids(byte type, int[] userIds) {
+		ByteBuffer buf = ByteBuffer.allocate(5 + 4 * userIds.length).put(type).putInt(userIds.length);
+		for (int id : userIds)
+			buf.putInt(id);
+		return buf.array();
+	}
+
+	/**
+	 * Reads the user ids of a WATCH or UNWATCH message, positioned after its
+	 * type.
+	 */
+	public static int[] readIds(ByteBuffer buf) throws IOException {
+		int n = buf.getInt();
+		if (n < 0 || n > buf.remaining() / 4)
+			throw new IOException("Invalid number of users " + n);
+		int[] ids = new int[n];
+		for (int i = 0; i < n; i++)
+			ids[i] = buf.getInt();
+		return ids;
+	}
+
+	public static byte[] presence(int[] userIds, boolean[] online) {
+		ByteBuffer buf = ByteBuffer.allocate(5 + 5 * userIds.length).put(PRESENCE).putInt(userIds.length);
+		for (int i = 0; i < userIds.length; i++)
+			buf.putInt(userIds[i]).put((byte) (online[i] ? 1 : 0));
+		return buf.array();
+	}
+
+	/**
+	 * Content of a PRESENCE message.
+	 */
+	public static class Update {
+		public final int[] userIds;
+		public final boolean[] online;
+
+		Update(int[] userIds, boolean[] online) {
+			this.userIds = userIds;
+			this.online = online;
+		}
+
+		public static Update fromPacket(Packet p) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(p.data, 0, p.length);
+			try {
+				if (buf.get() != PRESENCE)
+					throw new IOException("Not a presence update");
+				int n = buf.getInt();
+				if (n < 0 || n > buf.remaining() / 5)
+					throw new IOException("Invalid number of entries " + n);
+				int[] ids = new int[n];
+				boolean[] online = new boolean[n];
+				for (int i = 0; i < n; i++) {
+					ids[i] = buf.getInt();
+					online[i] = buf.get() != 0;
+				}
+				return new Update(ids, online);
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated presence update");
+			}
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Text messages numbered by their sender, and receipts telling the sender
+ * that they were delivered or read. The numbers of a sender increase, so a
+ * receipt is cumulative: it covers all the messages of the conversation up to
+ * a number, and a single one is sent for many messages. The first byte of the
+ * payload is the message type:
+ * <ul>
+ * <li>MESSAGE [30][messageId (long)][text (UTF-8)], client to user or
+ * group.</li>
+ * <li>RECEIPT [31][count (int)]{[status (byte)][groupId (int)][senderId
+ * (int)][messageId (long)]}, client to server: the messages of senderId up to
+ * messageId reached status, in the group groupId or in the direct
+ * conversation if it is 0. The client gathers its receipts and sends them
+ * together.</li>
+ * <li>STATUS [32][count (int)]{[status (byte)][conversationId
+ * (int)][messageId (long)]}, server to sender: the messages it sent to
+ * conversationId (a user or a group) up to messageId reached status. In a
+ * group, a status is reached when it is reached by all the other members, and
+ * the receipts of the members are gathered by the server into one STATUS per
+ * sender.</li>
+ * </ul>
+ */
+public final class ReceiptProtocol {
+
+	public static final byte MESSAGE = 30;
+	public static final byte RECEIPT = 31;
+	public static final byte STATUS = 32;
+
+	// mêmes valeurs que les statuts des messages enregistrés par le client
+	public static final byte DELIVERED = 1;
+	public static final byte READ = 2;
+
+	private ReceiptProtocol() {
+	}
+
+	public static boolean isReceipt(Packet p) {
+		return p.length > 0 && p.data[0] >= MESSAGE && p.data[0] <= STATUS;
+	}
+
+	public static byte[] message(long messageId, String text) {
+		byte[] b = text.getBytes(StandardCharsets.UTF_8);
+		return ByteBuffer.allocate(9 + b.length).put(MESSAGE).putLong(messageId).put(b).array();
+	}
+
+	/**
+	 * Number of a MESSAGE.
+	 */
+	public static long messageId(Packet p) throws IOException {
+		if (p.length < 9 || p.data[0] != MESSAGE)
+			throw new IOException("Not a numbered message");
+		return ByteBuffer.wrap(p.data, 1, 8).getLong();
+	}
+
+	/**
+	 * Text of a MESSAGE.
+	 */
+	public static String text(Packet p) {
+		return new String(p.data, 9, p.length - 9, StandardCharsets.UTF_8);
+	}
+
+	public static byte[] receipt(byte[] status, int[] groupIds, int[] senderIds, long[] messageIds) {
+		ByteBuffer buf = ByteBuffer.allocate(5 + 17 * status.length).put(RECEIPT).putInt(status.length);
+		for (int i = 0; i < status.length; i++)
+			buf.put(status[i]).putInt(groupIds[i]).putInt(senderIds[i]).putLong(messageIds[i]);
+		return buf.array();
+	}
+
+	public static byte[] status(byte[] status, int[] conversationIds, long[] messageIds) {
+		ByteBuffer buf = ByteBuffer.allocate(5 + 13 * status.length).put(STATUS).putInt(status.length);
+		for (int i = 0; i < status.length; i++)
+			buf.put(status[i]).putInt(conversationIds[i]).putLong(messageIds[i]);
+		return buf.array();
+	}
+
+	/**
+	 * Content of a RECEIPT or a STATUS message.
+	 */
+	public static class Receipts {
+		public final byte[] status;
+		// groupe (0 pour une conversation directe) d'un RECEIPT, destinataire d'un STATUS
+		public final int[] conversationIds;
+		// expéditeur des messages d'un RECEIPT, null pour un STATUS
+		public final int[] senderIds;
+		public final long[] messageIds;
+
+		Receipts(byte[] status, int[] conversationIds, int[] senderIds, long[] messageIds) {
+			this.status = status;
+			this.conversationIds = conversationIds;
+			this.senderIds = senderIds;
+			this.messageIds = messageIds;
+		}
+
+		/**
+		 * Reads a RECEIPT or a STATUS message, positioned after its type.
+		 */
+		public static Receipts read(byte type, ByteBuffer buf) throws IOException {
+			boolean receipt = type == RECEIPT;
+			try {
+				int n = buf.getInt();
+				if (n < 0 || n > buf.remaining() / (receipt ? 17 : 13))
+					throw new IOException("Invalid number of receipts " + n);
+				byte[] status = new byte[n];
+				int[] conversationIds = new int[n];
+				int[] senderIds = receipt ? new int[n] : null;
+				long[] messageIds = new long[n];
+				for (int i = 0; i < n; i++) {
+					status[i] = buf.get();
+					if (status[i] != DELIVERED && status[i] != READ)
+						throw new IOException("Invalid status " + status[i]);
+					conversationIds[i] = buf.getInt();
+					if (receipt)
+						senderIds[i] = buf.getInt();
+					messageIds[i] = buf.getLong();
+				}
+				return new Receipts(status, conversationIds, senderIds, messageIds);
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated receipts");
+			}
+		}
+
+		public static Receipts fromPacket(Packet p) throws IOException {
+			if (p.length == 0 || (p.data[0] != RECEIPT && p.data[0] != STATUS))
+				throw new IOException("Not a receipt");
+			return read(p.data[0], ByteBuffer.wrap(p.data, 1, p.length - 1));
+		}
+
+		public int size() {
+			return status.length;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resumption of the sessions: the frames sent by the server are numbered
+ * from 1 for each user, across its connections, without the number being
+ * written in them. A client announcing the capability RESUME in its
+ * handshake (see Compression) sends after its id the number of the last
+ * frame it processed (long), and the server answers, after the capabilities
+ * and the possible new id, the number of the next frame it sends (long). The
+ * frames that follow the last one processed are sent again, and only those.
+ *
+ * During the session, the client acknowledges the frames it processed:
+ * <ul>
+ * <li>ACK [29][number of the last frame processed (long)], client to server.
+ * The server forgets the frames acknowledged.</li>
+ * </ul>
+ */
+public final class ResumeProtocol {
+
+	/**
+	 * Capability: the client acknowledges the frames and resumes its sessions.
+	 */
+	public static final int RESUME = 2;
+
+	public static final byte ACK = 29;
+
+	private ResumeProtocol() {
+	}
+
+	public static byte[] ack(long seq) {
+		return ByteBuffer.allocate(9).put(ACK).putLong(seq).array();
+	}
+}
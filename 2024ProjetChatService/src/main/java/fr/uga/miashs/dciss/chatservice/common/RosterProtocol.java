@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Messages of the roster, the nicknames of the users. The server numbers the
+ * versions of its roster, and a client that knows a version only receives the
+ * changes made since then. The first byte of the payload is the message type:
+ * <ul>
+ * <li>SYNC [20][epoch (long)][version (long)], client to server: the last
+ * version received, 0 if none. The client then receives the roster, and the
+ * following changes as they are made.</li>
+ * <li>UPDATE [21][kind][epoch (long)][from (long)][to (long)][count (int)]
+ * {[userId (int)][nickname (UTF)]}, server to client: the whole roster at
+ * version to (kind SNAPSHOT), or the changes after version from up to version
+ * to (kind DELTA). An empty nickname is a removed user.</li>
+ * </ul>
+ * The epoch identifies a run of the server: the versions of a previous run are
+ * answered by a snapshot.
+ */
+public final class RosterProtocol {
+
+	public static final byte SYNC = 20;
+	public static final byte UPDATE = 21;
+
+	public static final byte SNAPSHOT = 0;
+	public static final byte DELTA = 1;
+
+	// type, sorte, époque, versions
+	private static final int HEADER = 2 + 3 * 8;
+
+	private RosterProtocol() {
+	}
+
+	public static boolean isRoster(Packet p) {
+		return p.length > 0 && (p.data[0] == SYNC || p.data[0] == UPDATE);
+	}
+
+	public static byte[] sync(long epoch, long version) {
+		return ByteBuffer.allocate(17).put(SYNC).putLong(epoch).putLong(version).array();
+	}
+
+	/**
+	 * Builds an UPDATE message, whose number of entries is written once they
+	 * have all been added.
+	 */
+	public static class Writer {
+		private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		private final DataOutputStream dos = new DataOutputStream(bos);
+		private int count;
+
+		public Writer(byte kind, long epoch, long from, long to) {
+			try {
+				dos.writeByte(UPDATE);
+				dos.writeByte(kind);
+				dos.writeLong(epoch);
+				dos.writeLong(from);
+				dos.writeLong(to);
+				dos.writeInt(0);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/**
+		 * @param nickname null if the user has been removed
+		 */
+		public Writer add(int userId, String nickname) {
+			try {
+				dos.writeInt(userId);
+				dos.writeUTF(nickname == null ? "" : nickname);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			count++;
+			return this;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		public byte[] toByteArray() {
+			byte[] res = bos.toByteArray();
+			ByteBuffer.wrap(res, HEADER, 4).putInt(count);
+			return res;
+		}
+	}
+
+	/**
+	 * Content of an UPDATE message.
+	 */
+	public static class Update {
+		public final byte kind;
+		public final long epoch;
+		public final long from;
+		public final long to;
+		public final int[] userIds;
+		// null pour un utilisateur supprimé
+		public final String[] nicknames;
+
+		Update(byte kind, long epoch, long from, long to, int[] userIds, String[] nicknames) {
+			this.kind = kind;
+			this.epoch = epoch;
+			this.from = from;
+			this.to = to;
+			this.userIds = userIds;
+			this.nicknames = nicknames;
+		}
+
+		public static Update fromPacket(Packet p) throws IOException {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(p.data, 0, p.length));
+			if (dis.readByte() != UPDATE)
+				throw new IOException("Not a roster update");
+			byte kind = dis.readByte();
+			long epoch = dis.readLong();
+			long from = dis.readLong();
+			long to = dis.readLong();
+			int n = dis.readInt();
+			if (n < 0 || n > p.length / 6)
+				throw new IOException("Invalid number of entries " + n);
+			int[] ids = new int[n];
+			String[] nicknames = new String[n];
+			for (int i = 0; i < n; i++) {
+				ids[i] = dis.readInt();
+				String s = dis.readUTF();
+				nicknames[i] = s.isEmpty() ? null : s;
+			}
+			return new Update(kind, epoch, from, to, ids, nicknames);
+		}
+	}
+}
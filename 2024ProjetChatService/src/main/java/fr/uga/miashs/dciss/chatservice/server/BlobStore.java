@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import fr.uga.miashs.dciss.chatservice.common.BlobProtocol;
+
+/**
+ * Files posted to groups, stored once on disk under the SHA-256 of their
+ * content. A file is kept while it is referenced (one reference per group it
+ * has been posted to) and deleted with its last reference.
+ *
+ * The DATA messages sent to the members that fetch a file are read from disk
+ * by chunks and kept in an LRU cache bounded in bytes: the members fetching
+ * the same file at the same time share the same arrays.
+ */
+public class BlobStore {
+	private final static Logger LOG = Logger.getLogger(BlobStore.class.getName());
+
+	private final File dir;
+	private final long cacheMaxBytes;
+
+	// tailles et nombres de références des fichiers stockés
+	private final Map<String, Blob> blobs = new HashMap<>();
+
+	// cache des messages DATA, du moins au plus récemment utilisé
+	private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(64, 0.75f, true);
+	private long cachedBytes;
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+
+	private static class Blob {
+		final long size;
+		int refs;
+
+		Blob(long size) {
+			this.size = size;
+		}
+	}
+
+	/**
+	 * @param dir           directory of the files, created if needed
+	 * @param cacheMaxBytes memory used by the cache of chunks, 0 disables it
+	 */
+	public BlobStore(File dir, long cacheMaxBytes) {
+		if (cacheMaxBytes < 0)
+			throw new IllegalArgumentException("cacheMaxBytes must not be negative");
+		this.dir = dir;
+		this.cacheMaxBytes = cacheMaxBytes;
+		dir.mkdirs();
+	}
+
+	/*
+	 * Fichier d'un contenu stocké, à lire seulement tant qu'une référence est
+	 * détenue
+	 */
+	File file(String key) {
+		return new File(dir, key);
+	}
+
+	public synchronized boolean contains(String key) {
+		return blobs.containsKey(key);
+	}
+
+	/**
+	 * Size of the file, -1 if it is not stored.
+	 */
+	public synchronized long size(String key) {
+		Blob b = blobs.get(key);
+		return b == null ? -1 : b.size;
+	}
+
+	/**
+	 * Adds a reference to a stored file. Returns false if it is not stored.
+	 */
+	public synchronized boolean retain(String key) {
+		Blob b = blobs.get(key);
+		if (b == null)
+			return false;
+		b.refs++;
+		return true;
+	}
+
+	/**
+	 * Removes a reference, the file is deleted with its last reference.
+	 */
+	public synchronized void release(String key) {
+		Blob b = blobs.get(key);
+		if (b == null || --b.refs > 0)
+			return;
+		blobs.remove(key);
+		for (Iterator<Map.Entry<String, byte[]>> it = cache.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, byte[]> e = it.next();
+			if (e.getKey().startsWith(key + '#')) {
+				cachedBytes -= e.getValue().length;
+				it.remove();
+			}
+		}
+		if (!file(key).delete())
+			LOG.warning("Blob " + key + " could not be deleted");
+	}
+
+	/**
+	 * Starts the upload of a file, written in a temporary file until its hash is
+	 * verified.
+	 */
+	public Upload upload(byte[] hash, long size) throws IOException {
+		return new Upload(hash, size);
+	}
+
+	/**
+	 * DATA message carrying the chunk of the given index (see
+	 * BlobProtocol.CHUNK_SIZE), read from the cache or from disk. Returns null if
+	 * the file is not stored or has no such chunk. The array is shared and must
+	 * not be modified.
+	 */
+	public byte[] chunk(String key, int index) throws IOException {
+		String ck = key + '#' + index;
+		long size;
+		synchronized (this) {
+			byte[] c = cache.get(ck);
+			if (c != null) {
+				cacheHits.increment();
+				return c;
+			}
+			size = size(key);
+		}
+		long pos = (long) index * BlobProtocol.CHUNK_SIZE;
+		if (size < 0 || index < 0 || index > 0 && pos >= size)
+			return null;
+		cacheMisses.increment();
+		int length = (int) Math.min(BlobProtocol.CHUNK_SIZE, size - pos);
+		ByteBuffer buf = ByteBuffer.allocate(BlobProtocol.DATA_HEADER + length);
+		BlobProtocol.dataHeader(buf, hashOf(key), pos);
+		try (FileChannel in = FileChannel.open(file(key).toPath(), StandardOpenOption.READ)) {
+			while (buf.hasRemaining())
+				if (in.read(buf, pos + buf.position() - BlobProtocol.DATA_HEADER) < 0)
+					throw new IOException("Blob " + key + " truncated");
+		}
+		byte[] c = buf.array();
+		synchronized (this) {
+			// le fichier a pu être supprimé pendant la lecture
+			if (cacheMaxBytes > 0 && blobs.containsKey(key) && cache.putIfAbsent(ck, c) == null) {
+				cachedBytes += c.length;
+				evict();
+			}
+		}
+		return c;
+	}
+
+	private void evict() {
+		for (Iterator<byte[]> it = cache.values().iterator(); cachedBytes > cacheMaxBytes && it.hasNext();) {
+			cachedBytes -= it.next().length;
+			it.remove();
+		}
+	}
+
+	private static byte[] hashOf(String key) {
+		byte[] h = new byte[BlobProtocol.HASH_SIZE];
+		for (int i = 0; i < h.length; i++)
+			h[i] = (byte) Integer.parseInt(key.substring(2 * i, 2 * i + 2), 16);
+		return h;
+	}
+
+	/**
+	 * Number of files stored.
+	 */
+	public synchronized int getBlobCount() {
+		return blobs.size();
+	}
+
+	/**
+	 * Total size of the files stored.
+	 */
+	public synchronized long getStoredBytes() {
+		long n = 0;
+		for (Blob b : blobs.values())
+			n += b.size;
+		return n;
+	}
+
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	/**
+	 * Deletes all the files, the store cannot be used anymore.
+	 */
+	public synchronized void clear() {
+		blobs.clear();
+		cache.clear();
+		cachedBytes = 0;
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * A file being received. The data has to be written in order.
+	 */
+	public class Upload {
+		private final byte[] hash;
+		private final String key;
+		private final long size;
+		private final File tmp;
+		private final FileChannel out;
+		private final MessageDigest md = BlobProtocol.newDigest();
+		private long written;
+
+		private Upload(byte[] hash, long size) throws IOException {
+			this.hash = hash;
+			this.key = BlobProtocol.key(hash);
+			this.size = size;
+			tmp = File.createTempFile(key, ".upload", dir);
+			out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Number of bytes received so far, i.e. the offset of the next data.
+		 */
+		public long getWritten() {
+			return written;
+		}
+
+		public boolean isComplete() {
+			return written == size;
+		}
+
+		public void write(ByteBuffer data) throws IOException {
+			if (written + data.remaining() > size)
+				throw new IOException("Upload of " + key + " exceeds its size");
+			md.update(data.duplicate());
+			while (data.hasRemaining())
+				written += out.write(data, written);
+		}
+
+		/**
+		 * Stores the file if its hash is the announced one. The caller then holds
+		 * a reference on it, and has to release it. Returns false and deletes the
+		 * data otherwise.
+		 */
+		public boolean commit() throws IOException {
+			out.close();
+			if (!isComplete() || !MessageDigest.isEqual(hash, md.digest())) {
+				tmp.delete();
+				return false;
+			}
+			synchronized (BlobStore.this) {
+				Blob b = blobs.get(key);
+				if (b != null) {
+					// envoyé en même temps par un autre client
+					tmp.delete();
+				} else {
+					Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+					b = new Blob(size);
+					blobs.put(key, b);
+				}
+				b.refs++;
+			}
+			return true;
+		}
+
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// ignoré
+			}
+			tmp.delete();
+		}
+	}
+}
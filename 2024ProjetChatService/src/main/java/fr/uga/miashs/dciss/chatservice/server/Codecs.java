@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import fr.uga.miashs.dciss.chatservice.common.PresenceProtocol;
+import fr.uga.miashs.dciss.chatservice.common.ReceiptProtocol;
+
+/**
+ * Codecs of the messages sent to the server. They read the payload in place
+ * from the buffer of the frame, positioned after the type byte, without
+ * copying it. The content of relayed messages (files, images) is never
+ * decoded: only their header is read.
+ */
+public final class Codecs {
+
+	/**
+	 * Decodes the payload of a message of a given type.
+	 */
+	@FunctionalInterface
+	public interface Codec<T> {
+		T decode(ByteBuffer buf) throws IOException;
+	}
+
+	/**
+	 * The payload itself, for the messages whose handler reads the packet.
+	 */
+	public static final Codec<ByteBuffer> RAW = buf -> buf;
+
+	/**
+	 * [groupId]
+	 */
+	public static final Codec<Integer> GROUP_ID = ByteBuffer::getInt;
+
+	/**
+	 * The rest of the payload as text, in the charset of the clients.
+	 */
+	public static final Codec<String> TEXT = buf -> {
+		String s = new String(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		buf.position(buf.limit());
+		return s;
+	};
+
+	/**
+	 * [name (writeUTF)][number of members]{[member]}
+	 */
+	public static final Codec<GroupCreation> GROUP_CREATION = buf -> {
+		String name = readUTF(buf);
+		int n = buf.getInt();
+		if (n < 0 || n > buf.remaining() / 4)
+			throw new IOException("Invalid number of members " + n);
+		int[] members = new int[n];
+		for (int i = 0; i < n; i++)
+			members[i] = buf.getInt();
+		return new GroupCreation(name, members);
+	};
+
+	/**
+	 * [groupId][userId]
+	 */
+	public static final Codec<Membership> MEMBERSHIP = buf -> new Membership(buf.getInt(), buf.getInt());
+
+	/**
+	 * [name (writeUTF)][size (long)], followed by the content of the file.
+	 */
+	public static final Codec<TransferHeader> FILE_HEADER = buf -> new TransferHeader(readUTF(buf), null,
+			buf.getLong());
+
+	/**
+	 * [name (writeUTF)][format (writeUTF)][size (int)], followed by the image.
+	 */
+	public static final Codec<TransferHeader> IMAGE_HEADER = buf -> new TransferHeader(readUTF(buf), readUTF(buf),
+			buf.getInt());
+
+	/**
+	 * [epoch (long)][version (long)], see RosterProtocol.
+	 */
+	public static final Codec<RosterSync> ROSTER_SYNC = buf -> new RosterSync(buf.getLong(), buf.getLong());
+
+	/**
+	 * [count]{[userId]}, see PresenceProtocol.
+	 */
+	public static final Codec<int[]> USER_IDS = PresenceProtocol::readIds;
+
+	/**
+	 * [count]{[status][groupId][senderId][messageId (long)]}, see
+	 * ReceiptProtocol.
+	 */
+	public static final Codec<ReceiptProtocol.Receipts> RECEIPTS = buf -> ReceiptProtocol.Receipts
+			.read(ReceiptProtocol.RECEIPT, buf);
+
+	/**
+	 * [queryId][kind][limit][prefix (writeUTF)][after (writeUTF)], see
+	 * DirectoryProtocol.
+	 */
+	public static final Codec<NameQuery> NAME_QUERY = buf -> new NameQuery(buf.getInt(), buf.get(), buf.getInt(),
+			readUTF(buf), readUTF(buf));
+
+	public static class GroupCreation {
+		public final String name;
+		public final int[] members;
+
+		GroupCreation(String name, int[] members) {
+			this.name = name;
+			this.members = members;
+		}
+	}
+
+	public static class Membership {
+		public final int groupId;
+		public final int userId;
+
+		Membership(int groupId, int userId) {
+			this.groupId = groupId;
+			this.userId = userId;
+		}
+	}
+
+	public static class TransferHeader {
+		public final String name;
+		// format de l'image, null pour un fichier
+		public final String format;
+		public final long size;
+
+		TransferHeader(String name, String format, long size) {
+			this.name = name;
+			this.format = format;
+			this.size = size;
+		}
+	}
+
+	public static class RosterSync {
+		public final long epoch;
+		public final long version;
+
+		RosterSync(long epoch, long version) {
+			this.epoch = epoch;
+			this.version = version;
+		}
+	}
+
+	public static class NameQuery {
+		public final int queryId;
+		public final byte kind;
+		public final int limit;
+		public final String prefix;
+		// dernier nom de la page précédente, null pour la première
+		public final String after;
+
+		NameQuery(int queryId, byte kind, int limit, String prefix, String after) {
+			this.queryId = queryId;
+			this.kind = kind;
+			this.limit = limit;
+			this.prefix = prefix;
+			this.after = after.isEmpty() ? null : after;
+		}
+	}
+
+	private Codecs() {
+	}
+
+	/**
+	 * Reads a string written by DataOutput.writeUTF.
+	 */
+	public static String readUTF(ByteBuffer buf) throws IOException {
+		int n = buf.getShort() & 0xFFFF;
+		if (n > buf.remaining())
+			throw new IOException("Truncated string of " + n + " bytes");
+		byte[] a = buf.array();
+		int off = buf.arrayOffset() + buf.position();
+		buf.position(buf.position() + n);
+		// le UTF-8 modifié ne diffère de l'ASCII que par les octets nuls ou >= 0x80
+		for (int i = off; i < off + n; i++) {
+			if (a[i] <= 0) {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(a, off - 2, n + 2));
+				return in.readUTF();
+			}
+		}
+		return new String(a, off, n, StandardCharsets.US_ASCII);
+	}
+}
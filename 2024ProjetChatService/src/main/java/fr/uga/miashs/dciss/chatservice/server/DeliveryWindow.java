@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.Collection;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Packets taken from the send queue of a user and not yet acknowledged, in
+ * the order they are sent. The packet at the head has the number firstSeq,
+ * and the following ones the next numbers: a frame keeps its number when it
+ * is sent again on a later connection.
+ *
+ * A client that does not acknowledge the frames (see ResumeProtocol) has its
+ * packets forgotten once written; those that could not be written are sent
+ * again to its next connection. The window holds a reference on its packets.
+ *
+ * The window is bounded by the limits of the send queue. Once they are
+ * reached, the policy DROP_OLDEST forgets the oldest packets already written,
+ * which are then not sent again; with the other policies, no packet is taken
+ * from the send queue until the client acknowledges frames, and the queue
+ * applies its policy to the new packets (DISCONNECT closes the connection). A
+ * client that reads its frames without acknowledging them thus holds no more
+ * memory than its send queue.
+ */
+class DeliveryWindow {
+
+	private final int maxPackets;
+	private final long maxBytes;
+	private final SendQueue.OverflowPolicy policy;
+
+	// file circulaire : les sent premiers paquets ont été écrits sur la connexion courante
+	private Packet[] packets = new Packet[16];
+	private int head;
+	private int size;
+	private int sent;
+	private long firstSeq = 1;
+	// la connexion courante acquitte les trames
+	private boolean acked;
+	// numéro de la connexion courante, les appels d'une connexion précédente sont ignorés
+	private int epoch;
+	private long bytes;
+	private long dropped;
+
+	DeliveryWindow(int maxPackets, long maxBytes, SendQueue.OverflowPolicy policy) {
+		this.maxPackets = maxPackets;
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+	}
+
+	// pour les tests unitaires : fenêtre sans limite
+	DeliveryWindow() {
+		this(Integer.MAX_VALUE, Long.MAX_VALUE, SendQueue.OverflowPolicy.DROP_NEWEST);
+	}
+
+	private Packet get(int i) {
+		return packets[(head + i) & (packets.length - 1)];
+	}
+
+	/**
+	 * Appends a packet taken from the send queue, with its reference.
+	 */
+	synchronized void add(Packet p) {
+		if (size == packets.length) {
+			Packet[] a = new Packet[size * 2];
+			for (int i = 0; i < size; i++)
+				a[i] = get(i);
+			packets = a;
+			head = 0;
+		}
+		packets[(head + size++) & (packets.length - 1)] = p;
+		bytes += SendQueue.sizeOf(p);
+	}
+
+	private boolean fits() {
+		return size == 0 || (size < maxPackets && bytes < maxBytes);
+	}
+
+	/**
+	 * Whether packets can be taken from the send queue, after forgetting the
+	 * oldest packets written with the policy DROP_OLDEST.
+	 */
+	synchronized boolean hasRoom() {
+		if (policy == SendQueue.OverflowPolicy.DROP_OLDEST) {
+			while (!fits() && sent > 0) {
+				drop(1);
+				dropped++;
+			}
+		}
+		return fits();
+	}
+
+	/**
+	 * Waits until packets can be taken from the send queue, or the connection
+	 * given is no longer the current one.
+	 */
+	synchronized void awaitRoom(int epoch) throws InterruptedException {
+		while (epoch == this.epoch && !hasRoom())
+			wait();
+	}
+
+	/**
+	 * Appends packets taken from the send queue that are being written on the
+	 * connection. They are sent again to the next connection if the given one
+	 * is no longer the current one.
+	 */
+	synchronized void addSent(int epoch, Collection<Packet> c) {
+		for (Packet p : c)
+			add(p);
+		if (epoch == this.epoch && sent == size - c.size())
+			sent = size;
+	}
+
+	/**
+	 * Moves to c at most max packets not yet written on the current connection.
+	 *
+	 * @return the number of packets moved
+	 */
+	synchronized int next(int epoch, Collection<Packet> c, int max) {
+		if (epoch != this.epoch)
+			return 0;
+		int n = Math.min(max, size - sent);
+		for (int i = 0; i < n; i++)
+			c.add(get(sent++));
+		return n;
+	}
+
+	synchronized boolean hasUnsent() {
+		return sent < size;
+	}
+
+	/**
+	 * The packets moved by next() have been written. They are forgotten unless
+	 * the client acknowledges the frames.
+	 */
+	synchronized void written(int epoch) {
+		if (epoch == this.epoch && !acked)
+			drop(sent);
+	}
+
+	/**
+	 * The client has processed the frames up to seq.
+	 */
+	synchronized void ack(long seq) {
+		if (seq >= firstSeq) {
+			drop((int) Math.min(sent, seq - firstSeq + 1));
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Starts a connection that does not acknowledge the frames: all the packets
+	 * of the window are sent again.
+	 *
+	 * @return the number of the connection, given to the other methods
+	 */
+	synchronized int start() {
+		sent = 0;
+		acked = false;
+		notifyAll();
+		return ++epoch;
+	}
+
+	/**
+	 * The connection just started is of a client that processed the frames up
+	 * to lastSeq.
+	 *
+	 * @return the number of the next frame sent to the client
+	 */
+	synchronized long resume(long lastSeq) {
+		acked = true;
+		// le client ne peut pas avoir traité plus que ce qui a été envoyé, sauf
+		// s'il s'adresse à un autre serveur que le précédent
+		long from = Math.max(firstSeq, Math.min(lastSeq + 1, firstSeq + size));
+		drop((int) (from - firstSeq));
+		return from;
+	}
+
+	// oublie les n premiers paquets
+	private void drop(int n) {
+		for (int i = 0; i < n; i++) {
+			int k = head & (packets.length - 1);
+			bytes -= SendQueue.sizeOf(packets[k]);
+			packets[k].release();
+			packets[k] = null;
+			head++;
+		}
+		head &= packets.length - 1;
+		size -= n;
+		sent = Math.max(0, sent - n);
+		firstSeq += n;
+	}
+
+	/**
+	 * Number of packets kept until they are acknowledged or sent again.
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Number of packets forgotten before their acknowledgement to make room
+	 * (policy DROP_OLDEST).
+	 */
+	synchronized long dropped() {
+		return dropped;
+	}
+
+	/**
+	 * Forgets all the packets, when the user is deleted.
+	 */
+	synchronized void clear() {
+		drop(size);
+		notifyAll();
+	}
+}
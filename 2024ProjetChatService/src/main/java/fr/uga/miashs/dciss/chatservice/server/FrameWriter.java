@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fr.uga.miashs.dciss.chatservice.common.Compression;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Serializes a batch of packets into frames [srcId][destId][length][data] so
+ * that the whole batch can be sent with a single gathering write. Headers and
+ * small payloads are copied into a reusable buffer; larger payloads are sent
+ * from their own array without copy. The large packets shared by several
+ * clients are sent from the header serialized once by Packet.header() and the
+ * read-only view of Packet.payload().
+ *
+ * The buffers of the payloads are on the heap: the JDK copies them into a
+ * temporary direct buffer when writing to a socket, as for any heap buffer.
+ *
+ * If the connection has negotiated the compression, the payloads accepted by
+ * the compressor are sent deflated. The compressed form is kept by the packet,
+ * so that a message sent to a group is compressed only once.
+ *
+ * A FrameWriter is used by a single thread at a time.
+ */
+class FrameWriter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// au-delà, la charge utile n'est pas recopiée dans le tampon
+	private static final int COPY_THRESHOLD = 4 * 1024;
+
+	private final int maxPackets;
+	private final ByteBuffer buf;
+	private final List<Packet> packets = new ArrayList<>();
+	private ByteBuffer[] out = new ByteBuffer[16];
+	private int count;
+	private int first;
+	private int segStart;
+	// null si la connexion n'a pas négocié la compression
+	private Compression.Compressor compressor;
+
+	FrameWriter(int maxPackets) {
+		this.maxPackets = maxPackets;
+		buf = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, maxPackets * SendQueue.FRAME_HEADER));
+	}
+
+	void setCompressor(Compression.Compressor compressor) {
+		this.compressor = compressor;
+	}
+
+	Compression.Compressor getCompressor() {
+		return compressor;
+	}
+
+	int maxPackets() {
+		return maxPackets;
+	}
+
+	/**
+	 * Adds a packet to the batch. At most maxPackets packets can be added
+	 * between two calls to clear().
+	 */
+	void add(Packet p) {
+		if (packets.size() >= maxPackets)
+			throw new IllegalStateException("batch is full");
+		packets.add(p);
+		byte[] z = deflated(p);
+		if (z != null) {
+			put(p.srcId, p.destId, z, z.length, Compression.FLAG | z.length);
+			return;
+		}
+		if (p.isShared() && p.length > COPY_THRESHOLD) {
+			// en-tête et vue de la charge utile partagés par tous les destinataires
+			closeSegment();
+			append(p.header());
+			append(p.payload());
+			return;
+		}
+		put(p.srcId, p.destId, p.data, p.length, p.length);
+	}
+
+	private void put(int srcId, int destId, byte[] data, int length, int lengthField) {
+		buf.putInt(srcId).putInt(destId).putInt(lengthField);
+		// on garde toujours la place pour les entêtes des paquets suivants
+		int reserved = (maxPackets - packets.size()) * SendQueue.FRAME_HEADER;
+		if (length <= COPY_THRESHOLD && length <= buf.remaining() - reserved) {
+			buf.put(data, 0, length);
+		} else {
+			closeSegment();
+			append(ByteBuffer.wrap(data, 0, length));
+		}
+	}
+
+	// charge utile compressée du paquet, null s'il est envoyé tel quel
+	private byte[] deflated(Packet p) {
+		if (compressor == null || !compressor.accepts(p.data, 0, p.length))
+			return null;
+		byte[] z = p.getDeflated();
+		if (z == null) {
+			z = compressor.compress(p.data, 0, p.length);
+			p.setDeflated(z);
+		}
+		return z == Compression.RAW ? null : z;
+	}
+
+	// les octets du tampon écrits depuis le dernier segment forment un segment
+	private void closeSegment() {
+		if (buf.position() > segStart) {
+			append(buf.duplicate().limit(buf.position()).position(segStart));
+			segStart = buf.position();
+		}
+	}
+
+	private void append(ByteBuffer b) {
+		if (count == out.length)
+			out = Arrays.copyOf(out, count * 2);
+		out[count++] = b;
+	}
+
+	/**
+	 * Packets of the current batch.
+	 */
+	List<Packet> packets() {
+		return packets;
+	}
+
+	boolean isEmpty() {
+		return packets.isEmpty();
+	}
+
+	/**
+	 * Writes as much of the batch as the channel accepts.
+	 *
+	 * @return true if the whole batch has been written
+	 */
+	boolean writeTo(GatheringByteChannel ch) throws IOException {
+		closeSegment();
+		while (first < count) {
+			ch.write(out, first, count - first);
+			while (first < count && !out[first].hasRemaining())
+				first++;
+			if (first < count)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the whole batch, the channel has to be in blocking mode.
+	 */
+	void writeFully(WritableByteChannel ch) throws IOException {
+		if (ch instanceof GatheringByteChannel) {
+			while (!writeTo((GatheringByteChannel) ch))
+				;
+		} else {
+			closeSegment();
+			for (; first < count; first++) {
+				while (out[first].hasRemaining())
+					ch.write(out[first]);
+			}
+		}
+	}
+
+	/**
+	 * Releases the packets of a batch that has been entirely written, then
+	 * clears the writer.
+	 */
+	void release() {
+		for (Packet p : packets)
+			p.release();
+		clear();
+	}
+
+	/**
+	 * Forgets the current batch so that the buffer can be reused.
+	 */
+	void clear() {
+		packets.clear();
+		Arrays.fill(out, 0, count, null);
+		count = 0;
+		first = 0;
+		segStart = 0;
+		buf.clear();
+	}
+}
@@ -11,8 +11,8 @@
 
 package fr.uga.miashs.dciss.chatservice.server;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.ArrayList;
+import java.util.List;
 
 import fr.uga.miashs.dciss.chatservice.common.Packet;
 
@@ -20,14 +20,19 @@ public class GroupMsg implements PacketProcessor {
 
 	private int groupId;
 	private UserMsg owner;
-	private Set<UserMsg> members;
+	private IdSet<UserMsg> members;
+	// fichiers postés dans le groupe, référencés dans le BlobStore
+	private final List<String> blobs = new ArrayList<>();
+	private boolean deleted;
+	// journal de l'état du serveur, null s'il n'est pas conservé
+	private StateLog state;
 	
 	public GroupMsg(int groupId, UserMsg owner) {
 		if (groupId>-1) throw new IllegalArgumentException("id must not be less than 0");
 		if (owner==null) throw new IllegalArgumentException("owner cannot be null");
 		this.groupId=groupId;
 		this.owner=owner;
-		members=Collections.synchronizedSet(new HashSet<>());
+		members=new IdSet<>(UserMsg.class, UserMsg::getId);
 		addMember(owner);
 	}
 	
@@ -46,8 +51,10 @@ public class GroupMsg implements PacketProcessor {
 	 * @param s
 	 * @return
 	 */
-	public boolean addMember(UserMsg s) {
-		return s!=null && members.add(s) && s.getGroups().add(this);
+	public synchronized boolean addMember(UserMsg s) {
+		if (s==null || !members.add(s) || !s.getGroups().add(this)) return false;
+		if (state!=null) state.memberAdded(groupId, s.getId());
+		return true;
 	}
 	
 	/**
@@ -56,30 +63,66 @@ public class GroupMsg implements PacketProcessor {
 	 * @param s
 	 * @return
 	 */
-	public boolean removeMember(UserMsg s) {
+	public synchronized boolean removeMember(UserMsg s) {
 		if (s.equals(owner)) return false;
 		if (members.remove(s)) {
 			s.removeGroup(this);
+			if (state!=null) state.memberRemoved(groupId, s.getId());
 			return true;
 		}
 		return false;
 	}
 	
+	// les modifications suivantes des membres sont enregistrées dans le journal
+	void setStateLog(StateLog state) {
+		this.state = state;
+	}
+
+	// rétablit les membres relus dans un instantané, avec une seule copie de l'ensemble
+	synchronized void restoreMembers(List<UserMsg> users) {
+		members.addAll(users);
+		for (UserMsg u : users)
+			u.getGroups().add(this);
+	}
+
 	@Override
 	public void process(Packet p) {
+		// l'en-tête est sérialisé une fois et partagé par tous les destinataires
+		if (members.size() > 2)
+			p.setShared();
 		// send packet to members except the sender.
-		members.stream().filter(m->m.getId()!=p.srcId).forEach( m -> m.process(p));
+		// l'itération se fait sur un instantané des membres, sans verrou
+		for (UserMsg m : members) {
+			if (m.getId() != p.srcId)
+				m.process(p);
+		}
 	}
 	
+	/*
+	 * Enregistre un fichier posté dans le groupe, dont une référence est détenue
+	 * jusqu'à la suppression du groupe. Retourne false si le groupe a été supprimé
+	 */
+	synchronized boolean addBlob(String key) {
+		return !deleted && blobs.add(key);
+	}
+
+	// retire les fichiers du groupe, pour libérer leurs références
+	synchronized List<String> takeBlobs() {
+		List<String> res = new ArrayList<>(blobs);
+		blobs.clear();
+		return res;
+	}
+
 	// to be used carrefully, because it does not update birectional relationship in case of addition or removal.
-	protected Set<UserMsg> getMembers() {
+	protected IdSet<UserMsg> getMembers() {
 		return members;
 	}
 	
 	/*
 	 * This method has to be called when removing a group in order to clean bidirectional membership.
 	 */
-	public void beforeDelete() {
+	public synchronized void beforeDelete() {
+		deleted = true;
 		members.forEach(m->m.getGroups().remove(this));
 	}
 
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import fr.uga.miashs.dciss.chatservice.common.HeartbeatProtocol;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Detection of the dead connections (see HeartbeatProtocol). Each connection
+ * is checked every intervalMillis: if nothing was received from it since the
+ * previous check, it is sent a ping, and it is closed if nothing is received
+ * within timeoutMillis after the ping. The user can then reconnect.
+ *
+ * The checks are timeouts of a single TimingWheel, so a connection costs no
+ * scheduled task of its own, and receiving a packet only sets a flag.
+ */
+public class Heartbeats {
+	private final static Logger LOG = Logger.getLogger(Heartbeats.class.getName());
+
+	// nombre de seaux de la roue, une vérification est à quelques dizaines de ticks au plus
+	private static final int WHEEL_SIZE = 512;
+	// ticks par intervalle, la précision des vérifications
+	private static final int TICKS_PER_INTERVAL = 16;
+
+	private final long intervalMillis;
+	private final long timeoutMillis;
+	private final TimingWheel wheel;
+	private final ScheduledExecutorService timer;
+
+	private final LongAdder pingsSent = new LongAdder();
+	private final LongAdder reaped = new LongAdder();
+
+	/**
+	 * @param intervalMillis time between two checks of a connection, 0 disables
+	 *                       the checks
+	 * @param timeoutMillis  time allowed to answer a ping
+	 */
+	Heartbeats(long intervalMillis, long timeoutMillis) {
+		this.intervalMillis = intervalMillis;
+		this.timeoutMillis = timeoutMillis;
+		if (intervalMillis == 0) {
+			wheel = null;
+			timer = null;
+			return;
+		}
+		long tick = Math.max(1, Math.min(intervalMillis, timeoutMillis) / TICKS_PER_INTERVAL);
+		wheel = new TimingWheel(tick, WHEEL_SIZE);
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(wheel::advance, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts checking a connection of the user, returns null if the checks are
+	 * disabled.
+	 */
+	Session start(UserMsg user) {
+		if (wheel == null)
+			return null;
+		Session s = new Session(user);
+		wheel.schedule(s, intervalMillis);
+		return s;
+	}
+
+	/**
+	 * Number of pings sent to silent connections.
+	 */
+	public long getPingsSent() {
+		return pingsSent.sum();
+	}
+
+	/**
+	 * Number of connections closed because they did not answer a ping.
+	 */
+	public long getReaped() {
+		return reaped.sum();
+	}
+
+	void close() {
+		if (timer != null)
+			timer.shutdownNow();
+	}
+
+	/**
+	 * Checks of a connection, cancelled when it is closed.
+	 */
+	final class Session extends TimingWheel.Timeout {
+		private final UserMsg user;
+		// un paquet a été reçu depuis la dernière vérification
+		private volatile boolean seen;
+		// accédé par le thread de la roue seulement
+		private boolean pinged;
+
+		private Session(UserMsg user) {
+			this.user = user;
+		}
+
+		/**
+		 * Called for each packet received from the connection.
+		 */
+		void seen() {
+			// évite d'écrire la ligne de cache à chaque paquet
+			if (!seen)
+				seen = true;
+		}
+
+		@Override
+		protected void expire() {
+			if (isCancelled())
+				return;
+			if (seen) {
+				seen = false;
+				pinged = false;
+				wheel.schedule(this, intervalMillis);
+			} else if (!pinged) {
+				pinged = true;
+				pingsSent.increment();
+				user.process(new Packet(ServerMsg.SERVER_CLIENTID, user.getId(), HeartbeatProtocol.ping()));
+				wheel.schedule(this, timeoutMillis);
+			} else {
+				reaped.increment();
+				LOG.warning("Connection with client " + user.getId() + " does not answer...close it.");
+				user.close(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Copy-on-write set of objects identified by an int id (users or groups). The
+ * elements are kept in an immutable array sorted by id, which is replaced on
+ * each modification. Reads (iteration, contains) never lock and always see a
+ * consistent snapshot; modifications are serialized and cost O(n), which fits
+ * memberships that are read on every message but rarely change.
+ */
+class IdSet<T> extends AbstractSet<T> {
+
+	private static final class Snapshot {
+		final int[] ids;
+		final Object[] elements;
+
+		Snapshot(int[] ids, Object[] elements) {
+			this.ids = ids;
+			this.elements = elements;
+		}
+	}
+
+	private static final Snapshot EMPTY = new Snapshot(new int[0], new Object[0]);
+
+	private final Class<T> type;
+	private final ToIntFunction<T> idOf;
+	private volatile Snapshot snapshot = EMPTY;
+
+	IdSet(Class<T> type, ToIntFunction<T> idOf) {
+		this.type = type;
+		this.idOf = idOf;
+	}
+
+	/**
+	 * Tells if an element with the given id is in the set, without lock nor
+	 * allocation.
+	 */
+	public boolean containsId(int id) {
+		return Arrays.binarySearch(snapshot.ids, id) >= 0;
+	}
+
+	/**
+	 * Returns the element with the given id, or null.
+	 */
+	public T get(int id) {
+		Snapshot s = snapshot;
+		int i = Arrays.binarySearch(s.ids, id);
+		return i >= 0 ? type.cast(s.elements[i]) : null;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!type.isInstance(o))
+			return false;
+		Snapshot s = snapshot;
+		int i = Arrays.binarySearch(s.ids, idOf.applyAsInt(type.cast(o)));
+		return i >= 0 && s.elements[i] == o;
+	}
+
+	@Override
+	public synchronized boolean add(T e) {
+		Snapshot s = snapshot;
+		int id = idOf.applyAsInt(e);
+		int i = Arrays.binarySearch(s.ids, id);
+		if (i >= 0)
+			return false;
+		i = -i - 1;
+		int n = s.ids.length;
+		int[] ids = new int[n + 1];
+		Object[] elements = new Object[n + 1];
+		System.arraycopy(s.ids, 0, ids, 0, i);
+		System.arraycopy(s.elements, 0, elements, 0, i);
+		ids[i] = id;
+		elements[i] = e;
+		System.arraycopy(s.ids, i, ids, i + 1, n - i);
+		System.arraycopy(s.elements, i, elements, i + 1, n - i);
+		snapshot = new Snapshot(ids, elements);
+		return true;
+	}
+
+	/**
+	 * Adds several elements with a single copy of the array, in O(n + k log k)
+	 * instead of O(n k).
+	 */
+	@Override
+	public synchronized boolean addAll(Collection<? extends T> c) {
+		Object[] added = c.toArray();
+		Arrays.sort(added, (a, b) -> Integer.compare(idOf.applyAsInt(type.cast(a)), idOf.applyAsInt(type.cast(b))));
+		Snapshot s = snapshot;
+		int n = s.ids.length;
+		int[] ids = new int[n + added.length];
+		Object[] elements = new Object[n + added.length];
+		// fusion des deux tableaux triés, un id déjà présent est ignoré
+		int i = 0, j = 0, k = 0;
+		while (i < n || j < added.length) {
+			if (j == added.length || i < n && s.ids[i] <= idOf.applyAsInt(type.cast(added[j]))) {
+				ids[k] = s.ids[i];
+				elements[k++] = s.elements[i++];
+			} else {
+				int id = idOf.applyAsInt(type.cast(added[j]));
+				if (k == 0 || ids[k - 1] != id) {
+					ids[k] = id;
+					elements[k++] = added[j];
+				}
+				j++;
+			}
+		}
+		if (k == n)
+			return false;
+		snapshot = new Snapshot(Arrays.copyOf(ids, k), Arrays.copyOf(elements, k));
+		return true;
+	}
+
+	@Override
+	public synchronized boolean remove(Object o) {
+		if (!contains(o))
+			return false;
+		Snapshot s = snapshot;
+		int i = Arrays.binarySearch(s.ids, idOf.applyAsInt(type.cast(o)));
+		int n = s.ids.length;
+		int[] ids = new int[n - 1];
+		Object[] elements = new Object[n - 1];
+		System.arraycopy(s.ids, 0, ids, 0, i);
+		System.arraycopy(s.elements, 0, elements, 0, i);
+		System.arraycopy(s.ids, i + 1, ids, i, n - i - 1);
+		System.arraycopy(s.elements, i + 1, elements, i, n - i - 1);
+		snapshot = new Snapshot(ids, elements);
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		snapshot = EMPTY;
+	}
+
+	@Override
+	public int size() {
+		return snapshot.ids.length;
+	}
+
+	@Override
+	public void forEach(Consumer<? super T> action) {
+		for (Object e : snapshot.elements)
+			action.accept(type.cast(e));
+	}
+
+	/**
+	 * Iterates over the snapshot taken when the iterator is created, the
+	 * modifications made meanwhile are not seen.
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		Object[] elements = snapshot.elements;
+		return new Iterator<T>() {
+			int next;
+			T last;
+
+			@Override
+			public boolean hasNext() {
+				return next < elements.length;
+			}
+
+			@Override
+			public T next() {
+				if (next >= elements.length)
+					throw new NoSuchElementException();
+				last = type.cast(elements[next++]);
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if (last == null)
+					throw new IllegalStateException();
+				IdSet.this.remove(last);
+				last = null;
+			}
+		};
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Case-insensitive index of names (nicknames or group names) answering prefix
+ * queries. The names are kept in sorted arrays, replaced as a whole, and the
+ * names added since the last replacement in a small concurrent sorted map;
+ * they are merged into new arrays when the map grows past a fraction of the
+ * arrays. Queries never lock: they read the arrays and the map of the current
+ * snapshot, and merge the two.
+ *
+ * A name registered again replaces the previous id of the name. A removed
+ * name that is in the arrays is hidden by a marker in the map, dropped by the
+ * next merge.
+ */
+public class NameIndex {
+
+	/**
+	 * A name and its id.
+	 */
+	public static class Entry {
+		// nom en minuscules
+		final String key;
+		// null pour un nom supprimé
+		public final String name;
+		public final int id;
+
+		Entry(String key, String name, int id) {
+			this.key = key;
+			this.name = name;
+			this.id = id;
+		}
+	}
+
+	// noms ajoutés avant la fusion suivante, au minimum
+	private static final int MIN_RECENT = 1024;
+
+	private static final class Snapshot {
+		// noms en minuscules triés, nom tel qu'enregistré, identifiant
+		final String[] keys;
+		final String[] names;
+		final int[] ids;
+		final ConcurrentSkipListMap<String, Entry> recent;
+
+		Snapshot(String[] keys, String[] names, int[] ids) {
+			this.keys = keys;
+			this.names = names;
+			this.ids = ids;
+			recent = new ConcurrentSkipListMap<>();
+		}
+	}
+
+	private volatile Snapshot snapshot = new Snapshot(new String[0], new String[0], new int[0]);
+	private int size;
+
+	static String fold(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Registers a name, or changes its id.
+	 */
+	public synchronized void put(String name, int id) {
+		Snapshot s = snapshot;
+		String key = fold(name);
+		Entry previous = s.recent.put(key, new Entry(key, name, id));
+		if (previous == null ? Arrays.binarySearch(s.keys, key) < 0 : previous.name == null)
+			size++;
+		if (s.recent.size() > Math.max(MIN_RECENT, s.keys.length / 16))
+			merge();
+	}
+
+	/**
+	 * Removes a name if it is still registered with this id.
+	 *
+	 * @return false if the name is unknown or belongs to another id
+	 */
+	public synchronized boolean remove(String name, int id) {
+		Snapshot s = snapshot;
+		String key = fold(name);
+		Entry e = s.recent.get(key);
+		int i = Arrays.binarySearch(s.keys, key);
+		if (e != null ? e.name == null || e.id != id : i < 0 || s.ids[i] != id)
+			return false;
+		// le nom des tableaux reste masqué jusqu'à la fusion suivante
+		if (i >= 0)
+			s.recent.put(key, new Entry(key, null, id));
+		else
+			s.recent.remove(key);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Registers many names at once, with a single copy of the arrays. The names
+	 * of a snapshot of the state are already sorted, and are then loaded in
+	 * linear time.
+	 */
+	public synchronized void putAll(List<String> names, int[] ids) {
+		if (!snapshot.recent.isEmpty())
+			merge();
+		int m = names.size();
+		Entry[] added = new Entry[m];
+		for (int j = 0; j < m; j++)
+			added[j] = new Entry(fold(names.get(j)), names.get(j), ids[j]);
+		// tri stable : le dernier enregistrement d'un nom l'emporte
+		Arrays.sort(added, (x, y) -> x.key.compareTo(y.key));
+		Snapshot s = snapshot;
+		int n = s.keys.length;
+		String[] keys = new String[n + m];
+		String[] all = new String[n + m];
+		int[] allIds = new int[n + m];
+		int i = 0, j = 0, k = 0;
+		while (i < n || j < m) {
+			if (j + 1 < m && added[j].key.equals(added[j + 1].key)) {
+				j++;
+				continue;
+			}
+			int c = j == m ? -1 : i == n ? 1 : s.keys[i].compareTo(added[j].key);
+			if (c < 0) {
+				keys[k] = s.keys[i];
+				all[k] = s.names[i];
+				allIds[k++] = s.ids[i++];
+			} else {
+				if (c == 0)
+					i++;
+				keys[k] = added[j].key;
+				all[k] = added[j].name;
+				allIds[k++] = added[j++].id;
+			}
+		}
+		size = k;
+		snapshot = new Snapshot(Arrays.copyOf(keys, k), Arrays.copyOf(all, k), Arrays.copyOf(allIds, k));
+	}
+
+	// remplace les tableaux par leur fusion avec les noms récents
+	private void merge() {
+		Snapshot s = snapshot;
+		int n = s.keys.length;
+		String[] keys = new String[size];
+		String[] names = new String[size];
+		int[] ids = new int[size];
+		int i = 0, k = 0;
+		for (Entry e : s.recent.values()) {
+			String key = e.key;
+			while (i < n && s.keys[i].compareTo(key) < 0) {
+				keys[k] = s.keys[i];
+				names[k] = s.names[i];
+				ids[k++] = s.ids[i++];
+			}
+			// le nom récent remplace le même nom des tableaux, ou le supprime
+			if (i < n && s.keys[i].equals(key))
+				i++;
+			if (e.name == null)
+				continue;
+			keys[k] = key;
+			names[k] = e.name;
+			ids[k++] = e.id;
+		}
+		System.arraycopy(s.keys, i, keys, k, n - i);
+		System.arraycopy(s.names, i, names, k, n - i);
+		System.arraycopy(s.ids, i, ids, k, n - i);
+		snapshot = new Snapshot(keys, names, ids);
+	}
+
+	/**
+	 * Returns the id of a name, ignoring its case, or null.
+	 */
+	public Integer get(String name) {
+		Snapshot s = snapshot;
+		String key = fold(name);
+		Entry e = s.recent.get(key);
+		if (e != null)
+			return e.name == null ? null : e.id;
+		int i = Arrays.binarySearch(s.keys, key);
+		return i >= 0 ? s.ids[i] : null;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns at most limit names starting with prefix, ignoring case, in
+	 * alphabetical order.
+	 *
+	 * @param after  the last name of the previous page, null for the first page
+	 * @param filter the ids to return, the others are skipped
+	 */
+	public List<Entry> query(String prefix, String after, int limit, IntPredicate filter) {
+		List<Entry> res = new ArrayList<>(Math.min(limit, 64));
+		scan(fold(prefix), after == null ? null : fold(after), e -> {
+			if (filter == null || filter.test(e.id))
+				res.add(e);
+			return res.size() < limit;
+		});
+		return res;
+	}
+
+	/**
+	 * Calls action for each name, in alphabetical order.
+	 */
+	public void forEach(Consumer<Entry> action) {
+		scan("", null, e -> {
+			action.accept(e);
+			return true;
+		});
+	}
+
+	/*
+	 * Parcourt les noms commençant par p qui suivent after, jusqu'à ce que sink
+	 * retourne false
+	 */
+	private void scan(String p, String after, Predicate<Entry> sink) {
+		Snapshot s = snapshot;
+		boolean inclusive = after == null || after.compareTo(p) < 0;
+		String from = inclusive ? p : after;
+		// parcours des deux listes triées en parallèle
+		int i = Arrays.binarySearch(s.keys, from);
+		if (i < 0)
+			i = -i - 1;
+		else if (!inclusive)
+			i++;
+		Iterator<Entry> it = s.recent.tailMap(from, inclusive).values().iterator();
+		Entry r = next(it, p);
+		while (true) {
+			boolean base = i < s.keys.length && s.keys[i].startsWith(p);
+			if (!base && r == null)
+				return;
+			int c = !base ? 1 : r == null ? -1 : s.keys[i].compareTo(r.key);
+			Entry e;
+			if (c < 0) {
+				e = new Entry(s.keys[i], s.names[i], s.ids[i]);
+				i++;
+			} else {
+				// un nom récent remplace le même nom des tableaux
+				if (c == 0)
+					i++;
+				e = r;
+				r = next(it, p);
+			}
+			if (e.name != null && !sink.test(e))
+				return;
+		}
+	}
+
+	private static Entry next(Iterator<Entry> it, String prefix) {
+		if (!it.hasNext())
+			return null;
+		Entry e = it.next();
+		return e.key.startsWith(prefix) ? e : null;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking front-end of the server. The accept loop runs in the thread
+ * calling run() and every accepted connection is handed to one of a fixed
+ * number of event loops. Each event loop multiplexes its connections with a
+ * Selector, so the number of threads does not depend on the number of clients.
+ * The protocol is the same as in the blocking mode (see NioSession).
+ */
+class NioServer implements Closeable {
+	private final static Logger LOG = Logger.getLogger(NioServer.class.getName());
+
+	private final ServerMsg server;
+	private final ServerSocketChannel ssc;
+	private final EventLoop[] loops;
+	private int next;
+	private volatile boolean running;
+
+	NioServer(ServerMsg server, int port, int nbLoops) throws IOException {
+		this.server = server;
+		ssc = ServerSocketChannel.open();
+		ssc.bind(new InetSocketAddress(port));
+		loops = new EventLoop[nbLoops];
+		for (int i = 0; i < nbLoops; i++) {
+			loops[i] = new EventLoop(i);
+		}
+	}
+
+	int getLocalPort() {
+		return ssc.socket().getLocalPort();
+	}
+
+	/*
+	 * Boucle d'acceptation des connexions, elle est bloquante jusqu'à l'appel de
+	 * close()
+	 */
+	void run() {
+		running = true;
+		for (EventLoop l : loops) {
+			l.start();
+		}
+		while (running) {
+			try {
+				SocketChannel c = ssc.accept();
+				c.configureBlocking(false);
+				c.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				// répartition des connexions entre les boucles d'évènements
+				EventLoop l = loops[next++ % loops.length];
+				l.register(new NioSession(server, c, l));
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				if (running)
+					LOG.warning("Error while accepting a connection: " + e.getMessage());
+			}
+		}
+		LOG.info("Close server");
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		ssc.close();
+		for (EventLoop l : loops) {
+			l.shutdown();
+		}
+	}
+
+	/*
+	 * Thread gérant un sous-ensemble des connexions
+	 */
+	class EventLoop extends Thread {
+		private final Selector selector;
+		private final Queue<NioSession> newSessions = new ConcurrentLinkedQueue<>();
+		private final Queue<NioSession> writeRequests = new ConcurrentLinkedQueue<>();
+
+		EventLoop(int i) throws IOException {
+			super("chat-nio-" + i);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void register(NioSession s) {
+			newSessions.add(s);
+			selector.wakeup();
+		}
+
+		// appelée par n'importe quel thread quand des paquets sont à envoyer
+		void requestWrite(NioSession s) {
+			writeRequests.add(s);
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					LOG.warning("Selector failure in " + getName() + ": " + e.getMessage());
+					break;
+				}
+				NioSession s;
+				while ((s = newSessions.poll()) != null) {
+					s.register(selector);
+				}
+				while ((s = writeRequests.poll()) != null) {
+					s.enableWrite();
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey k = it.next();
+					it.remove();
+					s = (NioSession) k.attachment();
+					try {
+						if (k.isReadable())
+							s.onReadable();
+						if (k.isValid() && k.isWritable())
+							s.onWritable();
+					} catch (IOException | CancelledKeyException e) {
+						s.close();
+					}
+				}
+			}
+			for (SelectionKey k : selector.keys()) {
+				((NioSession) k.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// ignored, the server is stopping
+			}
+		}
+	}
+}
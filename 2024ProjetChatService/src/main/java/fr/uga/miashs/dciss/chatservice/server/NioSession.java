@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import fr.uga.miashs.dciss.chatservice.common.Compression;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.ResumeProtocol;
+
+/**
+ * State of a connection handled by an event loop of NioServer. The wire
+ * protocol is the one of the blocking mode: the client first sends its id (0
+ * to get a new one, which is then sent back), possibly preceded by its
+ * capabilities (see Compression) and by the last frame it processed (see
+ * ResumeProtocol), then frames [destId][length][data] are
+ * received and frames [srcId][destId][length][data] are sent.
+ *
+ * Except wantWrite() and close(), the methods are only called by the event
+ * loop owning the session.
+ */
+class NioSession {
+	private final static Logger LOG = Logger.getLogger(NioSession.class.getName());
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	private final ServerMsg server;
+	private final SocketChannel channel;
+	private final NioServer.EventLoop loop;
+	private SelectionKey key;
+	private UserMsg user;
+
+	// lecture
+	private final ByteBuffer readBuf = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private int destId;
+	private byte[] payload;
+	private int length;
+	private int filled;
+	// la trame en cours de lecture est compressée
+	private boolean deflated;
+	// null si la connexion n'a pas négocié la compression
+	private Compression.Decompressor inflater;
+
+	// écriture
+	private final AtomicBoolean writeRequested = new AtomicBoolean();
+	private final FrameWriter writer;
+	private final List<Packet> batch = new ArrayList<>();
+	private ByteBuffer idBuf;
+	// numéro de la connexion dans la fenêtre de l'utilisateur
+	private int epoch;
+
+	private volatile boolean closed;
+
+	NioSession(ServerMsg server, SocketChannel channel, NioServer.EventLoop loop) {
+		this.server = server;
+		this.channel = channel;
+		this.loop = loop;
+		writer = new FrameWriter(server.getConfig().getBatchMaxPackets());
+	}
+
+	void register(Selector selector) {
+		try {
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (ClosedChannelException e) {
+			close();
+		}
+	}
+
+	void onReadable() throws IOException {
+		if (payload != null && readBuf.position() == 0 && length - filled >= READ_BUFFER_SIZE) {
+			// gros paquet : lecture directe dans le tableau de destination
+			int n = channel.read(ByteBuffer.wrap(payload, filled, length - filled));
+			if (n < 0)
+				throw new EOFException();
+			filled += n;
+			if (filled == length)
+				deliver();
+			return;
+		}
+		if (channel.read(readBuf) < 0)
+			throw new EOFException();
+		readBuf.flip();
+		try {
+			while (!closed && decode())
+				;
+		} finally {
+			readBuf.compact();
+		}
+	}
+
+	/*
+	 * Décode le prochain élément présent dans readBuf, retourne false s'il faut
+	 * attendre d'autres octets
+	 */
+	private boolean decode() throws IOException {
+		if (user == null) {
+			if (readBuf.remaining() < 4)
+				return false;
+			int flags = -1;
+			long lastSeq = -1;
+			if (readBuf.getInt(readBuf.position()) == Compression.HELLO) {
+				// capacités annoncées avant l'identifiant, suivi de la dernière trame
+				// traitée si le client reprend sa session
+				if (readBuf.remaining() < 12)
+					return false;
+				boolean resume = (readBuf.getInt(readBuf.position() + 4) & ResumeProtocol.RESUME) != 0;
+				if (resume && readBuf.remaining() < 20)
+					return false;
+				readBuf.getInt();
+				flags = server.getConfig().negotiate(readBuf.getInt());
+				int userId = readBuf.getInt();
+				if (resume)
+					lastSeq = readBuf.getLong();
+				handshake(userId, flags, lastSeq);
+			} else {
+				handshake(readBuf.getInt(), flags, lastSeq);
+			}
+			return user != null;
+		}
+		if (payload == null) {
+			if (readBuf.remaining() < 8)
+				return false;
+			destId = readBuf.getInt();
+			length = readBuf.getInt();
+			deflated = inflater != null && (length & Compression.FLAG) != 0;
+			if (deflated) {
+				length &= ~Compression.FLAG;
+				payload = server.deflatedBuffer(length);
+			} else {
+				payload = server.payloadBuffer(destId, length);
+			}
+			filled = 0;
+		}
+		int n = Math.min(readBuf.remaining(), length - filled);
+		readBuf.get(payload, filled, n);
+		filled += n;
+		if (filled < length)
+			return false;
+		deliver();
+		return true;
+	}
+
+	private void deliver() throws IOException {
+		byte[] data = payload;
+		payload = null;
+		// on envoie le paquet à ServerMsg pour qu'il le gère
+		if (deflated)
+			server.processDeflated(user, destId, data, length, inflater);
+		else
+			server.processReceived(user, destId, data, length);
+	}
+
+	/*
+	 * flags : capacités accordées au client, -1 s'il ne les a pas annoncées ;
+	 * lastSeq : dernière trame traitée par le client qui reprend sa session
+	 */
+	private void handshake(int userId, int flags, long lastSeq) {
+		ByteBuffer reply = ByteBuffer.allocate(16);
+		if (flags >= 0) {
+			reply.putInt(flags);
+			inflater = (flags & Compression.DEFLATE) != 0 ? new Compression.Decompressor() : null;
+			writer.setCompressor(server.getConfig().newCompressor(flags));
+		}
+		// si 0 alors il faut créer un nouvel utilisateur et
+		// envoyer l'identifiant au client
+		if (userId == 0) {
+			userId = server.newUser();
+			reply.putInt(userId);
+		}
+		UserMsg x = server.getUser(userId);
+		if (x == null || !x.open(this)) {
+			// si l'idenfiant est inconnu ou déjà connecté, on ferme la connexion
+			close();
+			return;
+		}
+		user = x;
+		epoch = x.getEpoch();
+		if (flags >= 0 && (flags & ResumeProtocol.RESUME) != 0)
+			reply.putLong(x.resume(lastSeq));
+		if (reply.position() > 0)
+			idBuf = reply.flip();
+		LOG.info(userId + " connected");
+		if (idBuf != null) {
+			// l'identifiant doit partir avant tout autre paquet
+			writeRequested.set(true);
+			enableWrite();
+		} else if (user.hasOutgoing()) {
+			wantWrite();
+		}
+	}
+
+	/*
+	 * Signale à la boucle d'évènement que des paquets sont en attente, peut être
+	 * appelée par n'importe quel thread
+	 */
+	void wantWrite() {
+		if (!closed && writeRequested.compareAndSet(false, true))
+			loop.requestWrite(this);
+	}
+
+	void enableWrite() {
+		if (key != null && key.isValid())
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	void onWritable() throws IOException {
+		if (idBuf != null) {
+			channel.write(idBuf);
+			if (idBuf.hasRemaining())
+				return;
+			idBuf = null;
+		}
+		while (true) {
+			if (!writer.isEmpty()) {
+				if (!writer.writeTo(channel))
+					return; // le tampon système est plein, on attend
+				// les paquets restent dans la fenêtre de l'utilisateur jusqu'à leur acquittement
+				writer.clear();
+				user.written(epoch);
+			}
+			// prépare les prochaines trames à envoyer
+			user.drainOutgoing(epoch, batch, writer.maxPackets());
+			if (batch.isEmpty())
+				break;
+			for (Packet p : batch)
+				writer.add(p);
+			batch.clear();
+		}
+		// plus rien à envoyer
+		key.interestOps(SelectionKey.OP_READ);
+		writeRequested.set(false);
+		// un paquet a pu arriver entre le dernier envoi et la remise à zéro
+		if (user.hasOutgoing() && writeRequested.compareAndSet(false, true))
+			enableWrite();
+	}
+
+	void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// ignored
+		}
+		if (user != null) {
+			// les paquets non transmis restent dans la fenêtre, pour la connexion suivante
+			writer.clear();
+			LOG.warning("Connection with client " + user.getId() + " is broken...close it.");
+			user.close(this);
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.PresenceProtocol;
+
+/**
+ * Index of the users interested in the presence of each user (see
+ * PresenceProtocol): the members of its groups, and the users that watch it
+ * as a contact. A connection or disconnection is only sent to them, so the
+ * traffic follows the groups and contacts of the users instead of their
+ * total number.
+ *
+ * The changes made during batchMillis are sent together, one packet per
+ * recipient, and a user that reconnects before they are sent is not
+ * announced. The contacts watched by a user are forgotten when it
+ * disconnects: the client watches them again at each session.
+ */
+public class Presence {
+
+	private final ServerMsg server;
+	private final long batchMillis;
+
+	// utilisateur suivi -> utilisateurs qui le suivent comme contact
+	private final Map<Integer, Set<Integer>> watchers = new HashMap<>();
+	// utilisateur -> contacts qu'il suit, pour les oublier à sa déconnexion
+	private final Map<Integer, Set<Integer>> watching = new HashMap<>();
+
+	// changements pas encore envoyés : {état annoncé avant, dernier état}
+	private Map<Integer, boolean[]> pending = new LinkedHashMap<>();
+	private boolean flushScheduled;
+
+	private final ScheduledExecutorService timer;
+	private final LongAdder packetsSent = new LongAdder();
+	private final LongAdder changesSent = new LongAdder();
+	private final LongAdder changesCoalesced = new LongAdder();
+
+	/**
+	 * @param batchMillis time during which the changes are gathered before being
+	 *                    sent, 0 to send each one right away
+	 */
+	Presence(ServerMsg server, long batchMillis) {
+		this.server = server;
+		this.batchMillis = batchMillis;
+		timer = batchMillis == 0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "presence");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Records the connection or disconnection of a user.
+	 */
+	void changed(int userId, boolean online) {
+		boolean flushNow = false;
+		synchronized (this) {
+			pending.computeIfAbsent(userId, id -> new boolean[] { !online, online })[1] = online;
+			if (!flushScheduled) {
+				flushScheduled = true;
+				if (timer == null)
+					flushNow = true;
+				else {
+					try {
+						timer.schedule(this::flush, batchMillis, TimeUnit.MILLISECONDS);
+					} catch (RejectedExecutionException e) {
+						// le serveur s'arrête, les changements ne sont plus envoyés
+					}
+				}
+			}
+		}
+		if (flushNow)
+			flush();
+	}
+
+	/**
+	 * Subscribes a user to the presence of contacts, and sends it their current
+	 * presence.
+	 */
+	synchronized void watch(UserMsg user, int[] userIds) {
+		Map<Integer, Boolean> current = new LinkedHashMap<>();
+		for (int id : userIds) {
+			UserMsg contact = server.getUser(id);
+			if (contact == null || id == user.getId())
+				continue;
+			watchers.computeIfAbsent(id, k -> new HashSet<>()).add(user.getId());
+			watching.computeIfAbsent(user.getId(), k -> new HashSet<>()).add(id);
+			current.put(id, contact.isConnected());
+		}
+		if (!current.isEmpty())
+			send(user, current);
+	}
+
+	synchronized void unwatch(UserMsg user, int[] userIds) {
+		Set<Integer> contacts = watching.get(user.getId());
+		if (contacts == null)
+			return;
+		for (int id : userIds) {
+			if (contacts.remove(id))
+				unsubscribe(id, user.getId());
+		}
+		if (contacts.isEmpty())
+			watching.remove(user.getId());
+	}
+
+	/**
+	 * Tells the connected members of a group the presence of the members that
+	 * have just been added, and tells these the presence of all the members.
+	 */
+	synchronized void joined(GroupMsg group, Collection<UserMsg> added) {
+		Map<UserMsg, Map<Integer, Boolean>> out = new LinkedHashMap<>();
+		for (UserMsg m : group.getMembers()) {
+			if (!m.isConnected())
+				continue;
+			for (UserMsg peer : added.contains(m) ? group.getMembers() : added) {
+				if (peer != m && peer.isConnected())
+					out.computeIfAbsent(m, k -> new LinkedHashMap<>()).put(peer.getId(), true);
+			}
+		}
+		out.forEach(this::send);
+	}
+
+	// un utilisateur supprimé ne suit plus personne et n'est plus suivi
+	synchronized void removed(int userId) {
+		forget(userId);
+		Set<Integer> followers = watchers.remove(userId);
+		if (followers != null) {
+			for (int id : followers) {
+				Set<Integer> contacts = watching.get(id);
+				if (contacts != null && contacts.remove(userId) && contacts.isEmpty())
+					watching.remove(id);
+			}
+		}
+	}
+
+	/*
+	 * Envoie les changements en attente aux utilisateurs intéressés, en un
+	 * paquet par destinataire
+	 */
+	private synchronized void flush() {
+		flushScheduled = false;
+		Map<Integer, boolean[]> changes = pending;
+		pending = new LinkedHashMap<>();
+		Map<UserMsg, Map<Integer, Boolean>> out = new LinkedHashMap<>();
+		for (Map.Entry<Integer, boolean[]> e : changes.entrySet()) {
+			int id = e.getKey();
+			boolean online = e.getValue()[1];
+			UserMsg u = server.getUser(id);
+			if (u == null)
+				continue;
+			if (!online)
+				forget(id);
+			if (e.getValue()[0] == online) {
+				// déconnecté et reconnecté pendant l'intervalle
+				changesCoalesced.increment();
+			} else {
+				for (UserMsg g : interested(u))
+					out.computeIfAbsent(g, k -> new LinkedHashMap<>()).put(id, online);
+			}
+			if (online) {
+				// l'utilisateur qui se connecte apprend qui est là parmi les membres de ses groupes
+				for (GroupMsg g : u.getGroups()) {
+					for (UserMsg m : g.getMembers()) {
+						if (m != u && m.isConnected())
+							out.computeIfAbsent(u, k -> new LinkedHashMap<>()).put(m.getId(), true);
+					}
+				}
+			}
+		}
+		out.forEach(this::send);
+	}
+
+	// membres connectés des groupes de l'utilisateur et utilisateurs qui le suivent
+	private Set<UserMsg> interested(UserMsg u) {
+		Set<UserMsg> res = new HashSet<>();
+		for (GroupMsg g : u.getGroups()) {
+			for (UserMsg m : g.getMembers()) {
+				if (m != u && m.isConnected())
+					res.add(m);
+			}
+		}
+		Set<Integer> followers = watchers.get(u.getId());
+		if (followers != null) {
+			for (int id : followers) {
+				UserMsg w = server.getUser(id);
+				if (w != null && w.isConnected())
+					res.add(w);
+			}
+		}
+		return res;
+	}
+
+	// oublie les contacts suivis par un utilisateur
+	private void forget(int userId) {
+		Set<Integer> contacts = watching.remove(userId);
+		if (contacts != null) {
+			for (int id : contacts)
+				unsubscribe(id, userId);
+		}
+	}
+
+	private void unsubscribe(int contactId, int userId) {
+		Set<Integer> followers = watchers.get(contactId);
+		if (followers != null && followers.remove(userId) && followers.isEmpty())
+			watchers.remove(contactId);
+	}
+
+	private void send(UserMsg recipient, Map<Integer, Boolean> changes) {
+		int[] ids = new int[changes.size()];
+		boolean[] online = new boolean[ids.length];
+		int i = 0;
+		for (Map.Entry<Integer, Boolean> e : changes.entrySet()) {
+			ids[i] = e.getKey();
+			online[i++] = e.getValue();
+		}
+		recipient.process(new Packet(0, recipient.getId(), PresenceProtocol.presence(ids, online)));
+		packetsSent.increment();
+		changesSent.add(ids.length);
+	}
+
+	/**
+	 * Number of presence packets sent to the users.
+	 */
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	/**
+	 * Number of presences sent, a packet holding several of them.
+	 */
+	public long getChangesSent() {
+		return changesSent.sum();
+	}
+
+	/**
+	 * Number of users that disconnected and reconnected, or the reverse, before
+	 * their change was sent.
+	 */
+	public long getChangesCoalesced() {
+		return changesCoalesced.sum();
+	}
+
+	void close() {
+		if (timer != null)
+			timer.shutdownNow();
+	}
+}
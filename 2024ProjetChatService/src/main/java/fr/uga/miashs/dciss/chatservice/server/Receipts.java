@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.ReceiptProtocol;
+
+/**
+ * Gathers the delivery and read receipts of the clients (see
+ * ReceiptProtocol) and sends their senders the status of their messages. In a
+ * group, the status of a message is the lowest one among the other members:
+ * the receipts of all the members are reduced to one status per group and
+ * sender, sent only when it progresses.
+ *
+ * The receipts received during batchMillis are sent together, one packet per
+ * sender, so their number follows the number of senders instead of the number
+ * of messages and members.
+ *
+ * A receipt only covers the messages the server relayed from the sender to the
+ * reader, or to the group: a client cannot mark as read messages it did not
+ * receive.
+ */
+public class Receipts {
+
+	private final ServerMsg server;
+	private final long batchMillis;
+
+	// (destinataire ou groupe, expéditeur) -> dernier message relayé
+	private final Map<Long, Long> relayed = new ConcurrentHashMap<>();
+	// (groupe, expéditeur) -> membre -> {reçu jusqu'à, lu jusqu'à}
+	private final Map<Long, Map<Integer, long[]>> groups = new HashMap<>();
+	// (groupe, expéditeur) -> dernier statut envoyé à l'expéditeur
+	private final Map<Long, long[]> announced = new HashMap<>();
+
+	// reçus pas encore envoyés : expéditeur -> destinataire -> {reçu, lu}
+	private Map<Integer, Map<Integer, long[]>> pending = new LinkedHashMap<>();
+	// (groupe, expéditeur) dont le statut est à recalculer
+	private Set<Long> pendingGroups = new LinkedHashSet<>();
+	private boolean flushScheduled;
+
+	private final ScheduledExecutorService timer;
+	private final LongAdder receiptsReceived = new LongAdder();
+	private final LongAdder packetsSent = new LongAdder();
+	private final LongAdder statusesSent = new LongAdder();
+
+	/**
+	 * @param batchMillis time during which the receipts are gathered before
+	 *                    being sent, 0 to send each one right away
+	 */
+	Receipts(ServerMsg server, long batchMillis) {
+		this.server = server;
+		this.batchMillis = batchMillis;
+		timer = batchMillis == 0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "receipts");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private static long key(int groupId, int senderId) {
+		return ((long) groupId << 32) | (senderId & 0xFFFFFFFFL);
+	}
+
+	private static int conversationOf(long key) {
+		return (int) (key >> 32);
+	}
+
+	private static int senderOf(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * Records the number of a MESSAGE relayed to a user or a group.
+	 */
+	void relayed(Packet p) {
+		if (p.length >= 9)
+			relayed.merge(key(p.destId, p.srcId), ByteBuffer.wrap(p.data, 1, 8).getLong(), Math::max);
+	}
+
+	/**
+	 * Records the receipts sent by a user.
+	 */
+	void received(UserMsg reader, ReceiptProtocol.Receipts r) {
+		boolean flushNow = false;
+		synchronized (this) {
+			for (int i = 0; i < r.size(); i++) {
+				int groupId = r.conversationIds[i];
+				int senderId = r.senderIds[i];
+				if (senderId == reader.getId() || server.getUser(senderId) == null)
+					continue;
+				// le lecteur ne peut accuser que les messages qui lui ont été relayés
+				Long last = relayed.get(key(groupId == 0 ? reader.getId() : groupId, senderId));
+				if (last == null)
+					continue;
+				long messageId = Math.min(r.messageIds[i], last);
+				long[] progress;
+				if (groupId == 0) {
+					progress = pending.computeIfAbsent(senderId, k -> new LinkedHashMap<>())
+							.computeIfAbsent(reader.getId(), k -> new long[2]);
+				} else {
+					GroupMsg g = server.getGroup(groupId);
+					if (g == null || !g.getMembers().containsId(reader.getId()))
+						continue;
+					long k = key(groupId, senderId);
+					progress = groups.computeIfAbsent(k, x -> new HashMap<>()).computeIfAbsent(reader.getId(),
+							x -> new long[2]);
+					pendingGroups.add(k);
+				}
+				advance(progress, r.status[i], messageId);
+				receiptsReceived.increment();
+			}
+			if (!flushScheduled && (!pending.isEmpty() || !pendingGroups.isEmpty())) {
+				flushScheduled = true;
+				if (timer == null)
+					flushNow = true;
+				else {
+					try {
+						timer.schedule(this::flush, batchMillis, TimeUnit.MILLISECONDS);
+					} catch (RejectedExecutionException e) {
+						// le serveur s'arrête, les statuts ne sont plus envoyés
+					}
+				}
+			}
+		}
+		if (flushNow)
+			flush();
+	}
+
+	// un message lu a aussi été reçu
+	private static void advance(long[] progress, byte status, long messageId) {
+		progress[0] = Math.max(progress[0], messageId);
+		if (status == ReceiptProtocol.READ)
+			progress[1] = Math.max(progress[1], messageId);
+	}
+
+	/*
+	 * Envoie les statuts en attente, en un paquet par expéditeur
+	 */
+	private synchronized void flush() {
+		flushScheduled = false;
+		Map<Integer, Map<Integer, long[]>> out = pending;
+		pending = new LinkedHashMap<>();
+		Set<Long> changed = pendingGroups;
+		pendingGroups = new LinkedHashSet<>();
+		for (long k : changed) {
+			int groupId = conversationOf(k);
+			int senderId = senderOf(k);
+			GroupMsg g = server.getGroup(groupId);
+			if (g == null) {
+				groups.remove(k);
+				announced.remove(k);
+				continue;
+			}
+			// un membre qui n'a encore rien reçu de l'expéditeur retient le statut à 0
+			Map<Integer, long[]> members = groups.get(k);
+			long delivered = Long.MAX_VALUE, read = Long.MAX_VALUE;
+			int others = 0;
+			for (UserMsg m : g.getMembers()) {
+				if (m.getId() == senderId)
+					continue;
+				long[] p = members.get(m.getId());
+				delivered = Math.min(delivered, p == null ? 0 : p[0]);
+				read = Math.min(read, p == null ? 0 : p[1]);
+				others++;
+			}
+			long[] last = announced.computeIfAbsent(k, x -> new long[2]);
+			if (others == 0 || (delivered <= last[0] && read <= last[1]))
+				continue;
+			last[0] = Math.max(last[0], delivered);
+			last[1] = Math.max(last[1], read);
+			out.computeIfAbsent(senderId, x -> new LinkedHashMap<>()).put(groupId, last.clone());
+		}
+		out.forEach(this::send);
+	}
+
+	private void send(int senderId, Map<Integer, long[]> statuses) {
+		UserMsg sender = server.getUser(senderId);
+		if (sender == null)
+			return;
+		int n = 0;
+		for (long[] s : statuses.values())
+			n += (s[0] > s[1] ? 1 : 0) + (s[1] > 0 ? 1 : 0);
+		byte[] status = new byte[n];
+		int[] conversationIds = new int[n];
+		long[] messageIds = new long[n];
+		int i = 0;
+		for (Map.Entry<Integer, long[]> e : statuses.entrySet()) {
+			long[] s = e.getValue();
+			// la lecture couvre la réception des mêmes messages
+			if (s[0] > s[1]) {
+				status[i] = ReceiptProtocol.DELIVERED;
+				conversationIds[i] = e.getKey();
+				messageIds[i++] = s[0];
+			}
+			if (s[1] > 0) {
+				status[i] = ReceiptProtocol.READ;
+				conversationIds[i] = e.getKey();
+				messageIds[i++] = s[1];
+			}
+		}
+		if (n == 0)
+			return;
+		// le statut attend dans la file de l'expéditeur déconnecté
+		sender.process(new Packet(0, senderId, ReceiptProtocol.status(status, conversationIds, messageIds)));
+		packetsSent.increment();
+		statusesSent.add(n);
+	}
+
+	/**
+	 * Forgets the receipts of a member that left a group, and those of its
+	 * messages in the group.
+	 */
+	synchronized void left(int groupId, int userId) {
+		long k = key(groupId, userId);
+		groups.remove(k);
+		announced.remove(k);
+		relayed.remove(k);
+		groups.forEach((g, members) -> {
+			if (conversationOf(g) == groupId)
+				members.remove(userId);
+		});
+	}
+
+	/**
+	 * Forgets the receipts of a deleted group.
+	 */
+	synchronized void groupRemoved(int groupId) {
+		groups.keySet().removeIf(k -> conversationOf(k) == groupId);
+		announced.keySet().removeIf(k -> conversationOf(k) == groupId);
+		relayed.keySet().removeIf(k -> conversationOf(k) == groupId);
+	}
+
+	/**
+	 * Forgets the receipts from and to a deleted user.
+	 */
+	synchronized void removed(int userId) {
+		groups.keySet().removeIf(k -> senderOf(k) == userId);
+		announced.keySet().removeIf(k -> senderOf(k) == userId);
+		relayed.keySet().removeIf(k -> senderOf(k) == userId || conversationOf(k) == userId);
+		groups.values().forEach(members -> members.remove(userId));
+		pending.remove(userId);
+		pending.values().forEach(readers -> readers.remove(userId));
+	}
+
+	/**
+	 * Number of receipts received from the clients.
+	 */
+	public long getReceiptsReceived() {
+		return receiptsReceived.sum();
+	}
+
+	/**
+	 * Number of status packets sent to the senders.
+	 */
+	public long getPacketsSent() {
+		return packetsSent.sum();
+	}
+
+	/**
+	 * Number of statuses sent, a packet holding several of them.
+	 */
+	public long getStatusesSent() {
+		return statusesSent.sum();
+	}
+
+	void close() {
+		if (timer != null)
+			timer.shutdownNow();
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.RosterProtocol;
+
+/**
+ * Versioned roster of the nicknames (see RosterProtocol). Each change of a
+ * nickname makes a new version. A client joining receives the whole roster
+ * once, or only the changes since the version it already knows, then the
+ * changes are sent to all the subscribed clients in batches: the changes made
+ * during batchMillis go out in a single packet, shared by all the recipients.
+ *
+ * The snapshot is read from the users of the server while they change: it may
+ * already contain changes of the following versions, which the client then
+ * receives again. Applying a change twice does not matter, as it sets the
+ * nickname of a user.
+ */
+public class Roster {
+
+	private final ServerMsg server;
+	private final long epoch;
+	private final long batchMillis;
+	private final int historySize;
+
+	// derniers changements, les plus anciens en tête
+	private final ArrayDeque<Change> history = new ArrayDeque<>();
+	private long version;
+	// version à partir de laquelle les changements sont connus
+	private long base;
+	// dernière version envoyée aux abonnés
+	private long flushed;
+	private boolean flushScheduled;
+	private final Set<UserMsg> subscribers = new LinkedHashSet<>();
+
+	// instantané encodé, partagé tant que la version ne change pas
+	private byte[] snapshot;
+	private long snapshotVersion = -1;
+
+	private final ScheduledExecutorService timer;
+	private final LongAdder snapshotsSent = new LongAdder();
+	private final LongAdder deltasSent = new LongAdder();
+
+	private static class Change {
+		final int userId;
+		final String nickname;
+		final long version;
+
+		Change(int userId, String nickname, long version) {
+			this.userId = userId;
+			this.nickname = nickname;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * @param batchMillis time during which the changes are gathered before being
+	 *                    sent, 0 to send each one right away
+	 * @param historySize number of changes kept to answer the clients that know
+	 *                    a previous version, the others receive a snapshot
+	 */
+	Roster(ServerMsg server, long batchMillis, int historySize) {
+		this.server = server;
+		this.batchMillis = batchMillis;
+		this.historySize = historySize;
+		// 0 est l'époque des clients qui n'ont encore rien reçu
+		long e;
+		do {
+			e = ThreadLocalRandom.current().nextLong();
+		} while (e == 0);
+		epoch = e;
+		timer = batchMillis == 0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "roster");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Records the nickname of a user, null if it has been removed.
+	 */
+	void changed(int userId, String nickname) {
+		boolean flushNow = false;
+		synchronized (this) {
+			version++;
+			history.addLast(new Change(userId, nickname, version));
+			if (history.size() > historySize)
+				base = history.removeFirst().version;
+			if (!flushScheduled) {
+				flushScheduled = true;
+				if (timer != null)
+					timer.schedule(this::flush, batchMillis, TimeUnit.MILLISECONDS);
+				else
+					flushNow = true;
+			}
+		}
+		if (flushNow)
+			flush();
+	}
+
+	/**
+	 * Subscribes a user to the changes and sends it what it misses from the
+	 * given version.
+	 */
+	synchronized void sync(UserMsg user, long clientEpoch, long clientVersion) {
+		subscribers.add(user);
+		if (clientEpoch == epoch && clientVersion == version)
+			return;
+		byte[] data = null;
+		if (clientEpoch == epoch && clientVersion >= base && clientVersion < version)
+			data = delta(clientVersion);
+		if (data == null) {
+			data = snapshot();
+			snapshotsSent.increment();
+		} else {
+			deltasSent.increment();
+		}
+		user.process(new Packet(0, user.getId(), data));
+	}
+
+	/*
+	 * Changements après la version from, le dernier de chaque utilisateur. Null si
+	 * l'instantané est plus petit.
+	 */
+	private byte[] delta(long from) {
+		Map<Integer, String> changes = new LinkedHashMap<>();
+		Iterator<Change> it = history.descendingIterator();
+		while (it.hasNext()) {
+			Change c = it.next();
+			if (c.version <= from)
+				break;
+			changes.putIfAbsent(c.userId, c.nickname);
+		}
+		if (changes.size() >= server.getNicknames().size())
+			return null;
+		RosterProtocol.Writer w = new RosterProtocol.Writer(RosterProtocol.DELTA, epoch, from, version);
+		changes.forEach(w::add);
+		return w.toByteArray();
+	}
+
+	private byte[] snapshot() {
+		if (snapshotVersion != version) {
+			RosterProtocol.Writer w = new RosterProtocol.Writer(RosterProtocol.SNAPSHOT, epoch, 0, version);
+			for (UserMsg u : server.getUsers()) {
+				String nickname = u.getRawNickname();
+				if (nickname != null)
+					w.add(u.getId(), nickname);
+			}
+			snapshot = w.toByteArray();
+			snapshotVersion = version;
+		}
+		return snapshot;
+	}
+
+	/*
+	 * Envoie aux abonnés connectés les changements faits depuis le dernier envoi,
+	 * dans un paquet partagé
+	 */
+	private synchronized void flush() {
+		flushScheduled = false;
+		if (flushed == version)
+			return;
+		byte[] data = flushed >= base ? delta(flushed) : null;
+		if (data == null)
+			data = snapshot();
+		flushed = version;
+		Packet p = new Packet(0, 0, data);
+		// l'en-tête est sérialisé une fois pour tous les abonnés
+		if (subscribers.size() > 2)
+			p.setShared();
+		for (Iterator<UserMsg> it = subscribers.iterator(); it.hasNext();) {
+			UserMsg u = it.next();
+			// un client qui se reconnecte s'abonne de nouveau avec sa version
+			if (!u.isConnected()) {
+				it.remove();
+				continue;
+			}
+			u.process(p);
+			deltasSent.increment();
+		}
+	}
+
+	/**
+	 * Number of snapshots sent to the clients that joined.
+	 */
+	public long getSnapshotsSent() {
+		return snapshotsSent.sum();
+	}
+
+	/**
+	 * Number of packets of changes sent to the clients.
+	 */
+	public long getDeltasSent() {
+		return deltasSent.sum();
+	}
+
+	void close() {
+		if (timer != null)
+			timer.shutdownNow();
+	}
+}
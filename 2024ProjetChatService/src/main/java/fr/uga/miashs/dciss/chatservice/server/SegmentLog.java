@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Append-only log of the packets waiting for their recipient, shared by all the
+ * users and written through memory-mapped segment files. The records of a
+ * recipient form a chain: each record holds the position of the next one, so
+ * that the memory used does not depend on the number of pending packets, only
+ * on the number of recipients and of segments.
+ *
+ * A record is [state][recipient][next (long)][srcId][destId][length][data]. Its
+ * state is written last, a record left unfinished by a crash is thus ignored
+ * when the log is opened again, and the chains are then found again from the
+ * live records.
+ *
+ * A segment whose records have all been consumed is deleted. When a new
+ * segment is started, the live records of the oldest segment they occupy less
+ * than a quarter of are copied to the end of the log, so that a recipient that
+ * never comes back does not keep whole segments alive.
+ */
+public class SegmentLog {
+	private final static Logger LOG = Logger.getLogger(SegmentLog.class.getName());
+
+	// état d'un enregistrement, 0 marque la fin des données d'un segment
+	private static final int LIVE = 1;
+	private static final int CONSUMED = 2;
+	// position des champs dans un enregistrement
+	private static final int RECIPIENT = 4;
+	private static final int NEXT = 8;
+	private static final int SRC = 16;
+	private static final int DEST = 20;
+	private static final int LENGTH = 24;
+	static final int RECORD_HEADER = 28;
+	private static final long NONE = -1;
+	private static final String SUFFIX = ".seg";
+
+	private final File dir;
+	private final int segmentBytes;
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	private final Map<Integer, Chain> chains = new HashMap<>();
+	private Segment tail;
+	private boolean compacting;
+	private long pending;
+	private long deletedSegments;
+	private long compactedRecords;
+
+	private static class Segment {
+		final int id;
+		final File file;
+		final MappedByteBuffer buf;
+		// enregistrements non consommés et leur taille
+		int live;
+		long liveBytes;
+
+		Segment(int id, File file, MappedByteBuffer buf) {
+			this.id = id;
+			this.file = file;
+			this.buf = buf;
+		}
+	}
+
+	/**
+	 * Opens the log of a directory, created if needed. The packets left by a
+	 * previous server in this directory are pending again.
+	 *
+	 * @param segmentBytes size of the segment files, a longer packet gets a
+	 *                     segment of its own
+	 */
+	public SegmentLog(File dir, int segmentBytes) throws IOException {
+		if (segmentBytes < RECORD_HEADER + 4)
+			throw new IllegalArgumentException("segmentBytes is too small");
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		dir.mkdirs();
+		recover();
+	}
+
+	private static long position(int segment, int offset) {
+		return (long) segment << 32 | offset;
+	}
+
+	private Segment segment(long pos) {
+		return segments.get((int) (pos >>> 32));
+	}
+
+	private static int offset(long pos) {
+		return (int) pos;
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < size)
+				raf.setLength(size);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		}
+	}
+
+	/*
+	 * Reconstruit les chaînes à partir des enregistrements vivants. Chaque
+	 * enregistrement, sauf le premier de sa chaîne, est désigné par un seul
+	 * autre : le premier est le ou exclusif des positions et des suivants.
+	 */
+	private void recover() throws IOException {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if (files == null)
+			return;
+		TreeMap<Integer, File> sorted = new TreeMap<>();
+		for (File f : files) {
+			try {
+				sorted.put(Integer.parseInt(f.getName().substring(0, f.getName().length() - SUFFIX.length())), f);
+			} catch (NumberFormatException e) {
+				// fichier étranger au journal
+			}
+		}
+		for (Map.Entry<Integer, File> e : sorted.entrySet()) {
+			Segment s = new Segment(e.getKey(), e.getValue(), map(e.getValue(), 0));
+			segments.put(s.id, s);
+			tail = s;
+			s.buf.position(scan(s, (off, size) -> {
+				Chain c = chain(s.buf.getInt(off + RECIPIENT));
+				long next = s.buf.getLong(off + NEXT);
+				if (c.count == 0)
+					c.head = 0;
+				c.head ^= position(s.id, off) ^ (next == NONE ? 0 : next);
+				c.count++;
+				s.live++;
+				s.liveBytes += size;
+				pending++;
+			}));
+		}
+		// chaque chaîne est parcourue pour vérifier qu'elle est complète
+		Set<Integer> broken = new HashSet<>();
+		for (Chain c : chains.values()) {
+			if (c.count == 0)
+				continue;
+			int n = 0;
+			long pos = c.head;
+			long last = NONE;
+			while (pos != NONE && isLive(pos, c.recipient) && n < c.count) {
+				last = pos;
+				n++;
+				pos = segment(pos).buf.getLong(offset(pos) + NEXT);
+			}
+			if (n == c.count) {
+				c.tail = last;
+				segment(last).buf.putLong(offset(last) + NEXT, NONE);
+			} else {
+				broken.add(c.recipient);
+			}
+		}
+		if (!broken.isEmpty()) {
+			// écriture interrompue par un arrêt brutal : ces chaînes suivent l'ordre du journal
+			LOG.warning("Rebuilding the pending packets of " + broken.size() + " recipients in " + dir);
+			for (int r : broken) {
+				Chain c = chains.get(r);
+				pending -= c.count;
+				c.head = c.tail = NONE;
+				c.count = 0;
+			}
+			for (Segment s : segments.values()) {
+				s.live = 0;
+				s.liveBytes = 0;
+			}
+			for (Segment s : segments.values()) {
+				scan(s, (off, size) -> {
+					int r = s.buf.getInt(off + RECIPIENT);
+					if (broken.contains(r)) {
+						s.buf.putLong(off + NEXT, NONE);
+						link(chains.get(r), s, off, size);
+					} else {
+						s.live++;
+						s.liveBytes += size;
+					}
+				});
+			}
+		}
+		for (Segment s : segments.values().toArray(new Segment[0]))
+			if (s.live == 0 && s != tail)
+				drop(s);
+		if (pending > 0)
+			LOG.info(pending + " pending packets recovered from " + dir);
+	}
+
+	private interface RecordVisitor {
+		void visit(int offset, int size);
+	}
+
+	// parcourt les enregistrements vivants d'un segment, retourne la fin des données
+	private static int scan(Segment s, RecordVisitor v) {
+		ByteBuffer b = s.buf;
+		int off = 0;
+		while (off + RECORD_HEADER <= b.capacity()) {
+			int state = b.getInt(off);
+			int length = b.getInt(off + LENGTH);
+			if (state == 0 || length < 0 || off + RECORD_HEADER + length > b.capacity())
+				break;
+			if (state == LIVE)
+				v.visit(off, RECORD_HEADER + length);
+			off += RECORD_HEADER + length;
+		}
+		return off;
+	}
+
+	private boolean isLive(long pos, int recipient) {
+		Segment s = segment(pos);
+		int off = offset(pos);
+		return s != null && off >= 0 && off + RECORD_HEADER <= s.buf.capacity() && s.buf.getInt(off) == LIVE
+				&& s.buf.getInt(off + RECIPIENT) == recipient;
+	}
+
+	/**
+	 * Packets waiting for a recipient.
+	 */
+	public synchronized Chain chain(int recipient) {
+		return chains.computeIfAbsent(recipient, Chain::new);
+	}
+
+	// ajoute l'enregistrement écrit à l'offset off à la fin de la chaîne
+	private void link(Chain c, Segment s, int off, int size) {
+		long pos = position(s.id, off);
+		if (c.tail != NONE)
+			segment(c.tail).buf.putLong(offset(c.tail) + NEXT, pos);
+		else
+			c.head = pos;
+		c.tail = pos;
+		c.count++;
+		s.live++;
+		s.liveBytes += size;
+		pending++;
+	}
+
+	private void append(Chain c, Packet p) throws IOException {
+		int size = RECORD_HEADER + p.length;
+		int off = reserve(size);
+		ByteBuffer b = tail.buf;
+		b.putInt(off + RECIPIENT, c.recipient);
+		b.putLong(off + NEXT, NONE);
+		b.putInt(off + SRC, p.srcId);
+		b.putInt(off + DEST, p.destId);
+		b.putInt(off + LENGTH, p.length);
+		b.duplicate().position(off + RECORD_HEADER).put(p.data, 0, p.length);
+		// l'état en dernier : un enregistrement incomplet n'est jamais relu
+		b.putInt(off, LIVE);
+		link(c, tail, off, size);
+	}
+
+	// place pour un enregistrement à la fin du journal, retourne son offset
+	private int reserve(int size) throws IOException {
+		// il reste toujours 4 octets à 0 pour marquer la fin des données
+		if (tail == null || tail.buf.capacity() - tail.buf.position() < size + 4) {
+			Segment previous = tail;
+			int id = tail == null ? 0 : tail.id + 1;
+			File f = new File(dir, String.format("%010d", id) + SUFFIX);
+			tail = new Segment(id, f, map(f, Math.max(segmentBytes, size + 4)));
+			segments.put(id, tail);
+			if (previous != null) {
+				// le segment terminé est écrit sur disque
+				previous.buf.force();
+				if (previous.live == 0)
+					drop(previous);
+			}
+			compact();
+		}
+		int off = tail.buf.position();
+		tail.buf.position(off + size);
+		return off;
+	}
+
+	private Packet read(long pos) {
+		ByteBuffer b = segment(pos).buf;
+		int off = offset(pos);
+		byte[] data = new byte[b.getInt(off + LENGTH)];
+		b.duplicate().position(off + RECORD_HEADER).get(data);
+		return new Packet(b.getInt(off + SRC), b.getInt(off + DEST), data);
+	}
+
+	private void consume(Chain c) {
+		Segment s = segment(c.head);
+		int off = offset(c.head);
+		long next = s.buf.getLong(off + NEXT);
+		s.buf.putInt(off, CONSUMED);
+		s.live--;
+		s.liveBytes -= RECORD_HEADER + s.buf.getInt(off + LENGTH);
+		c.count--;
+		c.next = null;
+		pending--;
+		c.head = next;
+		if (next == NONE)
+			c.tail = NONE;
+		if (s.live == 0 && s != tail)
+			drop(s);
+	}
+
+	private void drop(Segment s) {
+		segments.remove(s.id);
+		// la projection est libérée par le GC, le fichier peut être supprimé avant
+		if (!s.file.delete())
+			LOG.warning("Segment " + s.file + " could not be deleted");
+		deletedSegments++;
+	}
+
+	/*
+	 * Copie à la fin du journal les enregistrements vivants du plus ancien
+	 * segment dont ils occupent moins du quart, ce qui permet de le supprimer
+	 */
+	private void compact() throws IOException {
+		if (compacting || segments.size() < 3)
+			return;
+		Segment oldest = oldestSparse();
+		if (oldest == null)
+			return;
+		compacting = true;
+		try {
+			// destinataires ayant des enregistrements dans le segment, et combien
+			Map<Integer, Integer> counts = new HashMap<>();
+			scan(oldest, (off, size) -> counts.merge(oldest.buf.getInt(off + RECIPIENT), 1, Integer::sum));
+			for (Map.Entry<Integer, Integer> e : counts.entrySet())
+				relocate(chains.get(e.getKey()), oldest, e.getValue());
+		} finally {
+			compacting = false;
+		}
+	}
+
+	private Segment oldestSparse() {
+		for (Segment s : segments.values())
+			if (s != tail && s.liveBytes * 4 < s.buf.capacity())
+				return s;
+		return null;
+	}
+
+	// déplace les n enregistrements de la chaîne qui sont dans le segment from
+	private void relocate(Chain c, Segment from, int n) throws IOException {
+		long previous = NONE;
+		for (long pos = c.head; pos != NONE && n > 0;) {
+			Segment s = segment(pos);
+			int off = offset(pos);
+			long next = s.buf.getLong(off + NEXT);
+			if (s == from) {
+				int size = RECORD_HEADER + s.buf.getInt(off + LENGTH);
+				int to = reserve(size);
+				ByteBuffer src = s.buf.duplicate();
+				src.position(off).limit(off + size);
+				tail.buf.duplicate().position(to).put(src);
+				long moved = position(tail.id, to);
+				if (previous == NONE)
+					c.head = moved;
+				else
+					segment(previous).buf.putLong(offset(previous) + NEXT, moved);
+				if (c.tail == pos)
+					c.tail = moved;
+				tail.live++;
+				tail.liveBytes += size;
+				s.buf.putInt(off, CONSUMED);
+				s.live--;
+				s.liveBytes -= size;
+				compactedRecords++;
+				n--;
+				pos = moved;
+			}
+			previous = pos;
+			pos = next;
+		}
+		if (from.live == 0 && from != tail && segments.containsKey(from.id))
+			drop(from);
+	}
+
+	/**
+	 * Number of packets waiting in the log.
+	 */
+	public synchronized long getPendingCount() {
+		return pending;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Size of the segment files.
+	 */
+	public synchronized long getDiskBytes() {
+		long n = 0;
+		for (Segment s : segments.values())
+			n += s.buf.capacity();
+		return n;
+	}
+
+	public synchronized long getDeletedSegments() {
+		return deletedSegments;
+	}
+
+	/**
+	 * Number of records copied to the end of the log by the compaction.
+	 */
+	public synchronized long getCompactedRecords() {
+		return compactedRecords;
+	}
+
+	/**
+	 * Writes the segments to disk. The log can still be used.
+	 */
+	public synchronized void flush() {
+		for (Segment s : segments.values())
+			s.buf.force();
+	}
+
+	/**
+	 * Deletes the segments, the log cannot be used anymore.
+	 */
+	public synchronized void delete() {
+		for (Segment s : segments.values())
+			s.file.delete();
+		segments.clear();
+		chains.clear();
+		tail = null;
+		pending = 0;
+		dir.delete();
+	}
+
+	/**
+	 * Tells if a recipient has pending packets.
+	 */
+	public synchronized boolean hasPending(int recipient) {
+		Chain c = chains.get(recipient);
+		return c != null && c.count > 0;
+	}
+
+	/**
+	 * Recipients having pending packets.
+	 */
+	public synchronized Set<Integer> getRecipients() {
+		Set<Integer> res = new HashSet<>();
+		for (Chain c : chains.values())
+			if (c.count > 0)
+				res.add(c.recipient);
+		return res;
+	}
+
+	/**
+	 * The pending packets of a recipient, in the order they have been appended.
+	 */
+	public class Chain implements SendQueue.Backlog {
+		final int recipient;
+		long head = NONE;
+		long tail = NONE;
+		int count;
+		// premier paquet, déjà lu pour connaître sa taille
+		Packet next;
+
+		private Chain(int recipient) {
+			this.recipient = recipient;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			synchronized (SegmentLog.this) {
+				return count == 0;
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (SegmentLog.this) {
+				return count;
+			}
+		}
+
+		@Override
+		public void append(Packet p) throws IOException {
+			synchronized (SegmentLog.this) {
+				SegmentLog.this.append(this, p);
+			}
+		}
+
+		@Override
+		public Packet peek() throws IOException {
+			synchronized (SegmentLog.this) {
+				if (count == 0)
+					throw new IOException("No pending packet for " + recipient);
+				if (next == null)
+					next = SegmentLog.this.read(head);
+				return next;
+			}
+		}
+
+		@Override
+		public Packet read() throws IOException {
+			synchronized (SegmentLog.this) {
+				Packet p = peek();
+				consume(this);
+				return p;
+			}
+		}
+
+		@Override
+		public void reset() {
+			synchronized (SegmentLog.this) {
+				while (count > 0)
+					consume(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Queue of the packets waiting to be sent to a user. The queue is bounded both
+ * in number of packets and in bytes; when one of the limits is reached the
+ * overflow policy decides what happens to the new packet.
+ *
+ * The queue holds a reference (Packet.retain()) on each packet kept in memory;
+ * this reference is handed over to the consumer that takes the packet, which
+ * has to release it once the packet is sent.
+ *
+ * While the user is offline, the packets go directly to the backlog on disk,
+ * and they are read back in order once the user is connected again.
+ */
+public class SendQueue {
+	private final static Logger LOG = Logger.getLogger(SendQueue.class.getName());
+
+	public enum OverflowPolicy {
+		/** the oldest packets are removed to make room */
+		DROP_OLDEST,
+		/** the new packet is discarded */
+		DROP_NEWEST,
+		/** the new packets are written to a file until the queue drains */
+		SPILL_TO_DISK,
+		/** the new packet is discarded and the consumer has to be disconnected */
+		DISCONNECT
+	}
+
+	// entête d'une trame envoyée au client : srcId, destId, longueur
+	static final int FRAME_HEADER = 12;
+
+	// la plupart des files sont vides : le tableau grandit à la demande
+	private final ArrayDeque<Packet> queue = new ArrayDeque<>(1);
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	private final int maxPackets;
+	private final long maxBytes;
+	private final OverflowPolicy policy;
+	private final File spillDir;
+
+	private long bytes;
+	private long dropped;
+	private Backlog spill;
+	private boolean offline;
+
+	/**
+	 * Packets kept on disk, in order, until they fit in the queue again.
+	 */
+	interface Backlog {
+		boolean isEmpty();
+
+		int size();
+
+		void append(Packet p) throws IOException;
+
+		// le prochain paquet, sans le retirer
+		Packet peek() throws IOException;
+
+		Packet read() throws IOException;
+
+		// oublie tous les paquets
+		void reset();
+	}
+
+	public SendQueue(int maxPackets, long maxBytes, OverflowPolicy policy, File spillDir) {
+		this(maxPackets, maxBytes, policy, spillDir, null);
+	}
+
+	/**
+	 * Creates a queue whose packets are spilled to the given backlog, e.g. the
+	 * chain of the user in the SegmentLog of the server, instead of a file of
+	 * spillDir.
+	 */
+	SendQueue(int maxPackets, long maxBytes, OverflowPolicy policy, File spillDir, Backlog backlog) {
+		if (maxPackets < 1 || maxBytes < 1)
+			throw new IllegalArgumentException("queue limits must be greater than 0");
+		this.maxPackets = maxPackets;
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+		this.spillDir = spillDir;
+		this.spill = backlog;
+	}
+
+	/**
+	 * While the queue is offline, the new packets are written to the backlog
+	 * instead of being kept in memory.
+	 */
+	public void setOffline(boolean offline) {
+		lock.lock();
+		try {
+			this.offline = offline;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	static long sizeOf(Packet p) {
+		return FRAME_HEADER + p.length;
+	}
+
+	private boolean fits(Packet p) {
+		// un paquet seul est toujours accepté, même s'il dépasse la limite en octets
+		return queue.isEmpty() || (queue.size() < maxPackets && bytes + sizeOf(p) <= maxBytes);
+	}
+
+	private void add(Packet p) {
+		queue.addLast(p.retain());
+		bytes += sizeOf(p);
+		notEmpty.signal();
+	}
+
+	/**
+	 * Adds a packet to the queue, applying the overflow policy if needed.
+	 *
+	 * @return false if the packet has been rejected and the consumer has to be
+	 *         disconnected (DISCONNECT policy)
+	 */
+	public boolean offer(Packet p) {
+		lock.lock();
+		try {
+			// tant que des paquets sont sur disque, les suivants y vont aussi pour
+			// conserver l'ordre
+			if (offline || spill != null && !spill.isEmpty())
+				return spill(p);
+			if (fits(p)) {
+				add(p);
+				return true;
+			}
+			switch (policy) {
+			case DROP_OLDEST:
+				while (!fits(p)) {
+					Packet old = queue.removeFirst();
+					bytes -= sizeOf(old);
+					old.release();
+					dropped++;
+				}
+				add(p);
+				return true;
+			case SPILL_TO_DISK:
+				return spill(p);
+			case DISCONNECT:
+				dropped++;
+				return false;
+			default:
+				dropped++;
+				return true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean spill(Packet p) {
+		try {
+			if (spill == null)
+				spill = new SpillFile(spillDir);
+			spill.append(p);
+		} catch (IOException e) {
+			LOG.warning("Cannot spill packet to disk, it is dropped: " + e.getMessage());
+			dropped++;
+		}
+		return true;
+	}
+
+	/*
+	 * Recharge en mémoire les paquets écrits sur disque
+	 */
+	private void refill() {
+		if (spill == null || spill.isEmpty())
+			return;
+		try {
+			while (!spill.isEmpty() && fits(spill.peek())) {
+				add(spill.read());
+			}
+		} catch (IOException e) {
+			LOG.warning("Cannot read spilled packets, they are dropped: " + e.getMessage());
+			dropped += spill.size();
+			spill.reset();
+		}
+	}
+
+	public Packet poll() {
+		lock.lock();
+		try {
+			if (queue.isEmpty())
+				refill();
+			Packet p = queue.pollFirst();
+			if (p != null)
+				bytes -= sizeOf(p);
+			return p;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until a packet is available.
+	 */
+	public Packet take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (queue.isEmpty()) {
+				refill();
+				if (queue.isEmpty())
+					notEmpty.await();
+			}
+			Packet p = queue.removeFirst();
+			bytes -= sizeOf(p);
+			return p;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits at most the given time for a packet, returns null if none arrived.
+	 */
+	public Packet poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (queue.isEmpty()) {
+				refill();
+				if (!queue.isEmpty())
+					break;
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			Packet p = queue.removeFirst();
+			bytes -= sizeOf(p);
+			return p;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves at most max available packets to the given collection, without
+	 * waiting.
+	 *
+	 * @return the number of packets moved
+	 */
+	public int drainTo(Collection<? super Packet> c, int max) {
+		lock.lock();
+		try {
+			int n = 0;
+			while (n < max) {
+				if (queue.isEmpty()) {
+					refill();
+					if (queue.isEmpty())
+						break;
+				}
+				Packet p = queue.removeFirst();
+				bytes -= sizeOf(p);
+				c.add(p);
+				n++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return queue.isEmpty() && (spill == null || spill.isEmpty());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of waiting packets, including the ones spilled to disk.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return queue.size() + (spill == null ? 0 : spill.size());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of bytes held in memory by the queue.
+	 */
+	public long bytes() {
+		lock.lock();
+		try {
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of packets discarded because of the overflow policy.
+	 */
+	public long dropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the spill file, if any.
+	 */
+	public void clearSpill() {
+		lock.lock();
+		try {
+			if (spill != null)
+				spill.reset();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Fichier où sont écrits les paquets qui ne tiennent plus en mémoire. Il est
+	 * lu dans l'ordre d'écriture et supprimé lorsqu'il a été entièrement lu.
+	 */
+	private static class SpillFile implements Backlog {
+		private final File dir;
+		private File file;
+		private DataOutputStream out;
+		private DataInputStream in;
+		private boolean dirty;
+		private int count;
+		private Packet next;
+
+		SpillFile(File dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return count == 0;
+		}
+
+		@Override
+		public int size() {
+			return count;
+		}
+
+		@Override
+		public void append(Packet p) throws IOException {
+			if (out == null) {
+				dir.mkdirs();
+				file = File.createTempFile("queue", ".spill", dir);
+				file.deleteOnExit();
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			}
+			out.writeInt(p.srcId);
+			out.writeInt(p.destId);
+			out.writeInt(p.length);
+			out.write(p.data, 0, p.length);
+			dirty = true;
+			count++;
+		}
+
+		// le prochain paquet est lu à l'avance pour connaître sa taille
+		@Override
+		public Packet peek() throws IOException {
+			if (next == null) {
+				if (dirty) {
+					out.flush();
+					dirty = false;
+				}
+				if (in == null)
+					in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				int src = in.readInt();
+				int dest = in.readInt();
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				next = new Packet(src, dest, data);
+			}
+			return next;
+		}
+
+		@Override
+		public Packet read() throws IOException {
+			Packet p = peek();
+			next = null;
+			if (--count == 0)
+				reset();
+			return p;
+		}
+
+		@Override
+		public void reset() {
+			try {
+				if (out != null)
+					out.close();
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+				// ignored, the file is deleted
+			}
+			if (file != null)
+				file.delete();
+			out = null;
+			in = null;
+			file = null;
+			next = null;
+			dirty = false;
+			count = 0;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.ArrayDeque;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the packets of a user in the order it sent them, when some of them are
+ * control operations run by the StripedExecutor on the stripe of their group.
+ * While operations of the user are pending, its relayed messages and its next
+ * operations wait behind them; the thread that completes the last one runs the
+ * messages and starts the next operation. Without pending operation, a
+ * message is relayed at once by the receive thread.
+ *
+ * Only the receive thread of the user adds packets.
+ */
+final class SenderOrder {
+	private final static Logger LOG = Logger.getLogger(SenderOrder.class.getName());
+
+	// étape en attente : message à relayer, ou opération à démarrer
+	private static final class Step {
+		final Runnable task;
+		final boolean operation;
+
+		Step(Runnable task, boolean operation) {
+			this.task = task;
+			this.operation = operation;
+		}
+	}
+
+	// étapes démarrées et non terminées
+	private int pending;
+	private final ArrayDeque<Step> backlog = new ArrayDeque<>(4);
+	// pending > 0 ou backlog non vide, lu sans verrou par le thread de réception
+	private volatile boolean busy;
+
+	/**
+	 * Tells if packets of the user are still waiting for an operation. If false,
+	 * it remains false until the receive thread starts an operation.
+	 */
+	boolean isBusy() {
+		return busy;
+	}
+
+	/**
+	 * Runs a message after the pending operations of the user, or at once.
+	 */
+	void run(Runnable message) {
+		synchronized (this) {
+			if (busy) {
+				backlog.add(new Step(message, false));
+				return;
+			}
+		}
+		message.run();
+	}
+
+	/**
+	 * Starts an operation after the pending ones of the user, or at once. start
+	 * submits the operation, which has to call done() when it is finished.
+	 */
+	void start(Runnable start) {
+		synchronized (this) {
+			if (busy) {
+				backlog.add(new Step(start, true));
+				return;
+			}
+			pending++;
+			busy = true;
+		}
+		start.run();
+	}
+
+	/**
+	 * Called when an operation is finished: runs the messages that waited for
+	 * it, up to the next operation.
+	 */
+	void done() {
+		Step s;
+		synchronized (this) {
+			pending--;
+			s = next();
+		}
+		while (s != null) {
+			if (s.operation) {
+				// les étapes suivantes attendent la fin de cette opération
+				s.task.run();
+				return;
+			}
+			try {
+				s.task.run();
+			} catch (RuntimeException e) {
+				// un message en échec ne bloque pas ceux qui le suivent
+				LOG.warning("Relay failed: " + e);
+			}
+			synchronized (this) {
+				pending--;
+				s = next();
+			}
+		}
+	}
+
+	// prochaine étape à exécuter, comptée comme démarrée, null s'il faut attendre
+	private Step next() {
+		if (pending > 0)
+			return null;
+		Step s = backlog.poll();
+		if (s != null)
+			pending++;
+		busy = pending > 0;
+		return s;
+	}
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+
+import fr.uga.miashs.dciss.chatservice.common.BufferPool;
+import fr.uga.miashs.dciss.chatservice.common.Compression;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.ResumeProtocol;
+
+/**
+ * Startup options of a ServerMsg. The default constructor gives the historical
+ * behaviour; fromSystemProperties() reads the "chatservice.*" properties so
+ * that the options can be chosen on the command line, e.g.
+ * -Dchatservice.mode=nio
+ */
+public class ServerConfig {
+
+	/**
+	 * How the connections are handled by the server.
+	 */
+	public enum Mode {
+		/** two blocking loops per connection, run on a shared thread pool */
+		POOLED,
+		/** two blocking loops per connection, each on its own virtual thread (Java 21) */
+		VIRTUAL,
+		/** a few selector threads multiplexing all the connections */
+		NIO
+	}
+
+	// taille des plus grands tampons du pool, les trames plus longues sont allouées
+	private static final int POOLED_BUFFER_SIZE = 64 * 1024;
+
+	private Mode mode = Mode.POOLED;
+	private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+	// threads des opérations de gestion (groupes, pseudos)
+	private int controlThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	// limites de la file d'envoi de chaque utilisateur
+	private int queueMaxPackets = 10_000;
+	private long queueMaxBytes = 64L * 1024 * 1024;
+	private SendQueue.OverflowPolicy overflowPolicy = SendQueue.OverflowPolicy.SPILL_TO_DISK;
+	private File spillDir = new File(System.getProperty("java.io.tmpdir"), "chatservice-spill");
+
+	// regroupement des écritures
+	private int batchMaxPackets = 64;
+	private long batchMaxLingerMicros = 0;
+
+	// tampons des trames reçues
+	private int maxFrameSize = Packet.DEFAULT_MAX_FRAME_SIZE;
+	private long bufferPoolBytes = 32L * 1024 * 1024;
+
+	// fichiers postés dans les groupes
+	private File blobDir = new File(System.getProperty("java.io.tmpdir"), "chatservice-blobs");
+	private long blobCacheBytes = 64L * 1024 * 1024;
+
+	// miniatures des images postées dans les groupes
+	private int thumbnailSize = 320;
+	private int thumbnailThreads = 2;
+	private long thumbnailCacheBytes = 16L * 1024 * 1024;
+
+	// compression des trames, pour les clients qui la demandent
+	private int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+
+	// paquets en attente des utilisateurs déconnectés
+	private File offlineDir;
+	private int offlineSegmentBytes = 64 * 1024 * 1024;
+
+	// journal des utilisateurs et des groupes
+	private File stateDir;
+	private long stateSnapshotRecords = 500_000;
+	private boolean stateSync = true;
+
+	// envoi des changements de pseudos
+	private long rosterBatchMillis = 50;
+	private int rosterHistory = 10_000;
+	// envoi des changements de présence
+	private long presenceBatchMillis = 250;
+	// envoi des accusés de réception et de lecture
+	private long receiptBatchMillis = 250;
+
+	// détection des connexions mortes
+	private long heartbeatIntervalMillis = 30_000;
+	private long heartbeatTimeoutMillis = 30_000;
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public ServerConfig setMode(Mode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException("mode cannot be null");
+		this.mode = mode;
+		return this;
+	}
+
+	/**
+	 * Number of event-loop threads used in NIO mode.
+	 */
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	public ServerConfig setIoThreads(int ioThreads) {
+		if (ioThreads < 1)
+			throw new IllegalArgumentException("ioThreads must be greater than 0");
+		this.ioThreads = ioThreads;
+		return this;
+	}
+
+	/**
+	 * Number of threads handling the messages sent to the server (creation of
+	 * groups, nicknames...), so that they do not hold up the threads receiving
+	 * them. The messages about the same group or user are handled in order. With
+	 * 0, each message is handled by the thread that received it.
+	 */
+	public int getControlThreads() {
+		return controlThreads;
+	}
+
+	public ServerConfig setControlThreads(int controlThreads) {
+		if (controlThreads < 0)
+			throw new IllegalArgumentException("controlThreads must be positive");
+		this.controlThreads = controlThreads;
+		return this;
+	}
+
+	/**
+	 * Maximum number of packets kept in memory for a user before the overflow
+	 * policy applies.
+	 */
+	public int getQueueMaxPackets() {
+		return queueMaxPackets;
+	}
+
+	public ServerConfig setQueueMaxPackets(int queueMaxPackets) {
+		if (queueMaxPackets < 1)
+			throw new IllegalArgumentException("queueMaxPackets must be greater than 0");
+		this.queueMaxPackets = queueMaxPackets;
+		return this;
+	}
+
+	/**
+	 * Maximum number of bytes kept in memory for a user before the overflow policy
+	 * applies.
+	 */
+	public long getQueueMaxBytes() {
+		return queueMaxBytes;
+	}
+
+	public ServerConfig setQueueMaxBytes(long queueMaxBytes) {
+		if (queueMaxBytes < 1)
+			throw new IllegalArgumentException("queueMaxBytes must be greater than 0");
+		this.queueMaxBytes = queueMaxBytes;
+		return this;
+	}
+
+	public SendQueue.OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public ServerConfig setOverflowPolicy(SendQueue.OverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null)
+			throw new IllegalArgumentException("overflowPolicy cannot be null");
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	/**
+	 * Directory of the files used by the SPILL_TO_DISK policy.
+	 */
+	public File getSpillDir() {
+		return spillDir;
+	}
+
+	public ServerConfig setSpillDir(File spillDir) {
+		this.spillDir = spillDir;
+		return this;
+	}
+
+	/**
+	 * Maximum number of packets written to a client with a single write.
+	 */
+	public int getBatchMaxPackets() {
+		return batchMaxPackets;
+	}
+
+	public ServerConfig setBatchMaxPackets(int batchMaxPackets) {
+		if (batchMaxPackets < 1)
+			throw new IllegalArgumentException("batchMaxPackets must be greater than 0");
+		this.batchMaxPackets = batchMaxPackets;
+		return this;
+	}
+
+	/**
+	 * Maximum time, in microseconds, a sending loop waits for more packets before
+	 * writing an incomplete batch. With 0, only the packets already queued are
+	 * batched.
+	 */
+	public long getBatchMaxLingerMicros() {
+		return batchMaxLingerMicros;
+	}
+
+	public ServerConfig setBatchMaxLingerMicros(long batchMaxLingerMicros) {
+		if (batchMaxLingerMicros < 0)
+			throw new IllegalArgumentException("batchMaxLingerMicros must not be negative");
+		this.batchMaxLingerMicros = batchMaxLingerMicros;
+		return this;
+	}
+
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Largest payload accepted from a client, the connection is closed if a
+	 * longer frame is announced.
+	 */
+	public ServerConfig setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize < 1)
+			throw new IllegalArgumentException("maxFrameSize must be greater than 0");
+		this.maxFrameSize = maxFrameSize;
+		return this;
+	}
+
+	public long getBufferPoolBytes() {
+		return bufferPoolBytes;
+	}
+
+	/**
+	 * Memory kept by the pool of payload buffers, 0 disables the pool.
+	 */
+	public ServerConfig setBufferPoolBytes(long bufferPoolBytes) {
+		if (bufferPoolBytes < 0)
+			throw new IllegalArgumentException("bufferPoolBytes must not be negative");
+		this.bufferPoolBytes = bufferPoolBytes;
+		return this;
+	}
+
+	/**
+	 * Directory under which the files posted to groups are stored, each server
+	 * using its own subdirectory.
+	 */
+	public File getBlobDir() {
+		return blobDir;
+	}
+
+	public ServerConfig setBlobDir(File blobDir) {
+		if (blobDir == null)
+			throw new IllegalArgumentException("blobDir cannot be null");
+		this.blobDir = blobDir;
+		return this;
+	}
+
+	public long getBlobCacheBytes() {
+		return blobCacheBytes;
+	}
+
+	/**
+	 * Memory used to cache the chunks of the files fetched by the members of the
+	 * groups, 0 disables the cache.
+	 */
+	public ServerConfig setBlobCacheBytes(long blobCacheBytes) {
+		if (blobCacheBytes < 0)
+			throw new IllegalArgumentException("blobCacheBytes must not be negative");
+		this.blobCacheBytes = blobCacheBytes;
+		return this;
+	}
+
+	public int getThumbnailSize() {
+		return thumbnailSize;
+	}
+
+	/**
+	 * Largest width or height of the thumbnails of the images posted to groups,
+	 * 0 disables the thumbnails.
+	 */
+	public ServerConfig setThumbnailSize(int thumbnailSize) {
+		if (thumbnailSize < 0)
+			throw new IllegalArgumentException("thumbnailSize must not be negative");
+		this.thumbnailSize = thumbnailSize;
+		return this;
+	}
+
+	/**
+	 * Number of threads making the thumbnails.
+	 */
+	public int getThumbnailThreads() {
+		return thumbnailThreads;
+	}
+
+	public ServerConfig setThumbnailThreads(int thumbnailThreads) {
+		if (thumbnailThreads < 1)
+			throw new IllegalArgumentException("thumbnailThreads must be greater than 0");
+		this.thumbnailThreads = thumbnailThreads;
+		return this;
+	}
+
+	/**
+	 * Memory used to keep the thumbnails, the others are written to disk.
+	 */
+	public long getThumbnailCacheBytes() {
+		return thumbnailCacheBytes;
+	}
+
+	public ServerConfig setThumbnailCacheBytes(long thumbnailCacheBytes) {
+		if (thumbnailCacheBytes < 0)
+			throw new IllegalArgumentException("thumbnailCacheBytes must not be negative");
+		this.thumbnailCacheBytes = thumbnailCacheBytes;
+		return this;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Shortest payload compressed for the clients that negotiate the
+	 * compression, 0 refuses the compression.
+	 */
+	public ServerConfig setCompressionThreshold(int compressionThreshold) {
+		if (compressionThreshold < 0)
+			throw new IllegalArgumentException("compressionThreshold must not be negative");
+		this.compressionThreshold = compressionThreshold;
+		return this;
+	}
+
+	/**
+	 * Directory of the log of the packets waiting for disconnected users. If it
+	 * is null, each server uses a temporary directory deleted when it stops;
+	 * otherwise the log is kept and the pending packets are delivered by the
+	 * next server using this directory.
+	 */
+	public File getOfflineDir() {
+		return offlineDir;
+	}
+
+	public ServerConfig setOfflineDir(File offlineDir) {
+		this.offlineDir = offlineDir;
+		return this;
+	}
+
+	public int getOfflineSegmentBytes() {
+		return offlineSegmentBytes;
+	}
+
+	/**
+	 * Size of the segment files of the offline log, 0 disables the log: the
+	 * packets of the disconnected users then stay in their send queue.
+	 */
+	public ServerConfig setOfflineSegmentBytes(int offlineSegmentBytes) {
+		if (offlineSegmentBytes < 0)
+			throw new IllegalArgumentException("offlineSegmentBytes must not be negative");
+		this.offlineSegmentBytes = offlineSegmentBytes;
+		return this;
+	}
+
+	/**
+	 * Directory of the log of the users, groups and nicknames, which are
+	 * restored when a server starts. If it is null, the state is lost when the
+	 * server stops.
+	 */
+	public File getStateDir() {
+		return stateDir;
+	}
+
+	public ServerConfig setStateDir(File stateDir) {
+		this.stateDir = stateDir;
+		return this;
+	}
+
+	public long getStateSnapshotRecords() {
+		return stateSnapshotRecords;
+	}
+
+	/**
+	 * Number of records of the state log after which a snapshot is taken, which
+	 * bounds the number of records replayed when the server starts.
+	 */
+	public ServerConfig setStateSnapshotRecords(long stateSnapshotRecords) {
+		if (stateSnapshotRecords < 1)
+			throw new IllegalArgumentException("stateSnapshotRecords must be greater than 0");
+		this.stateSnapshotRecords = stateSnapshotRecords;
+		return this;
+	}
+
+	public boolean isStateSync() {
+		return stateSync;
+	}
+
+	/**
+	 * If true (default), each modification of the state waits until it is on
+	 * disk. Otherwise it is written in the background, and the last ones may be
+	 * lost if the machine crashes.
+	 */
+	public ServerConfig setStateSync(boolean stateSync) {
+		this.stateSync = stateSync;
+		return this;
+	}
+
+	/**
+	 * Time during which the changes of nicknames are gathered before being sent
+	 * together to the clients, 0 to send each one right away.
+	 */
+	public long getRosterBatchMillis() {
+		return rosterBatchMillis;
+	}
+
+	public ServerConfig setRosterBatchMillis(long rosterBatchMillis) {
+		if (rosterBatchMillis < 0)
+			throw new IllegalArgumentException("rosterBatchMillis must be positive");
+		this.rosterBatchMillis = rosterBatchMillis;
+		return this;
+	}
+
+	/**
+	 * Number of changes of nicknames kept so that a returning client only
+	 * receives those it missed. A client that missed more receives the whole
+	 * roster.
+	 */
+	public int getRosterHistory() {
+		return rosterHistory;
+	}
+
+	public ServerConfig setRosterHistory(int rosterHistory) {
+		if (rosterHistory < 0)
+			throw new IllegalArgumentException("rosterHistory must be positive");
+		this.rosterHistory = rosterHistory;
+		return this;
+	}
+
+	/**
+	 * Time during which the connections and disconnections are gathered before
+	 * being sent to the interested users, 0 to send each one right away. A user
+	 * that disconnects and reconnects during this time is not announced.
+	 */
+	public long getPresenceBatchMillis() {
+		return presenceBatchMillis;
+	}
+
+	public ServerConfig setPresenceBatchMillis(long presenceBatchMillis) {
+		if (presenceBatchMillis < 0)
+			throw new IllegalArgumentException("presenceBatchMillis must be positive");
+		this.presenceBatchMillis = presenceBatchMillis;
+		return this;
+	}
+
+	/**
+	 * Time during which the delivery and read receipts are gathered before their
+	 * statuses are sent to the senders, 0 to send each one right away.
+	 */
+	public long getReceiptBatchMillis() {
+		return receiptBatchMillis;
+	}
+
+	public ServerConfig setReceiptBatchMillis(long receiptBatchMillis) {
+		if (receiptBatchMillis < 0)
+			throw new IllegalArgumentException("receiptBatchMillis must be positive");
+		this.receiptBatchMillis = receiptBatchMillis;
+		return this;
+	}
+
+	/**
+	 * Time between two checks of a connection: a connection from which nothing
+	 * was received since the previous check is sent a ping. 0 disables the
+	 * checks, and a dead connection is then only noticed when a write fails.
+	 */
+	public long getHeartbeatIntervalMillis() {
+		return heartbeatIntervalMillis;
+	}
+
+	public ServerConfig setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+		if (heartbeatIntervalMillis < 0)
+			throw new IllegalArgumentException("heartbeatIntervalMillis must be positive");
+		this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+		return this;
+	}
+
+	/**
+	 * Time allowed to answer a ping before the connection is closed.
+	 */
+	public long getHeartbeatTimeoutMillis() {
+		return heartbeatTimeoutMillis;
+	}
+
+	public ServerConfig setHeartbeatTimeoutMillis(long heartbeatTimeoutMillis) {
+		if (heartbeatTimeoutMillis < 1)
+			throw new IllegalArgumentException("heartbeatTimeoutMillis must be greater than 0");
+		this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+		return this;
+	}
+
+	// capacités accordées à un client qui a annoncé les siennes
+	int negotiate(int clientFlags) {
+		int deflate = compressionThreshold > 0 ? clientFlags & Compression.DEFLATE : 0;
+		return deflate | clientFlags & ResumeProtocol.RESUME;
+	}
+
+	// compresseur des trames d'une connexion, null si elle ne compresse pas
+	Compression.Compressor newCompressor(int flags) {
+		return (flags & Compression.DEFLATE) != 0 ? new Compression.Compressor(compressionThreshold) : null;
+	}
+
+	BufferPool newBufferPool() {
+		return bufferPoolBytes > 0 ? new BufferPool(POOLED_BUFFER_SIZE, bufferPoolBytes) : null;
+	}
+
+	SendQueue newSendQueue() {
+		return new SendQueue(queueMaxPackets, queueMaxBytes, overflowPolicy, spillDir);
+	}
+
+	SendQueue newSendQueue(SendQueue.Backlog backlog) {
+		return new SendQueue(queueMaxPackets, queueMaxBytes, overflowPolicy, spillDir, backlog);
+	}
+
+	/**
+	 * Tells if the running JVM provides virtual threads, i.e. if the VIRTUAL mode
+	 * can be used.
+	 */
+	public static boolean virtualThreadsSupported() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	public static ServerConfig fromSystemProperties() {
+		ServerConfig c = new ServerConfig();
+		String mode = System.getProperty("chatservice.mode");
+		if (mode != null)
+			c.setMode(Mode.valueOf(mode.trim().toUpperCase()));
+		c.setIoThreads(Integer.getInteger("chatservice.ioThreads", c.getIoThreads()));
+		c.setControlThreads(Integer.getInteger("chatservice.controlThreads", c.getControlThreads()));
+		c.setQueueMaxPackets(Integer.getInteger("chatservice.queue.maxPackets", c.getQueueMaxPackets()));
+		c.setQueueMaxBytes(Long.getLong("chatservice.queue.maxBytes", c.getQueueMaxBytes()));
+		String policy = System.getProperty("chatservice.queue.overflow");
+		if (policy != null)
+			c.setOverflowPolicy(SendQueue.OverflowPolicy.valueOf(policy.trim().toUpperCase()));
+		c.setBatchMaxPackets(Integer.getInteger("chatservice.batch.maxPackets", c.getBatchMaxPackets()));
+		c.setBatchMaxLingerMicros(Long.getLong("chatservice.batch.maxLingerMicros", c.getBatchMaxLingerMicros()));
+		c.setMaxFrameSize(Integer.getInteger("chatservice.maxFrameSize", c.getMaxFrameSize()));
+		c.setBufferPoolBytes(Long.getLong("chatservice.bufferPool.bytes", c.getBufferPoolBytes()));
+		c.setBlobCacheBytes(Long.getLong("chatservice.blob.cacheBytes", c.getBlobCacheBytes()));
+		c.setThumbnailSize(Integer.getInteger("chatservice.thumbnail.size", c.getThumbnailSize()));
+		c.setThumbnailThreads(Integer.getInteger("chatservice.thumbnail.threads", c.getThumbnailThreads()));
+		c.setThumbnailCacheBytes(Long.getLong("chatservice.thumbnail.cacheBytes", c.getThumbnailCacheBytes()));
+		c.setCompressionThreshold(Integer.getInteger("chatservice.compression.threshold", c.getCompressionThreshold()));
+		String blobDir = System.getProperty("chatservice.blob.dir");
+		if (blobDir != null)
+			c.setBlobDir(new File(blobDir));
+		c.setOfflineSegmentBytes(Integer.getInteger("chatservice.offline.segmentBytes", c.getOfflineSegmentBytes()));
+		c.setStateSnapshotRecords(Long.getLong("chatservice.state.snapshotRecords", c.getStateSnapshotRecords()));
+		c.setRosterBatchMillis(Long.getLong("chatservice.roster.batchMillis", c.getRosterBatchMillis()));
+		c.setRosterHistory(Integer.getInteger("chatservice.roster.history", c.getRosterHistory()));
+		c.setPresenceBatchMillis(Long.getLong("chatservice.presence.batchMillis", c.getPresenceBatchMillis()));
+		c.setReceiptBatchMillis(Long.getLong("chatservice.receipts.batchMillis", c.getReceiptBatchMillis()));
+		c.setHeartbeatIntervalMillis(
+				Long.getLong("chatservice.heartbeat.intervalMillis", c.getHeartbeatIntervalMillis()));
+		c.setHeartbeatTimeoutMillis(Long.getLong("chatservice.heartbeat.timeoutMillis", c.getHeartbeatTimeoutMillis()));
+		String stateSync = System.getProperty("chatservice.state.sync");
+		if (stateSync != null)
+			c.setStateSync(Boolean.parseBoolean(stateSync));
+		String stateDir = System.getProperty("chatservice.state.dir");
+		if (stateDir != null)
+			c.setStateDir(new File(stateDir));
+		String offlineDir = System.getProperty("chatservice.offline.dir");
+		if (offlineDir != null)
+			c.setOfflineDir(new File(offlineDir));
+		String spillDir = System.getProperty("chatservice.queue.spillDir");
+		if (spillDir != null)
+			c.setSpillDir(new File(spillDir));
+		return c;
+	}
+}
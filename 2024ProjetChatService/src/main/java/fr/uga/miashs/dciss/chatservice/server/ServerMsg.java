@@ -13,11 +13,18 @@ package fr.uga.miashs.dciss.chatservice.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
+import fr.uga.miashs.dciss.chatservice.common.BufferPool;
+import fr.uga.miashs.dciss.chatservice.common.Compression;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.ReceiptProtocol;
+import fr.uga.miashs.dciss.chatservice.common.ResumeProtocol;
 
 import java.util.*;
 
@@ -27,29 +34,132 @@ public class ServerMsg {
 	public final static int SERVER_CLIENTID = 0;
 
 	private transient ServerSocket serverSock;
+	private transient NioServer nio;
 	private transient boolean started;
 	private transient ExecutorService executor;
 	private transient ServerPacketProcessor sp;
+	private final ServerConfig config;
 
 	// maps pour associer les id aux users et groupes
 	private Map<Integer, UserMsg> users;
 	private Map<Integer, GroupMsg> groups;
-	private Map<String, Integer> groupNames = new ConcurrentHashMap<>();
-	private Map<String, UserMsg> nicknames = new ConcurrentHashMap<>();
+	// noms des groupes et pseudos, sans distinction de casse
+	private final NameIndex groupNames = new NameIndex();
+	private final NameIndex nicknames = new NameIndex();
+
+	// tampons des paquets reçus, null si le pool est désactivé
+	private final BufferPool bufferPool;
+
+	// fichiers postés dans les groupes, créé à la première utilisation
+	private BlobStore blobStore;
+	// miniatures des images postées, null si elles sont désactivées
+	private ThumbnailService thumbnails;
+	// paquets en attente des utilisateurs déconnectés, null s'il est désactivé
+	private final SegmentLog offlineLog;
+	// journal des utilisateurs et des groupes, null si l'état n'est pas conservé
+	private final StateLog stateLog;
+	// pseudos versionnés, envoyés aux clients qui s'y abonnent
+	private final Roster roster;
+	// utilisateurs intéressés par la présence de chacun
+	private final Presence presence;
+	// accusés de réception et de lecture, regroupés par expéditeur
+	private final Receipts receipts;
+	// vérification des connexions silencieuses
+	private final Heartbeats heartbeats;
+
+	// paquets rejetés par le routage
+	private final LongAdder unknownDestPackets = new LongAdder();
+	private final LongAdder notMemberPackets = new LongAdder();
 
 	// séquences pour générer les identifiant d'utilisateurs et de groupe
 	private AtomicInteger nextUserId;
 	private AtomicInteger nextGroupId;
 
 	public ServerMsg(int port) throws IOException {
-		serverSock = new ServerSocket(port);
+		this(port, new ServerConfig());
+	}
+
+	public ServerMsg(int port, ServerConfig config) throws IOException {
+		this.config = config;
 		started = false;
 		users = new ConcurrentHashMap<>();
 		groups = new ConcurrentHashMap<>();
 		nextUserId = new AtomicInteger(1);
 		nextGroupId = new AtomicInteger(-1);
 		sp = new ServerPacketProcessor(this);
-		executor = Executors.newWorkStealingPool();
+		bufferPool = config.newBufferPool();
+		offlineLog = openOfflineLog();
+		roster = new Roster(this, config.getRosterBatchMillis(), config.getRosterHistory());
+		presence = new Presence(this, config.getPresenceBatchMillis());
+		receipts = new Receipts(this, config.getReceiptBatchMillis());
+		heartbeats = new Heartbeats(config.getHeartbeatIntervalMillis(), config.getHeartbeatTimeoutMillis());
+		if (config.getStateDir() != null) {
+			stateLog = new StateLog(this, config.getStateDir(), config.getStateSnapshotRecords(), config.isStateSync());
+			// les groupes relus enregistrent désormais leurs modifications
+			groups.values().forEach(g -> g.setStateLog(stateLog));
+		} else {
+			stateLog = null;
+		}
+		// les destinataires de paquets laissés dans le journal peuvent se reconnecter
+		if (offlineLog != null) {
+			for (int id : offlineLog.getRecipients())
+				if (id > 0 && !users.containsKey(id))
+					restoreUser(id);
+		}
+		if (config.getMode() == ServerConfig.Mode.NIO) {
+			nio = new NioServer(this, port, config.getIoThreads());
+		} else {
+			// socket obtenue depuis un canal pour pouvoir faire des écritures groupées
+			serverSock = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
+			executor = config.getMode() == ServerConfig.Mode.VIRTUAL ? newVirtualThreadExecutor()
+					: Executors.newWorkStealingPool();
+		}
+	}
+
+	/*
+	 * Exécuteur lançant chaque tâche sur un nouveau thread virtuel. Il est obtenu
+	 * par réflexion pour que le projet compile toujours en Java 11.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new ServerException("The VIRTUAL mode requires Java 21 or later", e);
+		}
+	}
+
+	// ouvre le journal des paquets en attente, dans un répertoire temporaire par défaut
+	private SegmentLog openOfflineLog() throws IOException {
+		if (config.getOfflineSegmentBytes() == 0)
+			return null;
+		File dir = config.getOfflineDir();
+		if (dir == null) {
+			File parent = new File(System.getProperty("java.io.tmpdir"), "chatservice-offline");
+			parent.mkdirs();
+			dir = Files.createTempDirectory(parent.toPath(), "log").toFile();
+		}
+		return new SegmentLog(dir, config.getOfflineSegmentBytes());
+	}
+
+	/**
+	 * Log of the packets waiting for disconnected users, null if it is disabled.
+	 */
+	public SegmentLog getOfflineLog() {
+		return offlineLog;
+	}
+
+	// paquets en attente dans le journal pour un utilisateur, laissés par un serveur précédent
+	boolean hasOfflinePackets(int userId) {
+		return offlineLog != null && offlineLog.hasPending(userId);
+	}
+
+	// file d'envoi d'un utilisateur, qui déborde dans le journal tant qu'il est déconnecté
+	SendQueue newSendQueue(int userId) {
+		if (offlineLog == null)
+			return config.newSendQueue();
+		SendQueue q = config.newSendQueue(offlineLog.chain(userId));
+		q.setOffline(true);
+		return q;
 	}
 
 	// Constantes pour les types de messages
@@ -83,7 +193,10 @@ public class ServerMsg {
 			throw new ServerException("User with id=" + ownerId + " unknown. Group creation failed.");
 		int id = nextGroupId.getAndDecrement();
 		GroupMsg res = new GroupMsg(id, owner);
+		res.setStateLog(stateLog);
 		groups.put(id, res);
+		if (stateLog != null)
+			stateLog.groupCreated(id, ownerId);
 		LOG.info("Group " + res.getId() + " created");
 		return res;
 	}
@@ -92,6 +205,16 @@ public class ServerMsg {
 		GroupMsg g = groups.remove(groupId);
 		if (g != null) {
 			g.beforeDelete();
+			receipts.groupRemoved(groupId);
+			if (stateLog != null)
+				stateLog.groupRemoved(groupId);
+			// les fichiers postés dans le groupe ne sont plus référencés par lui
+			List<String> blobs = g.takeBlobs();
+			for (String key : blobs) {
+				getBlobStore().release(key);
+				if (!getBlobStore().contains(key))
+					forgetThumbnail(key);
+			}
 			return true;
 		}
 		return false;
@@ -102,6 +225,12 @@ public class ServerMsg {
 		if (u == null)
 			return false;
 		u.beforeDelete();
+		if (stateLog != null)
+			stateLog.userRemoved(userId);
+		if (u.getRawNickname() != null)
+			roster.changed(userId, null);
+		presence.removed(userId);
+		receipts.removed(userId);
 		return true;
 	}
 
@@ -109,29 +238,305 @@ public class ServerMsg {
 		return users.get(userId);
 	}
 
+	// crée un nouvel utilisateur et retourne son identifiant
+	int newUser() {
+		int userId = nextUserId.getAndIncrement();
+		users.put(userId, new UserMsg(userId, this));
+		if (stateLog != null)
+			stateLog.userCreated(userId);
+		return userId;
+	}
+
+	/*
+	 * Accès à l'état pour le StateLog, qui l'enregistre dans ses instantanés et
+	 * le rétablit au démarrage
+	 */
+	Collection<UserMsg> getUsers() {
+		return users.values();
+	}
+
+	Collection<GroupMsg> getGroups() {
+		return groups.values();
+	}
+
+	/**
+	 * Index of the nicknames, which answers the prefix queries of the clients.
+	 */
+	public NameIndex getNicknames() {
+		return nicknames;
+	}
+
+	/**
+	 * Index of the group names.
+	 */
+	public NameIndex getGroupNames() {
+		return groupNames;
+	}
+
+	int getNextUserId() {
+		return nextUserId.get();
+	}
+
+	int getNextGroupId() {
+		return nextGroupId.get();
+	}
+
+	UserMsg restoreUser(int userId) {
+		UserMsg u = users.computeIfAbsent(userId, id -> new UserMsg(id, this));
+		nextUserId.accumulateAndGet(userId + 1, Math::max);
+		return u;
+	}
+
+	// retourne null si le propriétaire n'existe plus
+	GroupMsg restoreGroup(int groupId, int ownerId) {
+		nextGroupId.accumulateAndGet(groupId - 1, Math::min);
+		GroupMsg g = groups.get(groupId);
+		UserMsg owner = users.get(ownerId);
+		if (g == null && owner != null) {
+			g = new GroupMsg(groupId, owner);
+			groups.put(groupId, g);
+		}
+		return g;
+	}
+
+	void restoreIds(int nextUser, int nextGroup) {
+		nextUserId.accumulateAndGet(nextUser, Math::max);
+		nextGroupId.accumulateAndGet(nextGroup, Math::min);
+	}
+
+	/**
+	 * Log of the users and groups, null if the state is not kept
+	 * (ServerConfig.getStateDir() is null).
+	 */
+	public StateLog getStateLog() {
+		return stateLog;
+	}
+
+	/**
+	 * Processor of the messages sent to the server, where the handlers of new
+	 * types of messages are registered.
+	 */
+	public ServerPacketProcessor getPacketProcessor() {
+		return sp;
+	}
+
+	/**
+	 * Versioned roster of the nicknames, sent to the clients that subscribe to
+	 * it.
+	 */
+	public Roster getRoster() {
+		return roster;
+	}
+
+	/**
+	 * Index of the users interested in the connections and disconnections of
+	 * each user.
+	 */
+	public Presence getPresence() {
+		return presence;
+	}
+
+	/**
+	 * Delivery and read receipts, whose statuses are sent to the senders of the
+	 * messages.
+	 */
+	public Receipts getReceipts() {
+		return receipts;
+	}
+
+	/**
+	 * Checks of the connections, which closes those that do not answer.
+	 */
+	public Heartbeats getHeartbeats() {
+		return heartbeats;
+	}
+
+	public ServerConfig getConfig() {
+		return config;
+	}
+
+	// port d'écoute, utile lorsque le serveur a été créé avec le port 0
+	public int getPort() {
+		return nio != null ? nio.getLocalPort() : serverSock.getLocalPort();
+	}
+
 	// Methode utilisée pour savoir quoi faire d'un paquet
 	// reçu par le serveur
 	public void processPacket(Packet p) {
+		processPacket(users.get(p.srcId), p);
+	}
+
+	/*
+	 * Tampon recevant la charge utile d'une trame annoncée par un client. Les
+	 * paquets relayés utilisent le pool ; les messages de gestion, qui sont
+	 * décodés par ServerPacketProcessor, gardent un tableau de la taille exacte.
+	 */
+	byte[] payloadBuffer(int destId, int length) throws IOException {
+		if (length < 0 || length > config.getMaxFrameSize())
+			throw new IOException("Invalid frame length " + length);
+		return destId != 0 && bufferPool != null ? bufferPool.acquire(length) : new byte[length];
+	}
+
+	/*
+	 * Tampon recevant une trame compressée, rendu au pool après sa décompression
+	 * par processDeflated
+	 */
+	byte[] deflatedBuffer(int length) throws IOException {
+		if (length < 0 || length > config.getMaxFrameSize())
+			throw new IOException("Invalid frame length " + length);
+		return bufferPool != null ? bufferPool.acquire(length) : new byte[length];
+	}
+
+	/*
+	 * Décompresse une trame reçue dans un tampon obtenu par deflatedBuffer, puis
+	 * traite sa charge utile comme celle d'une trame ordinaire
+	 */
+	void processDeflated(UserMsg sender, int destId, byte[] deflated, int length, Compression.Decompressor d)
+			throws IOException {
+		byte[] buf;
+		int raw;
+		try {
+			raw = Compression.Decompressor.rawLength(deflated, 0, length);
+			buf = payloadBuffer(destId, raw);
+			d.inflate(deflated, 0, length, buf, raw);
+		} finally {
+			if (bufferPool != null)
+				bufferPool.release(deflated);
+		}
+		processReceived(sender, destId, buf, raw);
+	}
+
+	/*
+	 * Traite un paquet reçu dans un tampon obtenu par payloadBuffer, puis libère
+	 * la référence de la boucle de réception
+	 */
+	void processReceived(UserMsg sender, int destId, byte[] buf, int length) {
+		sender.received();
+		Packet p = new Packet(sender.getId(), destId, buf, length, destId != 0 ? bufferPool : null);
+		try {
+			processPacket(sender, p);
+		} finally {
+			p.release();
+		}
+	}
+
+	BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Store of the files posted to groups. Each server uses its own directory
+	 * under ServerConfig.getBlobDir(), deleted when the server stops.
+	 */
+	public synchronized BlobStore getBlobStore() {
+		if (blobStore == null) {
+			try {
+				File parent = config.getBlobDir();
+				parent.mkdirs();
+				File dir = Files.createTempDirectory(parent.toPath(), "store").toFile();
+				blobStore = new BlobStore(dir, config.getBlobCacheBytes());
+			} catch (IOException e) {
+				throw new ServerException("Cannot create the blob store in " + config.getBlobDir(), e);
+			}
+		}
+		return blobStore;
+	}
+
+	/**
+	 * Thumbnails of the images posted to groups, null if they are disabled
+	 * (ServerConfig.setThumbnailSize(0)).
+	 */
+	public synchronized ThumbnailService getThumbnails() {
+		if (thumbnails == null && config.getThumbnailSize() > 0) {
+			try {
+				File parent = config.getBlobDir();
+				parent.mkdirs();
+				File dir = Files.createTempDirectory(parent.toPath(), "thumbs").toFile();
+				thumbnails = new ThumbnailService(dir, config.getThumbnailCacheBytes(), config.getThumbnailSize(),
+						config.getThumbnailThreads());
+			} catch (IOException e) {
+				throw new ServerException("Cannot create the thumbnail cache in " + config.getBlobDir(), e);
+			}
+		}
+		return thumbnails;
+	}
+
+	private synchronized void forgetThumbnail(String key) {
+		if (thumbnails != null)
+			thumbnails.remove(key);
+	}
+
+	/**
+	 * Routes a packet received from the given user. This variant is used by the
+	 * connection loops, which already know the sender.
+	 */
+	public void processPacket(UserMsg sender, Packet p) {
+		// un message relayé attend les opérations de gestion envoyées avant lui
+		if (p.destId != 0 && sender != null && sender.getOrder().isBusy()) {
+			p.retain();
+			sender.getOrder().run(() -> {
+				try {
+					route(sender, p);
+				} finally {
+					p.release();
+				}
+			});
+			return;
+		}
+		route(sender, p);
+	}
+
+	private void route(UserMsg sender, Packet p) {
 		PacketProcessor pp = null;
 		if (p.destId < 0) { // message de groupe
-			// can be send only if sender is member
-			UserMsg sender = users.get(p.srcId);
-			GroupMsg g = groups.get(p.destId);
-			if (g.getMembers().contains(sender))
-				pp = g;
+			// can be send only if sender is member : le groupe est donc cherché
+			// parmi ceux de l'expéditeur, sans verrou ni allocation
+			pp = sender == null ? null : sender.getGroups().get(p.destId);
+			if (pp == null) {
+				if (groups.containsKey(p.destId))
+					notMemberPackets.increment();
+				else
+					unknownDestPackets.increment();
+			}
 		} else if (p.destId > 0) { // message entre utilisateurs
 			pp = users.get(p.destId);
+			if (pp == null)
+				unknownDestPackets.increment();
 		} else { // message de gestion pour le serveur
 			pp = sp;
 		}
 
 		if (pp != null) {
+			// numéro du message relayé, qui borne les accusés de ses destinataires
+			if (pp != sp && p.length > 0 && p.data[0] == ReceiptProtocol.MESSAGE)
+				receipts.relayed(p);
 			pp.process(p);
 		}
 	}
 
+	/**
+	 * Number of packets dropped because their destination (user or group) does
+	 * not exist.
+	 */
+	public long getUnknownDestPackets() {
+		return unknownDestPackets.sum();
+	}
+
+	/**
+	 * Number of group packets dropped because the sender is not a member of the
+	 * group.
+	 */
+	public long getNotMemberPackets() {
+		return notMemberPackets.sum();
+	}
+
 	public void start() {
 		started = true;
+		if (nio != null) {
+			// les connexions sont gérées par les boucles d'évènements
+			nio.run();
+			return;
+		}
 		while (started) {
 			try {
 				// le serveur attend une connexion d'un client
@@ -142,13 +547,23 @@ public class ServerMsg {
 
 				// lit l'identifiant du client
 				int userId = dis.readInt();
+				int flags = 0;
+				long lastSeq = -1;
+				if (userId == Compression.HELLO) {
+					// le client annonce ses capacités avant son identifiant, suivi
+					// de la dernière trame traitée s'il reprend sa session
+					int clientFlags = dis.readInt();
+					flags = config.negotiate(clientFlags);
+					userId = dis.readInt();
+					if ((clientFlags & ResumeProtocol.RESUME) != 0)
+						lastSeq = dis.readLong();
+					dos.writeInt(flags);
+				}
 				// si 0 alors il faut créer un nouvel utilisateur et
 				// envoyer l'identifiant au client
 				if (userId == 0) {
-					userId = nextUserId.getAndIncrement();
+					userId = newUser();
 					dos.writeInt(userId);
-					dos.flush();
-					users.put(userId, new UserMsg(userId, this));
 				}
 				// si l'identifiant existe ou est nouveau alors
 				// deux "taches"/boucles sont lancées en parralèle
@@ -156,13 +571,18 @@ public class ServerMsg {
 				// une pour envoyer des messages au client
 				// les deux boucles sont gérées au niveau de la classe UserMsg
 				UserMsg x = users.get(userId);
-				if (x.open(s)) {
+				if (x != null && x.open(s, flags)) {
+					// numéro de la prochaine trame, les suivantes de la dernière traitée
+					if ((flags & ResumeProtocol.RESUME) != 0)
+						dos.writeLong(x.resume(lastSeq));
+					dos.flush();
 					LOG.info(userId + " connected");
 					// lancement boucle de reception
 					executor.submit(() -> x.receiveLoop());
 					// lancement boucle d'envoi
 					executor.submit(() -> x.sendLoop());
 				} else { // si l'idenfiant est inconnu, on ferme la connexion
+					dos.flush();
 					s.close();
 				}
 
@@ -176,8 +596,36 @@ public class ServerMsg {
 	public void stop() {
 		started = false;
 		try {
-			serverSock.close();
-			users.values().forEach(s -> s.close());
+			if (nio != null) {
+				nio.close();
+			} else {
+				serverSock.close();
+				executor.shutdown();
+			}
+			sp.close();
+			heartbeats.close();
+			// les utilisateurs déconnectés n'ont rien à fermer
+			users.values().forEach(s -> {
+				if (s.isConnected())
+					s.close();
+			});
+			synchronized (this) {
+				if (blobStore != null)
+					blobStore.clear();
+				if (thumbnails != null)
+					thumbnails.close();
+			}
+			roster.close();
+			presence.close();
+			receipts.close();
+			if (stateLog != null)
+				stateLog.close();
+			if (offlineLog != null) {
+				if (config.getOfflineDir() == null)
+					offlineLog.delete();
+				else
+					offlineLog.flush();
+			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -185,7 +633,7 @@ public class ServerMsg {
 	}
 
 	public static void main(String[] args) throws IOException {
-		ServerMsg s = new ServerMsg(1666);
+		ServerMsg s = new ServerMsg(1666, ServerConfig.fromSystemProperties());
 		s.start();
 	}
 
@@ -197,43 +645,56 @@ public class ServerMsg {
 	public void addUser(UserMsg user) {
 		if (user != null) {
 			users.put(user.getId(), user);
+			if (stateLog != null)
+				stateLog.userCreated(user.getId());
 		}
 	}
 
 	public void registerNickname(String nickname, UserMsg user) {
 		if (nickname != null && user != null) {
-			nicknames.put(nickname.toLowerCase(), user);
+			nicknames.put(nickname, user.getId());
+			if (stateLog != null)
+				stateLog.nicknameSet(user.getId(), nickname);
+			roster.changed(user.getId(), nickname);
 		}
 	}
 
-	public UserMsg getUserByNickname(String nickname) {
-		return nicknames.get(nickname.toLowerCase());
+	// l'ancien pseudo d'un utilisateur ne le désigne plus
+	void renameUser(UserMsg user, String nickname) {
+		String previous = user.getRawNickname();
+		if (previous != null)
+			nicknames.remove(previous, user.getId());
+		user.setNickname(nickname);
+		registerNickname(nickname, user);
 	}
 
-	public void broadcastToAllExcept(int excludedUserId, byte[] data) {
-		for (UserMsg user : users.values()) {
-			if (user.getId() != excludedUserId && user.isConnected()) {
-				user.process(new Packet(0, user.getId(), data));
-			}
-		}
+	public UserMsg getUserByNickname(String nickname) {
+		Integer id = nicknames.get(nickname);
+		return id == null ? null : users.get(id);
 	}
-	// Envoi de la liste complète des pseudos connectés à un utilisateur
-	public void sendAllNicknamesTo(UserMsg user) {
-		for (Map.Entry<String, UserMsg> entry : nicknames.entrySet()) {
-			String nickname = entry.getKey();
-			UserMsg u = entry.getValue();
-			if (u != null && u.getId() != user.getId()) {
-				String msg = "NOUVEAU_PSEUDO:" + u.getId() + ":" + nickname;
-				user.process(new Packet(0, user.getId(), msg.getBytes()));
-			}
+
+	/**
+	 * Returns the users having at least minDepth packets waiting to be sent, with
+	 * their queue depth. Used to find the consumers that are lagging.
+	 */
+	public Map<Integer, Integer> getQueueDepths(int minDepth) {
+		Map<Integer, Integer> res = new TreeMap<>();
+		for (UserMsg u : users.values()) {
+			int depth = u.getQueueDepth();
+			if (depth >= minDepth)
+				res.put(u.getId(), depth);
 		}
+		return res;
 	}
+
 	public void registerGroupName(String name, int groupId) {
-		groupNames.put(name.toLowerCase(), groupId);
+		groupNames.put(name, groupId);
+		if (stateLog != null)
+			stateLog.groupNamed(groupId, name);
 	}
 	
 	public Integer getGroupIdByName(String name) {
-		return groupNames.get(name.toLowerCase());
+		return groupNames.get(name);
 	}
 
 }
@@ -11,87 +11,253 @@
 
 package fr.uga.miashs.dciss.chatservice.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import fr.uga.miashs.dciss.chatservice.common.FileTransfer;
-import fr.uga.miashs.dciss.chatservice.common.ImageTransfer;
+import fr.uga.miashs.dciss.chatservice.common.BlobProtocol;
+import fr.uga.miashs.dciss.chatservice.common.Compression;
+import fr.uga.miashs.dciss.chatservice.common.DirectoryProtocol;
+import fr.uga.miashs.dciss.chatservice.common.HeartbeatProtocol;
+import fr.uga.miashs.dciss.chatservice.common.ResumeProtocol;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.PresenceProtocol;
+import fr.uga.miashs.dciss.chatservice.common.ReceiptProtocol;
+import fr.uga.miashs.dciss.chatservice.common.RosterProtocol;
 
 public class ServerPacketProcessor implements PacketProcessor {
 	private final static Logger LOG = Logger.getLogger(ServerPacketProcessor.class.getName());
 	private ServerMsg server;
 
+	// fichiers en cours d'envoi vers le BlobStore, par expéditeur et empreinte
+	private final Map<String, PendingUpload> uploads = new ConcurrentHashMap<>();
+
+	private static class PendingUpload {
+		final BlobStore.Upload upload;
+		final BlobProtocol.Descriptor descriptor;
+		final GroupMsg group;
+
+		PendingUpload(BlobStore.Upload upload, BlobProtocol.Descriptor descriptor, GroupMsg group) {
+			this.upload = upload;
+			this.descriptor = descriptor;
+			this.group = group;
+		}
+	}
+
+	/**
+	 * Handles a message once decoded by its codec.
+	 */
+	@FunctionalInterface
+	public interface Handler<T> {
+		void handle(Packet p, T message);
+	}
+
+	/**
+	 * Entity whose messages are handled in order: the group or the user they
+	 * modify.
+	 */
+	@FunctionalInterface
+	public interface Key<T> {
+		int of(Packet p, T message);
+	}
+
+	// codec et traitement associés à un type de message
+	private static class Route<T> {
+		final Codecs.Codec<T> codec;
+		final Key<T> key;
+		final Handler<T> handler;
+
+		Route(Codecs.Codec<T> codec, Key<T> key, Handler<T> handler) {
+			this.codec = codec;
+			this.key = key;
+			this.handler = handler;
+		}
+
+		/*
+		 * Le message est décodé par le thread de réception, qui n'attend pas son
+		 * traitement lorsqu'il y a un exécuteur ; il n'est soumis qu'après les
+		 * opérations et messages envoyés avant lui par le même utilisateur
+		 */
+		void process(Packet p, ByteBuffer buf, StripedExecutor executor, SenderOrder order) throws IOException {
+			T m = codec.decode(buf);
+			if (executor == null) {
+				handler.handle(p, m);
+				return;
+			}
+			int k = key.of(p, m);
+			p.retain();
+			Runnable submit = () -> {
+				try {
+					executor.execute(k, () -> {
+						try {
+							handler.handle(p, m);
+						} finally {
+							p.release();
+							if (order != null)
+								order.done();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					p.release();
+					LOG.warning("Server message from " + p.srcId + " dropped: the server is stopping");
+					if (order != null)
+						order.done();
+				}
+			};
+			if (order == null)
+				submit.run();
+			else
+				order.start(submit);
+		}
+	}
+
+	// indexé par le type des messages, qui est le premier octet de la charge utile
+	private final Route<?>[] routes = new Route<?>[256];
+	// exécute les opérations de gestion hors des threads de réception, null pour les y exécuter
+	private final StripedExecutor executor;
+
 	public ServerPacketProcessor(ServerMsg s) {
 		this.server = s;
+		int threads = s.getConfig().getControlThreads();
+		executor = threads > 0 ? new StripedExecutor("control", threads) : null;
+		Key<Codecs.Membership> group = (p, m) -> m.groupId;
+		// un groupe est créé dans la file de son propriétaire
+		register(ServerMsg.CREATE_GROUP, Codecs.GROUP_CREATION, this::createGroup);
+		register(ServerMsg.ADD_MEMBER, Codecs.MEMBERSHIP, group, this::addMemberToGroup);
+		register(ServerMsg.REMOVE_MEMBER, Codecs.MEMBERSHIP, group, this::removeMemberFromGroup);
+		register(ServerMsg.DELETE_GROUP, Codecs.GROUP_ID, (p, id) -> id, this::deleteGroup);
+		register(ServerMsg.FILE_TRANSFER, Codecs.FILE_HEADER, this::handleFileTransfer);
+		register(ServerMsg.IMAGE_MESSAGE, Codecs.IMAGE_HEADER, this::handleImageTransfer);
+		register(ServerMsg.NICKNAME, Codecs.TEXT, this::setNickname);
+		register(RosterProtocol.SYNC, Codecs.ROSTER_SYNC, this::syncRoster);
+		register(PresenceProtocol.WATCH, Codecs.USER_IDS, this::watch);
+		register(PresenceProtocol.UNWATCH, Codecs.USER_IDS, this::unwatch);
+		register(DirectoryProtocol.QUERY, Codecs.NAME_QUERY, this::queryNames);
+		register(ReceiptProtocol.RECEIPT, Codecs.RECEIPTS, this::receipts);
+		// les morceaux d'un fichier suivent son offre dans la file de l'expéditeur
+		register(BlobProtocol.OFFER, Codecs.RAW, (p, buf) -> handleBlobOffer(p));
+		register(BlobProtocol.DATA, Codecs.RAW, (p, buf) -> handleBlobData(p));
+		register(BlobProtocol.FETCH, Codecs.RAW, (p, buf) -> handleBlobFetch(p));
+	}
+
+	/**
+	 * Associates a type of message with its codec and handler, replacing the
+	 * previous ones. The messages of this type are handled in the order they were
+	 * sent by each user.
+	 */
+	public <T> void register(byte type, Codecs.Codec<T> codec, Handler<T> handler) {
+		register(type, codec, (p, m) -> p.srcId, handler);
+	}
+
+	/**
+	 * Associates a type of message with its codec and handler, replacing the
+	 * previous ones. The messages of the same key are handled in the order they
+	 * were received, those of different keys may be handled in parallel. Those
+	 * of a connected user, and the messages it relays, are handled in the order
+	 * it sent them whatever their key.
+	 */
+	public <T> void register(byte type, Codecs.Codec<T> codec, Key<T> key, Handler<T> handler) {
+		routes[type & 0xFF] = new Route<>(codec, key, handler);
+	}
+
+	/**
+	 * Executor of the control operations, null if they are handled by the
+	 * threads receiving them (ServerConfig.setControlThreads(0)).
+	 */
+	public StripedExecutor getExecutor() {
+		return executor;
 	}
 
 	@Override
 	public void process(Packet p) {
-		// ByteBufferVersion. On aurait pu utiliser un ByteArrayInputStream +
-		// DataInputStream à la place
-		ByteBuffer buf = ByteBuffer.wrap(p.data);
+		if (p.length == 0) {
+			LOG.warning("Empty server message from " + p.srcId);
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(p.data, 0, p.length);
 		byte type = buf.get();
-
-		if (type == 1) { // cas creation de groupe
-			createGroup(p.srcId, buf);
-
-		} else if (type == 2) { // cas ajout d'un utilisateur
-			addMemberToGroup(p.srcId, buf);
-
-		} else if (type == 3) {
-			removeMemberFromGroup(p.srcId, buf);
-		} else if (type == 5) {
-			handleFileTransfer(p); // Traite le transfert de fichier
-		} else if (type == 6) {
-			handleImageTransfer(p); // Traite le transfert d'image
-		} else if (type == 7) {
-			setNickname(p.srcId, buf); // Traite le changement de pseudo
-		} else {
+		// la réception d'une réponse à un ping a déjà été notée par ServerMsg
+		if (type == HeartbeatProtocol.PONG)
+			return;
+		// acquittement traité sans attendre les opérations de gestion
+		if (type == ResumeProtocol.ACK) {
+			UserMsg u = server.getUser(p.srcId);
+			if (u != null && buf.remaining() >= 8)
+				u.acked(buf.getLong());
+			return;
+		}
+		Route<?> r = routes[type & 0xFF];
+		if (r == null) {
 			LOG.warning("Server message of type=" + type + " not handled by procesor");
+			return;
 		}
-	}
-
-	public void createGroup(int ownerId, ByteBuffer data) {
 		try {
-			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data.array(), 1, data.remaining() - 1));
-			String groupName = dis.readUTF();
-			int nb = dis.readInt();
-
-			UserMsg owner = server.getUser(ownerId);
-			String ownerPseudo = (owner != null && owner.getNickname() != null) ? owner.getNickname() : "Un utilisateur";
+			UserMsg sender = server.getUser(p.srcId);
+			r.process(p, buf, executor, sender == null ? null : sender.getOrder());
+		} catch (IOException | BufferUnderflowException e) {
+			LOG.warning("Malformed server message of type=" + type + " from " + p.srcId + ": " + e);
+		}
+	}
 
-			GroupMsg g = server.createGroup(ownerId);
-			//UserMsg owner = server.getUser(ownerId);
+	/*
+	 * Attend la fin des opérations reçues avant l'appel, y compris celles qui
+	 * attendaient les précédentes de leur expéditeur
+	 */
+	void flush() throws InterruptedException {
+		if (executor == null)
+			return;
+		do
+			executor.flush();
+		while (server.getUsers().stream().anyMatch(u -> u.getOrder().isBusy()));
+	}
 
-			for (int i = 0; i < nb; i++) {
-				int memberId = dis.readInt(); // ← utilise dis ici, pas data.getInt() !
-				UserMsg member = server.getUser(memberId);
-				g.addMember(member);
+	// termine les opérations en cours
+	void close() {
+		if (executor != null)
+			executor.shutdown(5, TimeUnit.SECONDS);
+	}
 
-				// Notifier le membre ajouté
-				if (member != null) {
-					String notif = ownerPseudo + " vous a ajouté au groupe " + groupName;
-					member.process(new Packet(0, memberId, notif.getBytes()));
-				}
+	public void createGroup(Packet p, Codecs.GroupCreation m) {
+		int ownerId = p.srcId;
+		UserMsg owner = server.getUser(ownerId);
+		String ownerPseudo = (owner != null && owner.getNickname() != null) ? owner.getNickname() : "Un utilisateur";
+
+		GroupMsg g = server.createGroup(ownerId);
+
+		Set<UserMsg> added = new LinkedHashSet<>();
+		if (owner != null)
+			added.add(owner);
+		for (int memberId : m.members) {
+			UserMsg member = server.getUser(memberId);
+			// Notifier le membre ajouté
+			if (member != null && g.addMember(member)) {
+				added.add(member);
+				String notif = ownerPseudo + " vous a ajouté au groupe " + m.name;
+				member.process(new Packet(0, memberId, notif.getBytes()));
 			}
+		}
+		// les membres apprennent qui d'entre eux est connecté
+		server.getPresence().joined(g, added);
 
-			// Notifier le créateur du groupe
-			if (owner != null) {
-				String confirm = "Vous avez créé le groupe [" + groupName + "] (id = " + g.getId() + ")";
-				owner.process(new Packet(0, ownerId, confirm.getBytes()));
-			}
-		} catch (IOException e) {
-			LOG.warning("Erreur lors de la lecture des données pour la création de groupe : " + e.getMessage());
+		// Notifier le créateur du groupe
+		if (owner != null) {
+			String confirm = "Vous avez créé le groupe [" + m.name + "] (id = " + g.getId() + ")";
+			owner.process(new Packet(0, ownerId, confirm.getBytes()));
 		}
 	}
 
-	public void addMemberToGroup(int requesterId, ByteBuffer data) {
-		int groupId = data.getInt();
-		int newMemberId = data.getInt();
+	public void addMemberToGroup(Packet p, Codecs.Membership m) {
+		int requesterId = p.srcId;
+		int groupId = m.groupId;
+		int newMemberId = m.userId;
 
 		GroupMsg group = server.getGroup(groupId);
 		if (group == null) {
@@ -111,7 +277,8 @@ public class ServerPacketProcessor implements PacketProcessor {
 		}
 
 		// Ajoute un utilisateur au groupe
-		group.addMember(newMember);
+		if (group.addMember(newMember))
+			server.getPresence().joined(group, Set.of(newMember));
 		LOG.info("Utilisateur " + newMemberId + " ajouté au groupe " + groupId);
 
 		// Envoi d'un message de confirmation au membre ajouté
@@ -128,9 +295,10 @@ public class ServerPacketProcessor implements PacketProcessor {
 
 	// Retire un utilisateur du groupe
 	// On suppose que le propriétaire du groupe est celui qui a envoyé la requête
-	public void removeMemberFromGroup(int requesterId, ByteBuffer data) {
-		int groupId = data.getInt();
-		int memberId = data.getInt();
+	public void removeMemberFromGroup(Packet p, Codecs.Membership m) {
+		int requesterId = p.srcId;
+		int groupId = m.groupId;
+		int memberId = m.userId;
 
 		GroupMsg group = server.getGroup(groupId);
 		if (group == null || group.getOwner().getId() != requesterId)
@@ -141,6 +309,7 @@ public class ServerPacketProcessor implements PacketProcessor {
 			return;
 
 		if (group.removeMember(member)) {
+			server.getReceipts().left(groupId, memberId);
 			// Notifie l'utilisateur retiré
 			String msg = "Vous avez été retiré du groupe " + groupId;
 			member.process(new Packet(0, memberId, msg.getBytes()));
@@ -151,89 +320,223 @@ public class ServerPacketProcessor implements PacketProcessor {
 		}
 	}
 
-	// Traite un transfert de fichier
-	private void handleFileTransfer(Packet p) {
+	// Supprime un groupe, à la demande de son propriétaire
+	public void deleteGroup(Packet p, Integer groupId) {
+		GroupMsg group = server.getGroup(groupId);
+		if (group == null || group.getOwner().getId() != p.srcId)
+			return;
+		if (server.removeGroup(groupId)) {
+			String confirm = "Le groupe " + groupId + " a été supprimé";
+			group.getOwner().process(new Packet(0, p.srcId, confirm.getBytes()));
+		}
+	}
+
+	// Traite un transfert de fichier : seul son entête est lu, le contenu est relayé tel quel
+	private void handleFileTransfer(Packet p, Codecs.TransferHeader h) {
+		// Log du transfert
+		LOG.info("File transfer from " + p.srcId + " to " + p.destId + ": " + h.name);
+		relay(p);
+	}
+
+	public void setNickname(Packet p, String nickname) {
+		int userId = p.srcId;
+		UserMsg user = server.getUser(userId);
+		if (user != null) {
+			server.renameUser(user, nickname);
+			String msg = "Bienvenue " + nickname + " ! Votre pseudo a été enregistré avec succès.";
+			user.process(new Packet(0, userId, msg.getBytes()));
+			// les autres clients l'apprennent par le prochain envoi du roster
+		}
+	}
+
+	// Abonne un client au roster, et lui envoie ce qu'il ne connaît pas encore
+	private void syncRoster(Packet p, Codecs.RosterSync m) {
+		UserMsg user = server.getUser(p.srcId);
+		if (user != null)
+			server.getRoster().sync(user, m.epoch, m.version);
+	}
+
+	// Abonne un client à la présence de ses contacts
+	private void watch(Packet p, int[] userIds) {
+		UserMsg user = server.getUser(p.srcId);
+		if (user != null)
+			server.getPresence().watch(user, userIds);
+	}
+
+	private void unwatch(Packet p, int[] userIds) {
+		UserMsg user = server.getUser(p.srcId);
+		if (user != null)
+			server.getPresence().unwatch(user, userIds);
+	}
+
+	// Accusés de réception et de lecture, transmis aux expéditeurs par lots
+	private void receipts(Packet p, ReceiptProtocol.Receipts r) {
+		UserMsg user = server.getUser(p.srcId);
+		if (user != null)
+			server.getReceipts().received(user, r);
+	}
+
+	// Recherche des pseudos ou des noms de groupes par préfixe
+	private void queryNames(Packet p, Codecs.NameQuery q) {
+		UserMsg user = server.getUser(p.srcId);
+		if (user == null)
+			return;
+		int limit = Math.max(1, Math.min(q.limit, DirectoryProtocol.MAX_RESULTS));
+		// un nom de plus indique s'il reste une page ; les noms des utilisateurs
+		// et groupes supprimés restent dans l'index et sont ignorés
+		List<NameIndex.Entry> found = q.kind == DirectoryProtocol.GROUPS
+				? server.getGroupNames().query(q.prefix, q.after, limit + 1, id -> server.getGroup(id) != null)
+				: server.getNicknames().query(q.prefix, q.after, limit + 1, id -> server.getUser(id) != null);
+		int n = Math.min(found.size(), limit);
+		int[] ids = new int[n];
+		String[] names = new String[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = found.get(i).id;
+			names[i] = found.get(i).name;
+		}
+		byte[] data = DirectoryProtocol.result(q.queryId, q.kind, found.size() > limit, ids, names);
+		user.process(new Packet(0, p.srcId, data));
+	}
+
+	// Traite un transfert d'image, sans décoder l'image
+	private void handleImageTransfer(Packet p, Codecs.TransferHeader h) {
+		// Log du transfert
+		LOG.info("Image transfer from " + p.srcId + " to " + p.destId + ": " + h.name + " (" + h.format + ")");
+		relay(p);
+	}
+
+	// Transmission au destinataire
+	private void relay(Packet p) {
+		if (p.destId < 0) { // Groupe
+			GroupMsg group = server.getGroup(p.destId);
+			if (group != null) {
+				group.process(p);
+			} else {
+				LOG.warning("Group " + p.destId + " not found for transfer");
+			}
+		} else { // Utilisateur direct
+			UserMsg dest = server.getUser(p.destId);
+			if (dest != null) {
+				dest.process(p);
+			} else {
+				LOG.warning("User " + p.destId + " not found for transfer");
+			}
+		}
+	}
+
+	/*
+	 * Fichier posté dans un groupe : s'il est déjà stocké, seul le descripteur
+	 * est envoyé aux membres, sinon l'expéditeur est invité à l'envoyer au serveur
+	 */
+	private void handleBlobOffer(Packet p) {
+		UserMsg sender = server.getUser(p.srcId);
 		try {
-			// Reconstruction du FileTransfer
-			FileTransfer transfer = FileTransfer.fromBytes(p.data);
-
-			// Log du transfert
-			LOG.info("File transfer from " + p.srcId + " to " + p.destId +
-					": " + transfer.getFileName());
-
-			// Transmission au destinataire
-			if (p.destId < 0) { // Groupe
-				GroupMsg group = server.getGroup(p.destId);
-				if (group != null) {
-					group.process(p);
-				}
-			} else { // Utilisateur direct
-				UserMsg dest = server.getUser(p.destId);
-				if (dest != null) {
-					dest.process(p);
-				}
+			BlobProtocol.Descriptor d = BlobProtocol.Descriptor.fromPacket(p);
+			GroupMsg group = sender == null ? null : sender.getGroups().get(d.groupId);
+			if (group == null) {
+				LOG.warning("User " + p.srcId + " cannot post a file to group " + d.groupId);
+				return;
+			}
+			BlobStore store = server.getBlobStore();
+			String key = d.key();
+			PendingUpload previous = uploads.remove(p.srcId + ":" + key);
+			if (previous != null)
+				previous.upload.abort();
+			if (store.retain(key)) {
+				long size = store.size(key);
+				sender.process(new Packet(0, p.srcId, BlobProtocol.upload(d.hash, size)));
+				post(p.srcId, group, new BlobProtocol.Descriptor(d.hash, size, d.groupId, d.kind, d.name));
+				return;
+			}
+			PendingUpload u = new PendingUpload(store.upload(d.hash, d.size), d, group);
+			if (d.size == 0) {
+				commit(p.srcId, u);
+				return;
 			}
+			uploads.put(p.srcId + ":" + key, u);
+			sender.process(new Packet(0, p.srcId, BlobProtocol.upload(d.hash, 0)));
 		} catch (IOException e) {
-			LOG.warning("Error processing file transfer: " + e.getMessage());
+			LOG.warning("Error processing file offer: " + e.getMessage());
 		}
 	}
 
-	public void setNickname(int userId, ByteBuffer data) {
+	private void handleBlobData(Packet p) {
+		String id = p.srcId + ":" + BlobProtocol.key(p);
+		PendingUpload u = uploads.get(id);
+		if (u == null)
+			return;
 		try {
-			// Lire le pseudo depuis le buffer
-			byte[] strBytes = new byte[data.remaining()];
-			data.get(strBytes);
-			String nickname = new String(strBytes);
-
-			UserMsg user = server.getUser(userId);
-			if (user != null) {
-				user.setNickname(nickname);
-				server.registerNickname(nickname, user);
-				String msg = "Bienvenue " + nickname + " ! Votre pseudo a été enregistré avec succès.";
-				user.process(new Packet(0, userId, msg.getBytes()));
-				// Envoyer les pseudos déjà existants à ce client
-				server.sendAllNicknamesTo(user);
-
-				// Informer tous les autres clients
-				String announce = "NOUVEAU_PSEUDO:" + userId + ":" + nickname;
-				server.broadcastToAllExcept(userId, announce.getBytes());
+			if (BlobProtocol.offset(p) != u.upload.getWritten())
+				throw new IOException("Unexpected offset " + BlobProtocol.offset(p));
+			u.upload.write(ByteBuffer.wrap(p.data, BlobProtocol.DATA_HEADER, p.length - BlobProtocol.DATA_HEADER));
+			if (u.upload.isComplete() && uploads.remove(id, u))
+				commit(p.srcId, u);
+		} catch (IOException e) {
+			LOG.warning("Upload of " + u.upload.getKey() + " by " + p.srcId + " failed: " + e.getMessage());
+			if (uploads.remove(id, u))
+				u.upload.abort();
+		}
+	}
 
-			}
-		} catch (Exception e) {
-			LOG.warning("Erreur lors de la réception du pseudo");
+	private void commit(int srcId, PendingUpload u) throws IOException {
+		if (!u.upload.commit()) {
+			LOG.warning("File uploaded by " + srcId + " does not match its hash");
+			return;
+		}
+		post(srcId, u.group, u.descriptor);
+	}
+
+	// la référence détenue par l'appelant est transmise au groupe
+	private void post(int srcId, GroupMsg group, BlobProtocol.Descriptor d) {
+		if (!group.addBlob(d.key())) {
+			server.getBlobStore().release(d.key());
+			return;
+		}
+		LOG.info("File " + d.name + " (" + d.size + " bytes) posted by " + srcId + " to " + group.getId());
+		ThumbnailService thumbnails = d.kind == BlobProtocol.KIND_IMAGE ? server.getThumbnails() : null;
+		if (thumbnails == null) {
+			group.process(new Packet(srcId, group.getId(), BlobProtocol.descriptor(d.hash, d.size, d.kind, d.name)));
+			return;
 		}
+		// le descripteur d'une image part avec sa miniature, faite hors du thread de routage
+		thumbnails.thumbnail(d.key(), server.getBlobStore().file(d.key())).thenAccept(t -> {
+			if (server.getGroup(group.getId()) == group)
+				group.process(new Packet(srcId, group.getId(),
+						BlobProtocol.descriptor(d.hash, d.size, d.kind, d.name, t)));
+		});
 	}
 
-	// Traite un transfert d'image
-	private void handleImageTransfer(Packet p) {
+	/*
+	 * Envoie au plus MAX_FETCH_CHUNKS morceaux d'un fichier stocké ; les tableaux
+	 * du cache sont partagés par tous les membres qui le téléchargent
+	 */
+	private void handleBlobFetch(Packet p) {
+		UserMsg user = server.getUser(p.srcId);
+		if (user == null || p.length < BlobProtocol.DATA_HEADER + 4)
+			return;
+		BlobStore store = server.getBlobStore();
+		String key = BlobProtocol.key(p);
+		long offset = BlobProtocol.offset(p);
+		int length = BlobProtocol.fetchLength(p);
+		if (!store.contains(key) || offset < 0 || offset % BlobProtocol.CHUNK_SIZE != 0 || length <= 0) {
+			user.process(new Packet(0, p.srcId, BlobProtocol.missing(BlobProtocol.hash(p))));
+			return;
+		}
+		int first = (int) (offset / BlobProtocol.CHUNK_SIZE);
+		int count = Math.min(BlobProtocol.MAX_FETCH_CHUNKS, (length + BlobProtocol.CHUNK_SIZE - 1) / BlobProtocol.CHUNK_SIZE);
 		try {
-			// Reconstruction de l'ImageTransfer
-			ImageTransfer transfer = ImageTransfer.fromBytes(p.data);
-
-			// Log du transfert
-			LOG.info("Image transfer from " + p.srcId + " to " + p.destId +
-					": " + transfer.getImageName() + " (" + transfer.getImageFormat() + ")");
-
-			// Transmission au destinataire
-			if (p.destId < 0) { // Groupe
-				GroupMsg group = server.getGroup(p.destId);
-				if (group != null) {
-					group.process(p);
-				} else {
-					LOG.warning("Group " + p.destId + " not found for image transfer");
-				}
-			} else { // Utilisateur direct
-				UserMsg dest = server.getUser(p.destId);
-				if (dest != null) {
-					dest.process(p);
-				} else {
-					LOG.warning("User " + p.destId + " not found for image transfer");
-				}
+			for (int i = first; i < first + count; i++) {
+				byte[] chunk = store.chunk(key, i);
+				if (chunk == null)
+					break;
+				Packet data = new Packet(0, p.srcId, chunk);
+				// le morceau partagé n'est pas recompressé pour chaque membre qui le télécharge
+				data.setDeflated(Compression.RAW);
+				user.process(data);
 			}
-
 		} catch (IOException e) {
-			LOG.warning("Error processing image transfer: " + e.getMessage());
-
+			LOG.warning("Error reading blob " + key + ": " + e.getMessage());
+			user.process(new Packet(0, p.srcId, BlobProtocol.missing(BlobProtocol.hash(p))));
 		}
 	}
 
@@ -241,11 +544,4 @@ public class ServerPacketProcessor implements PacketProcessor {
 		return server.getUserByNickname(nickname);
 
 	}
-
-	private String readString(ByteBuffer buf) {
-		int length = buf.get(); // ou buf.getInt(), selon ton writeUTF
-		byte[] bytes = new byte[length];
-		buf.get(bytes);
-		return new String(bytes);
-	}
 }
@@ -0,0 +1,712 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the state of a server: its users, groups, members,
+ * nicknames and group names. Each modification is appended to the log before
+ * the server goes on, and the records appended meanwhile by other threads are
+ * written and forced to disk together by a single writer thread (group
+ * commit).
+ *
+ * After a given number of records, the log is continued in a new file and a
+ * snapshot of the whole state is written by another thread, after which the
+ * older files are deleted: opening the log reads the last snapshot and replays
+ * only the records that follow it. The snapshot is taken while the server
+ * runs and may already contain modifications that are also in the following
+ * file, replaying a record is thus idempotent: it sets a state (the user
+ * exists, is a member of the group...) rather than applying a change.
+ *
+ * A record is [length][CRC32][type][fields]. A record left unfinished by a
+ * crash is detected by its checksum, and the file is truncated before it.
+ */
+public class StateLog {
+	private final static Logger LOG = Logger.getLogger(StateLog.class.getName());
+
+	// types des enregistrements
+	private static final byte USER = 1;
+	private static final byte REMOVE_USER = 2;
+	private static final byte GROUP = 3;
+	private static final byte REMOVE_GROUP = 4;
+	private static final byte MEMBER = 5;
+	private static final byte REMOVE_MEMBER = 6;
+	private static final byte NICKNAME = 7;
+	private static final byte GROUP_NAME = 8;
+
+	private static final int SNAPSHOT_MAGIC = 0xDC155A17;
+	private static final String LOG_PREFIX = "log-";
+	private static final String LOG_SUFFIX = ".wal";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".bin";
+	private static final int IO_BUFFER = 1 << 16;
+
+	private final ServerMsg server;
+	private final File dir;
+	private final long snapshotRecords;
+	private final boolean sync;
+
+	// enregistrements en attente d'écriture, et ceux en cours d'écriture
+	private Buffer pending = new Buffer();
+	private Buffer writing = new Buffer();
+	private final CRC32 crc = new CRC32();
+	// octets ajoutés au journal, et ceux déjà forcés sur disque
+	private long appended;
+	private long durable;
+	private long recordsSinceSnapshot;
+	private boolean rotate;
+	private boolean snapshotting;
+	private boolean closed;
+	private IOException failure;
+
+	// fichier en cours, utilisé par le seul thread d'écriture
+	private int generation;
+	private FileChannel channel;
+	private final Thread writer;
+	private final ExecutorService snapshots;
+
+	private long forces;
+	private long snapshotCount;
+	private long lastSnapshotMillis;
+	private final long replayedRecords;
+	private final long recoveryMillis;
+
+	// tampon dont le contenu est accessible sans copie
+	private static class Buffer extends ByteArrayOutputStream {
+		Buffer() {
+			super(4096);
+		}
+
+		void putInt(int v) {
+			write(v >>> 24);
+			write(v >>> 16);
+			write(v >>> 8);
+			write(v);
+		}
+
+		void putText(String s) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			putInt(b.length);
+			write(b, 0, b.length);
+		}
+
+		// remplit la longueur et la somme de contrôle de l'enregistrement commencé à start
+		int seal(int start, CRC32 crc) {
+			int length = count - start - 8;
+			crc.reset();
+			crc.update(buf, start + 8, length);
+			setInt(start, length);
+			setInt(start + 4, (int) crc.getValue());
+			return length;
+		}
+
+		private void setInt(int pos, int v) {
+			buf[pos] = (byte) (v >>> 24);
+			buf[pos + 1] = (byte) (v >>> 16);
+			buf[pos + 2] = (byte) (v >>> 8);
+			buf[pos + 3] = (byte) v;
+		}
+
+		ByteBuffer contents() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+
+	/**
+	 * Opens the log of a directory and restores the state it holds into the
+	 * server, which must not have any user or group yet.
+	 *
+	 * @param snapshotRecords number of records after which a snapshot is taken
+	 * @param sync            if true, each modification waits until it is on
+	 *                        disk; otherwise the last ones may be lost by a
+	 *                        crash
+	 */
+	StateLog(ServerMsg server, File dir, long snapshotRecords, boolean sync) throws IOException {
+		this.server = server;
+		this.dir = dir;
+		this.snapshotRecords = snapshotRecords;
+		this.sync = sync;
+		long t0 = System.nanoTime();
+		dir.mkdirs();
+		TreeMap<Integer, File> logs = files(LOG_PREFIX, LOG_SUFFIX);
+		TreeMap<Integer, File> snaps = files(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		// premier fichier du journal qui n'est pas dans le dernier instantané
+		int base = 0;
+		if (!snaps.isEmpty()) {
+			base = snaps.lastKey();
+			readSnapshot(snaps.lastEntry().getValue());
+		}
+		long replayed = 0;
+		for (Map.Entry<Integer, File> e : logs.entrySet()) {
+			if (e.getKey() >= base)
+				replayed += replay(e.getValue());
+		}
+		// fichiers laissés par un arrêt pendant la prise d'un instantané
+		deleteBefore(base);
+		for (File f : dir.listFiles())
+			if (f.getName().endsWith(".tmp"))
+				f.delete();
+		replayedRecords = replayed;
+		recordsSinceSnapshot = replayed;
+		generation = Math.max(base, logs.isEmpty() ? 0 : logs.lastKey()) + 1;
+		channel = open(generation);
+		recoveryMillis = (System.nanoTime() - t0) / 1_000_000;
+		LOG.info("State restored from " + dir + " in " + recoveryMillis + " ms (" + replayed + " records replayed)");
+
+		snapshots = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "state-snapshot");
+			t.setDaemon(true);
+			return t;
+		});
+		writer = new Thread(this::writeLoop, "state-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private TreeMap<Integer, File> files(String prefix, String suffix) {
+		TreeMap<Integer, File> res = new TreeMap<>();
+		for (File f : dir.listFiles()) {
+			String n = f.getName();
+			if (n.startsWith(prefix) && n.endsWith(suffix)) {
+				try {
+					res.put(Integer.parseInt(n.substring(prefix.length(), n.length() - suffix.length())), f);
+				} catch (NumberFormatException e) {
+					// fichier étranger au journal
+				}
+			}
+		}
+		return res;
+	}
+
+	private File file(String prefix, int generation, String suffix) {
+		return new File(dir, prefix + String.format("%010d", generation) + suffix);
+	}
+
+	private FileChannel open(int generation) throws IOException {
+		return FileChannel.open(file(LOG_PREFIX, generation, LOG_SUFFIX).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	// supprime les fichiers antérieurs à l'instantané de la génération g
+	private void deleteBefore(int g) {
+		for (File f : files(LOG_PREFIX, LOG_SUFFIX).headMap(g).values())
+			f.delete();
+		for (File f : files(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(g).values())
+			f.delete();
+	}
+
+	/*
+	 * ENREGISTREMENT DES MODIFICATIONS
+	 */
+
+	void userCreated(int userId) {
+		append(USER, userId, 0, null);
+	}
+
+	void userRemoved(int userId) {
+		append(REMOVE_USER, userId, 0, null);
+	}
+
+	void groupCreated(int groupId, int ownerId) {
+		append(GROUP, groupId, ownerId, null);
+	}
+
+	void groupRemoved(int groupId) {
+		append(REMOVE_GROUP, groupId, 0, null);
+	}
+
+	void memberAdded(int groupId, int userId) {
+		append(MEMBER, groupId, userId, null);
+	}
+
+	void memberRemoved(int groupId, int userId) {
+		append(REMOVE_MEMBER, groupId, userId, null);
+	}
+
+	void nicknameSet(int userId, String nickname) {
+		append(NICKNAME, userId, 0, nickname);
+	}
+
+	void groupNamed(int groupId, String name) {
+		append(GROUP_NAME, groupId, 0, name);
+	}
+
+	private static boolean hasTwoIds(byte type) {
+		return type == GROUP || type == MEMBER || type == REMOVE_MEMBER;
+	}
+
+	private void append(byte type, int id, int other, String text) {
+		long end;
+		synchronized (this) {
+			if (closed)
+				throw new ServerException("The state log is closed");
+			Buffer b = pending;
+			int start = b.size();
+			// longueur et somme de contrôle, remplies une fois l'enregistrement écrit
+			b.putInt(0);
+			b.putInt(0);
+			b.write(type);
+			b.putInt(id);
+			if (hasTwoIds(type))
+				b.putInt(other);
+			if (text != null)
+				b.putText(text);
+			appended += 8 + b.seal(start, crc);
+			end = appended;
+			if (++recordsSinceSnapshot >= snapshotRecords && !snapshotting) {
+				recordsSinceSnapshot = 0;
+				snapshotting = true;
+				rotate = true;
+			}
+			notifyAll();
+		}
+		if (sync)
+			await(end);
+	}
+
+	// attend que les octets du journal jusqu'à end soient sur disque
+	private synchronized void await(long end) {
+		boolean interrupted = false;
+		while (durable < end && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (durable < end)
+			throw new ServerException("The state log cannot be written", failure);
+	}
+
+	/*
+	 * Boucle d'écriture : écrit d'un coup les enregistrements ajoutés depuis la
+	 * dernière écriture, puis les force sur disque
+	 */
+	private void writeLoop() {
+		try {
+			while (true) {
+				Buffer b;
+				long end;
+				boolean rotating;
+				synchronized (this) {
+					while (pending.size() == 0 && !rotate && !closed)
+						wait();
+					if (pending.size() == 0 && !rotate)
+						return;
+					b = pending;
+					pending = writing;
+					writing = b;
+					end = appended;
+					rotating = rotate;
+					rotate = false;
+				}
+				if (b.size() > 0) {
+					ByteBuffer bb = b.contents();
+					while (bb.hasRemaining())
+						channel.write(bb);
+					channel.force(false);
+					b.reset();
+					forces++;
+				}
+				if (rotating) {
+					// les enregistrements suivants vont dans un nouveau fichier
+					channel.close();
+					int g = ++generation;
+					channel = open(g);
+					snapshots.execute(() -> snapshot(g));
+				}
+				synchronized (this) {
+					durable = end;
+					notifyAll();
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			LOG.severe("State log stopped: " + e);
+			synchronized (this) {
+				failure = e instanceof IOException ? (IOException) e : new IOException(e);
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * INSTANTANÉS
+	 */
+
+	/*
+	 * Écrit l'état du serveur dans l'instantané de la génération g, qui remplace
+	 * les fichiers des générations précédentes
+	 */
+	private void snapshot(int g) {
+		long t0 = System.nanoTime();
+		File tmp = file(SNAPSHOT_PREFIX, g, ".tmp");
+		try {
+			try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				Output out = new Output(ch);
+				writeSnapshot(out);
+				out.finish();
+				ch.force(true);
+			}
+			// l'instantané n'est visible qu'une fois complet
+			Files.move(tmp.toPath(), file(SNAPSHOT_PREFIX, g, SNAPSHOT_SUFFIX).toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+			deleteBefore(g);
+			synchronized (this) {
+				snapshotCount++;
+				lastSnapshotMillis = (System.nanoTime() - t0) / 1_000_000;
+			}
+		} catch (IOException e) {
+			LOG.warning("Cannot write the snapshot " + tmp + ": " + e);
+			tmp.delete();
+		} finally {
+			synchronized (this) {
+				snapshotting = false;
+			}
+		}
+	}
+
+	/*
+	 * Écriture de l'instantané par blocs : la somme de contrôle est calculée sur
+	 * chaque bloc plutôt qu'octet par octet
+	 */
+	private static class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(IO_BUFFER);
+		private final CRC32 crc = new CRC32();
+
+		Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void putInt(int v) throws IOException {
+			if (buf.remaining() < 4)
+				flush();
+			buf.putInt(v);
+		}
+
+		void putText(String s) throws IOException {
+			if (s == null) {
+				putInt(-1);
+				return;
+			}
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			putInt(b.length);
+			for (int off = 0; off < b.length;) {
+				if (!buf.hasRemaining())
+					flush();
+				int n = Math.min(buf.remaining(), b.length - off);
+				buf.put(b, off, n);
+				off += n;
+			}
+		}
+
+		private void flush() throws IOException {
+			buf.flip();
+			crc.update(buf.duplicate());
+			while (buf.hasRemaining())
+				channel.write(buf);
+			buf.clear();
+		}
+
+		// écrit ce qui reste suivi de la somme de contrôle
+		void finish() throws IOException {
+			flush();
+			buf.putInt((int) crc.getValue());
+			buf.flip();
+			while (buf.hasRemaining())
+				channel.write(buf);
+		}
+	}
+
+	private static String readText(ByteBuffer in) {
+		int n = in.getInt();
+		if (n < 0)
+			return null;
+		String s = new String(in.array(), in.arrayOffset() + in.position(), n, StandardCharsets.UTF_8);
+		in.position(in.position() + n);
+		return s;
+	}
+
+	/*
+	 * [magic][prochain id d'utilisateur][prochain id de groupe]
+	 * {[id][pseudo]} 0 {[id][propriétaire] {[membre]} 0} 0
+	 * {[pseudo][id]} -1 {[nom de groupe][id]} -1 [CRC32]
+	 */
+	private void writeSnapshot(Output out) throws IOException {
+		out.putInt(SNAPSHOT_MAGIC);
+		out.putInt(server.getNextUserId());
+		out.putInt(server.getNextGroupId());
+		for (UserMsg u : server.getUsers()) {
+			out.putInt(u.getId());
+			out.putText(u.getRawNickname());
+		}
+		out.putInt(0);
+		for (GroupMsg g : server.getGroups()) {
+			UserMsg owner = g.getOwner();
+			out.putInt(g.getId());
+			out.putInt(owner.getId());
+			for (UserMsg m : g.getMembers())
+				if (m != owner)
+					out.putInt(m.getId());
+			out.putInt(0);
+		}
+		out.putInt(0);
+		try {
+			server.getNicknames().forEach(e -> writeName(out, e));
+			out.putText(null);
+			server.getGroupNames().forEach(e -> writeName(out, e));
+			out.putText(null);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static void writeName(Output out, NameIndex.Entry e) {
+		try {
+			out.putText(e.name);
+			out.putInt(e.id);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	// lit un fichier d'un bloc, ce qui évite de le lire et d'en vérifier la somme octet par octet
+	private static ByteBuffer readFully(File f) throws IOException {
+		long size = f.length();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException(f + " is too large");
+		return ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+	}
+
+	private void readSnapshot(File f) throws IOException {
+		ByteBuffer in = readFully(f);
+		if (in.remaining() < 8 || in.getInt(0) != SNAPSHOT_MAGIC)
+			throw new IOException(f + " is not a snapshot of the state");
+		CRC32 crc = new CRC32();
+		crc.update(in.array(), 0, in.limit() - 4);
+		if (in.getInt(in.limit() - 4) != (int) crc.getValue())
+			throw new IOException("The snapshot " + f + " is corrupted");
+		in.limit(in.limit() - 4);
+		try {
+			in.getInt();
+			int nextUserId = in.getInt();
+			int nextGroupId = in.getInt();
+			for (int id = in.getInt(); id != 0; id = in.getInt()) {
+				UserMsg u = server.restoreUser(id);
+				String nickname = readText(in);
+				if (nickname != null)
+					u.setNickname(nickname);
+			}
+			List<UserMsg> members = new ArrayList<>();
+			for (int id = in.getInt(); id != 0; id = in.getInt()) {
+				GroupMsg g = server.restoreGroup(id, in.getInt());
+				for (int m = in.getInt(); m != 0; m = in.getInt()) {
+					UserMsg u = server.getUser(m);
+					if (u != null)
+						members.add(u);
+				}
+				if (g != null)
+					g.restoreMembers(members);
+				members.clear();
+			}
+			// les noms, triés dans l'instantané, sont chargés d'un bloc dans les index
+			List<String> names = new ArrayList<>();
+			int[] ids = new int[16];
+			for (String s = readText(in); s != null; s = readText(in)) {
+				UserMsg u = server.getUser(in.getInt());
+				// les instantanés précédents contiennent le pseudo en minuscules, et
+				// parfois l'ancien pseudo d'un utilisateur renommé
+				String nickname = u == null ? null : u.getRawNickname();
+				if (u != null && (nickname == null || s.equalsIgnoreCase(nickname))) {
+					if (names.size() == ids.length)
+						ids = Arrays.copyOf(ids, 2 * ids.length);
+					ids[names.size()] = u.getId();
+					names.add(nickname == null ? s : nickname);
+				}
+			}
+			server.getNicknames().putAll(names, ids);
+			names.clear();
+			for (String s = readText(in); s != null; s = readText(in)) {
+				if (names.size() == ids.length)
+					ids = Arrays.copyOf(ids, 2 * ids.length);
+				ids[names.size()] = in.getInt();
+				names.add(s);
+			}
+			server.getGroupNames().putAll(names, ids);
+			server.restoreIds(nextUserId, nextGroupId);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException("The snapshot " + f + " is truncated", e);
+		}
+	}
+
+	/*
+	 * REJEU DU JOURNAL
+	 */
+
+	// rejoue les enregistrements d'un fichier, qui est tronqué au premier invalide
+	private long replay(File f) throws IOException {
+		ByteBuffer in = readFully(f);
+		int size = in.limit();
+		int pos = 0;
+		long n = 0;
+		CRC32 sum = new CRC32();
+		while (pos + 8 <= size) {
+			int length = in.getInt(pos);
+			int expected = in.getInt(pos + 4);
+			if (length < 5 || length > size - pos - 8)
+				break;
+			sum.reset();
+			sum.update(in.array(), pos + 8, length);
+			if ((int) sum.getValue() != expected)
+				break;
+			in.limit(pos + 8 + length).position(pos + 8);
+			apply(in);
+			in.limit(size);
+			pos += 8 + length;
+			n++;
+		}
+		if (pos < size) {
+			LOG.warning("Invalid record at " + pos + " in " + f + ", the end of the file is ignored");
+			try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+				ch.truncate(pos);
+			}
+		}
+		return n;
+	}
+
+	private void apply(ByteBuffer r) {
+		byte type = r.get();
+		int id = r.getInt();
+		int other = hasTwoIds(type) ? r.getInt() : 0;
+		String text = type == NICKNAME || type == GROUP_NAME ? readText(r) : null;
+		switch (type) {
+		case USER:
+			server.restoreUser(id);
+			break;
+		case REMOVE_USER:
+			server.removeUser(id);
+			break;
+		case GROUP:
+			server.restoreGroup(id, other);
+			break;
+		case REMOVE_GROUP:
+			server.removeGroup(id);
+			break;
+		case MEMBER:
+		case REMOVE_MEMBER:
+			GroupMsg g = server.getGroup(id);
+			UserMsg u = server.getUser(other);
+			if (g != null && u != null) {
+				if (type == MEMBER)
+					g.addMember(u);
+				else
+					g.removeMember(u);
+			}
+			break;
+		case NICKNAME:
+			UserMsg user = server.getUser(id);
+			if (user != null) {
+				server.renameUser(user, text);
+			}
+			break;
+		case GROUP_NAME:
+			server.registerGroupName(text, id);
+			break;
+		default:
+			LOG.warning("Unknown record of type " + type + " in the state log");
+		}
+	}
+
+	/*
+	 * STATISTIQUES
+	 */
+
+	/**
+	 * Number of times the log has been forced to disk. Each force commits all
+	 * the records appended meanwhile.
+	 */
+	public synchronized long getForceCount() {
+		return forces;
+	}
+
+	public synchronized long getSnapshotCount() {
+		return snapshotCount;
+	}
+
+	/**
+	 * Time taken to write the last snapshot.
+	 */
+	public synchronized long getLastSnapshotMillis() {
+		return lastSnapshotMillis;
+	}
+
+	/**
+	 * Number of records replayed when the log was opened, after the snapshot.
+	 */
+	public long getReplayedRecords() {
+		return replayedRecords;
+	}
+
+	/**
+	 * Time taken to restore the state when the log was opened.
+	 */
+	public long getRecoveryMillis() {
+		return recoveryMillis;
+	}
+
+	/**
+	 * Writes the pending records, waits for the snapshot being taken and closes
+	 * the log.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+			snapshots.shutdown();
+			snapshots.awaitTermination(1, TimeUnit.MINUTES);
+			channel.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			LOG.warning("Cannot close the state log: " + e);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Executor whose tasks are run by a fixed number of threads, each one with its
+ * own queue (a stripe). The tasks submitted with the same key always go to the
+ * same stripe and are thus run one after the other, in the order they were
+ * submitted, while the tasks of keys on different stripes run in parallel.
+ */
+public class StripedExecutor {
+	private final static Logger LOG = Logger.getLogger(StripedExecutor.class.getName());
+
+	// tâche qui arrête le thread d'une file
+	private static final Runnable STOP = () -> {
+	};
+
+	private final Stripe[] stripes;
+	private volatile boolean shutdown;
+
+	private static class Stripe implements Runnable {
+		final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+		final Thread thread;
+
+		Stripe(String name) {
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (Runnable r = queue.take(); r != STOP; r = queue.take()) {
+					try {
+						r.run();
+					} catch (RuntimeException e) {
+						// une tâche en échec n'arrête pas celles qui la suivent
+						LOG.warning("Task failed in " + thread.getName() + ": " + e);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @param name    prefix of the names of the threads
+	 * @param threads number of stripes, each one run by its thread
+	 */
+	public StripedExecutor(String name, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be greater than 0");
+		stripes = new Stripe[threads];
+		for (int i = 0; i < threads; i++)
+			stripes[i] = new Stripe(name + "-" + i);
+		for (Stripe s : stripes)
+			s.thread.start();
+	}
+
+	/**
+	 * Stripe of the tasks of a key.
+	 */
+	public int stripe(int key) {
+		// les identifiants sont consécutifs : ils sont mélangés pour répartir les
+		// clés voisines sur toutes les files
+		int h = key * 0x9E3779B9;
+		return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % stripes.length;
+	}
+
+	/**
+	 * Runs a task after the ones already submitted with the same key.
+	 *
+	 * @throws RejectedExecutionException if the executor is shut down
+	 */
+	public void execute(int key, Runnable task) {
+		Stripe s = stripes[stripe(key)];
+		// vérification et ajout sous le verrou de la file : une tâche acceptée
+		// est toujours placée avant l'arrêt de son thread
+		synchronized (s) {
+			if (shutdown)
+				throw new RejectedExecutionException("The executor is shut down");
+			s.queue.add(task);
+		}
+	}
+
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Number of tasks waiting in a stripe, without the one being run.
+	 */
+	public int getQueueDepth(int stripe) {
+		return stripes[stripe].queue.size();
+	}
+
+	/**
+	 * Number of tasks waiting in each stripe.
+	 */
+	public int[] getQueueDepths() {
+		int[] res = new int[stripes.length];
+		for (int i = 0; i < res.length; i++)
+			res[i] = stripes[i].queue.size();
+		return res;
+	}
+
+	/**
+	 * Waits until the tasks submitted before the call have been run.
+	 */
+	public void flush() throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(stripes.length);
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				if (!shutdown) {
+					s.queue.add(done::countDown);
+					continue;
+				}
+			}
+			// les tâches acceptées sont exécutées avant la fin du thread
+			s.thread.join();
+			done.countDown();
+		}
+		done.await();
+	}
+
+	/**
+	 * Runs the tasks already submitted and stops the threads, waiting for them at
+	 * most the given time.
+	 */
+	public void shutdown(long timeout, TimeUnit unit) {
+		shutdown = true;
+		for (Stripe s : stripes) {
+			// après les tâches acceptées par execute
+			synchronized (s) {
+				s.queue.add(STOP);
+			}
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		try {
+			for (Stripe s : stripes)
+				TimeUnit.NANOSECONDS.timedJoin(s.thread, Math.max(1, deadline - System.nanoTime()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import fr.uga.miashs.dciss.chatservice.common.ImageTransfer;
+
+/**
+ * Thumbnails of the images posted to groups, made once per image by a bounded
+ * pool of workers so that the routing threads never decode images. They are
+ * cached by content hash in an LRU bounded in bytes, whose evicted entries
+ * are written to disk and read back when requested again.
+ *
+ * An empty thumbnail means that none could be made (not an image, or too many
+ * images waiting): the members then download the original.
+ */
+public class ThumbnailService {
+	private final static Logger LOG = Logger.getLogger(ThumbnailService.class.getName());
+
+	// images en attente au-delà desquelles aucune miniature n'est faite
+	private static final int MAX_PENDING = 64;
+	private static final byte[] NONE = new byte[0];
+
+	private final File spillDir;
+	private final long cacheMaxBytes;
+	private final int maxSize;
+	private final ThreadPoolExecutor workers;
+
+	// miniatures en mémoire, de la moins à la plus récemment utilisée
+	private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(64, 0.75f, true);
+	private long cachedBytes;
+	// miniatures en cours de fabrication, pour ne décoder une image qu'une fois
+	private final Map<String, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+	private final LongAdder generated = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder diskHits = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param spillDir      directory of the thumbnails evicted from memory
+	 * @param cacheMaxBytes memory used by the thumbnails
+	 * @param maxSize       largest width or height of a thumbnail
+	 * @param threads       number of workers making the thumbnails
+	 */
+	public ThumbnailService(File spillDir, long cacheMaxBytes, int maxSize, int threads) {
+		this.spillDir = spillDir;
+		this.cacheMaxBytes = cacheMaxBytes;
+		this.maxSize = maxSize;
+		spillDir.mkdirs();
+		AtomicInteger n = new AtomicInteger();
+		workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(MAX_PENDING), r -> {
+					Thread t = new Thread(r, "thumbnail-" + n.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		workers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Thumbnail of the image stored in file under the given key. The result is
+	 * immediate if the thumbnail has already been made, and is empty if none
+	 * can be made.
+	 */
+	public CompletableFuture<byte[]> thumbnail(String key, File file) {
+		byte[] t = cached(key);
+		if (t != null)
+			return CompletableFuture.completedFuture(t);
+		CompletableFuture<byte[]> f = new CompletableFuture<>();
+		CompletableFuture<byte[]> current = pending.putIfAbsent(key, f);
+		if (current != null)
+			return current;
+		try {
+			workers.execute(() -> make(key, file, f));
+		} catch (RejectedExecutionException e) {
+			// trop d'images en attente : les membres recevront l'original
+			rejected.increment();
+			pending.remove(key, f);
+			f.complete(NONE);
+		}
+		return f;
+	}
+
+	private void make(String key, File file, CompletableFuture<byte[]> f) {
+		byte[] t;
+		try {
+			t = ImageTransfer.thumbnail(file, maxSize);
+			generated.increment();
+		} catch (IOException | RuntimeException e) {
+			LOG.warning("No thumbnail for " + key + ": " + e.getMessage());
+			t = NONE;
+		}
+		put(key, t);
+		pending.remove(key, f);
+		f.complete(t);
+	}
+
+	private synchronized byte[] cached(String key) {
+		byte[] t = cache.get(key);
+		if (t != null) {
+			cacheHits.increment();
+			return t;
+		}
+		File spilled = new File(spillDir, key);
+		if (!spilled.exists())
+			return null;
+		try {
+			t = Files.readAllBytes(spilled.toPath());
+		} catch (IOException e) {
+			return null;
+		}
+		diskHits.increment();
+		put(key, t);
+		return t;
+	}
+
+	private synchronized void put(String key, byte[] t) {
+		byte[] old = cache.put(key, t);
+		if (old != null)
+			cachedBytes -= old.length;
+		cachedBytes += t.length;
+		// les miniatures les moins récemment utilisées sont écrites sur disque
+		for (Iterator<Map.Entry<String, byte[]>> it = cache.entrySet().iterator(); cachedBytes > cacheMaxBytes
+				&& it.hasNext();) {
+			Map.Entry<String, byte[]> e = it.next();
+			if (e.getKey().equals(key))
+				continue;
+			File spilled = new File(spillDir, e.getKey());
+			try {
+				if (!spilled.exists())
+					Files.write(spilled.toPath(), e.getValue());
+			} catch (IOException ex) {
+				LOG.warning("Cannot spill thumbnail " + e.getKey() + ": " + ex.getMessage());
+			}
+			cachedBytes -= e.getValue().length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Forgets the thumbnail of an image that is no longer stored.
+	 */
+	public synchronized void remove(String key) {
+		byte[] t = cache.remove(key);
+		if (t != null)
+			cachedBytes -= t.length;
+		new File(spillDir, key).delete();
+	}
+
+	/**
+	 * Number of thumbnails made since the start.
+	 */
+	public long getGenerated() {
+		return generated.sum();
+	}
+
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * Number of thumbnails read back from disk.
+	 */
+	public long getDiskHits() {
+		return diskHits.sum();
+	}
+
+	/**
+	 * Number of images left without thumbnail because too many were waiting.
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	/**
+	 * Stops the workers and deletes the thumbnails written to disk.
+	 */
+	public synchronized void close() {
+		workers.shutdownNow();
+		cache.clear();
+		cachedBytes = 0;
+		File[] files = spillDir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		spillDir.delete();
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2024.  Jerome David. Univ. Grenoble Alpes.
+ * This file is part of DcissChatService.
+ *
+ * DcissChatService is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * DcissChatService is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Foobar. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel: the timeouts are hashed by their deadline into a ring
+ * of buckets, and each tick only visits the bucket of the current tick. A
+ * timeout further than a turn of the wheel stays in its bucket for the number
+ * of turns left. Scheduling and cancelling cost O(1) whatever the number of
+ * timeouts, and a tick costs the size of a bucket.
+ *
+ * advance() is called at each tick by a single thread, which runs the expired
+ * timeouts. schedule() may be called by any thread, including from expire().
+ */
+class TimingWheel {
+	private final static Logger LOG = Logger.getLogger(TimingWheel.class.getName());
+
+	/**
+	 * A timeout, scheduled in one wheel at a time.
+	 */
+	abstract static class Timeout {
+		// suivant dans le seau, accédé par le thread de la roue seulement
+		private Timeout next;
+		private long ticks;
+		private long rounds;
+		private volatile boolean cancelled;
+
+		/**
+		 * The timeout will not expire; it is removed from its bucket at its next
+		 * visit.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+
+		boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Called by the thread of the wheel when the deadline is reached.
+		 */
+		protected abstract void expire();
+	}
+
+	private final long tickMillis;
+	private final Timeout[] buckets;
+	private final int mask;
+	// délais programmés depuis le dernier tick, rangés par le thread de la roue
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private long tick;
+
+	/**
+	 * @param tickMillis duration of a tick, the precision of the deadlines
+	 * @param size       number of buckets, rounded up to a power of 2
+	 */
+	TimingWheel(long tickMillis, int size) {
+		if (tickMillis < 1)
+			throw new IllegalArgumentException("tickMillis must be greater than 0");
+		if (size < 1 || size > 1 << 30)
+			throw new IllegalArgumentException("Invalid wheel size " + size);
+		this.tickMillis = tickMillis;
+		int n = Integer.highestOneBit(size);
+		buckets = new Timeout[n < size ? n << 1 : n];
+		mask = buckets.length - 1;
+	}
+
+	long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Schedules t to expire after delayMillis, rounded up to the next tick.
+	 */
+	void schedule(Timeout t, long delayMillis) {
+		t.ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+		pending.add(t);
+	}
+
+	/**
+	 * Moves the wheel forward by one tick and runs the timeouts expiring in it.
+	 */
+	void advance() {
+		for (Timeout t = pending.poll(); t != null; t = pending.poll()) {
+			if (t.cancelled)
+				continue;
+			// le seau courant est visité juste après : un délai multiple de la
+			// taille de la roue y compte un tour de plus
+			int slot = (int) ((tick + t.ticks) & mask);
+			t.rounds = t.ticks / buckets.length;
+			t.next = buckets[slot];
+			buckets[slot] = t;
+		}
+		int slot = (int) (tick & mask);
+		Timeout t = buckets[slot];
+		buckets[slot] = null;
+		Timeout kept = null;
+		while (t != null) {
+			Timeout next = t.next;
+			t.next = null;
+			if (t.cancelled) {
+				// retiré du seau
+			} else if (t.rounds > 0) {
+				t.rounds--;
+				t.next = kept;
+				kept = t;
+			} else {
+				try {
+					t.expire();
+				} catch (RuntimeException e) {
+					LOG.warning("Timeout failed: " + e);
+				}
+			}
+			t = next;
+		}
+		buckets[slot] = kept;
+		tick++;
+	}
+}
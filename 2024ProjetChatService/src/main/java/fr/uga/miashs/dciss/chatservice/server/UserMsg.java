@@ -13,9 +13,12 @@ package fr.uga.miashs.dciss.chatservice.server;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.*;
 import java.util.logging.Logger;
 
+import fr.uga.miashs.dciss.chatservice.common.Compression;
 import fr.uga.miashs.dciss.chatservice.common.Packet;
 
 import java.util.*;
@@ -25,13 +28,28 @@ public class UserMsg implements PacketProcessor {
 
 	private int userId;
 	private String nickname; // 🔤 Le pseudo de l'utilisateur
-	private Set<GroupMsg> groups;
+	private IdSet<GroupMsg> groups;
 
 	private ServerMsg server;
 	private transient Socket s;
+	private transient NioSession session;
 	private transient boolean active;
+	// capacités négociées par la connexion en mode bloquant (voir Compression)
+	private transient int flags;
+	// vérifications de la connexion, null si elles sont désactivées
+	private transient volatile Heartbeats.Session heartbeat;
+	// thread de la boucle d'envoi du mode bloquant, réveillé à la fermeture
+	private transient Thread sender;
 
-	private BlockingQueue<Packet> sendQueue;
+	// créée au premier paquet ou à la connexion : la plupart des utilisateurs
+	// relus au démarrage du serveur n'en ont pas besoin
+	private volatile SendQueue sendQueue;
+	// paquets pris dans la file et pas encore acquittés par le client
+	private final DeliveryWindow window;
+	// numéro de la connexion courante dans la fenêtre
+	private transient volatile int epoch;
+	// messages relayés et opérations de gestion, dans l'ordre de leur envoi
+	private final SenderOrder order = new SenderOrder();
 
 	public UserMsg(int clientId, ServerMsg server) {
 		if (clientId < 1)
@@ -39,8 +57,24 @@ public class UserMsg implements PacketProcessor {
 		this.server = server;
 		this.userId = clientId;
 		active = false;
-		sendQueue = new LinkedBlockingQueue<>();
-		groups = Collections.synchronizedSet(new HashSet<>());
+		ServerConfig conf = server.getConfig();
+		window = new DeliveryWindow(conf.getQueueMaxPackets(), conf.getQueueMaxBytes(), conf.getOverflowPolicy());
+		// paquets laissés dans le journal des utilisateurs déconnectés
+		if (server.hasOfflinePackets(clientId))
+			queue();
+		groups = new IdSet<>(GroupMsg.class, GroupMsg::getId);
+	}
+
+	private SendQueue queue() {
+		SendQueue q = sendQueue;
+		if (q == null) {
+			synchronized (this) {
+				q = sendQueue;
+				if (q == null)
+					sendQueue = q = server.newSendQueue(userId);
+			}
+		}
+		return q;
 	}
 
 	public int getId() {
@@ -56,7 +90,7 @@ public class UserMsg implements PacketProcessor {
 	}
 
 	// to be used carrefully, do not add groups directly
-	protected Set<GroupMsg> getGroups() {
+	protected IdSet<GroupMsg> getGroups() {
 		return groups;
 	}
 
@@ -66,6 +100,8 @@ public class UserMsg implements PacketProcessor {
 	 */
 	public void beforeDelete() {
 		groups.forEach(g -> g.getMembers().remove(this));
+		queue().clearSpill();
+		window.clear();
 
 	}
 
@@ -73,15 +109,47 @@ public class UserMsg implements PacketProcessor {
 	 * METHODS FOR MANAING THE CONNECTION
 	 */
 	public boolean open(Socket s) {
+		return open(s, 0);
+	}
+
+	// ouverture d'une connexion qui a négocié les capacités flags
+	boolean open(Socket s, int flags) {
 		if (active)
 			return false;
 		this.s = s;
+		this.flags = flags;
 		active = true;
+		epoch = window.start();
+		heartbeat = server.getHeartbeats().start(this);
+		queue().setOffline(false);
+		server.getPresence().changed(userId, true);
+		return true;
+	}
+
+	// ouverture d'une connexion gérée par le mode NIO
+	boolean open(NioSession session) {
+		if (active)
+			return false;
+		this.session = session;
+		active = true;
+		epoch = window.start();
+		heartbeat = server.getHeartbeats().start(this);
+		queue().setOffline(false);
+		server.getPresence().changed(userId, true);
 		return true;
 	}
 
 	public void close() {
+		// la boucle de réception et celle d'envoi ferment toutes deux la connexion
+		boolean wasConnected = isConnected();
 		active = false;
+		Heartbeats.Session h = heartbeat;
+		heartbeat = null;
+		if (h != null)
+			h.cancel();
+		SendQueue q = sendQueue;
+		if (q != null && server.getOfflineLog() != null)
+			q.setOffline(true);
 		try {
 			if (s != null)
 				s.close();
@@ -90,64 +158,197 @@ public class UserMsg implements PacketProcessor {
 			e.printStackTrace();
 		}
 		s = null;
+		// la boucle d'envoi attend peut-être un paquet dans la file : sans cela,
+		// elle le prendrait à la connexion suivante de l'utilisateur
+		synchronized (this) {
+			if (sender != null && sender != Thread.currentThread())
+				sender.interrupt();
+		}
+		NioSession ns = session;
+		session = null;
+		if (ns != null)
+			ns.close();
+		if (wasConnected)
+			server.getPresence().changed(userId, false);
 		LOG.info(userId + " deconnected");
 	}
 
+	/**
+	 * The connection just opened is of a client that processed the frames up to
+	 * lastSeq (see ResumeProtocol). Returns the number of the next frame sent.
+	 */
+	long resume(long lastSeq) {
+		return window.resume(lastSeq);
+	}
+
+	// le client a traité les trames jusqu'à seq
+	void acked(long seq) {
+		window.ack(seq);
+		// des paquets de la file attendaient peut-être de la place dans la fenêtre
+		NioSession ns = session;
+		if (ns != null && hasOutgoing())
+			ns.wantWrite();
+	}
+
+	int getEpoch() {
+		return epoch;
+	}
+
+	SenderOrder getOrder() {
+		return order;
+	}
+
+	/**
+	 * Number of packets sent and not yet acknowledged by the client, or not
+	 * written before the connection closed.
+	 */
+	public int getUnackedPackets() {
+		return window.size();
+	}
+
+	// fermeture demandée par une session NIO, ignorée si l'utilisateur s'est
+	// reconnecté depuis
+	void close(NioSession ns) {
+		if (session == ns)
+			close();
+	}
+
+	// fermeture demandée par une boucle du mode bloquant, ignorée si
+	// l'utilisateur s'est reconnecté depuis
+	private void close(Socket sock) {
+		if (s == sock)
+			close();
+	}
+
+	// fermeture d'une connexion qui ne répond plus, ignorée si l'utilisateur
+	// s'est reconnecté depuis
+	void close(Heartbeats.Session h) {
+		if (heartbeat == h)
+			close();
+	}
+
+	// un paquet vient d'être reçu de la connexion
+	void received() {
+		Heartbeats.Session h = heartbeat;
+		if (h != null)
+			h.seen();
+	}
+
 	public boolean isConnected() {
-		return s != null;
+		return s != null || session != null;
 	}
 
 	// boucle d'envoie
 	public void receiveLoop() {
+		Compression.Decompressor inflater = (flags & Compression.DEFLATE) != 0 ? new Compression.Decompressor()
+				: null;
+		Socket sock = s;
 		try {
-			DataInputStream dis = new DataInputStream(s.getInputStream());
+			DataInputStream dis = new DataInputStream(sock.getInputStream());
 			// tant que la connexion n'est pas terminée
-			while (active && !s.isInputShutdown()) {
+			while (active && !sock.isInputShutdown()) {
 				// on lit les paquets envoyé par le client
 				int destId = dis.readInt();
 				int length = dis.readInt();
-				byte[] content = new byte[length];
-				dis.readFully(content);
+				if (inflater != null && (length & Compression.FLAG) != 0) {
+					// trame compressée
+					length &= ~Compression.FLAG;
+					byte[] deflated = server.deflatedBuffer(length);
+					dis.readFully(deflated, 0, length);
+					server.processDeflated(this, destId, deflated, length, inflater);
+					continue;
+				}
+				byte[] content = server.payloadBuffer(destId, length);
+				dis.readFully(content, 0, length);
 				// on envoie le paquet à ServerMsg pour qu'il le gère
-				server.processPacket(new Packet(userId, destId, content));
+				server.processReceived(this, destId, content, length);
 			}
 
 		} catch (IOException e) {
 			// problem in reading, probably end connection
 			LOG.warning("Connection with client " + userId + " is broken...close it.");
+		} finally {
+			if (inflater != null)
+				inflater.end();
 		}
-		close();
+		close(sock);
 	}
 
 	// boucle d'envoi
 	public void sendLoop() {
-		Packet p = null;
+		ServerConfig conf = server.getConfig();
+		FrameWriter writer = new FrameWriter(conf.getBatchMaxPackets());
+		writer.setCompressor(conf.newCompressor(flags));
+		List<Packet> batch = new ArrayList<>(writer.maxPackets());
+		SendQueue sendQueue = queue();
+		Socket sock = s;
+		int e = epoch;
+		synchronized (this) {
+			sender = Thread.currentThread();
+		}
 		try {
-			DataOutputStream dos = new DataOutputStream(s.getOutputStream());
+			WritableByteChannel ch = sock.getChannel() != null ? sock.getChannel()
+					: Channels.newChannel(sock.getOutputStream());
 			// tant que la connexion n'est pas terminée
-			while (active && s.isConnected()) {
-				// on récupère un message à envoyer dans la file
-				// sinon on attend, car la méthode take est "bloquante" tant que la file est
-				// vide
-				p = sendQueue.take();
-				// on envoie le paquet au client
-				dos.writeInt(p.srcId);
-				dos.writeInt(p.destId);
-				dos.writeInt(p.data.length);
-				dos.write(p.data);
-				dos.flush();
-
+			while (active && s == sock && sock.isConnected()) {
+				// d'abord les paquets écrits sur une connexion précédente et pas acquittés
+				if (window.next(e, batch, writer.maxPackets()) == 0) {
+					// la fenêtre pleine attend les acquittements du client
+					if (!window.hasRoom()) {
+						if (conf.getOverflowPolicy() == SendQueue.OverflowPolicy.DISCONNECT) {
+							LOG.warning(unackedMessage());
+							break;
+						}
+						window.awaitRoom(e);
+						continue;
+					}
+					// on récupère un message à envoyer dans la file
+					// sinon on attend, car la méthode take est "bloquante" tant que la file est
+					// vide
+					batch.add(sendQueue.take());
+					// puis tous ceux qui sont déjà en attente
+					sendQueue.drainTo(batch, writer.maxPackets() - batch.size());
+					long linger = TimeUnit.MICROSECONDS.toNanos(conf.getBatchMaxLingerMicros());
+					long deadline = System.nanoTime() + linger;
+					while (linger > 0 && batch.size() < writer.maxPackets()) {
+						Packet p = sendQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (p == null)
+							break;
+						batch.add(p);
+						sendQueue.drainTo(batch, writer.maxPackets() - batch.size());
+					}
+					window.addSent(e, batch);
+				}
+				// on envoie les paquets au client en une seule écriture
+				for (Packet p : batch)
+					writer.add(p);
+				writer.writeFully(ch);
+				// les paquets restent dans la fenêtre jusqu'à leur acquittement
+				writer.clear();
+				window.written(e);
+				batch.clear();
 			}
-		} catch (IOException e) {
-			// remet le paquet dans la file si pb de transmission (connexion terminée)
-			if (p != null)
-				sendQueue.offer(p);
+		} catch (IOException ex) {
+			// les paquets non transmis restent dans la fenêtre, pour la connexion suivante
 			LOG.warning("Connection with client " + userId + " is broken...close it.");
-			// e.printStackTrace();
-		} catch (InterruptedException e) {
-			throw new ServerException("Sending loop thread of " + userId + " has been interrupted.", e);
+		} catch (InterruptedException ex) {
+			// paquets pris dans la file mais pas encore dans la fenêtre, envoyés à
+			// la connexion suivante
+			window.addSent(e, batch);
+			// réveillée par la fermeture de la connexion
+			if (s == sock)
+				throw new ServerException("Sending loop thread of " + userId + " has been interrupted.", ex);
+		} finally {
+			synchronized (this) {
+				if (sender == Thread.currentThread())
+					sender = null;
+				// le thread retourne au pool sans l'interruption
+				Thread.interrupted();
+			}
+			if (writer.getCompressor() != null)
+				writer.getCompressor().end();
 		}
-		close();
+		close(sock);
 	}
 
 	/**
@@ -155,7 +356,75 @@ public class UserMsg implements PacketProcessor {
 	 */
 	// cette méthode est généralement appelée par ServerMsg
 	public void process(Packet p) {
-		sendQueue.offer(p);
+		SendQueue sendQueue = queue();
+		if (!sendQueue.offer(p)) {
+			// politique DISCONNECT : le client ne lit pas assez vite
+			if (isConnected()) {
+				LOG.warning("Send queue of " + userId + " is full (" + sendQueue.size() + " packets), disconnect it.");
+				close();
+			}
+			return;
+		}
+		NioSession ns = session;
+		if (ns != null)
+			ns.wantWrite();
+	}
+
+	/**
+	 * Number of packets waiting to be sent to this user.
+	 */
+	public int getQueueDepth() {
+		SendQueue q = sendQueue;
+		return q == null ? 0 : q.size();
+	}
+
+	/**
+	 * Number of bytes held in memory by the send queue of this user.
+	 */
+	public long getQueuedBytes() {
+		SendQueue q = sendQueue;
+		return q == null ? 0 : q.bytes();
+	}
+
+	/**
+	 * Number of packets discarded because the send queue or the packets not yet
+	 * acknowledged were over the limits.
+	 */
+	public long getDroppedPackets() {
+		SendQueue q = sendQueue;
+		return window.dropped() + (q == null ? 0 : q.dropped());
+	}
+
+	/*
+	 * Accès à la file d'envoi pour le mode NIO
+	 */
+	int drainOutgoing(int epoch, Collection<Packet> c, int max) throws IOException {
+		int n = window.next(epoch, c, max);
+		SendQueue q = sendQueue;
+		if (n > 0 || q == null)
+			return n;
+		if (!window.hasRoom()) {
+			// la session est fermée par la boucle d'évènements
+			if (server.getConfig().getOverflowPolicy() == SendQueue.OverflowPolicy.DISCONNECT)
+				throw new IOException(unackedMessage());
+			return 0;
+		}
+		n = q.drainTo(c, max);
+		window.addSent(epoch, c);
+		return n;
+	}
+
+	void written(int epoch) {
+		window.written(epoch);
+	}
+
+	boolean hasOutgoing() {
+		SendQueue q = sendQueue;
+		return window.hasUnsent() || (q != null && !q.isEmpty() && window.hasRoom());
+	}
+
+	private String unackedMessage() {
+		return "Client " + userId + " does not acknowledge its frames (" + window.size() + " packets), disconnect it.";
 	}
 
 	/**
@@ -165,6 +434,11 @@ public class UserMsg implements PacketProcessor {
 		this.nickname = nickname;
 	}
 
+	// pseudo tel que défini, null sinon
+	String getRawNickname() {
+		return nickname;
+	}
+
 	/**
 	 * Récupère le pseudo s'il est défini, sinon retourne un pseudo par défaut
 	 */
@@ -0,0 +1,176 @@
+package fr.uga.miashs.dciss.chatservice.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.FileStream;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.server.ServerConfig;
+import fr.uga.miashs.dciss.chatservice.server.ServerMsg;
+
+class FileStreamTest {
+
+	@TempDir
+	Path tempDir;
+
+	private ServerMsg server;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1));
+		new Thread(server::start).start();
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	private ClientMsg connect(String nickname) throws Exception {
+		return connect(nickname, false);
+	}
+
+	private ClientMsg connect(String nickname, boolean compression) throws Exception {
+		InputStream in = System.in;
+		System.setIn(new ByteArrayInputStream((nickname + "\n").getBytes()));
+		try {
+			ClientMsg c = new ClientMsg("localhost", server.getPort());
+			c.setCompression(compression);
+			c.startSession();
+			return c;
+		} finally {
+			System.setIn(in);
+		}
+	}
+
+	@Test
+	void testFileIsStreamedByChunks() throws Exception {
+		ClientMsg alice = connect("alice");
+		ClientMsg bob = connect("bob");
+		Path downloads = tempDir.resolve("downloads");
+		bob.addMessageListener(new FileMessageListener(bob, downloads.toString()));
+		BlockingQueue<Packet> chunks = new LinkedBlockingQueue<>();
+		BlockingQueue<String> texts = new LinkedBlockingQueue<>();
+		bob.addMessageListener(p -> {
+			if (FileStream.isFileStream(p))
+				chunks.add(p);
+			else if (p.srcId == alice.getIdentifier())
+				texts.add(new String(p.toByteArray()));
+		});
+
+		// plusieurs fenêtres de morceaux, le dernier incomplet
+		byte[] content = new byte[FileStream.DEFAULT_CHUNK_SIZE * 40 + 123];
+		new Random(7).nextBytes(content);
+		Path file = tempDir.resolve("data.bin");
+		Files.write(file, content);
+
+		alice.sendFile(bob.getIdentifier(), file.toFile());
+		alice.sendPacket(bob.getIdentifier(), "pendant le transfert".getBytes());
+		assertEquals("pendant le transfert", texts.poll(10, TimeUnit.SECONDS));
+
+		Path received = downloads.resolve("data.bin");
+		Packet p;
+		do {
+			p = chunks.poll(10, TimeUnit.SECONDS);
+			assertNotNull(p, "transfert interrompu");
+			assertTrue(p.length <= 64 * 1024);
+		} while (FileStream.type(p) != FileStream.END);
+		assertArrayEquals(content, Files.readAllBytes(received));
+
+		alice.closeSession();
+		bob.closeSession();
+	}
+
+	@Test
+	void testTextFileIsStreamedCompressed() throws Exception {
+		ClientMsg alice = connect("alice", true);
+		ClientMsg bob = connect("bob", true);
+		assertTrue(alice.isCompressed() && bob.isCompressed());
+		Path downloads = tempDir.resolve("downloads");
+		FileMessageListener files = new FileMessageListener(bob, downloads.toString());
+		bob.addMessageListener(files);
+		BlockingQueue<Packet> ends = new LinkedBlockingQueue<>();
+		bob.addMessageListener(p -> {
+			if (FileStream.isFileStream(p) && FileStream.type(p) == FileStream.END)
+				ends.add(p);
+		});
+
+		// un journal : les morceaux sont compressés dans les deux sens
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < FileStream.DEFAULT_CHUNK_SIZE * 10; i++)
+			sb.append("2024-05-12 10:00:").append(i % 60).append(" INFO connexion du client ").append(i).append('\n');
+		byte[] content = sb.toString().getBytes();
+		Path file = tempDir.resolve("server.log");
+		Files.write(file, content);
+
+		alice.sendFile(bob.getIdentifier(), file.toFile());
+		assertNotNull(ends.poll(10, TimeUnit.SECONDS), "transfert interrompu");
+		assertArrayEquals(content, Files.readAllBytes(downloads.resolve("server.log")));
+		alice.closeSession();
+		bob.closeSession();
+	}
+
+	@Test
+	void testTransferResumesFromManifest() throws Exception {
+		ClientMsg alice = connect("alice");
+		ClientMsg bob = connect("bob");
+		Path downloads = tempDir.resolve("downloads");
+		Files.createDirectories(downloads);
+		int chunkSize = FileStream.DEFAULT_CHUNK_SIZE;
+		byte[] content = new byte[chunkSize * 100 + 10];
+		new Random(3).nextBytes(content);
+		Path file = tempDir.resolve("big.bin");
+		Files.write(file, content);
+
+		// 70 morceaux ont été reçus et vérifiés lors d'une session précédente
+		long id = FileStream.transferId(alice.getIdentifier(), bob.getIdentifier(), file.toFile());
+		Files.write(downloads.resolve("big.bin.part"), Arrays.copyOf(content, chunkSize * 70));
+		Properties manifest = new Properties();
+		manifest.setProperty("transferId", Long.toString(id));
+		manifest.setProperty("size", Integer.toString(content.length));
+		manifest.setProperty("chunkSize", Integer.toString(chunkSize));
+		manifest.setProperty("chunks", "64");
+		try (OutputStream os = Files.newOutputStream(downloads.resolve("big.bin.manifest"))) {
+			manifest.store(os, null);
+		}
+
+		bob.addMessageListener(new FileMessageListener(bob, downloads.toString()));
+		BlockingQueue<Packet> ends = new LinkedBlockingQueue<>();
+		bob.addMessageListener(p -> {
+			if (FileStream.isFileStream(p) && FileStream.type(p) == FileStream.END)
+				ends.add(p);
+		});
+		BlockingQueue<Integer> accepted = new LinkedBlockingQueue<>();
+		alice.addMessageListener(p -> {
+			if (FileStream.isFileStream(p) && FileStream.type(p) == FileStream.ACCEPT)
+				accepted.add(FileStream.intArg(p));
+		});
+
+		assertEquals(id, alice.sendFile(bob.getIdentifier(), file.toFile()));
+		// la reprise commence après le dernier morceau inscrit au manifeste
+		assertEquals(64, accepted.poll(10, TimeUnit.SECONDS));
+		assertNotNull(ends.poll(10, TimeUnit.SECONDS));
+		assertArrayEquals(content, Files.readAllBytes(downloads.resolve("big.bin")));
+		assertFalse(Files.exists(downloads.resolve("big.bin.part")));
+		assertFalse(Files.exists(downloads.resolve("big.bin.manifest")));
+
+		alice.closeSession();
+		bob.closeSession();
+	}
+}
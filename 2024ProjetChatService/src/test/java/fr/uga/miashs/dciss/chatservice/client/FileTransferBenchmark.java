@@ -0,0 +1,119 @@
+package fr.uga.miashs.dciss.chatservice.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fr.uga.miashs.dciss.chatservice.common.FileStream;
+import fr.uga.miashs.dciss.chatservice.server.ServerConfig;
+import fr.uga.miashs.dciss.chatservice.server.ServerMsg;
+
+/**
+ * Throughput of file transfers on loopback between two ClientMsg through a
+ * server in NIO mode: the former single FileTransfer packet (type 5) against
+ * the chunked stream sent with FileChannel.transferTo. The former path needs
+ * several copies of the file in memory and is skipped above 256 MB.
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.uga.miashs.dciss.chatservice.client.FileTransferBenchmark
+ * -Dexec.args="[sizes in MB]"
+ */
+public class FileTransferBenchmark {
+
+	private static final int LEGACY_MAX_MB = 256;
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 10, 100, 1024 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+		Path dir = Files.createTempDirectory("filebench");
+		ServerMsg server = new ServerMsg(0,
+				new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1).setMaxFrameSize(Integer.MAX_VALUE - 8));
+		new Thread(server::start).start();
+		ClientMsg alice = connect(server, "alice");
+		ClientMsg bob = connect(server, "bob");
+		bob.setMaxFrameSize(Integer.MAX_VALUE - 8);
+		bob.addMessageListener(new FileMessageListener(bob, dir.resolve("downloads").toString()));
+		CountDownLatch[] done = new CountDownLatch[1];
+		bob.addMessageListener(p -> {
+			if (p.length > 0 && (p.data[0] == 5 || FileStream.isFileStream(p) && FileStream.type(p) == FileStream.END))
+				done[0].countDown();
+		});
+		try {
+			for (int mb : sizes) {
+				File file = dir.resolve("file" + mb).toFile();
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					byte[] block = new byte[1 << 20];
+					new java.util.Random(mb).nextBytes(block);
+					for (int i = 0; i < mb; i++)
+						raf.write(block);
+				}
+				if (mb <= LEGACY_MAX_MB) {
+					run("FileTransfer", mb, done, () -> sendLegacy(alice, bob.getIdentifier(), file));
+					run("FileTransfer", mb, done, () -> sendLegacy(alice, bob.getIdentifier(), file));
+				} else {
+					System.out.printf("%-12s %5d MB: skipped, the file does not fit in the heap%n", "FileTransfer", mb);
+				}
+				run("stream", mb, done, () -> alice.sendFile(bob.getIdentifier(), file));
+				run("stream", mb, done, () -> alice.sendFile(bob.getIdentifier(), file));
+				file.delete();
+			}
+		} finally {
+			alice.closeSession();
+			bob.closeSession();
+			server.stop();
+			for (File f : dir.resolve("downloads").toFile().listFiles())
+				f.delete();
+		}
+	}
+
+	interface Send {
+		void run() throws Exception;
+	}
+
+	private static void run(String name, int mb, CountDownLatch[] done, Send send) throws Exception {
+		System.gc();
+		done[0] = new CountDownLatch(1);
+		long start = System.nanoTime();
+		send.run();
+		if (!done[0].await(10, TimeUnit.MINUTES))
+			throw new IllegalStateException("transfer not completed");
+		double s = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-12s %5d MB: %6.2f s, %7.1f MB/s%n", name, mb, s, mb / s);
+	}
+
+	// ancien ClientMsg.sendFile : tout le fichier dans un seul paquet
+	private static void sendLegacy(ClientMsg c, int destId, File file) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeByte(5);
+		dos.writeUTF(file.getName());
+		byte[] fileContent = Files.readAllBytes(file.toPath());
+		dos.writeLong(fileContent.length);
+		dos.write(fileContent);
+		dos.flush();
+		c.sendPacket(destId, bos.toByteArray());
+	}
+
+	private static ClientMsg connect(ServerMsg server, String nickname) throws Exception {
+		InputStream in = System.in;
+		System.setIn(new ByteArrayInputStream((nickname + "\n").getBytes()));
+		try {
+			ClientMsg c = new ClientMsg("localhost", server.getPort());
+			c.startSession();
+			return c;
+		} finally {
+			System.setIn(in);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package fr.uga.miashs.dciss.chatservice.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.BlobProtocol;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.server.BlobStore;
+import fr.uga.miashs.dciss.chatservice.server.GroupMsg;
+import fr.uga.miashs.dciss.chatservice.server.ServerConfig;
+import fr.uga.miashs.dciss.chatservice.server.ServerMsg;
+
+class GroupFileTest {
+
+	@TempDir
+	Path tempDir;
+
+	private ServerMsg server;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1)
+				.setBlobDir(tempDir.resolve("blobs").toFile()));
+		new Thread(server::start).start();
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	private ClientMsg connect(String nickname) throws Exception {
+		InputStream in = System.in;
+		System.setIn(new ByteArrayInputStream((nickname + "\n").getBytes()));
+		try {
+			ClientMsg c = new ClientMsg("localhost", server.getPort());
+			c.startSession();
+			return c;
+		} finally {
+			System.setIn(in);
+		}
+	}
+
+	private int createGroup(ClientMsg owner, ClientMsg... members) {
+		GroupMsg g = server.createGroup(owner.getIdentifier());
+		for (ClientMsg m : members)
+			g.addMember(server.getUser(m.getIdentifier()));
+		return g.getId();
+	}
+
+	private static BlockingQueue<Packet> descriptors(ClientMsg c) {
+		BlockingQueue<Packet> res = new LinkedBlockingQueue<>();
+		c.addMessageListener(p -> {
+			if (BlobProtocol.isBlob(p) && BlobProtocol.type(p) == BlobProtocol.DESCRIPTOR)
+				res.add(new Packet(p.srcId, p.destId, p.toByteArray()));
+		});
+		return res;
+	}
+
+	@Test
+	void testFilePostedToGroupIsStoredOnce() throws Exception {
+		ClientMsg alice = connect("alice");
+		ClientMsg bob = connect("bob");
+		ClientMsg carol = connect("carol");
+		int g1 = createGroup(alice, bob, carol);
+		int g2 = createGroup(alice, bob);
+		BlockingQueue<Packet> bobDescriptors = descriptors(bob);
+		Path carolDownloads = tempDir.resolve("carol");
+		carol.addMessageListener(new FileMessageListener(carol, carolDownloads.toString()));
+		BlockingQueue<Packet> carolDescriptors = descriptors(carol);
+
+		byte[] content = new byte[BlobProtocol.CHUNK_SIZE * 40 + 17];
+		new Random(12).nextBytes(content);
+		Path file = tempDir.resolve("report.bin");
+		Files.write(file, content);
+
+		alice.sendFile(g1, file.toFile());
+		Packet d = bobDescriptors.poll(10, TimeUnit.SECONDS);
+		assertNotNull(d);
+		assertEquals(alice.getIdentifier(), d.srcId);
+		assertEquals(g1, d.destId);
+		// le descripteur ne contient pas le fichier
+		assertTrue(d.length < 100);
+
+		// le même fichier posté dans un autre groupe n'est pas envoyé à nouveau
+		alice.sendFile(g2, file.toFile());
+		assertNotNull(bobDescriptors.poll(10, TimeUnit.SECONDS));
+		BlobStore store = server.getBlobStore();
+		assertEquals(1, store.getBlobCount());
+		assertEquals(content.length, store.getStoredBytes());
+
+		// téléchargement à la demande, par le listener de carol et explicitement par bob
+		assertNotNull(carolDescriptors.poll(10, TimeUnit.SECONDS));
+		File bobFile = bob.fetchBlob(BlobProtocol.Descriptor.fromPacket(d), tempDir.resolve("bob.bin").toFile())
+				.get(10, TimeUnit.SECONDS);
+		assertArrayEquals(content, Files.readAllBytes(bobFile.toPath()));
+		Path carolFile = carolDownloads.resolve("report.bin");
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!Files.exists(carolFile) && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertArrayEquals(content, Files.readAllBytes(carolFile));
+
+		// le fichier est supprimé avec le dernier groupe qui le référence
+		server.removeGroup(g1);
+		assertEquals(1, store.getBlobCount());
+		server.removeGroup(g2);
+		assertEquals(0, store.getBlobCount());
+
+		alice.closeSession();
+		bob.closeSession();
+		carol.closeSession();
+	}
+
+	@Test
+	void testImagePostedToGroupArrivesAsThumbnail() throws Exception {
+		ClientMsg alice = connect("alice");
+		ClientMsg bob = connect("bob");
+		int g = createGroup(alice, bob);
+		Path images = tempDir.resolve("images");
+		ImageMessageListener listener = new ImageMessageListener(bob, images.toString());
+		bob.addMessageListener(listener);
+		BlockingQueue<Packet> descriptors = descriptors(bob);
+
+		Path photo = tempDir.resolve("photo.jpg");
+		ImageIO.write(new BufferedImage(2000, 1000, BufferedImage.TYPE_INT_RGB), "jpg", photo.toFile());
+		alice.sendImage(g, photo.toFile());
+
+		BlobProtocol.Descriptor d = BlobProtocol.Descriptor.fromPacket(descriptors.poll(10, TimeUnit.SECONDS));
+		assertNotNull(d.thumbnail);
+		BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(d.thumbnail));
+		assertEquals(320, thumbnail.getWidth());
+		assertEquals(160, thumbnail.getHeight());
+		Path thumbnailFile = images.resolve("photo_miniature.jpg");
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!Files.exists(thumbnailFile) && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue(Files.exists(thumbnailFile));
+		// l'original n'est téléchargé qu'à l'ouverture
+		assertFalse(Files.exists(images.resolve("photo.jpg")));
+		File original = listener.open("photo.jpg").get(10, TimeUnit.SECONDS);
+		assertArrayEquals(Files.readAllBytes(photo), Files.readAllBytes(original.toPath()));
+
+		alice.closeSession();
+		bob.closeSession();
+	}
+}
@@ -0,0 +1,68 @@
+package fr.uga.miashs.dciss.chatservice.client.database;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MessageRepositoryTest {
+
+    private Connection connection;
+    private MessageRepository repository;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        DatabaseManager.createTables(connection);
+        repository = new MessageRepository(connection);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        connection.close();
+    }
+
+    private Map<String, Integer> statuses(int userId, int contactId) {
+        Map<String, Integer> res = new HashMap<>();
+        for (Message m : repository.getMessageHistory(userId, contactId))
+            res.put(m.getContent(), m.getStatus());
+        return res;
+    }
+
+    @Test
+    void testStatusesCoverTheMessagesUpToTheirNumber() {
+        for (int i = 1; i <= 5; i++)
+            repository.saveMessage(1, 2, "m" + i, 1, 100 + i, Message.STATUS_SENT);
+        repository.saveMessage(1, 3, "other", 1, 101, Message.STATUS_SENT);
+        repository.saveMessage(1, 2, "plain", 1);
+
+        int updated = repository.updateMessageStatus(List.of(
+                new MessageRepository.StatusUpdate(1, 2, 104, Message.STATUS_RECEIVED),
+                new MessageRepository.StatusUpdate(1, 2, 102, Message.STATUS_READ)));
+        assertEquals(4 + 2, updated);
+        Map<String, Integer> s = statuses(1, 2);
+        assertEquals(Message.STATUS_READ, s.get("m1"));
+        assertEquals(Message.STATUS_READ, s.get("m2"));
+        assertEquals(Message.STATUS_RECEIVED, s.get("m4"));
+        assertEquals(Message.STATUS_SENT, s.get("m5"));
+        // les messages non numérotés et les autres conversations ne changent pas
+        assertEquals(Message.STATUS_SENT, s.get("plain"));
+        assertEquals(Message.STATUS_SENT, statuses(1, 3).get("other"));
+    }
+
+    @Test
+    void testStatusNeverGoesBack() {
+        repository.saveMessage(1, 2, "m", 1, 7, Message.STATUS_SENT);
+        repository.updateMessageStatus(List.of(new MessageRepository.StatusUpdate(1, 2, 7, Message.STATUS_READ)));
+        assertEquals(0, repository.updateMessageStatus(
+                List.of(new MessageRepository.StatusUpdate(1, 2, 7, Message.STATUS_RECEIVED))));
+        assertEquals(Message.STATUS_READ, statuses(1, 2).get("m"));
+    }
+}
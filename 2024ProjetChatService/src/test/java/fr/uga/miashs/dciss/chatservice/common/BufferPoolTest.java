@@ -0,0 +1,48 @@
+package fr.uga.miashs.dciss.chatservice.common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTest {
+
+	@Test
+	void testSizeClasses() {
+		BufferPool pool = new BufferPool(64 * 1024, 1 << 20);
+		assertEquals(256, pool.acquire(1).length);
+		assertEquals(256, pool.acquire(256).length);
+		assertEquals(512, pool.acquire(257).length);
+		assertEquals(64 * 1024, pool.acquire(64 * 1024).length);
+		// au-delà de la plus grande classe, le tableau a la taille exacte
+		assertEquals(100_000, pool.acquire(100_000).length);
+	}
+
+	@Test
+	void testReleasedBufferIsReused() {
+		BufferPool pool = new BufferPool(64 * 1024, 1 << 20);
+		byte[] b = pool.acquire(1000);
+		pool.release(b);
+		assertSame(b, pool.acquire(700));
+		assertEquals(1, pool.hits());
+		assertEquals(1, pool.misses());
+		// un tableau d'une taille quelconque n'entre pas dans le pool
+		pool.release(new byte[1000]);
+		assertNotEquals(1000, pool.acquire(1000).length);
+	}
+
+	@Test
+	void testPacketReferenceCounting() {
+		BufferPool pool = new BufferPool(1024, 1 << 20);
+		byte[] b = pool.acquire(5);
+		System.arraycopy("hello".getBytes(), 0, b, 0, 5);
+		Packet p = new Packet(1, 2, b, 5, pool);
+		assertEquals("hello", new String(p.toByteArray()));
+		p.retain();
+		p.release();
+		// encore une référence : le tableau n'est pas rendu
+		assertNotSame(b, pool.acquire(5));
+		p.release();
+		assertSame(b, pool.acquire(5));
+		assertThrows(IllegalStateException.class, p::release);
+	}
+}
@@ -0,0 +1,159 @@
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Bytes on the wire and CPU time of the frame compression, for the kinds of
+ * payloads the server relays: its short notifications, the chunks of a text
+ * log, of a JPEG photo and of a binary file that does not compress. Each frame
+ * counts its 12 bytes of header. The notifications are also deflated without
+ * the preset dictionary, for comparison.
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.uga.miashs.dciss.chatservice.common.CompressionBenchmark
+ */
+public class CompressionBenchmark {
+
+	private static final int FRAME_HEADER = 12;
+	private static final int FILE_SIZE = 16 * 1024 * 1024;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		Random rnd = new Random(15);
+		run("notifications", notifications(rnd, 20_000));
+		withoutDictionary(notifications(rnd, 20_000));
+		run("log file", chunks(1, log(rnd)));
+		byte[] jpeg = new byte[FILE_SIZE];
+		rnd.nextBytes(jpeg);
+		jpeg[0] = (byte) 0xFF;
+		jpeg[1] = (byte) 0xD8;
+		jpeg[2] = (byte) 0xFF;
+		run("jpeg photo", chunks(2, jpeg));
+		byte[] binary = new byte[FILE_SIZE];
+		rnd.nextBytes(binary);
+		run("random binary", chunks(3, binary));
+	}
+
+	private static List<byte[]> notifications(Random rnd, int n) {
+		List<byte[]> l = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			String nick = "user" + rnd.nextInt(100_000);
+			int group = -1 - rnd.nextInt(1000);
+			String s;
+			switch (i % 5) {
+			case 0:
+				s = "Bienvenue " + nick + " ! Votre pseudo a été enregistré avec succès.";
+				break;
+			case 1:
+				s = "NOUVEAU_PSEUDO:" + rnd.nextInt(100_000) + ":" + nick;
+				break;
+			case 2:
+				s = "Vous avez été ajouté au groupe " + group;
+				break;
+			case 3:
+				s = "L'utilisateur " + rnd.nextInt(100_000) + " a été ajouté au groupe " + group;
+				break;
+			default:
+				s = nick + " vous a ajouté au groupe amis" + group;
+			}
+			l.add(s.getBytes(StandardCharsets.UTF_8));
+		}
+		return l;
+	}
+
+	private static byte[] log(Random rnd) {
+		String[] levels = { "INFO", "WARNING", "FINE" };
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < FILE_SIZE; i++)
+			sb.append(String.format("2024-05-12 10:%02d:%02d.%03d %s [io-%d] fr.uga.miashs.dciss.chatservice.server.UserMsg"
+					+ " client %d sent %d bytes to %d%n", i / 60000 % 60, i / 1000 % 60, i % 1000,
+					levels[rnd.nextInt(3)], rnd.nextInt(4), rnd.nextInt(5000), rnd.nextInt(70000),
+					rnd.nextInt(5000)));
+		return sb.substring(0, FILE_SIZE).getBytes(StandardCharsets.UTF_8);
+	}
+
+	// morceaux d'un transfert de fichier, tels que relayés par le serveur
+	private static List<byte[]> chunks(long transferId, byte[] file) {
+		List<byte[]> l = new ArrayList<>();
+		int size = FileStream.DEFAULT_CHUNK_SIZE;
+		for (int seq = 0; seq * size < file.length; seq++) {
+			int length = Math.min(size, file.length - seq * size);
+			ByteBuffer b = ByteBuffer.allocate(FileStream.CHUNK_HEADER + length);
+			FileStream.chunkHeader(b, transferId, seq, 0);
+			b.put(file, seq * size, length);
+			l.add(b.array());
+		}
+		return l;
+	}
+
+	private static void run(String name, List<byte[]> frames) throws IOException {
+		long raw = 0;
+		long wire = 0;
+		long deflateNanos = 0;
+		long inflateNanos = 0;
+		for (int r = 0; r <= ROUNDS; r++) {
+			// un compresseur par connexion, réutilisé d'une trame à l'autre
+			Compression.Compressor c = new Compression.Compressor(Compression.DEFAULT_THRESHOLD);
+			Compression.Decompressor d = new Compression.Decompressor();
+			List<byte[]> sent = new ArrayList<>(frames.size());
+			long t0 = System.nanoTime();
+			for (byte[] f : frames)
+				sent.add(c.compress(f, 0, f.length));
+			long t1 = System.nanoTime();
+			for (int i = 0; i < frames.size(); i++) {
+				byte[] z = sent.get(i);
+				if (z != Compression.RAW) {
+					byte[] out = new byte[frames.get(i).length];
+					d.inflate(z, 0, z.length, out, out.length);
+				}
+			}
+			long t2 = System.nanoTime();
+			c.end();
+			d.end();
+			// le premier tour sert à chauffer le JIT
+			if (r == 0)
+				continue;
+			deflateNanos += t1 - t0;
+			inflateNanos += t2 - t1;
+			for (int i = 0; i < frames.size(); i++) {
+				byte[] z = sent.get(i);
+				raw += FRAME_HEADER + frames.get(i).length;
+				wire += FRAME_HEADER + (z == Compression.RAW ? frames.get(i).length : z.length);
+			}
+		}
+		print(name, frames.size(), raw / ROUNDS, wire / ROUNDS, deflateNanos / ROUNDS, inflateNanos / ROUNDS);
+	}
+
+	private static void withoutDictionary(List<byte[]> frames) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		byte[] buf = new byte[1024];
+		long raw = 0;
+		long wire = 0;
+		long t0 = System.nanoTime();
+		for (byte[] f : frames) {
+			deflater.reset();
+			deflater.setInput(f);
+			deflater.finish();
+			int n = 0;
+			while (!deflater.finished())
+				n += deflater.deflate(buf, n, buf.length - n);
+			raw += FRAME_HEADER + f.length;
+			wire += FRAME_HEADER + Math.min(f.length, 4 + n);
+		}
+		long t1 = System.nanoTime();
+		deflater.end();
+		print("  without dictionary", frames.size(), raw, wire, t1 - t0, 0);
+	}
+
+	private static void print(String name, int frames, long raw, long wire, long deflateNanos, long inflateNanos) {
+		System.out.printf("%-20s %6d frames: %8.2f MB raw, %8.2f MB on the wire (%5.1f %%), deflate %6.1f ms"
+				+ " (%5.2f us/frame), inflate %6.1f ms%n", name, frames, raw / 1048576.0, wire / 1048576.0,
+				100.0 * wire / raw, deflateNanos / 1e6, deflateNanos / 1e3 / frames, inflateNanos / 1e6);
+	}
+}
@@ -0,0 +1,85 @@
+package fr.uga.miashs.dciss.chatservice.common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class CompressionTest {
+
+	private static byte[] roundTrip(byte[] z) throws IOException {
+		int raw = Compression.Decompressor.rawLength(z, 0, z.length);
+		byte[] out = new byte[raw];
+		new Compression.Decompressor().inflate(z, 0, z.length, out, raw);
+		return out;
+	}
+
+	@Test
+	void testServerMessagesShrinkWithTheDictionary() throws IOException {
+		Compression.Compressor c = new Compression.Compressor(Compression.DEFAULT_THRESHOLD);
+		byte[] msg = "Bienvenue alice ! Votre pseudo a été enregistré avec succès.".getBytes(StandardCharsets.UTF_8);
+		byte[] z = c.compress(msg, 0, msg.length);
+		assertNotSame(Compression.RAW, z);
+		// grâce au dictionnaire, il ne reste guère que le pseudo
+		assertTrue(z.length < msg.length / 2, "compressed to " + z.length);
+		assertArrayEquals(msg, roundTrip(z));
+		// trop court pour être compressé
+		byte[] shortMsg = "Vous avez été ajouté au groupe -3".getBytes(StandardCharsets.UTF_8);
+		assertFalse(new Compression.Compressor(100).accepts(shortMsg, 0, shortMsg.length));
+	}
+
+	@Test
+	void testCompressedFormatsAreSentRaw() {
+		Compression.Compressor c = new Compression.Compressor(Compression.DEFAULT_THRESHOLD);
+		// premier morceau d'un PNG : reconnu à sa signature
+		byte[] first = new byte[1000];
+		ByteBuffer.wrap(first).put(FileStream.CHUNK).putLong(42).putInt(0).putInt(0)
+				.put(new byte[] { (byte) 0x89, 'P', 'N', 'G' });
+		assertTrue(Compression.isCompressed(first, 0, first.length));
+		assertSame(Compression.RAW, c.compress(first, 0, first.length));
+		// les morceaux suivants du même transfert ne sont plus essayés
+		byte[] next = new byte[1000];
+		ByteBuffer.wrap(next).put(FileStream.CHUNK).putLong(42).putInt(1);
+		assertFalse(c.accepts(next, 0, next.length));
+		next[8] = 43;
+		assertTrue(c.accepts(next, 0, next.length));
+		// ni les images
+		byte[] image = new byte[1000];
+		image[0] = 6;
+		assertFalse(c.accepts(image, 0, image.length));
+	}
+
+	@Test
+	void testRandomDataIsSentRaw() throws IOException {
+		byte[] data = new byte[10_000];
+		new Random(1).nextBytes(data);
+		Compression.Compressor c = new Compression.Compressor(Compression.DEFAULT_THRESHOLD);
+		assertEquals(-1, c.deflate(data, 0, data.length));
+		// le même compresseur sert ensuite pour un texte
+		byte[] text = String.join("", Collections.nCopies(500, "ligne de journal\n")).getBytes();
+		int n = c.deflate(text, 0, text.length);
+		assertTrue(n > 0 && n < text.length / 10);
+		assertArrayEquals(text, roundTrip(Arrays.copyOf(c.buffer(), n)));
+	}
+
+	@Test
+	void testCorruptedFrameIsRejected() {
+		byte[] text = String.join("", Collections.nCopies(100, "bonjour ")).getBytes();
+		byte[] z = new Compression.Compressor(1).compress(text, 0, text.length);
+		// longueur annoncée mensongère
+		ByteBuffer.wrap(z).putInt(text.length + 1);
+		assertThrows(IOException.class, () -> roundTrip(z));
+		ByteBuffer.wrap(z).putInt(text.length - 1);
+		assertThrows(IOException.class, () -> roundTrip(z));
+		byte[] garbage = new byte[20];
+		ByteBuffer.wrap(garbage).putInt(100);
+		Arrays.fill(garbage, 4, 20, (byte) 0xFF);
+		assertThrows(IOException.class, () -> roundTrip(garbage));
+	}
+}
@@ -0,0 +1,103 @@
+package fr.uga.miashs.dciss.chatservice.common;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Send and receive time of a 24-megapixel photo (6000x4000), in JPEG and in
+ * PNG, when the image is decoded and re-encoded on both sides as ImageTransfer
+ * used to do, and when its bytes are passed through. The network is left out:
+ * sending is the preparation of the message, receiving is the writing of the
+ * image file from the message.
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.uga.miashs.dciss.chatservice.common.ImageTransferBenchmark
+ */
+public class ImageTransferBenchmark {
+
+	private static final int WIDTH = 6000;
+	private static final int HEIGHT = 4000;
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws IOException {
+		File dir = Files.createTempDirectory("image-bench").toFile();
+		BufferedImage photo = photo();
+		for (String format : new String[] { "jpg", "png" }) {
+			File file = new File(dir, "photo." + format);
+			ImageIO.write(photo, format, file);
+			File out = new File(dir, "received");
+			out.mkdirs();
+			// première passe pour le JIT
+			legacy(file, out);
+			passthrough(file, out);
+			long[] l = new long[3];
+			long[] p = new long[3];
+			for (int i = 0; i < ROUNDS; i++) {
+				add(l, legacy(file, out));
+				add(p, passthrough(file, out));
+			}
+			System.out.printf("%s %5.1f MB: decode/re-encode send %6d ms, receive %6d ms, %5.1f MB sent%n", format,
+					file.length() / 1048576.0, l[0] / ROUNDS, l[1] / ROUNDS, l[2] / 1048576.0 / ROUNDS);
+			System.out.printf("%s %5.1f MB: passthrough       send %6d ms, receive %6d ms, %5.1f MB sent%n", format,
+					file.length() / 1048576.0, p[0] / ROUNDS, p[1] / ROUNDS, p[2] / 1048576.0 / ROUNDS);
+		}
+		for (File f : new File(dir, "received").listFiles())
+			f.delete();
+		new File(dir, "received").delete();
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	private static void add(long[] total, long[] r) {
+		for (int i = 0; i < total.length; i++)
+			total[i] += r[i];
+	}
+
+	// dégradés et bruit, pour une taille compressée proche de celle d'une photo
+	private static BufferedImage photo() {
+		BufferedImage img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Random rnd = new Random(24);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				int n = rnd.nextInt(16);
+				int r = (x * 255 / WIDTH + n) & 0xFF;
+				int g = (y * 255 / HEIGHT + n) & 0xFF;
+				int b = ((x ^ y) >> 4) & 0xFF;
+				img.setRGB(x, y, r << 16 | g << 8 | b);
+			}
+		}
+		return img;
+	}
+
+	// ancien fonctionnement : décodage et réencodage à l'envoi et à la réception
+	private static long[] legacy(File file, File out) throws IOException {
+		String format = file.getName().substring(file.getName().lastIndexOf('.') + 1);
+		long start = System.nanoTime();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ImageIO.write(ImageIO.read(file), format, bos);
+		byte[] msg = ImageTransfer.toBytes(new ImageTransfer(file.getName(), format, bos.toByteArray()));
+		long sent = System.nanoTime();
+		ImageTransfer it = ImageTransfer.fromBytes(msg);
+		ImageIO.write(ImageIO.read(new ByteArrayInputStream(it.getImageData())), format,
+				new File(out, it.getImageName()));
+		long received = System.nanoTime();
+		return new long[] { (sent - start) / 1_000_000, (received - sent) / 1_000_000, msg.length };
+	}
+
+	private static long[] passthrough(File file, File out) throws IOException {
+		long start = System.nanoTime();
+		byte[] msg = ImageTransfer.toBytes(ImageTransfer.fromImage(file));
+		long sent = System.nanoTime();
+		ImageTransfer.saveImage(msg, msg.length, out);
+		long received = System.nanoTime();
+		return new long[] { (sent - start) / 1_000_000, (received - sent) / 1_000_000, msg.length };
+	}
+}
@@ -6,8 +6,10 @@ import org.junit.jupiter.api.io.TempDir;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -102,4 +104,59 @@ class ImageTransferTest {
         // Vérifier le message d'erreur
         assertTrue(exception.getMessage().contains("Format d'image non supporté"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testFromImageKeepsOriginalBytes() throws IOException {
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        File jpeg = tempDir.resolve("photo.jpeg").toFile();
+        ImageIO.write(image, "jpg", jpeg);
+
+        ImageTransfer it = ImageTransfer.fromImage(jpeg);
+
+        // l'image n'est ni décodée ni réencodée
+        assertEquals("jpg", it.getImageFormat());
+        assertArrayEquals(Files.readAllBytes(jpeg.toPath()), it.getImageData());
+    }
+
+    @Test
+    void testFormatIsSniffedFromContent() throws IOException {
+        File fake = tempDir.resolve("fake.png").toFile();
+        Files.write(fake.toPath(), "pas une image".getBytes());
+
+        assertNull(ImageTransfer.sniffFormat(fake));
+        assertThrows(IOException.class, () -> ImageTransfer.fromImage(fake));
+        assertEquals("png", ImageTransfer.sniffFormat(sampleImageData, 0, sampleImageData.length));
+        assertNull(ImageTransfer.sniffFormat(sampleImageData, 0, 4));
+    }
+
+    @Test
+    void testSaveImageFromMessage() throws IOException {
+        byte[] serialized = ImageTransfer.toBytes(imageTransfer);
+        // tampon plus grand que le message, comme ceux du pool
+        byte[] buffer = new byte[serialized.length + 100];
+        System.arraycopy(serialized, 0, buffer, 0, serialized.length);
+
+        File saved = ImageTransfer.saveImage(buffer, serialized.length, tempDir.toFile());
+
+        assertEquals(tempDir.resolve("test.png").toFile(), saved);
+        assertArrayEquals(sampleImageData, Files.readAllBytes(saved.toPath()));
+    }
+
+    @Test
+    void testResizeAndTranscode() throws IOException {
+        BufferedImage image = new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB);
+        File png = tempDir.resolve("large.png").toFile();
+        ImageIO.write(image, "png", png);
+        ImageTransfer it = ImageTransfer.fromImage(png);
+
+        ImageTransfer small = it.resize(100);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(small.getImageData()));
+        assertEquals(100, decoded.getWidth());
+        assertEquals(50, decoded.getHeight());
+        assertSame(it, it.resize(1000));
+
+        ImageTransfer jpeg = it.transcode("jpeg");
+        assertEquals("large.jpg", jpeg.getImageName());
+        assertEquals("jpg", ImageTransfer.sniffFormat(jpeg.getImageData(), 0, jpeg.getImageData().length));
+    }
+}
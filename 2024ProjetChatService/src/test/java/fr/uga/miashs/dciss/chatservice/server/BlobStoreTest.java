@@ -0,0 +1,102 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.BlobProtocol;
+
+class BlobStoreTest {
+
+	@TempDir
+	Path dir;
+
+	private static byte[] content(int size) {
+		byte[] b = new byte[size];
+		new Random(size).nextBytes(b);
+		return b;
+	}
+
+	private static String store(BlobStore store, byte[] content) throws Exception {
+		byte[] hash = BlobProtocol.newDigest().digest(content);
+		BlobStore.Upload u = store.upload(hash, content.length);
+		u.write(ByteBuffer.wrap(content));
+		assertTrue(u.commit());
+		return u.getKey();
+	}
+
+	@Test
+	void testFileIsStoredUntilLastReference() throws Exception {
+		BlobStore store = new BlobStore(dir.toFile(), 0);
+		byte[] content = content(3 * BlobProtocol.CHUNK_SIZE + 5);
+		String key = store(store, content);
+		assertTrue(store.retain(key));
+		assertEquals(content.length, store.size(key));
+
+		// le dernier morceau est incomplet, et porte sa position
+		byte[] last = store.chunk(key, 3);
+		assertEquals(BlobProtocol.DATA_HEADER + 5, last.length);
+		assertEquals(3L * BlobProtocol.CHUNK_SIZE, ByteBuffer.wrap(last, 1 + BlobProtocol.HASH_SIZE, 8).getLong());
+		assertArrayEquals(Arrays.copyOfRange(content, content.length - 5, content.length),
+				Arrays.copyOfRange(last, BlobProtocol.DATA_HEADER, last.length));
+		assertNull(store.chunk(key, 4));
+
+		store.release(key);
+		assertTrue(Files.exists(dir.resolve(key)));
+		store.release(key);
+		assertFalse(store.contains(key));
+		assertFalse(Files.exists(dir.resolve(key)));
+		assertFalse(store.retain(key));
+	}
+
+	@Test
+	void testSameContentIsStoredOnce() throws Exception {
+		BlobStore store = new BlobStore(dir.toFile(), 0);
+		byte[] content = content(1000);
+		String key = store(store, content);
+		assertEquals(key, store(store, content));
+		assertEquals(1, store.getBlobCount());
+		assertEquals(1000, store.getStoredBytes());
+		try (Stream<Path> files = Files.list(dir)) {
+			assertEquals(1, files.count());
+		}
+	}
+
+	@Test
+	void testCorruptedUploadIsRejected() throws Exception {
+		BlobStore store = new BlobStore(dir.toFile(), 0);
+		byte[] content = content(1000);
+		BlobStore.Upload u = store.upload(BlobProtocol.newDigest().digest(content), content.length);
+		content[10]++;
+		u.write(ByteBuffer.wrap(content));
+		assertFalse(u.commit());
+		assertEquals(0, store.getBlobCount());
+		try (Stream<Path> files = Files.list(dir)) {
+			assertEquals(0, files.count());
+		}
+	}
+
+	@Test
+	void testCacheIsBounded() throws Exception {
+		int chunk = BlobProtocol.DATA_HEADER + BlobProtocol.CHUNK_SIZE;
+		BlobStore store = new BlobStore(dir.toFile(), 2L * chunk);
+		String key = store(store, content(4 * BlobProtocol.CHUNK_SIZE));
+		byte[] first = store.chunk(key, 0);
+		assertSame(first, store.chunk(key, 0));
+		store.chunk(key, 1);
+		store.chunk(key, 2);
+		// le morceau le moins récemment utilisé a été retiré
+		assertEquals(2L * chunk, store.getCachedBytes());
+		assertNotSame(first, store.chunk(key, 0));
+		assertEquals(1, store.getCacheHits());
+		assertEquals(4, store.getCacheMisses());
+	}
+}
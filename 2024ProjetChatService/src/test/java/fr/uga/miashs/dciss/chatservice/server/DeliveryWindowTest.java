@@ -0,0 +1,129 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+class DeliveryWindowTest {
+
+	private static List<Packet> packets(int n) {
+		List<Packet> res = new ArrayList<>();
+		for (int i = 1; i <= n; i++)
+			res.add(new Packet(0, 1, new byte[] { (byte) i }));
+		return res;
+	}
+
+	private static List<Integer> contents(List<Packet> packets) {
+		List<Integer> res = new ArrayList<>();
+		for (Packet p : packets)
+			res.add((int) p.data[0]);
+		return res;
+	}
+
+	@Test
+	void testResumeSendsTheFramesAfterTheLastProcessed() {
+		DeliveryWindow w = new DeliveryWindow();
+		int e = w.start();
+		assertEquals(1, w.resume(0));
+		w.addSent(e, packets(10));
+		w.written(e);
+		// acquittées jusqu'à la 3e, les autres sont gardées
+		w.ack(3);
+		assertEquals(7, w.size());
+
+		// la connexion est perdue, le client avait traité jusqu'à la 6e
+		e = w.start();
+		assertEquals(7, w.resume(6));
+		List<Packet> batch = new ArrayList<>();
+		assertEquals(4, w.next(e, batch, 64));
+		assertEquals(List.of(7, 8, 9, 10), contents(batch));
+		assertFalse(w.hasUnsent());
+	}
+
+	@Test
+	void testResumeBeyondTheLastFrameSent() {
+		DeliveryWindow w = new DeliveryWindow();
+		int e = w.start();
+		w.resume(0);
+		w.addSent(e, packets(5));
+		// un client qui a traité plus qu'envoyé reprend après la dernière trame
+		w.start();
+		assertEquals(6, w.resume(100));
+		assertEquals(0, w.size());
+		// et un client qui a tout oublié reprend à la première trame gardée
+		e = w.start();
+		w.addSent(e, packets(2));
+		w.start();
+		assertEquals(6, w.resume(0));
+		assertEquals(2, w.size());
+	}
+
+	@Test
+	void testFramesWrittenWithoutAcksAreForgotten() {
+		DeliveryWindow w = new DeliveryWindow();
+		int e = w.start();
+		w.addSent(e, packets(40));
+		w.written(e);
+		assertEquals(0, w.size());
+
+		// les paquets pas encore écrits sont envoyés à la connexion suivante
+		w.addSent(e, packets(3));
+		int next = w.start();
+		List<Packet> batch = new ArrayList<>();
+		// la connexion précédente n'obtient plus rien
+		assertEquals(0, w.next(e, batch, 64));
+		w.written(e);
+		assertEquals(3, w.next(next, batch, 64));
+		assertEquals(List.of(1, 2, 3), contents(batch));
+	}
+
+	@Test
+	void testFullWindowDropsTheOldestWrittenFrames() {
+		DeliveryWindow w = new DeliveryWindow(8, Long.MAX_VALUE, SendQueue.OverflowPolicy.DROP_OLDEST);
+		int e = w.start();
+		w.resume(0);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(w.hasRoom());
+			w.addSent(e, packets(4));
+			w.written(e);
+		}
+		// un client qui n'acquitte pas ne garde pas plus que la limite
+		assertTrue(w.hasRoom());
+		assertTrue(w.size() < 8, "" + w.size());
+		assertEquals(20 - w.size(), w.dropped());
+		// les trames oubliées ne sont plus envoyées de nouveau
+		e = w.start();
+		assertEquals(21 - w.size(), w.resume(0));
+	}
+
+	@Test
+	void testFullWindowWaitsForAcks() throws Exception {
+		DeliveryWindow w = new DeliveryWindow(8, Long.MAX_VALUE, SendQueue.OverflowPolicy.SPILL_TO_DISK);
+		int e = w.start();
+		w.resume(0);
+		w.addSent(e, packets(8));
+		w.written(e);
+		assertFalse(w.hasRoom());
+		assertEquals(8, w.size());
+		assertEquals(0, w.dropped());
+
+		Thread t = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException ex) {
+				return;
+			}
+			w.ack(4);
+		});
+		t.start();
+		w.awaitRoom(e);
+		assertTrue(w.hasRoom());
+		assertEquals(4, w.size());
+		t.join();
+	}
+}
@@ -0,0 +1,52 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+class FrameWriterTest {
+
+	@Test
+	void testBatchOfSmallAndLargePackets() throws Exception {
+		Random r = new Random(1);
+		Packet[] packets = new Packet[10];
+		for (int i = 0; i < packets.length; i++) {
+			// alternance de petits paquets recopiés et de gros paquets envoyés tels quels
+			byte[] data = new byte[i % 2 == 0 ? 10 + i : 50_000 + i];
+			r.nextBytes(data);
+			packets[i] = new Packet(i + 1, -i - 1, data);
+			// des paquets diffusés, dont l'en-tête et la charge utile sont partagés entre les deux envois
+			if (i % 3 == 0)
+				packets[i].setShared();
+		}
+		FrameWriter w = new FrameWriter(packets.length);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (int round = 0; round < 2; round++) {
+			for (Packet p : packets)
+				w.add(p);
+			assertThrows(IllegalStateException.class, () -> w.add(packets[0]));
+			w.writeFully(Channels.newChannel(bos));
+			w.clear();
+		}
+
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		for (int round = 0; round < 2; round++) {
+			for (Packet p : packets) {
+				assertEquals(p.srcId, dis.readInt());
+				assertEquals(p.destId, dis.readInt());
+				byte[] data = new byte[dis.readInt()];
+				dis.readFully(data);
+				assertArrayEquals(p.data, data);
+			}
+		}
+		assertEquals(0, dis.available());
+	}
+}
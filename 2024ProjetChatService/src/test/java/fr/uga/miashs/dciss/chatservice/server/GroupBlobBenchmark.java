@@ -0,0 +1,140 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import fr.uga.miashs.dciss.chatservice.common.BlobProtocol;
+import fr.uga.miashs.dciss.chatservice.common.FileStream;
+
+/**
+ * Memory held by the server when a 50 MB file is posted to a group of 500
+ * members who are all offline: relayed as a chunked stream, every chunk stays
+ * referenced by the 500 send queues until the members come back; with the blob
+ * store, the file is on disk once and the queues only hold a descriptor. The
+ * last measure is taken after each member has fetched the first window of the
+ * file, whose chunks are shared through the cache of the store.
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.uga.miashs.dciss.chatservice.server.GroupBlobBenchmark
+ */
+public class GroupBlobBenchmark {
+
+	private static final int MEMBERS = 500;
+	private static final int FILE_SIZE = 50 * 1024 * 1024;
+
+	private static long usedMemory() {
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		long direct = 0;
+		for (BufferPoolMXBean b : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+			if (b.getName().equals("direct"))
+				direct = b.getMemoryUsed();
+		return heap + direct;
+	}
+
+	public static void main(String[] args) throws IOException {
+		byte[] content = new byte[FILE_SIZE];
+		new Random(1).nextBytes(content);
+		File blobDir = Files.createTempDirectory("blob-bench").toFile();
+
+		long base = usedMemory();
+		ServerMsg server = newServer(blobDir);
+		GroupMsg g = newGroup(server);
+		int sender = g.getOwner().getId();
+		relay(server, sender, g.getId(), content);
+		report("relayed stream", usedMemory() - base, server, g);
+		server.stop();
+		server = null;
+		g = null;
+
+		base = usedMemory();
+		server = newServer(blobDir);
+		g = newGroup(server);
+		sender = g.getOwner().getId();
+		byte[] hash = post(server, sender, g.getId(), content);
+		report("blob store    ", usedMemory() - base, server, g);
+		BlobStore store = server.getBlobStore();
+		System.out.printf("  stored %d file(s), %d MB on disk%n", store.getBlobCount(), store.getStoredBytes() >> 20);
+
+		int window = BlobProtocol.MAX_FETCH_CHUNKS * BlobProtocol.CHUNK_SIZE;
+		for (UserMsg m : g.getMembers())
+			if (m.getId() != sender)
+				server.processReceived(m, 0, BlobProtocol.fetch(hash, 0, window), BlobProtocol.DATA_HEADER + 4);
+		report("after fetches ", usedMemory() - base, server, g);
+		System.out.printf("  cache %d KB, %d hits, %d misses%n", store.getCachedBytes() >> 10, store.getCacheHits(),
+				store.getCacheMisses());
+		server.stop();
+		blobDir.delete();
+	}
+
+	private static ServerMsg newServer(File blobDir) throws IOException {
+		// les membres ne sont pas connectés : leurs paquets restent en mémoire
+		return new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1).setBlobDir(blobDir)
+				.setOfflineSegmentBytes(0));
+	}
+
+	private static GroupMsg newGroup(ServerMsg server) {
+		List<UserMsg> members = new ArrayList<>();
+		for (int i = 0; i < MEMBERS; i++)
+			members.add(server.getUser(server.newUser()));
+		GroupMsg g = server.createGroup(members.get(0).getId());
+		members.forEach(g::addMember);
+		return g;
+	}
+
+	private static void report(String mode, long held, ServerMsg server, GroupMsg g) {
+		long queued = 0;
+		int packets = 0;
+		for (UserMsg m : g.getMembers()) {
+			queued += m.getQueuedBytes();
+			packets += m.getQueueDepth();
+		}
+		System.out.printf("%s: %6.1f MB held, %7d packets queued, %8.1f MB counted by the queues%n", mode,
+				held / 1048576.0, packets, queued / 1048576.0);
+	}
+
+	// envoi historique : le flux de morceaux est relayé à tous les membres
+	private static void relay(ServerMsg server, int sender, int groupId, byte[] content) throws IOException {
+		UserMsg u = server.getUser(sender);
+		int chunkSize = FileStream.DEFAULT_CHUNK_SIZE;
+		byte[] offer = FileStream.offer(1, "big.bin", content.length, chunkSize);
+		server.processReceived(u, groupId, offer, offer.length);
+		int chunks = FileStream.chunkCount(content.length, chunkSize);
+		for (int seq = 0; seq < chunks; seq++) {
+			int pos = seq * chunkSize;
+			int length = Math.min(chunkSize, content.length - pos);
+			byte[] buf = server.payloadBuffer(groupId, FileStream.CHUNK_HEADER + length);
+			ByteBuffer b = ByteBuffer.wrap(buf);
+			FileStream.chunkHeader(b, 1, seq, 0);
+			b.put(content, pos, length);
+			server.processReceived(u, groupId, buf, FileStream.CHUNK_HEADER + length);
+		}
+		byte[] end = FileStream.control(FileStream.END, 1, chunks);
+		server.processReceived(u, groupId, end, end.length);
+	}
+
+	// envoi au BlobStore, suivi du descripteur envoyé aux membres
+	private static byte[] post(ServerMsg server, int sender, int groupId, byte[] content) throws IOException {
+		UserMsg u = server.getUser(sender);
+		byte[] hash = BlobProtocol.newDigest().digest(content);
+		byte[] offer = BlobProtocol.offer(hash, content.length, groupId, BlobProtocol.KIND_FILE, "big.bin");
+		server.processReceived(u, 0, offer, offer.length);
+		for (int pos = 0; pos < content.length; pos += BlobProtocol.CHUNK_SIZE) {
+			int length = Math.min(BlobProtocol.CHUNK_SIZE, content.length - pos);
+			byte[] buf = server.payloadBuffer(0, BlobProtocol.DATA_HEADER + length);
+			ByteBuffer b = ByteBuffer.wrap(buf);
+			BlobProtocol.dataHeader(b, hash, pos);
+			b.put(content, pos, length);
+			server.processReceived(u, 0, buf, buf.length);
+		}
+		return hash;
+	}
+}
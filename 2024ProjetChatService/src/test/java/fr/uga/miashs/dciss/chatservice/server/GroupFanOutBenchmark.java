@@ -0,0 +1,102 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Compares the cost of delivering group messages when each recipient
+ * serializes its own frame and when GroupMsg.process marks the packet as
+ * shared, so that the recipients send the header serialized once and a view of
+ * the payload. The send loops are simulated by FrameWriters
+ * writing to /dev/null through a FileChannel, which like a socket channel
+ * copies heap buffers into a temporary direct buffer.
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.uga.miashs.dciss.chatservice.server.GroupFanOutBenchmark
+ */
+public class GroupFanOutBenchmark {
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+	}
+
+	public static void main(String[] args) throws IOException {
+		// les membres ne sont pas connectés : leurs paquets restent en mémoire
+		ServerMsg server = new ServerMsg(0, new ServerConfig().setOfflineSegmentBytes(0));
+		int nextId = 1;
+		for (int size : new int[] { 10, 1_000, 10_000 }) {
+			List<UserMsg> members = new ArrayList<>();
+			for (int i = 0; i < size; i++) {
+				UserMsg u = new UserMsg(nextId++, server);
+				server.addUser(u);
+				members.add(u);
+			}
+			GroupMsg g = server.createGroup(members.get(0).getId());
+			members.forEach(g::addMember);
+			for (int payload : new int[] { 1024, 32 * 1024 }) {
+				int messages = Math.max(10, 200_000 / size);
+				for (int warmup = 0; warmup < 3; warmup++) {
+					run(g, members, messages, payload, false);
+					run(g, members, messages, payload, true);
+				}
+				report(size, payload, "per recipient", run(g, members, messages, payload, false));
+				report(size, payload, "shared header", run(g, members, messages, payload, true));
+			}
+		}
+		server.stop();
+	}
+
+	private static void report(int size, int payload, String mode, long[] res) {
+		System.out.printf("group %6d members, payload %6d bytes, %s: %8.1f ns/delivery, %6.1f bytes allocated/delivery%n",
+				size, payload, mode, (double) res[0] / res[2], (double) res[1] / res[2]);
+	}
+
+	/*
+	 * Envoie les messages au groupe puis vide la file de chaque membre. Retourne
+	 * la durée, les octets alloués et le nombre de livraisons.
+	 */
+	private static long[] run(GroupMsg g, List<UserMsg> members, int messages, int payload, boolean shared)
+			throws IOException {
+		FrameWriter writer = new FrameWriter(64);
+		FileChannel ch = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+		List<Packet> batch = new ArrayList<>();
+		byte[] data = new byte[payload];
+		int sender = members.get(0).getId();
+		long deliveries = 0;
+		long alloc = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			Packet p = new Packet(sender, g.getId(), data);
+			if (shared) {
+				g.process(p);
+			} else {
+				// diffusion historique : chaque envoi sérialise sa propre trame
+				for (UserMsg m : members) {
+					if (m.getId() != sender)
+						m.process(p);
+				}
+			}
+			for (UserMsg m : members) {
+				while (m.drainOutgoing(m.getEpoch(), batch, writer.maxPackets()) > 0) {
+					for (Packet q : batch)
+						writer.add(q);
+					writer.writeFully(ch);
+					writer.clear();
+					m.written(m.getEpoch());
+					deliveries += batch.size();
+					batch.clear();
+				}
+			}
+		}
+		long[] res = { System.nanoTime() - start, allocatedBytes() - alloc, deliveries };
+		ch.close();
+		return res;
+	}
+}
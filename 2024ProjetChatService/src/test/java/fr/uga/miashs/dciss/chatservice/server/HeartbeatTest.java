@@ -0,0 +1,98 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.client.ClientMsg;
+
+class HeartbeatTest {
+
+	private ServerMsg server;
+
+	@AfterEach
+	void tearDown() {
+		if (server != null)
+			server.stop();
+	}
+
+	private void start(ServerConfig.Mode mode) throws Exception {
+		server = new ServerMsg(0, new ServerConfig().setMode(mode).setIoThreads(1).setHeartbeatIntervalMillis(100)
+				.setHeartbeatTimeoutMillis(100));
+		new Thread(server::start).start();
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 500 && !condition.getAsBoolean(); i++)
+			Thread.sleep(10);
+		assertTrue(condition.getAsBoolean());
+	}
+
+	@Test
+	void testSilentConnectionIsReapedNio() throws Exception {
+		start(ServerConfig.Mode.NIO);
+		checkSilentConnectionIsReaped();
+	}
+
+	@Test
+	void testSilentConnectionIsReapedBlocking() throws Exception {
+		// boucles bloquantes : le mode POOLED n'a qu'un thread sur une machine à un processeur
+		assumeTrue(ServerConfig.virtualThreadsSupported(), "virtual threads require Java 21");
+		start(ServerConfig.Mode.VIRTUAL);
+		checkSilentConnectionIsReaped();
+	}
+
+	private void checkSilentConnectionIsReaped() throws Exception {
+		int id = server.newUser();
+		UserMsg user = server.getUser(id);
+		// connexion qui ne lit rien et ne répond pas aux pings, comme une connexion à moitié ouverte
+		try (Socket dead = new Socket("localhost", server.getPort())) {
+			DataOutputStream dos = new DataOutputStream(dead.getOutputStream());
+			dos.writeInt(id);
+			dos.flush();
+			await(user::isConnected);
+
+			// tant qu'elle est ouverte, l'utilisateur ne peut pas se reconnecter
+			ClientMsg early = new ClientMsg(id, "localhost", server.getPort());
+			early.startSession();
+			await(() -> !early.isConnected());
+
+			await(() -> !user.isConnected());
+			assertEquals(1, server.getHeartbeats().getReaped());
+			assertTrue(server.getHeartbeats().getPingsSent() >= 1);
+		}
+
+		// le client qui répond aux pings garde sa connexion
+		ClientMsg client = new ClientMsg(id, "localhost", server.getPort());
+		client.startSession();
+		await(user::isConnected);
+		long pings = server.getHeartbeats().getPingsSent();
+		await(() -> server.getHeartbeats().getPingsSent() >= pings + 2);
+		assertTrue(client.isConnected());
+		assertTrue(user.isConnected());
+		assertEquals(1, server.getHeartbeats().getReaped());
+		client.closeSession();
+	}
+
+	@Test
+	void testActiveConnectionIsNotPinged() throws Exception {
+		start(ServerConfig.Mode.NIO);
+		int id = server.newUser();
+		ClientMsg client = new ClientMsg(id, "localhost", server.getPort());
+		client.startSession();
+		await(() -> server.getUser(id).isConnected());
+		// un paquet toutes les 20 ms : les vérifications le voient toujours actif
+		for (int i = 0; i < 50; i++) {
+			client.sendPacket(id, new byte[] { 'x' });
+			Thread.sleep(20);
+		}
+		assertEquals(0, server.getHeartbeats().getPingsSent());
+		client.closeSession();
+	}
+}
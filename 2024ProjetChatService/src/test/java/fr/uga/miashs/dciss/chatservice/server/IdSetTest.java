@@ -0,0 +1,104 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Iterator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class IdSetTest {
+
+	private ServerMsg server;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new ServerMsg(0);
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	void testAddRemoveContains() {
+		IdSet<UserMsg> set = new IdSet<>(UserMsg.class, UserMsg::getId);
+		UserMsg u3 = new UserMsg(3, server);
+		UserMsg u1 = new UserMsg(1, server);
+		assertTrue(set.add(u3));
+		assertTrue(set.add(u1));
+		assertFalse(set.add(u1));
+		assertEquals(2, set.size());
+		assertTrue(set.containsId(3));
+		assertSame(u1, set.get(1));
+		// un autre objet avec le même id n'est pas dans l'ensemble
+		assertFalse(set.contains(new UserMsg(1, server)));
+		assertFalse(set.contains("1"));
+
+		Iterator<UserMsg> it = set.iterator();
+		assertSame(u1, it.next());
+		assertSame(u3, it.next());
+
+		assertTrue(set.remove(u1));
+		assertFalse(set.remove(u1));
+		assertFalse(set.containsId(1));
+		assertNull(set.get(1));
+	}
+
+	@Test
+	void testAddAllMergesInOrder() {
+		IdSet<UserMsg> set = new IdSet<>(UserMsg.class, UserMsg::getId);
+		UserMsg u4 = new UserMsg(4, server);
+		set.add(new UserMsg(2, server));
+		set.add(u4);
+		// doublons dans la liste et avec l'ensemble
+		assertTrue(set.addAll(java.util.List.of(new UserMsg(5, server), new UserMsg(1, server), new UserMsg(4, server),
+				new UserMsg(3, server), new UserMsg(1, server))));
+		assertEquals(5, set.size());
+		int expected = 1;
+		for (UserMsg u : set)
+			assertEquals(expected++, u.getId());
+		assertSame(u4, set.get(4));
+		assertFalse(set.addAll(java.util.List.of(u4)));
+	}
+
+	@Test
+	void testIterationSeesSnapshot() {
+		IdSet<UserMsg> set = new IdSet<>(UserMsg.class, UserMsg::getId);
+		for (int i = 1; i <= 5; i++)
+			set.add(new UserMsg(i, server));
+		int n = 0;
+		for (UserMsg u : set) {
+			// les modifications pendant le parcours ne sont pas vues
+			set.add(new UserMsg(u.getId() + 100, server));
+			n++;
+		}
+		assertEquals(5, n);
+		assertEquals(10, set.size());
+	}
+
+	@Test
+	void testGroupMembershipIsBidirectional() {
+		UserMsg owner = new UserMsg(1, server);
+		UserMsg member = new UserMsg(2, server);
+		server.addUser(owner);
+		server.addUser(member);
+		GroupMsg g = server.createGroup(1);
+		assertTrue(g.addMember(member));
+		assertTrue(member.getGroups().containsId(g.getId()));
+		assertTrue(g.getMembers().containsId(2));
+
+		assertTrue(member.removeGroup(g));
+		assertFalse(g.getMembers().contains(member));
+		assertFalse(member.getGroups().contains(g));
+		// le propriétaire ne peut pas être retiré
+		assertFalse(g.removeMember(owner));
+
+		g.addMember(member);
+		server.removeGroup(g.getId());
+		assertTrue(member.getGroups().isEmpty());
+		assertTrue(owner.getGroups().isEmpty());
+	}
+}
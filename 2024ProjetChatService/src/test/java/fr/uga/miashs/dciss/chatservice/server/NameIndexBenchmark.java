@@ -0,0 +1,80 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prefix queries on the index of the nicknames: names are registered one by
+ * one, then pages of 20 names are asked for random prefixes of 1 to 4
+ * letters. The latency is compared with a scan of a map of the lowercased
+ * names, the only way to find them by prefix before the index.
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.uga.miashs.dciss.chatservice.server.NameIndexBenchmark
+ * -Dexec.args="[names] [queries]"
+ */
+public class NameIndexBenchmark {
+
+	private static final String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int queries = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+		Random rnd = new Random(3);
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder sb = new StringBuilder();
+			int len = 5 + rnd.nextInt(8);
+			for (int k = 0; k < len; k++) {
+				char c = LETTERS.charAt(rnd.nextInt(LETTERS.length()));
+				sb.append(k == 0 ? Character.toUpperCase(c) : c);
+			}
+			names[i] = sb.append(i).toString();
+		}
+
+		for (int run = 0; run < 3; run++) {
+			long t0 = System.nanoTime();
+			NameIndex index = new NameIndex();
+			for (int i = 0; i < count; i++)
+				index.put(names[i], i + 1);
+			long built = System.nanoTime() - t0;
+
+			long[] latencies = new long[queries];
+			long found = 0;
+			for (int q = 0; q < queries; q++) {
+				String prefix = prefix(rnd);
+				long s = System.nanoTime();
+				List<NameIndex.Entry> page = index.query(prefix, null, 20, null);
+				latencies[q] = System.nanoTime() - s;
+				found += page.size();
+			}
+			Arrays.sort(latencies);
+			System.out.printf("index: %,d names registered in %d ms, query p50 %.1f µs, p99 %.1f µs, max %.1f µs"
+					+ " (%.1f names per page)%n", index.size(), built / 1_000_000, latencies[queries / 2] / 1e3,
+					latencies[queries * 99 / 100] / 1e3, latencies[queries - 1] / 1e3, (double) found / queries);
+		}
+
+		// recherche par préfixe dans une map, comme l'ancien ServerMsg.nicknames
+		Map<String, Integer> map = new ConcurrentHashMap<>();
+		for (int i = 0; i < count; i++)
+			map.put(names[i].toLowerCase(), i + 1);
+		int scans = 50;
+		long t0 = System.nanoTime();
+		for (int q = 0; q < scans; q++) {
+			String prefix = prefix(rnd);
+			map.keySet().stream().filter(k -> k.startsWith(prefix)).sorted().limit(20).count();
+		}
+		System.out.printf("map scan: %.1f µs per query%n", (System.nanoTime() - t0) / 1e3 / scans);
+	}
+
+	private static String prefix(Random rnd) {
+		int len = 1 + rnd.nextInt(4);
+		StringBuilder sb = new StringBuilder();
+		for (int k = 0; k < len; k++)
+			sb.append(LETTERS.charAt(rnd.nextInt(LETTERS.length())));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,135 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+class NameIndexTest {
+
+	private static List<String> names(List<NameIndex.Entry> entries) {
+		List<String> res = new ArrayList<>();
+		for (NameIndex.Entry e : entries)
+			res.add(e.name);
+		return res;
+	}
+
+	@Test
+	void testPrefixIgnoresCase() {
+		NameIndex index = new NameIndex();
+		index.put("Alice", 1);
+		index.put("alfred", 2);
+		index.put("Bob", 3);
+		index.put("ALBERT", 4);
+		assertEquals(List.of("ALBERT", "alfred", "Alice"), names(index.query("AL", null, 10, null)));
+		assertEquals(List.of("Bob"), names(index.query("b", null, 10, null)));
+		assertTrue(index.query("z", null, 10, null).isEmpty());
+		assertEquals(1, index.get("aLiCe"));
+		assertNull(index.get("ali"));
+	}
+
+	@Test
+	void testPagesFollowTheLastName() {
+		NameIndex index = new NameIndex();
+		for (int i = 0; i < 25; i++)
+			index.put(String.format("user%02d", i), i + 1);
+		List<String> all = new ArrayList<>();
+		String after = null;
+		List<NameIndex.Entry> page;
+		do {
+			page = index.query("user", after, 10, null);
+			all.addAll(names(page));
+			if (!page.isEmpty())
+				after = page.get(page.size() - 1).name;
+		} while (page.size() == 10);
+		assertEquals(25, all.size());
+		assertEquals("user00", all.get(0));
+		assertEquals("user24", all.get(24));
+	}
+
+	@Test
+	void testFilteredIdsAreSkipped() {
+		NameIndex index = new NameIndex();
+		for (int i = 1; i <= 10; i++)
+			index.put("g" + i, i);
+		assertEquals(List.of("g10", "g2", "g4"), names(index.query("g", null, 3, id -> id % 2 == 0)));
+	}
+
+	@Test
+	void testMergedNamesMatchASortedMap() {
+		// assez de noms pour plusieurs fusions, dont des noms enregistrés de nouveau
+		NameIndex index = new NameIndex();
+		TreeMap<String, Integer> expected = new TreeMap<>();
+		for (int i = 0; i < 20_000; i++) {
+			String name = "n" + Integer.toString(i * 7919 % 12_000, 36);
+			index.put(name, i);
+			expected.put(name, i);
+		}
+		assertEquals(expected.size(), index.size());
+		List<NameIndex.Entry> all = new ArrayList<>();
+		index.forEach(all::add);
+		assertEquals(new ArrayList<>(expected.keySet()), names(all));
+		for (NameIndex.Entry e : all)
+			assertEquals(expected.get(e.name), e.id);
+		List<String> prefixed = new ArrayList<>(expected.subMap("n1a", "n1b").keySet());
+		assertEquals(prefixed.subList(0, Math.min(50, prefixed.size())), names(index.query("n1a", null, 50, null)));
+	}
+
+	@Test
+	void testPutAllReplacesTheSameNames() {
+		NameIndex index = new NameIndex();
+		index.put("Alice", 1);
+		index.put("bob", 2);
+		index.putAll(List.of("carol", "ALICE", "dave", "Dave"), new int[] { 3, 4, 5, 6 });
+		assertEquals(4, index.size());
+		assertEquals(4, index.get("alice"));
+		assertEquals(6, index.get("dave"));
+		assertEquals(List.of("ALICE", "bob", "carol", "Dave"), names(index.query("", null, 10, null)));
+		index.put("anna", 7);
+		assertEquals(List.of("ALICE", "anna"), names(index.query("a", null, 10, null)));
+	}
+
+	@Test
+	void testRemovedNamesAreHidden() {
+		NameIndex index = new NameIndex();
+		index.putAll(List.of("Alice", "bob"), new int[] { 1, 2 });
+		index.put("carol", 3);
+		// seul l'identifiant qui porte le nom peut le retirer
+		assertFalse(index.remove("alice", 2));
+		assertTrue(index.remove("ALICE", 1));
+		assertTrue(index.remove("carol", 3));
+		assertFalse(index.remove("alice", 1));
+		assertNull(index.get("alice"));
+		assertNull(index.get("carol"));
+		assertEquals(1, index.size());
+		assertEquals(List.of("bob"), names(index.query("", null, 10, null)));
+		index.put("alice", 4);
+		assertEquals(4, index.get("Alice"));
+		assertEquals(List.of("alice", "bob"), names(index.query("", null, 10, null)));
+	}
+
+	@Test
+	void testRenamesMatchASortedMap() {
+		// chaque identifiant change de nom, à travers plusieurs fusions
+		NameIndex index = new NameIndex();
+		TreeMap<String, Integer> expected = new TreeMap<>();
+		String[] current = new String[3_000];
+		for (int i = 0; i < 20_000; i++) {
+			int id = i % current.length;
+			if (current[id] != null && index.remove(current[id], id))
+				expected.remove(current[id]);
+			current[id] = "n" + Integer.toString(i * 7919 % 12_000, 36);
+			index.put(current[id], id);
+			expected.put(current[id], id);
+		}
+		assertEquals(expected.size(), index.size());
+		List<NameIndex.Entry> all = new ArrayList<>();
+		index.forEach(all::add);
+		assertEquals(new ArrayList<>(expected.keySet()), names(all));
+		for (NameIndex.Entry e : all)
+			assertEquals(expected.get(e.name), e.id);
+	}
+}
@@ -0,0 +1,188 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.client.ClientMsg;
+import fr.uga.miashs.dciss.chatservice.common.Compression;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+class NioServerTest {
+
+	private ServerMsg server;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(2));
+		new Thread(server::start).start();
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	// connecte un ClientMsg inchangé, le pseudo demandé est lu sur System.in
+	private ClientMsg connect(String nickname, BlockingQueue<Packet> received) throws Exception {
+		return connect(nickname, received, false);
+	}
+
+	private ClientMsg connect(String nickname, BlockingQueue<Packet> received, boolean compression)
+			throws Exception {
+		InputStream in = System.in;
+		System.setIn(new ByteArrayInputStream((nickname + "\n").getBytes()));
+		try {
+			ClientMsg c = new ClientMsg("localhost", server.getPort());
+			c.setCompression(compression);
+			c.addMessageListener(received::add);
+			c.startSession();
+			return c;
+		} finally {
+			System.setIn(in);
+		}
+	}
+
+	// attend un paquet envoyé par un autre utilisateur que le serveur
+	private static Packet nextUserPacket(BlockingQueue<Packet> q) throws InterruptedException {
+		Packet p;
+		do {
+			p = q.poll(5, TimeUnit.SECONDS);
+			assertNotNull(p, "aucun paquet reçu");
+		} while (p.srcId == 0);
+		return p;
+	}
+
+	@Test
+	void testClientsExchangeMessages() throws Exception {
+		BlockingQueue<Packet> aliceBox = new LinkedBlockingQueue<>();
+		BlockingQueue<Packet> bobBox = new LinkedBlockingQueue<>();
+		ClientMsg alice = connect("alice", aliceBox);
+		ClientMsg bob = connect("bob", bobBox);
+		assertTrue(alice.getIdentifier() > 0);
+		assertNotEquals(alice.getIdentifier(), bob.getIdentifier());
+
+		alice.sendPacket(bob.getIdentifier(), "bonjour".getBytes());
+		Packet p = nextUserPacket(bobBox);
+		assertEquals(alice.getIdentifier(), p.srcId);
+		assertEquals(bob.getIdentifier(), p.destId);
+		assertEquals("bonjour", new String(p.data));
+
+		// un paquet plus grand que le tampon de lecture
+		byte[] big = new byte[200_000];
+		new java.util.Random(42).nextBytes(big);
+		bob.sendPacket(alice.getIdentifier(), big);
+		assertArrayEquals(big, nextUserPacket(aliceBox).data);
+
+		alice.closeSession();
+		bob.closeSession();
+	}
+
+	@Test
+	void testReconnectWithExistingId() throws Exception {
+		BlockingQueue<Packet> box = new LinkedBlockingQueue<>();
+		ClientMsg first = connect("carol", box);
+		int id = first.getIdentifier();
+		first.closeSession();
+		// le serveur doit avoir libéré la session avant la reconnexion
+		UserMsg u = server.getUser(id);
+		for (int i = 0; i < 50 && u.isConnected(); i++)
+			Thread.sleep(100);
+		assertFalse(u.isConnected());
+
+		ClientMsg again = new ClientMsg(id, "localhost", server.getPort());
+		BlockingQueue<Packet> againBox = new LinkedBlockingQueue<>();
+		again.addMessageListener(againBox::add);
+		again.startSession();
+		BlockingQueue<Packet> otherBox = new LinkedBlockingQueue<>();
+		ClientMsg other = connect("dave", otherBox);
+		other.sendPacket(id, "re".getBytes());
+		assertEquals("re", new String(nextUserPacket(againBox).data));
+		again.closeSession();
+		other.closeSession();
+	}
+
+	@Test
+	void testOversizedFrameClosesConnection() throws Exception {
+		try (Socket s = new Socket("localhost", server.getPort())) {
+			s.setSoTimeout(5000);
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.writeInt(0);
+			out.flush();
+			assertTrue(in.readInt() > 0);
+			// la longueur annoncée dépasse maxFrameSize : rien n'est alloué
+			out.writeInt(1);
+			out.writeInt(Integer.MAX_VALUE);
+			out.flush();
+			assertEquals(-1, in.read());
+		}
+	}
+
+	@Test
+	void testCompressedAndRawClientsExchangeMessages() throws Exception {
+		BlockingQueue<Packet> aliceBox = new LinkedBlockingQueue<>();
+		BlockingQueue<Packet> bobBox = new LinkedBlockingQueue<>();
+		ClientMsg alice = connect("alice", aliceBox, true);
+		ClientMsg bob = connect("bob", bobBox);
+		assertTrue(alice.isCompressed());
+		assertFalse(bob.isCompressed());
+
+		// le message de bienvenue est reçu décompressé
+		Packet welcome = aliceBox.poll(5, TimeUnit.SECONDS);
+		assertNotNull(welcome);
+		assertTrue(new String(welcome.data, 0, welcome.length).startsWith("Bienvenue alice"));
+
+		byte[] text = String.join("", Collections.nCopies(2000, "une ligne de journal\n")).getBytes();
+		alice.sendPacket(bob.getIdentifier(), text);
+		assertArrayEquals(text, nextUserPacket(bobBox).toByteArray());
+		bob.sendPacket(alice.getIdentifier(), text);
+		assertArrayEquals(text, nextUserPacket(aliceBox).toByteArray());
+		alice.closeSession();
+		bob.closeSession();
+	}
+
+	@Test
+	void testCompressedFramesOnTheWire() throws Exception {
+		try (Socket s = new Socket("localhost", server.getPort())) {
+			s.setSoTimeout(5000);
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			out.writeInt(Compression.HELLO);
+			out.writeInt(Compression.DEFLATE);
+			out.writeInt(0);
+			out.flush();
+			assertEquals(Compression.DEFLATE, in.readInt());
+			int id = in.readInt();
+			assertTrue(id > 0);
+			// trame compressée envoyée à soi-même, revenue compressée
+			byte[] text = String.join("", Collections.nCopies(100, "bonjour ")).getBytes();
+			byte[] z = new Compression.Compressor(Compression.DEFAULT_THRESHOLD).compress(text, 0, text.length);
+			out.writeInt(id);
+			out.writeInt(Compression.FLAG | z.length);
+			out.write(z);
+			out.flush();
+			assertEquals(id, in.readInt());
+			assertEquals(id, in.readInt());
+			int length = in.readInt();
+			assertTrue((length & Compression.FLAG) != 0);
+			byte[] back = new byte[length & ~Compression.FLAG];
+			in.readFully(back);
+			byte[] raw = new byte[text.length];
+			new Compression.Decompressor().inflate(back, 0, back.length, raw, raw.length);
+			assertArrayEquals(text, raw);
+		}
+	}
+}
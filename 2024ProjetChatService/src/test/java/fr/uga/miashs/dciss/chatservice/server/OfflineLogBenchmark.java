@@ -0,0 +1,105 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+/**
+ * Heap used by the packets waiting for disconnected users, when they are kept
+ * in the send queues and when they are written to the SegmentLog. Small
+ * messages are sent round-robin to many offline users, then each user
+ * reconnects and its queue is drained, checking the order of its packets.
+ * The in-memory queues are given fewer packets, the cost per packet is what
+ * matters.
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.uga.miashs.dciss.chatservice.server.OfflineLogBenchmark
+ * -Dexec.args="[messages] [users]"
+ */
+public class OfflineLogBenchmark {
+
+	private static final int PAYLOAD = 32;
+	private static final int IN_MEMORY_MESSAGES = 1_000_000;
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	public static void main(String[] args) throws IOException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+		ServerConfig conf = new ServerConfig().setQueueMaxPackets(Integer.MAX_VALUE)
+				.setQueueMaxBytes(Long.MAX_VALUE).setOverflowPolicy(SendQueue.OverflowPolicy.DROP_NEWEST);
+		List<SendQueue> queues = new ArrayList<>();
+		long base = usedMemory();
+		for (int u = 0; u < users; u++)
+			queues.add(conf.newSendQueue());
+		run("in memory ", queues, Math.min(messages, IN_MEMORY_MESSAGES), base, null);
+		queues = null;
+
+		File dir = Files.createTempDirectory("offline-log").toFile();
+		SegmentLog log = new SegmentLog(dir, 64 * 1024 * 1024);
+		queues = new ArrayList<>();
+		base = usedMemory();
+		for (int u = 0; u < users; u++) {
+			SendQueue q = conf.newSendQueue(log.chain(u + 1));
+			q.setOffline(true);
+			queues.add(q);
+		}
+		run("segment log", queues, messages, base, log);
+		log.delete();
+	}
+
+	private static void run(String name, List<SendQueue> queues, int messages, long base, SegmentLog log) {
+		int users = queues.size();
+		ByteBuffer payload = ByteBuffer.allocate(PAYLOAD);
+		long t0 = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			int u = i % users;
+			// numéro d'ordre du message pour son destinataire
+			payload.clear();
+			payload.putInt(i / users);
+			queues.get(u).offer(new Packet(0, u + 1, payload.array().clone()));
+		}
+		long t1 = System.nanoTime();
+		long heap = usedMemory() - base;
+		System.out.printf("%s %,d messages for %,d users: append %6.0f ms (%5.2f M msg/s), heap %6.1f MB"
+				+ " (%5.1f bytes per message)%n", name, messages, users, (t1 - t0) / 1e6, messages * 1e3 / (t1 - t0),
+				heap / 1048576.0, (double) heap / messages);
+		if (log != null)
+			System.out.printf("             %d segments, %d MB on disk%n", log.getSegmentCount(),
+					log.getDiskBytes() >> 20);
+
+		// chaque utilisateur se reconnecte et reçoit ses paquets dans l'ordre
+		List<Packet> batch = new ArrayList<>();
+		long drained = 0;
+		long t2 = System.nanoTime();
+		for (SendQueue q : queues) {
+			q.setOffline(false);
+			int expected = 0;
+			while (q.drainTo(batch, 64) > 0) {
+				for (Packet p : batch)
+					if (ByteBuffer.wrap(p.data).getInt() != expected++)
+						throw new IllegalStateException("packet out of order for " + p.destId);
+				drained += batch.size();
+				batch.clear();
+			}
+		}
+		long t3 = System.nanoTime();
+		if (drained != messages)
+			throw new IllegalStateException(drained + " packets drained instead of " + messages);
+		System.out.printf("             drain %6.0f ms (%5.2f M msg/s)", (t3 - t2) / 1e6, messages * 1e3 / (t3 - t2));
+		if (log != null)
+			System.out.printf(", %d segments deleted, %d left", log.getDeletedSegments(), log.getSegmentCount());
+		System.out.println();
+	}
+}
@@ -0,0 +1,105 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.client.ClientMsg;
+import fr.uga.miashs.dciss.chatservice.client.PresenceListener;
+
+class PresenceTest {
+
+	private ServerMsg server;
+	private int alice, bob, carol, dave;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1)
+				.setPresenceBatchMillis(200));
+		alice = server.newUser();
+		bob = server.newUser();
+		carol = server.newUser();
+		dave = server.newUser();
+		// seuls alice et bob partagent un groupe
+		server.createGroup(alice).addMember(server.getUser(bob));
+		new Thread(server::start).start();
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	// client qui garde les changements de présence reçus, "id+" ou "id-"
+	private static class Client {
+		final ClientMsg msg;
+		final PresenceListener presence;
+		final List<String> changes = new CopyOnWriteArrayList<>();
+
+		Client(ServerMsg server, int id) throws Exception {
+			msg = new ClientMsg(id, "localhost", server.getPort());
+			presence = new PresenceListener(msg, (userId, online) -> changes.add(userId + (online ? "+" : "-")));
+			msg.addMessageListener(presence);
+			msg.addConnectionListener(presence);
+			msg.startSession();
+		}
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 500 && !condition.getAsBoolean(); i++)
+			Thread.sleep(10);
+		assertTrue(condition.getAsBoolean());
+	}
+
+	@Test
+	void testOnlyGroupPeersAndContactsAreNotified() throws Exception {
+		Client a = new Client(server, alice);
+		Client c = new Client(server, carol);
+		Client d = new Client(server, dave);
+		// dave suit carol comme contact, et apprend aussitôt qu'elle est là
+		d.presence.watch(carol);
+		await(() -> d.presence.isOnline(carol));
+
+		Client b = new Client(server, bob);
+		await(() -> a.presence.isOnline(bob));
+		// bob apprend à sa connexion qu'alice est là
+		await(() -> b.presence.isOnline(alice));
+
+		c.msg.closeSession();
+		await(() -> !d.presence.isOnline(carol));
+		Thread.sleep(300);
+		assertEquals(List.of(bob + "+"), a.changes);
+		assertEquals(List.of(alice + "+"), b.changes);
+		assertEquals(List.of(carol + "+", carol + "-"), d.changes);
+		// ni carol ni dave n'ont appris la connexion de bob
+		assertTrue(c.changes.isEmpty(), c.changes.toString());
+		a.msg.closeSession();
+		b.msg.closeSession();
+		d.msg.closeSession();
+	}
+
+	@Test
+	void testReconnectionWithinTheWindowIsNotAnnounced() throws Exception {
+		Client a = new Client(server, alice);
+		Client b = new Client(server, bob);
+		await(() -> a.presence.isOnline(bob));
+		Thread.sleep(300);
+		a.changes.clear();
+
+		b.msg.closeSession();
+		await(() -> !server.getUser(bob).isConnected());
+		b.msg.startSession();
+		await(() -> server.getUser(bob).isConnected());
+		Thread.sleep(400);
+		assertTrue(a.changes.isEmpty(), a.changes.toString());
+		assertTrue(server.getPresence().getChangesCoalesced() >= 1);
+		a.msg.closeSession();
+		b.msg.closeSession();
+	}
+}
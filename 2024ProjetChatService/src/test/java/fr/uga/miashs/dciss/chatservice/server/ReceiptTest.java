@@ -0,0 +1,191 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.client.ClientMsg;
+import fr.uga.miashs.dciss.chatservice.client.ReceiptListener;
+import fr.uga.miashs.dciss.chatservice.client.database.DatabaseManager;
+import fr.uga.miashs.dciss.chatservice.client.database.Message;
+import fr.uga.miashs.dciss.chatservice.client.database.MessageRepository;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.ReceiptProtocol;
+
+class ReceiptTest {
+
+	private ServerMsg server;
+	private int alice, bob, carol, dave;
+	private int group;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1)
+				.setReceiptBatchMillis(100));
+		alice = server.newUser();
+		bob = server.newUser();
+		carol = server.newUser();
+		dave = server.newUser();
+		GroupMsg g = server.createGroup(alice);
+		g.addMember(server.getUser(bob));
+		g.addMember(server.getUser(carol));
+		g.addMember(server.getUser(dave));
+		group = g.getId();
+		new Thread(server::start).start();
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	// client qui garde le dernier message ayant atteint chaque statut, par conversation
+	private static class Client {
+		final ClientMsg msg;
+		final ReceiptListener receipts;
+		final Map<String, Long> statuses = new ConcurrentHashMap<>();
+		final AtomicInteger numbered = new AtomicInteger();
+		final AtomicInteger receiptPackets = new AtomicInteger();
+
+		Client(ServerMsg server, int id, MessageRepository repository) throws Exception {
+			msg = new ClientMsg(id, "localhost", server.getPort());
+			receipts = new ReceiptListener(msg, repository, 50,
+					(conversationId, messageId, status) -> statuses.merge(conversationId + ":" + status, messageId,
+							Math::max));
+			msg.addMessageListener(receipts);
+			msg.addConnectionListener(receipts);
+			msg.addMessageListener(p -> {
+				if (p.length > 0 && p.data[0] == ReceiptProtocol.MESSAGE)
+					numbered.incrementAndGet();
+				if (p.length > 0 && p.data[0] == ReceiptProtocol.STATUS)
+					receiptPackets.incrementAndGet();
+			});
+			msg.startSession();
+		}
+
+		long status(int conversationId, int status) {
+			return statuses.getOrDefault(conversationId + ":" + status, 0L);
+		}
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 500 && !condition.getAsBoolean(); i++)
+			Thread.sleep(10);
+		assertTrue(condition.getAsBoolean());
+	}
+
+	@Test
+	void testGroupReceiptsAreCoalesced() throws Exception {
+		Client a = new Client(server, alice, null);
+		Client b = new Client(server, bob, null);
+		Client c = new Client(server, carol, null);
+		Client d = new Client(server, dave, null);
+		int count = 200;
+		AtomicLong last = new AtomicLong();
+		for (int i = 0; i < count; i++)
+			last.set(a.receipts.send(group, "message " + i));
+		await(() -> b.numbered.get() == count && c.numbered.get() == count && d.numbered.get() == count);
+		b.receipts.markRead(group);
+		c.receipts.markRead(group);
+
+		// tous les membres ont reçu les messages, dave ne les a pas encore lus
+		await(() -> a.status(group, Message.STATUS_RECEIVED) == last.get());
+		Thread.sleep(300);
+		assertEquals(0, a.status(group, Message.STATUS_READ));
+
+		d.receipts.markRead(group);
+		await(() -> a.status(group, Message.STATUS_READ) == last.get());
+		// quelques accusés par membre et quelques statuts pour l'expéditeur, au lieu d'un par message
+		assertTrue(server.getReceipts().getReceiptsReceived() < count, "" + server.getReceipts().getReceiptsReceived());
+		assertTrue(a.receiptPackets.get() <= 10, "" + a.receiptPackets.get());
+		assertEquals(a.receiptPackets.get(), server.getReceipts().getPacketsSent());
+		a.msg.closeSession();
+		b.msg.closeSession();
+		c.msg.closeSession();
+		d.msg.closeSession();
+	}
+
+	@Test
+	void testDirectStatusesAreSavedInTheRepository() throws Exception {
+		try (Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+			DatabaseManager.createTables(connection);
+			MessageRepository repository = new MessageRepository(connection);
+			Client a = new Client(server, alice, repository);
+			Client b = new Client(server, bob, null);
+			for (int i = 0; i < 3; i++)
+				a.receipts.send(bob, "message " + i);
+			await(() -> b.numbered.get() == 3);
+			await(() -> a.status(bob, Message.STATUS_RECEIVED) > 0);
+			List<Message> sent = repository.getMessageHistory(alice, bob);
+			assertEquals(3, sent.size());
+			sent.forEach(m -> assertEquals(Message.STATUS_RECEIVED, m.getStatus()));
+
+			b.receipts.markRead(alice);
+			await(() -> a.status(bob, Message.STATUS_READ) > 0);
+			repository.getMessageHistory(alice, bob).forEach(m -> assertEquals(Message.STATUS_READ, m.getStatus()));
+			a.msg.closeSession();
+			b.msg.closeSession();
+		}
+	}
+
+	@Test
+	void testReceiptsOnlyCoverTheRelayedMessages() throws Exception {
+		Client a = new Client(server, alice, null);
+		Client b = new Client(server, bob, null);
+		Client c = new Client(server, carol, null);
+		// carol n'a rien reçu d'alice : son accusé est ignoré
+		c.msg.sendPacket(0, ReceiptProtocol.receipt(new byte[] { ReceiptProtocol.READ }, new int[] { 0 },
+				new int[] { alice }, new long[] { Long.MAX_VALUE }));
+		long first = a.receipts.send(bob, "message");
+		await(() -> b.numbered.get() == 1);
+		// bob ne peut pas accuser plus que le message qu'il a reçu
+		b.msg.sendPacket(0, ReceiptProtocol.receipt(new byte[] { ReceiptProtocol.READ }, new int[] { 0 },
+				new int[] { alice }, new long[] { Long.MAX_VALUE }));
+		await(() -> a.status(bob, Message.STATUS_READ) == first);
+		Thread.sleep(300);
+		assertEquals(0, a.status(carol, Message.STATUS_READ));
+		assertEquals(first, a.status(bob, Message.STATUS_READ));
+		a.msg.closeSession();
+		b.msg.closeSession();
+		c.msg.closeSession();
+	}
+
+	@Test
+	void testRemovedMemberNoLongerHoldsTheStatus() throws Exception {
+		Client a = new Client(server, alice, null);
+		Client b = new Client(server, bob, null);
+		Client c = new Client(server, carol, null);
+		long last = a.receipts.send(group, "message");
+		await(() -> b.numbered.get() == 1 && c.numbered.get() == 1);
+		b.receipts.markRead(group);
+		c.receipts.markRead(group);
+		Thread.sleep(300);
+		// dave, déconnecté, n'a pas reçu le message
+		assertEquals(0, a.status(group, Message.STATUS_RECEIVED));
+
+		server.getPacketProcessor().removeMemberFromGroup(new Packet(alice, 0, new byte[0]),
+				Codecs.MEMBERSHIP.decode(ByteBuffer.allocate(8).putInt(group).putInt(dave).flip()));
+		// l'accusé suivant d'un membre restant donne le statut sans dave
+		long next = a.receipts.send(group, "message");
+		await(() -> b.numbered.get() == 2 && c.numbered.get() == 2);
+		b.receipts.markRead(group);
+		c.receipts.markRead(group);
+		await(() -> a.status(group, Message.STATUS_READ) == next);
+		assertTrue(next > last);
+		a.msg.closeSession();
+		b.msg.closeSession();
+		c.msg.closeSession();
+	}
+}
@@ -0,0 +1,135 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.client.ClientMsg;
+import fr.uga.miashs.dciss.chatservice.common.Compression;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.ResumeProtocol;
+
+class ResumeTest {
+
+	private ServerMsg server;
+	private int alice, bob;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1));
+		alice = server.newUser();
+		bob = server.newUser();
+		new Thread(server::start).start();
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 500 && !condition.getAsBoolean(); i++)
+			Thread.sleep(10);
+		assertTrue(condition.getAsBoolean());
+	}
+
+	// envoie les messages "m<from>" à "m<to - 1>" de bob à alice, par le serveur
+	private void send(int from, int to) {
+		for (int i = from; i < to; i++)
+			server.getUser(alice).process(new Packet(bob, alice, ("m" + i).getBytes()));
+	}
+
+	// connexion d'alice qui reprend après la trame lastSeq, retourne le numéro de la suivante
+	private static long handshake(Socket s, int id, long lastSeq) throws Exception {
+		DataOutputStream dos = new DataOutputStream(s.getOutputStream());
+		dos.writeInt(Compression.HELLO);
+		dos.writeInt(ResumeProtocol.RESUME);
+		dos.writeInt(id);
+		dos.writeLong(lastSeq);
+		dos.flush();
+		DataInputStream dis = new DataInputStream(s.getInputStream());
+		assertEquals(ResumeProtocol.RESUME, dis.readInt() & ResumeProtocol.RESUME);
+		return dis.readLong();
+	}
+
+	private static String readFrame(DataInputStream dis) throws Exception {
+		dis.readInt();
+		dis.readInt();
+		byte[] data = new byte[dis.readInt()];
+		dis.readFully(data);
+		return new String(data);
+	}
+
+	@Test
+	void testFramesReceivedButNotProcessedAreSentAgain() throws Exception {
+		send(0, 10);
+		try (Socket s = new Socket("localhost", server.getPort())) {
+			assertEquals(1, handshake(s, alice, 0));
+			DataInputStream dis = new DataInputStream(s.getInputStream());
+			// les 10 trames sont écrites, le client n'en traite que 4 avant de perdre la connexion
+			for (int i = 0; i < 4; i++)
+				assertEquals("m" + i, readFrame(dis));
+			await(() -> !server.getUser(alice).hasOutgoing());
+		}
+		await(() -> !server.getUser(alice).isConnected());
+		assertEquals(10, server.getUser(alice).getUnackedPackets());
+
+		send(10, 12);
+		try (Socket s = new Socket("localhost", server.getPort())) {
+			assertEquals(5, handshake(s, alice, 4));
+			DataInputStream dis = new DataInputStream(s.getInputStream());
+			for (int i = 4; i < 12; i++)
+				assertEquals("m" + i, readFrame(dis));
+			// les trames 1 à 4 ont été oubliées à la reprise
+			assertEquals(8, server.getUser(alice).getUnackedPackets());
+			new DataOutputStream(s.getOutputStream()).write(ackFrame(12));
+			await(() -> server.getUser(alice).getUnackedPackets() == 0);
+		}
+	}
+
+	private static byte[] ackFrame(long seq) {
+		byte[] ack = ResumeProtocol.ack(seq);
+		return ByteBuffer.allocate(8 + ack.length).putInt(0).putInt(ack.length).put(ack).array();
+	}
+
+	@Test
+	void testClientResumesWithoutDuplicates() throws Exception {
+		List<String> got = new CopyOnWriteArrayList<>();
+		ClientMsg a = new ClientMsg(alice, "localhost", server.getPort());
+		a.setResume(true);
+		a.addMessageListener(p -> {
+			if (p.srcId == bob)
+				got.add(new String(p.data, 0, p.length));
+		});
+		a.startSession();
+		await(() -> server.getUser(alice).isConnected());
+		send(0, 200);
+		await(() -> got.size() == 200);
+		// les trames sont acquittées par paquets de 64
+		await(() -> server.getUser(alice).getUnackedPackets() < 64);
+
+		a.closeSession();
+		await(() -> !server.getUser(alice).isConnected());
+		send(200, 250);
+		a.startSession();
+		await(() -> got.size() >= 250);
+		Thread.sleep(100);
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 250; i++)
+			expected.add("m" + i);
+		assertEquals(expected, got);
+		assertEquals(250, a.getLastFrame());
+		a.closeSession();
+	}
+}
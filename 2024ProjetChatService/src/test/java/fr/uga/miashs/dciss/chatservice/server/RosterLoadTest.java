@@ -0,0 +1,172 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.common.RosterProtocol;
+
+/**
+ * Login storm: clients connect to a server, then all send their nickname and
+ * subscribe to the roster at the same time. Each client must receive its
+ * snapshot and at most one delta per batch, instead of the nickname of every
+ * other login as the previous announcements did. Opt-in: the number of clients
+ * is given by the property chatservice.test.logins (5000 for the figure of the
+ * request), the test is skipped without it or when the file descriptor limit
+ * is too low.
+ *
+ * The clients are non-blocking channels read by a single selector, so that
+ * thousands of them fit in one process.
+ */
+class RosterLoadTest {
+
+	private static final int NB_LOGINS = Integer.getInteger("chatservice.test.logins", 0);
+
+	private static final long BATCH_MILLIS = 50;
+
+	// tampon de lecture commun, les clients ne gardent que l'état de la trame en cours
+	private static final ByteBuffer IN = ByteBuffer.allocate(1 << 20);
+
+	private ServerMsg server;
+	private final List<Client> clients = new ArrayList<>();
+
+	private static class Client {
+		final SocketChannel channel;
+		// en-tête [src][dest][longueur] de la trame en cours
+		final ByteBuffer header = ByteBuffer.allocate(12);
+		// octets de données de la trame en cours restant à lire, -1 pendant l'en-tête
+		int remaining = -1;
+		// le type de la trame en cours n'a pas encore été lu
+		boolean typePending;
+		long packets;
+		long rosterPackets;
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		// compte les trames [src][dest][longueur][données] complètes reçues
+		void read() throws IOException {
+			while (channel.read(IN.clear()) > 0) {
+				IN.flip();
+				while (IN.hasRemaining()) {
+					if (remaining < 0) {
+						while (header.hasRemaining() && IN.hasRemaining())
+							header.put(IN.get());
+						if (header.hasRemaining())
+							break;
+						remaining = header.getInt(8);
+						header.clear();
+						typePending = remaining > 0;
+					}
+					if (typePending && IN.hasRemaining()) {
+						if (IN.get(IN.position()) == RosterProtocol.UPDATE)
+							rosterPackets++;
+						typePending = false;
+					}
+					int skip = Math.min(remaining, IN.remaining());
+					IN.position(IN.position() + skip);
+					remaining -= skip;
+					if (remaining == 0) {
+						packets++;
+						remaining = -1;
+					}
+				}
+			}
+		}
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		for (Client c : clients)
+			c.channel.close();
+		if (server != null)
+			server.stop();
+	}
+
+	@Test
+	void testLoginStormSendsBatchedDeltas() throws Exception {
+		assumeTrue(NB_LOGINS > 0, "set chatservice.test.logins to run the login storm");
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+			long maxFd = ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+			// deux descripteurs par client (côté client et côté serveur)
+			assumeTrue(maxFd > 2L * NB_LOGINS + 500, "file descriptor limit too low: " + maxFd);
+		}
+
+		server = new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1)
+				.setOfflineSegmentBytes(0).setRosterBatchMillis(BATCH_MILLIS));
+		new Thread(server::start).start();
+
+		Selector selector = Selector.open();
+		ByteBuffer hello = ByteBuffer.allocate(4);
+		for (int i = 0; i < NB_LOGINS; i++) {
+			SocketChannel c = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()));
+			Client client = new Client(c);
+			clients.add(client);
+			hello.clear();
+			hello.putInt(0).flip();
+			c.write(hello);
+			// identifiant attribué par le serveur
+			hello.clear();
+			while (hello.hasRemaining())
+				assertTrue(c.read(hello) >= 0, "connection " + i + " closed by the server");
+			c.configureBlocking(false);
+			c.register(selector, SelectionKey.OP_READ, client);
+		}
+
+		// tous les clients envoient leur pseudo et s'abonnent au roster d'un coup
+		long start = System.nanoTime();
+		for (int i = 0; i < NB_LOGINS; i++) {
+			byte[] nickname = ("user" + i).getBytes();
+			byte[] sync = RosterProtocol.sync(0, 0);
+			ByteBuffer b = ByteBuffer.allocate(2 * 8 + 1 + nickname.length + sync.length);
+			b.putInt(0).putInt(1 + nickname.length).put(ServerMsg.NICKNAME).put(nickname);
+			b.putInt(0).putInt(sync.length).put(sync).flip();
+			while (b.hasRemaining())
+				clients.get(i).channel.write(b);
+		}
+
+		// lecture jusqu'à ce que tous les pseudos soient enregistrés et que le
+		// serveur se taise pendant une seconde
+		long registered = 0;
+		long last = System.nanoTime();
+		long deadline = last + 120_000_000_000L;
+		while (registered == 0 || System.nanoTime() - last < 1_000_000_000L) {
+			assertTrue(System.nanoTime() < deadline, "the server did not register all the nicknames in time");
+			if (registered == 0 && server.getRoster().getVersion() == NB_LOGINS)
+				registered = System.nanoTime();
+			if (selector.select(100) == 0)
+				continue;
+			for (SelectionKey k : selector.selectedKeys())
+				((Client) k.attachment()).read();
+			selector.selectedKeys().clear();
+			last = System.nanoTime();
+		}
+		selector.close();
+
+		// les envois du roster sont espacés d'au moins batchMillis, le dernier
+		// part au plus batchMillis après le dernier changement
+		long flushes = (registered - start) / 1_000_000 / BATCH_MILLIS + 2;
+		for (Client c : clients) {
+			// l'instantané répondant à l'abonnement, puis un delta par envoi
+			assertTrue(c.rosterPackets >= 1, "no roster received");
+			assertTrue(c.rosterPackets <= flushes + 1, c.rosterPackets + " roster packets for " + flushes + " flushes");
+			// les annonces précédentes envoyaient à chaque client un paquet par pseudo,
+			// il ne reste que le message de bienvenue
+			assertEquals(c.rosterPackets + 1, c.packets);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.client.ClientMsg;
+import fr.uga.miashs.dciss.chatservice.client.RosterListener;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+import fr.uga.miashs.dciss.chatservice.common.RosterProtocol;
+
+class RosterTest {
+
+	private static final int KNOWN = 20;
+
+	private ServerMsg server;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1)
+				.setRosterBatchMillis(100));
+		// des utilisateurs déjà connus, pour que les changements restent plus petits que le roster
+		for (int i = 0; i < KNOWN; i++) {
+			UserMsg u = server.getUser(server.newUser());
+			u.setNickname("known" + i);
+			server.registerNickname(u.getNickname(), u);
+		}
+		new Thread(server::start).start();
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	// client dont le roster est tenu à jour, et qui garde les mises à jour reçues
+	private static class Client {
+		final ClientMsg msg;
+		final RosterListener roster;
+		final List<Packet> updates = new CopyOnWriteArrayList<>();
+
+		Client(ServerMsg server) throws Exception {
+			msg = new ClientMsg("localhost", server.getPort());
+			roster = new RosterListener(msg, null);
+			msg.addMessageListener(roster);
+			msg.addConnectionListener(roster);
+			msg.addMessageListener(p -> {
+				if (RosterProtocol.isRoster(p))
+					updates.add(p);
+			});
+		}
+
+		int id() {
+			return msg.getIdentifier();
+		}
+	}
+
+	private Client connect(String nickname) throws Exception {
+		Client c = new Client(server);
+		InputStream in = System.in;
+		System.setIn(new ByteArrayInputStream((nickname + "\n").getBytes()));
+		try {
+			c.msg.startSession();
+		} finally {
+			System.setIn(in);
+		}
+		return c;
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 500 && !condition.getAsBoolean(); i++)
+			Thread.sleep(10);
+		assertTrue(condition.getAsBoolean());
+	}
+
+	@Test
+	void testJoinsAreBatched() throws Exception {
+		Client alice = connect("alice");
+		await(() -> alice.roster.getNicknames().size() == KNOWN + 1);
+		RosterProtocol.Update first = RosterProtocol.Update.fromPacket(alice.updates.get(0));
+		assertEquals(RosterProtocol.SNAPSHOT, first.kind);
+		// l'envoi de son propre changement
+		Thread.sleep(300);
+		alice.updates.clear();
+
+		// plusieurs arrivées pendant un même intervalle font un seul envoi
+		Client[] others = new Client[5];
+		for (int i = 0; i < others.length; i++)
+			others[i] = connect("user" + i);
+		await(() -> alice.roster.getNicknames().size() == KNOWN + 1 + others.length);
+		assertTrue(alice.updates.size() < others.length, alice.updates.size() + " updates");
+		assertEquals(RosterProtocol.DELTA, RosterProtocol.Update.fromPacket(alice.updates.get(0)).kind);
+		assertEquals("user4", alice.roster.getNickname(others[4].id()));
+		for (Client c : others)
+			c.msg.closeSession();
+		alice.msg.closeSession();
+	}
+
+	@Test
+	void testReturningClientOnlyReceivesWhatItMissed() throws Exception {
+		Client alice = connect("alice");
+		Client bob = connect("bob");
+		await(() -> alice.roster.getNicknames().size() == KNOWN + 2);
+		// le pseudo de bob peut être lu par l'instantané avant que le roster ne
+		// l'enregistre : la version du serveur est attendue avant celle d'alice
+		await(() -> server.getRoster().getVersion() == KNOWN + 2);
+		await(() -> alice.roster.getVersion() == KNOWN + 2);
+		long known = alice.roster.getVersion();
+		alice.msg.closeSession();
+		await(() -> !server.getUser(alice.id()).isConnected());
+
+		Client carol = connect("carol");
+		await(() -> carol.roster.getNicknames().size() == KNOWN + 3);
+		await(() -> server.getRoster().getVersion() == KNOWN + 3);
+		long snapshots = server.getRoster().getSnapshotsSent();
+		alice.updates.clear();
+		// la même session reprend avec la version qu'elle connaît
+		alice.msg.startSession();
+		await(() -> alice.roster.getNicknames().size() == KNOWN + 3);
+		assertEquals(snapshots, server.getRoster().getSnapshotsSent());
+		// réponse à la version envoyée, après ce qui restait dans la file d'alice
+		RosterProtocol.Update u = null;
+		for (Packet p : alice.updates) {
+			RosterProtocol.Update x = RosterProtocol.Update.fromPacket(p);
+			if (x.kind == RosterProtocol.DELTA && x.from == known)
+				u = x;
+		}
+		assertNotNull(u);
+		assertArrayEquals(new int[] { carol.id() }, u.userIds);
+		assertEquals("carol", alice.roster.getNickname(carol.id()));
+		assertEquals("bob", alice.roster.getNickname(bob.id()));
+		bob.msg.closeSession();
+		carol.msg.closeSession();
+		alice.msg.closeSession();
+	}
+}
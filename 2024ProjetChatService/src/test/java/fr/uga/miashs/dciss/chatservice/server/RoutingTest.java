@@ -0,0 +1,68 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+class RoutingTest {
+
+	private ServerMsg server;
+	private UserMsg alice;
+	private UserMsg bob;
+	private UserMsg eve;
+	private GroupMsg group;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new ServerMsg(0);
+		alice = new UserMsg(1, server);
+		bob = new UserMsg(2, server);
+		eve = new UserMsg(3, server);
+		server.addUser(alice);
+		server.addUser(bob);
+		server.addUser(eve);
+		group = server.createGroup(1);
+		group.addMember(bob);
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	void testMemberCanSendToGroup() {
+		server.processPacket(alice, new Packet(1, group.getId(), "hello".getBytes()));
+		assertEquals(1, bob.getQueueDepth());
+		assertEquals(0, alice.getQueueDepth());
+		assertEquals(0, eve.getQueueDepth());
+	}
+
+	@Test
+	void testNonMemberIsRejected() {
+		server.processPacket(eve, new Packet(3, group.getId(), "spam".getBytes()));
+		assertEquals(0, bob.getQueueDepth());
+		assertEquals(1, server.getNotMemberPackets());
+	}
+
+	@Test
+	void testUnknownDestinationsAreCounted() {
+		// un groupe inexistant ne provoque plus de NullPointerException
+		server.processPacket(new Packet(1, -999, "x".getBytes()));
+		server.processPacket(new Packet(1, 999, "x".getBytes()));
+		assertEquals(2, server.getUnknownDestPackets());
+		assertEquals(0, server.getNotMemberPackets());
+	}
+
+	@Test
+	void testRemovedMemberIsRejected() {
+		group.removeMember(bob);
+		server.processPacket(bob, new Packet(2, group.getId(), "bye".getBytes()));
+		assertEquals(0, alice.getQueueDepth());
+		assertEquals(1, server.getNotMemberPackets());
+	}
+}
@@ -0,0 +1,193 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.client.ClientMsg;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+class SegmentLogTest {
+
+	@TempDir
+	Path tempDir;
+
+	private static Packet packet(int dest, int i) {
+		return new Packet(1, dest, ("msg" + i).getBytes());
+	}
+
+	private static String next(SegmentLog.Chain c) throws Exception {
+		return new String(c.read().data);
+	}
+
+	@Test
+	void testChainsKeepTheirOrder() throws Exception {
+		SegmentLog log = new SegmentLog(tempDir.toFile(), 4096);
+		SegmentLog.Chain bob = log.chain(2);
+		SegmentLog.Chain eve = log.chain(3);
+		for (int i = 0; i < 100; i++) {
+			bob.append(packet(2, i));
+			if (i % 3 == 0)
+				eve.append(packet(3, i));
+		}
+		assertEquals(100, bob.size());
+		assertEquals(34, eve.size());
+		assertEquals(134, log.getPendingCount());
+		Packet p = bob.peek();
+		assertEquals(1, p.srcId);
+		assertEquals(2, p.destId);
+		for (int i = 0; i < 100; i++)
+			assertEquals("msg" + i, next(bob));
+		assertTrue(bob.isEmpty());
+		for (int i = 0; i < 100; i += 3)
+			assertEquals("msg" + i, next(eve));
+		assertEquals(0, log.getPendingCount());
+		log.delete();
+	}
+
+	@Test
+	void testPendingPacketsSurviveReopening() throws Exception {
+		File dir = tempDir.toFile();
+		SegmentLog log = new SegmentLog(dir, 1024);
+		for (int i = 0; i < 50; i++) {
+			log.chain(2).append(packet(2, i));
+			log.chain(3).append(packet(3, i));
+		}
+		for (int i = 0; i < 20; i++)
+			next(log.chain(2));
+		log.flush();
+
+		// un nouveau serveur retrouve les paquets non consommés, dans l'ordre
+		SegmentLog reopened = new SegmentLog(dir, 1024);
+		assertEquals(80, reopened.getPendingCount());
+		assertEquals(2, reopened.getRecipients().size());
+		reopened.chain(2).append(packet(2, 50));
+		for (int i = 20; i <= 50; i++)
+			assertEquals("msg" + i, next(reopened.chain(2)));
+		for (int i = 0; i < 50; i++)
+			assertEquals("msg" + i, next(reopened.chain(3)));
+		reopened.delete();
+	}
+
+	@Test
+	void testConsumedSegmentsAreDeleted() throws Exception {
+		SegmentLog log = new SegmentLog(tempDir.toFile(), 1024);
+		SegmentLog.Chain bob = log.chain(2);
+		for (int i = 0; i < 1000; i++)
+			bob.append(packet(2, i));
+		assertTrue(log.getSegmentCount() > 10);
+		bob.reset();
+		assertTrue(bob.isEmpty());
+		// seul le segment en cours d'écriture reste
+		assertEquals(1, log.getSegmentCount());
+		assertEquals(1, tempDir.toFile().list().length);
+		assertTrue(log.getDeletedSegments() > 10);
+		log.delete();
+	}
+
+	@Test
+	void testCompactionKeepsOrder() throws Exception {
+		File dir = tempDir.toFile();
+		SegmentLog log = new SegmentLog(dir, 1024);
+		SegmentLog.Chain bob = log.chain(2);
+		SegmentLog.Chain eve = log.chain(3);
+		// eve ne se connecte jamais, ses rares paquets sont dispersés dans le journal
+		for (int i = 0; i < 2000; i++) {
+			if (i % 50 == 0)
+				eve.append(packet(3, i / 50));
+			bob.append(packet(2, i));
+			next(bob);
+		}
+		assertTrue(log.getCompactedRecords() > 0);
+		assertTrue(log.getSegmentCount() < 10, log.getSegmentCount() + " segments");
+		log.flush();
+		SegmentLog reopened = new SegmentLog(dir, 1024);
+		assertEquals(40, reopened.getPendingCount());
+		for (int i = 0; i < 40; i++)
+			assertEquals("msg" + i, next(reopened.chain(3)));
+		reopened.delete();
+	}
+
+	private ClientMsg connect(ServerMsg server, int id, BlockingQueue<Packet> received) throws Exception {
+		InputStream in = System.in;
+		System.setIn(new ByteArrayInputStream("bob\n".getBytes()));
+		try {
+			ClientMsg c = id == 0 ? new ClientMsg("localhost", server.getPort())
+					: new ClientMsg(id, "localhost", server.getPort());
+			if (received != null)
+				c.addMessageListener(received::add);
+			c.startSession();
+			return c;
+		} finally {
+			System.setIn(in);
+		}
+	}
+
+	private static ServerMsg start(File dir) throws Exception {
+		ServerMsg server = new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1)
+				.setOfflineDir(dir).setOfflineSegmentBytes(4096));
+		new Thread(server::start).start();
+		return server;
+	}
+
+	private static void await(java.util.function.BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 500 && !condition.getAsBoolean(); i++)
+			Thread.sleep(10);
+		assertTrue(condition.getAsBoolean());
+	}
+
+	@Test
+	void testOfflineUserReceivesInOrderAfterRestart() throws Exception {
+		File dir = tempDir.resolve("offline").toFile();
+		ServerMsg server = start(dir);
+		ClientMsg alice = connect(server, 0, null);
+		BlockingQueue<Packet> welcome = new LinkedBlockingQueue<>();
+		ClientMsg bob = connect(server, 0, welcome);
+		int bobId = bob.getIdentifier();
+		// le pseudo est traité de façon asynchrone : sans cela, la réponse du
+		// serveur pourrait arriver dans le journal après la déconnexion
+		assertNotNull(welcome.poll(5, TimeUnit.SECONDS));
+		bob.closeSession();
+		await(() -> !server.getUser(bobId).isConnected());
+		// un message du serveur envoyé avant la déconnexion peut y être resté
+		long queued = server.getUser(bobId).getQueuedBytes();
+		long pending = server.getOfflineLog().getPendingCount();
+
+		for (int i = 0; i < 500; i++)
+			alice.sendPacket(bobId, ("msg" + i).getBytes());
+		await(() -> server.getOfflineLog().getPendingCount() == pending + 500);
+		// les paquets en attente ne restent pas en mémoire
+		assertEquals(queued, server.getUser(bobId).getQueuedBytes());
+		alice.closeSession();
+		server.stop();
+
+		ServerMsg restarted = start(dir);
+		try {
+			BlockingQueue<Packet> box = new LinkedBlockingQueue<>();
+			// seuls les messages d'alice sont comptés, pas ceux du serveur
+			bob = connect(restarted, bobId, null);
+			bob.addMessageListener(p -> {
+				if (p.srcId != 0)
+					box.add(p);
+			});
+			for (int i = 0; i < 500; i++) {
+				Packet p = box.poll(5, TimeUnit.SECONDS);
+				assertNotNull(p, "aucun paquet reçu");
+				assertEquals("msg" + i, new String(p.data));
+			}
+			await(() -> restarted.getOfflineLog().getPendingCount() == 0);
+			bob.closeSession();
+		} finally {
+			restarted.stop();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+class SendQueueTest {
+
+	@TempDir
+	Path tempDir;
+
+	private static Packet packet(int i) {
+		return new Packet(1, 2, ("msg" + i).getBytes());
+	}
+
+	private static String next(SendQueue q) {
+		return new String(q.poll().data);
+	}
+
+	@Test
+	void testDropOldest() {
+		SendQueue q = new SendQueue(3, 1_000, SendQueue.OverflowPolicy.DROP_OLDEST, null);
+		for (int i = 0; i < 5; i++)
+			assertTrue(q.offer(packet(i)));
+		assertEquals(3, q.size());
+		assertEquals(2, q.dropped());
+		assertEquals("msg2", next(q));
+		assertEquals("msg3", next(q));
+		assertEquals("msg4", next(q));
+		assertNull(q.poll());
+	}
+
+	@Test
+	void testDropNewest() {
+		SendQueue q = new SendQueue(3, 1_000, SendQueue.OverflowPolicy.DROP_NEWEST, null);
+		for (int i = 0; i < 5; i++)
+			assertTrue(q.offer(packet(i)));
+		assertEquals(3, q.size());
+		assertEquals(2, q.dropped());
+		assertEquals("msg0", next(q));
+	}
+
+	@Test
+	void testByteLimit() {
+		// chaque paquet occupe 12 + 4 octets
+		SendQueue q = new SendQueue(100, 40, SendQueue.OverflowPolicy.DROP_NEWEST, null);
+		for (int i = 0; i < 5; i++)
+			q.offer(packet(i));
+		assertEquals(2, q.size());
+		assertEquals(32, q.bytes());
+	}
+
+	@Test
+	void testDisconnect() {
+		SendQueue q = new SendQueue(2, 1_000, SendQueue.OverflowPolicy.DISCONNECT, null);
+		assertTrue(q.offer(packet(0)));
+		assertTrue(q.offer(packet(1)));
+		assertFalse(q.offer(packet(2)));
+		assertEquals(1, q.dropped());
+	}
+
+	@Test
+	void testSpillToDiskKeepsOrder() throws Exception {
+		File dir = tempDir.toFile();
+		SendQueue q = new SendQueue(2, 1_000, SendQueue.OverflowPolicy.SPILL_TO_DISK, dir);
+		for (int i = 0; i < 10; i++)
+			q.offer(packet(i));
+		assertEquals(10, q.size());
+		assertEquals(0, q.dropped());
+		assertEquals(1, dir.listFiles().length);
+		for (int i = 0; i < 5; i++)
+			assertEquals("msg" + i, new String(q.take().data));
+		// les nouveaux paquets passent après ceux qui sont sur disque
+		q.offer(packet(10));
+		for (int i = 5; i <= 10; i++)
+			assertEquals("msg" + i, new String(q.take().data));
+		assertTrue(q.isEmpty());
+		assertEquals(0, dir.listFiles().length);
+	}
+}
@@ -0,0 +1,182 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import fr.uga.miashs.dciss.chatservice.common.DirectoryProtocol;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+class ServerPacketProcessorTest {
+
+	private ServerMsg server;
+	private UserMsg alice;
+	private UserMsg bob;
+	private UserMsg carol;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new ServerMsg(0);
+		alice = new UserMsg(1, server);
+		bob = new UserMsg(2, server);
+		carol = new UserMsg(3, server);
+		server.addUser(alice);
+		server.addUser(bob);
+		server.addUser(carol);
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop();
+	}
+
+	// traite un message de gestion et attend la fin de son traitement
+	private void send(UserMsg sender, Packet p) throws InterruptedException {
+		server.processPacket(sender, p);
+		server.getPacketProcessor().flush();
+	}
+
+	private static byte[] createGroup(String name, int... members) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeByte(ServerMsg.CREATE_GROUP);
+		dos.writeUTF(name);
+		dos.writeInt(members.length);
+		for (int m : members)
+			dos.writeInt(m);
+		return bos.toByteArray();
+	}
+
+	private static byte[] nickname(String nickname) {
+		byte[] b = nickname.getBytes();
+		byte[] data = new byte[1 + b.length];
+		data[0] = ServerMsg.NICKNAME;
+		System.arraycopy(b, 0, data, 1, b.length);
+		return data;
+	}
+
+	@Test
+	void testCreateGroupKeepsEveryMember() throws Exception {
+		send(alice, new Packet(1, 0, createGroup("Amis d'été", 2, 3)));
+		GroupMsg g = server.getGroups().iterator().next();
+		assertSame(alice, g.getOwner());
+		assertEquals(3, g.getMembers().size());
+		assertTrue(carol.getGroups().containsId(g.getId()));
+	}
+
+	@Test
+	void testOnlyTheSignificantBytesAreRead() throws Exception {
+		// tableau issu d'un pool, plus long que la charge utile
+		byte[] data = Arrays.copyOf(new byte[] { ServerMsg.NICKNAME, 'b', 'o', 'b' }, 64);
+		Arrays.fill(data, 4, 64, (byte) 'x');
+		send(bob, new Packet(2, 0, data, 4, null));
+		assertEquals("bob", bob.getNickname());
+	}
+
+	@Test
+	void testDeleteGroupByItsOwner() throws Exception {
+		GroupMsg g = server.createGroup(1);
+		g.addMember(bob);
+		byte[] delete = ByteBuffer.allocate(5).put(ServerMsg.DELETE_GROUP).putInt(g.getId()).array();
+		send(bob, new Packet(2, 0, delete));
+		assertSame(g, server.getGroup(g.getId()));
+		send(alice, new Packet(1, 0, delete));
+		assertNull(server.getGroup(g.getId()));
+	}
+
+	@Test
+	void testNewTypesPlugIn() throws Exception {
+		List<Integer> received = new ArrayList<>();
+		server.getPacketProcessor().register((byte) 99, Codecs.GROUP_ID, (p, id) -> received.add(id));
+		send(alice, new Packet(1, 0, ByteBuffer.allocate(5).put((byte) 99).putInt(-7).array()));
+		// un message tronqué est ignoré
+		send(alice, new Packet(1, 0, new byte[] { 99, 0 }));
+		send(alice, new Packet(1, 0, new byte[] { ServerMsg.ADD_MEMBER, 0, 0 }));
+		assertEquals(List.of(-7), received);
+	}
+
+	private static byte[] membership(byte type, int groupId, int userId) {
+		return ByteBuffer.allocate(9).put(type).putInt(groupId).putInt(userId).array();
+	}
+
+	@Test
+	void testOperationsOnAGroupKeepTheirOrder() throws Exception {
+		GroupMsg g = server.createGroup(1);
+		for (int i = 0; i < 1_000; i++) {
+			server.processPacket(alice, new Packet(1, 0, membership(ServerMsg.ADD_MEMBER, g.getId(), 2)));
+			server.processPacket(alice, new Packet(1, 0, membership(ServerMsg.REMOVE_MEMBER, g.getId(), 2)));
+		}
+		server.processPacket(alice, new Packet(1, 0, membership(ServerMsg.ADD_MEMBER, g.getId(), 3)));
+		server.getPacketProcessor().flush();
+		assertEquals(java.util.Set.of(alice, carol), new java.util.HashSet<>(g.getMembers()));
+	}
+
+	@Test
+	void testGroupMessageFollowsTheAddOfItsMember() throws Exception {
+		GroupMsg g = server.createGroup(1);
+		// opérations en attente sur la file du groupe
+		for (int i = 0; i < 1_000; i++) {
+			server.processPacket(alice, new Packet(1, 0, membership(ServerMsg.ADD_MEMBER, g.getId(), 3)));
+			server.processPacket(alice, new Packet(1, 0, membership(ServerMsg.REMOVE_MEMBER, g.getId(), 3)));
+		}
+		server.processPacket(alice, new Packet(1, 0, membership(ServerMsg.ADD_MEMBER, g.getId(), 2)));
+		// le message relayé par le thread de réception attend l'ajout de bob
+		server.processPacket(alice, new Packet(1, g.getId(), "hello".getBytes()));
+		server.getPacketProcessor().flush();
+		List<Packet> out = new ArrayList<>();
+		bob.drainOutgoing(bob.getEpoch(), out, 10);
+		assertTrue(out.stream().anyMatch(p -> p.srcId == 1 && p.destId == g.getId()), "message lost by bob");
+		assertEquals(0, server.getNotMemberPackets());
+	}
+
+	@Test
+	void testQueryNamesReturnsPages() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			UserMsg u = new UserMsg(10 + i, server);
+			server.addUser(u);
+			server.registerNickname("Bob" + i, u);
+		}
+		server.registerNickname("carol", carol);
+		send(alice, new Packet(1, 0, DirectoryProtocol.query(7, DirectoryProtocol.USERS, "BOB", null, 3)));
+		List<Packet> out = new ArrayList<>();
+		alice.drainOutgoing(alice.getEpoch(), out, 10);
+		DirectoryProtocol.Result r = DirectoryProtocol.Result.fromPacket(out.get(0));
+		assertEquals(7, r.queryId);
+		assertArrayEquals(new String[] { "Bob0", "Bob1", "Bob2" }, r.names);
+		assertArrayEquals(new int[] { 10, 11, 12 }, r.ids);
+		assertTrue(r.more);
+
+		send(alice, new Packet(1, 0, DirectoryProtocol.query(8, DirectoryProtocol.USERS, "bob", "Bob2", 3)));
+		out.clear();
+		alice.drainOutgoing(alice.getEpoch(), out, 10);
+		r = DirectoryProtocol.Result.fromPacket(out.get(0));
+		assertArrayEquals(new String[] { "Bob3", "Bob4" }, r.names);
+		assertFalse(r.more);
+	}
+
+	@Test
+	void testRenamedUserIsNotFoundByItsOldName() throws Exception {
+		send(bob, new Packet(2, 0, nickname("bobby")));
+		send(bob, new Packet(2, 0, nickname("Zed")));
+		assertNull(server.getUserByNickname("bobby"));
+		assertSame(bob, server.getUserByNickname("zed"));
+		send(alice, new Packet(1, 0, DirectoryProtocol.query(9, DirectoryProtocol.USERS, "bob", null, 3)));
+		send(alice, new Packet(1, 0, DirectoryProtocol.query(10, DirectoryProtocol.USERS, "z", null, 3)));
+		List<Packet> out = new ArrayList<>();
+		alice.drainOutgoing(alice.getEpoch(), out, 10);
+		assertEquals(0, DirectoryProtocol.Result.fromPacket(out.get(0)).names.length);
+		DirectoryProtocol.Result r = DirectoryProtocol.Result.fromPacket(out.get(1));
+		assertArrayEquals(new String[] { "Zed" }, r.names);
+		assertArrayEquals(new int[] { 2 }, r.ids);
+	}
+}
@@ -0,0 +1,88 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cost of the state log: users, groups of ten members and nicknames are
+ * created by concurrent threads, whose records share the forces to disk, then
+ * the server is restarted from its snapshot and the records that follow it.
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.uga.miashs.dciss.chatservice.server.StateLogBenchmark
+ * -Dexec.args="[users] [threads]"
+ */
+public class StateLogBenchmark {
+
+	private static final int GROUP_SIZE = 10;
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		File dir = Files.createTempDirectory("state-log").toFile();
+		ServerConfig conf = new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1).setStateDir(dir);
+
+		populate(conf, users, threads, dir);
+
+		for (int run = 0; run < 3; run++) {
+			System.gc();
+			ServerMsg restarted = new ServerMsg(0, conf);
+			StateLog r = restarted.getStateLog();
+			System.out.printf("restart: %,d users, %,d groups restored in %d ms, %,d records replayed%n",
+					restarted.getUsers().size(), restarted.getGroups().size(), r.getRecoveryMillis(),
+					r.getReplayedRecords());
+			restarted.stop();
+		}
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	private static void populate(ServerConfig conf, int users, int threads, File dir) throws Exception {
+		ServerMsg server = new ServerMsg(0, conf);
+		long t0 = System.nanoTime();
+		// chaque thread crée des groupes complets : un propriétaire et ses membres
+		AtomicInteger next = new AtomicInteger();
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread w = new Thread(() -> {
+				for (int i = next.getAndAdd(GROUP_SIZE); i < users; i = next.getAndAdd(GROUP_SIZE)) {
+					GroupMsg g = null;
+					for (int k = i; k < Math.min(users, i + GROUP_SIZE); k++) {
+						UserMsg u = server.getUser(server.newUser());
+						server.registerNickname("user" + u.getId(), u);
+						if (g == null)
+							g = server.createGroup(u.getId());
+						else
+							g.addMember(u);
+					}
+				}
+			});
+			w.start();
+			workers.add(w);
+		}
+		for (Thread w : workers)
+			w.join();
+		long t1 = System.nanoTime();
+		StateLog log = server.getStateLog();
+		long records = 2L * users + (users + GROUP_SIZE - 1) / GROUP_SIZE * GROUP_SIZE;
+		System.out.printf("%,d users, %,d groups: %,d records in %.1f s (%.0f records/s) with %d threads,"
+				+ " %,d forces (%.1f records per force)%n", users, server.getGroups().size(), records,
+				(t1 - t0) / 1e9, records * 1e9 / (t1 - t0), threads, log.getForceCount(),
+				(double) records / log.getForceCount());
+		server.stop();
+		System.out.printf("%d snapshots, the last one written in %d ms, %.1f MB on disk%n", log.getSnapshotCount(),
+				log.getLastSnapshotMillis(), size(dir) / 1048576.0);
+	}
+
+	private static long size(File dir) throws IOException {
+		long n = 0;
+		for (File f : dir.listFiles())
+			n += f.length();
+		return n;
+	}
+}
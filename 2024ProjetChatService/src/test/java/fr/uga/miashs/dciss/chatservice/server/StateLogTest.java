@@ -0,0 +1,171 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.uga.miashs.dciss.chatservice.client.ClientMsg;
+import fr.uga.miashs.dciss.chatservice.common.Packet;
+
+class StateLogTest {
+
+	@TempDir
+	Path tempDir;
+
+	private ServerMsg newServer(long snapshotRecords) throws Exception {
+		return new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.NIO).setIoThreads(1)
+				.setStateDir(tempDir.toFile()).setStateSnapshotRecords(snapshotRecords));
+	}
+
+	private static void assertMembers(GroupMsg g, Integer... ids) {
+		assertEquals(java.util.Set.of(ids), g.getMembers().stream().map(UserMsg::getId)
+				.collect(java.util.stream.Collectors.toSet()));
+	}
+
+	@Test
+	void testStateSurvivesRestart() throws Exception {
+		ServerMsg server = newServer(1_000);
+		int alice = server.newUser();
+		int bob = server.newUser();
+		int eve = server.newUser();
+		int carol = server.newUser();
+		GroupMsg g = server.createGroup(alice);
+		g.addMember(server.getUser(bob));
+		g.addMember(server.getUser(eve));
+		g.removeMember(server.getUser(eve));
+		GroupMsg other = server.createGroup(bob);
+		server.removeGroup(other.getId());
+		server.getUser(bob).setNickname("Bob");
+		server.registerNickname("Bob", server.getUser(bob));
+		server.registerGroupName("Amis", g.getId());
+		server.removeUser(carol);
+		server.stop();
+
+		ServerMsg restarted = newServer(1_000);
+		try {
+			assertNotNull(restarted.getUser(alice));
+			assertNull(restarted.getUser(carol));
+			GroupMsg r = restarted.getGroup(g.getId());
+			assertEquals(alice, r.getOwner().getId());
+			assertMembers(r, alice, bob);
+			assertTrue(restarted.getUser(bob).getGroups().containsId(g.getId()));
+			assertNull(restarted.getGroup(other.getId()));
+			assertEquals("Bob", restarted.getUser(bob).getNickname());
+			assertSame(restarted.getUser(bob), restarted.getUserByNickname("bob"));
+			assertEquals(g.getId(), restarted.getGroupIdByName("amis"));
+			// les identifiants ne sont pas réutilisés
+			assertEquals(carol + 1, restarted.newUser());
+			assertEquals(other.getId() - 1, restarted.createGroup(alice).getId());
+			// les modifications des groupes relus sont enregistrées
+			r.addMember(restarted.getUser(eve));
+		} finally {
+			restarted.stop();
+		}
+		ServerMsg again = newServer(1_000);
+		assertMembers(again.getGroup(g.getId()), alice, bob, eve);
+		again.stop();
+	}
+
+	@Test
+	void testSnapshotBoundsTheReplay() throws Exception {
+		ServerMsg server = newServer(100);
+		for (int i = 0; i < 1_000; i++) {
+			UserMsg u = server.getUser(server.newUser());
+			if (i % 10 == 0)
+				server.createGroup(u.getId());
+			else
+				server.getGroup(-1 - i / 10).addMember(u);
+			server.registerNickname("user" + i, u);
+		}
+		server.stop();
+		assertTrue(server.getStateLog().getSnapshotCount() > 0);
+		// les fichiers antérieurs au dernier instantané ont été supprimés
+		assertTrue(tempDir.toFile().list().length <= 3, String.join(" ", tempDir.toFile().list()));
+
+		ServerMsg restarted = newServer(100);
+		try {
+			assertTrue(restarted.getStateLog().getReplayedRecords() < 300,
+					restarted.getStateLog().getReplayedRecords() + " records replayed");
+			assertEquals(1_000, restarted.getUsers().size());
+			assertEquals(100, restarted.getGroups().size());
+			assertEquals(10, restarted.getGroup(-42).getMembers().size());
+			assertEquals(412, restarted.getUserByNickname("USER411").getId());
+		} finally {
+			restarted.stop();
+		}
+	}
+
+	@Test
+	void testTornRecordIsIgnored() throws Exception {
+		ServerMsg server = newServer(1_000);
+		int alice = server.newUser();
+		int bob = server.newUser();
+		server.stop();
+		File[] logs = tempDir.toFile().listFiles((d, n) -> n.endsWith(".wal"));
+		assertEquals(1, logs.length);
+		long length = logs[0].length();
+		// un enregistrement à moitié écrit au moment d'un arrêt brutal
+		try (FileOutputStream out = new FileOutputStream(logs[0], true)) {
+			out.write(new byte[] { 0, 0, 0, 9, 1, 2, 3, 4, 1, 0 });
+		}
+		ServerMsg restarted = newServer(1_000);
+		try {
+			assertNotNull(restarted.getUser(alice));
+			assertNotNull(restarted.getUser(bob));
+			assertEquals(length, logs[0].length());
+			assertEquals(bob + 1, restarted.newUser());
+		} finally {
+			restarted.stop();
+		}
+	}
+
+	private ClientMsg connect(ServerMsg server, int id, BlockingQueue<Packet> received) throws Exception {
+		InputStream in = System.in;
+		System.setIn(new ByteArrayInputStream("alice\n".getBytes()));
+		try {
+			ClientMsg c = id == 0 ? new ClientMsg("localhost", server.getPort())
+					: new ClientMsg(id, "localhost", server.getPort());
+			c.addMessageListener(received::add);
+			c.startSession();
+			return c;
+		} finally {
+			System.setIn(in);
+		}
+	}
+
+	@Test
+	void testReturningClientIsAccepted() throws Exception {
+		ServerMsg server = newServer(1_000);
+		new Thread(server::start).start();
+		BlockingQueue<Packet> box = new LinkedBlockingQueue<>();
+		ClientMsg alice = connect(server, 0, box);
+		int id = alice.getIdentifier();
+		// attend l'enregistrement du pseudo
+		assertNotNull(box.poll(5, TimeUnit.SECONDS));
+		alice.closeSession();
+		server.stop();
+
+		ServerMsg restarted = newServer(1_000);
+		new Thread(restarted::start).start();
+		try {
+			assertEquals("alice", restarted.getUser(id).getNickname());
+			ClientMsg again = connect(restarted, id, box);
+			for (int i = 0; i < 500 && !restarted.getUser(id).isConnected(); i++)
+				Thread.sleep(10);
+			assertTrue(restarted.getUser(id).isConnected());
+			again.closeSession();
+		} finally {
+			restarted.stop();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class StripedExecutorTest {
+
+	@Test
+	void testTasksOfAKeyKeepTheirOrder() throws Exception {
+		StripedExecutor executor = new StripedExecutor("test", 4);
+		int keys = 64;
+		int tasks = 2_000;
+		List<List<Integer>> seen = new ArrayList<>();
+		for (int k = 0; k < keys; k++)
+			seen.add(new ArrayList<>());
+		// chaque thread soumet les tâches de ses propres clés
+		List<Thread> submitters = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			int first = t;
+			Thread s = new Thread(() -> {
+				for (int i = 0; i < tasks; i++) {
+					for (int k = first; k < keys; k += 4) {
+						int key = -k, n = i;
+						List<Integer> l = seen.get(k);
+						executor.execute(key, () -> l.add(n));
+					}
+				}
+			});
+			s.start();
+			submitters.add(s);
+		}
+		for (Thread s : submitters)
+			s.join();
+		executor.flush();
+		for (List<Integer> l : seen) {
+			assertEquals(tasks, l.size());
+			for (int i = 0; i < tasks; i++)
+				assertEquals(i, l.get(i));
+		}
+		executor.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void testQueueDepthAndShutdown() throws Exception {
+		StripedExecutor executor = new StripedExecutor("test", 2);
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		executor.execute(1, () -> {
+			blocked.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		blocked.await();
+		List<Integer> done = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			int n = i;
+			executor.execute(1, () -> done.add(n));
+		}
+		assertEquals(3, executor.getQueueDepth(executor.stripe(1)));
+		assertEquals(3, executor.getQueueDepths()[executor.stripe(1)]);
+		// une tâche en échec n'arrête pas sa file
+		executor.execute(1, () -> {
+			throw new IllegalStateException("test");
+		});
+		executor.execute(1, () -> done.add(3));
+		release.countDown();
+		executor.shutdown(1, TimeUnit.SECONDS);
+		// les tâches soumises avant l'arrêt sont exécutées
+		assertEquals(List.of(0, 1, 2, 3), done);
+		assertThrows(RejectedExecutionException.class, () -> executor.execute(1, () -> {
+		}));
+	}
+
+	@Test
+	void testTasksAcceptedDuringShutdownAreRun() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			StripedExecutor executor = new StripedExecutor("test", 2);
+			AtomicInteger accepted = new AtomicInteger();
+			AtomicInteger run = new AtomicInteger();
+			// des threads soumettent des tâches jusqu'à ce qu'elles soient refusées
+			List<Thread> submitters = new ArrayList<>();
+			for (int t = 0; t < 3; t++) {
+				int key = t;
+				Thread s = new Thread(() -> {
+					try {
+						while (true) {
+							executor.execute(key, run::incrementAndGet);
+							accepted.incrementAndGet();
+						}
+					} catch (RejectedExecutionException e) {
+						// arrêt de l'exécuteur
+					}
+				});
+				s.start();
+				submitters.add(s);
+			}
+			Thread.sleep(2);
+			executor.shutdown(10, TimeUnit.SECONDS);
+			for (Thread s : submitters)
+				s.join();
+			// aucune tâche acceptée n'est perdue
+			assertEquals(accepted.get(), run.get());
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import fr.uga.miashs.dciss.chatservice.common.BlobProtocol;
+import fr.uga.miashs.dciss.chatservice.common.ImageTransfer;
+
+/**
+ * Bytes sent to the members of a group for a 24-megapixel photo, when every
+ * member downloads the original and when they receive the thumbnail with the
+ * descriptor, and time taken to make the thumbnail with a full decoding of the
+ * photo and with the subsampled decoding of ImageTransfer.thumbnail.
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.uga.miashs.dciss.chatservice.server.ThumbnailBenchmark
+ */
+public class ThumbnailBenchmark {
+
+	private static final int MEMBERS = 100;
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws IOException {
+		File photo = Files.createTempFile("photo", ".jpg").toFile();
+		BufferedImage img = new BufferedImage(6000, 4000, BufferedImage.TYPE_INT_RGB);
+		Random rnd = new Random(24);
+		for (int y = 0; y < img.getHeight(); y++)
+			for (int x = 0; x < img.getWidth(); x++)
+				img.setRGB(x, y, ((x * 255 / 6000 + rnd.nextInt(16)) & 0xFF) << 16
+						| ((y * 255 / 4000 + rnd.nextInt(16)) & 0xFF) << 8 | ((x ^ y) >> 4) & 0xFF);
+		ImageIO.write(img, "jpg", photo);
+		img = null;
+
+		// première passe pour le JIT
+		ImageTransfer.fromImage(photo).resize(320);
+		ImageTransfer.thumbnail(photo, 320);
+		long full = 0;
+		long subsampled = 0;
+		byte[] thumbnail = null;
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			ImageTransfer.fromImage(photo).resize(320);
+			long mid = System.nanoTime();
+			thumbnail = ImageTransfer.thumbnail(photo, 320);
+			full += mid - start;
+			subsampled += System.nanoTime() - mid;
+		}
+		System.out.printf("thumbnail of a 6000x4000 photo: full decoding %d ms, subsampled decoding %d ms%n",
+				full / ROUNDS / 1_000_000, subsampled / ROUNDS / 1_000_000);
+
+		byte[] hash = BlobProtocol.sha256(photo);
+		long original = MEMBERS * (photo.length() + BlobProtocol.descriptor(hash, photo.length(),
+				BlobProtocol.KIND_IMAGE, photo.getName()).length);
+		long thumbnails = MEMBERS * (long) BlobProtocol.descriptor(hash, photo.length(), BlobProtocol.KIND_IMAGE,
+				photo.getName(), thumbnail).length;
+		System.out.printf("group of %d members: originals %.1f MB, thumbnails %.1f MB (%.0fx less)%n", MEMBERS,
+				original / 1048576.0, thumbnails / 1048576.0, (double) original / thumbnails);
+		photo.delete();
+	}
+}
@@ -0,0 +1,75 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ThumbnailServiceTest {
+
+	@TempDir
+	Path dir;
+
+	private ThumbnailService service;
+
+	@AfterEach
+	void tearDown() {
+		if (service != null)
+			service.close();
+	}
+
+	private File image(String name, int w, int h) throws Exception {
+		File f = dir.resolve(name).toFile();
+		ImageIO.write(new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB), "png", f);
+		return f;
+	}
+
+	@Test
+	void testThumbnailIsMadeOnce() throws Exception {
+		service = new ThumbnailService(dir.resolve("thumbs").toFile(), 1024 * 1024, 100, 1);
+		File img = image("big.png", 1200, 600);
+
+		byte[] t = service.thumbnail("k1", img).get(10, TimeUnit.SECONDS);
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(t));
+		assertEquals(100, decoded.getWidth());
+		assertEquals(50, decoded.getHeight());
+
+		// la même image postée à nouveau n'est pas décodée
+		assertSame(t, service.thumbnail("k1", img).get());
+		assertEquals(1, service.getGenerated());
+		assertEquals(1, service.getCacheHits());
+	}
+
+	@Test
+	void testEvictedThumbnailsAreReadFromDisk() throws Exception {
+		service = new ThumbnailService(dir.resolve("thumbs").toFile(), 1, 50, 1);
+		byte[] t1 = service.thumbnail("k1", image("a.png", 400, 400)).get(10, TimeUnit.SECONDS);
+		service.thumbnail("k2", image("b.png", 400, 400)).get(10, TimeUnit.SECONDS);
+		assertTrue(Files.exists(dir.resolve("thumbs").resolve("k1")));
+
+		assertArrayEquals(t1, service.thumbnail("k1", null).get());
+		assertEquals(2, service.getGenerated());
+		assertEquals(1, service.getDiskHits());
+
+		service.remove("k1");
+		assertFalse(Files.exists(dir.resolve("thumbs").resolve("k1")));
+	}
+
+	@Test
+	void testNoThumbnailForInvalidImage() throws Exception {
+		service = new ThumbnailService(dir.resolve("thumbs").toFile(), 1024, 50, 1);
+		File f = dir.resolve("fake.png").toFile();
+		Files.write(f.toPath(), "pas une image".getBytes());
+		assertEquals(0, service.thumbnail("k", f).get(10, TimeUnit.SECONDS).length);
+	}
+}
@@ -0,0 +1,110 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the deadlines of many idle connections: each connection has a
+ * deadline of 30 s, pushed back by each packet received. With a scheduled
+ * task per connection, a packet cancels and schedules again the task in the
+ * heap of the executor; with the timing wheel, it sets a flag that is read
+ * when the deadline is reached. A turn of the wheel then visits each
+ * connection once.
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=fr.uga.miashs.dciss.chatservice.server.TimingWheelBenchmark
+ * -Dexec.args="[connections] [packets]"
+ */
+public class TimingWheelBenchmark {
+
+	private static final long INTERVAL_MILLIS = 30_000;
+
+	// délai d'une connexion, comme Heartbeats.Session
+	private static class Check extends TimingWheel.Timeout {
+		final TimingWheel wheel;
+		volatile boolean seen;
+		long expired;
+
+		Check(TimingWheel wheel) {
+			this.wheel = wheel;
+		}
+
+		void seen() {
+			if (!seen)
+				seen = true;
+		}
+
+		@Override
+		protected void expire() {
+			expired++;
+			seen = false;
+			wheel.schedule(this, INTERVAL_MILLIS);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int packets = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+		Random rnd = new Random(5);
+		int[] senders = new int[packets];
+		for (int i = 0; i < packets; i++)
+			senders[i] = rnd.nextInt(connections);
+
+		for (int run = 0; run < 3; run++) {
+			// roue de Heartbeats : 16 ticks par intervalle
+			long tick = INTERVAL_MILLIS / 16;
+			TimingWheel wheel = new TimingWheel(tick, 512);
+			Check[] checks = new Check[connections];
+			long t0 = System.nanoTime();
+			for (int i = 0; i < connections; i++) {
+				checks[i] = new Check(wheel);
+				wheel.schedule(checks[i], INTERVAL_MILLIS);
+			}
+			long armed = System.nanoTime() - t0;
+			t0 = System.nanoTime();
+			for (int s : senders)
+				checks[s].seen();
+			long touched = System.nanoTime() - t0;
+			// deux intervalles de 16 ticks, plus le tick qui range les délais programmés
+			// et celui qui suit chaque vérification : chaque connexion est vérifiée deux fois
+			long worst = 0;
+			t0 = System.nanoTime();
+			for (int i = 0; i < 34; i++) {
+				long s = System.nanoTime();
+				wheel.advance();
+				worst = Math.max(worst, System.nanoTime() - s);
+			}
+			long ticks = System.nanoTime() - t0;
+			long expired = 0;
+			for (Check c : checks)
+				expired += c.expired;
+			System.out.printf("wheel: %,d connections armed in %.1f ms, %.1f ns per packet, %,d checks in 34 ticks"
+					+ " in %.1f ms (worst tick %.1f ms)%n", connections, armed / 1e6, (double) touched / packets,
+					expired, ticks / 1e6, worst / 1e6);
+
+			// une tâche programmée par connexion, reportée à chaque paquet
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+			executor.setRemoveOnCancelPolicy(true);
+			Runnable task = () -> {
+			};
+			ScheduledFuture<?>[] futures = new ScheduledFuture<?>[connections];
+			t0 = System.nanoTime();
+			for (int i = 0; i < connections; i++)
+				futures[i] = executor.schedule(task, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+			armed = System.nanoTime() - t0;
+			int rescheduled = packets / 10;
+			t0 = System.nanoTime();
+			for (int k = 0; k < rescheduled; k++) {
+				int s = senders[k];
+				futures[s].cancel(false);
+				futures[s] = executor.schedule(task, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			touched = System.nanoTime() - t0;
+			System.out.printf("scheduled tasks: %,d connections armed in %.1f ms, %.1f ns per packet%n", connections,
+					armed / 1e6, (double) touched / rescheduled);
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+	// délai qui note le tick où il expire
+	private static class Probe extends TimingWheel.Timeout {
+		final List<Long> expired;
+		final long[] now;
+
+		Probe(List<Long> expired, long[] now) {
+			this.expired = expired;
+			this.now = now;
+		}
+
+		@Override
+		protected void expire() {
+			expired.add(now[0]);
+		}
+	}
+
+	// avance la roue jusqu'au tick to, now[0] étant le tick en cours
+	private static void advanceTo(TimingWheel wheel, long[] now, long to) {
+		while (now[0] < to) {
+			wheel.advance();
+			now[0]++;
+		}
+	}
+
+	@Test
+	void testDeadlinesAreRoundedToTicks() {
+		TimingWheel wheel = new TimingWheel(10, 8);
+		List<Long> expired = new ArrayList<>();
+		long[] now = { 0 };
+		wheel.schedule(new Probe(expired, now), 30);
+		wheel.schedule(new Probe(expired, now), 25);
+		wheel.schedule(new Probe(expired, now), 1);
+		advanceTo(wheel, now, 10);
+		assertEquals(List.of(1L, 3L, 3L), expired);
+	}
+
+	@Test
+	void testDeadlinesBeyondATurn() {
+		// roue de 8 seaux : les délais de 8, 16 et 21 ticks y font plusieurs tours
+		TimingWheel wheel = new TimingWheel(1, 5);
+		List<Long> expired = new ArrayList<>();
+		long[] now = { 0 };
+		advanceTo(wheel, now, 3);
+		for (long d : new long[] { 21, 8, 16, 7 })
+			wheel.schedule(new Probe(expired, now), d);
+		advanceTo(wheel, now, 40);
+		assertEquals(List.of(3 + 7L, 3 + 8L, 3 + 16L, 3 + 21L), expired);
+	}
+
+	@Test
+	void testCancelledTimeoutsDoNotExpire() {
+		TimingWheel wheel = new TimingWheel(1, 4);
+		List<Long> expired = new ArrayList<>();
+		long[] now = { 0 };
+		Probe a = new Probe(expired, now);
+		Probe b = new Probe(expired, now);
+		wheel.schedule(a, 2);
+		wheel.schedule(b, 6);
+		// annulé avant même d'être rangé dans la roue
+		Probe c = new Probe(expired, now);
+		wheel.schedule(c, 2);
+		c.cancel();
+		advanceTo(wheel, now, 1);
+		b.cancel();
+		advanceTo(wheel, now, 10);
+		assertEquals(List.of(2L), expired);
+	}
+
+	@Test
+	void testTimeoutRescheduledFromExpire() {
+		TimingWheel wheel = new TimingWheel(1, 4);
+		List<Long> expired = new ArrayList<>();
+		long[] now = { 0 };
+		TimingWheel.Timeout t = new TimingWheel.Timeout() {
+			@Override
+			protected void expire() {
+				expired.add(now[0]);
+				if (expired.size() < 3)
+					wheel.schedule(this, 5);
+			}
+		};
+		wheel.schedule(t, 5);
+		advanceTo(wheel, now, 30);
+		// programmé pendant un tick, le délai part du tick suivant
+		assertEquals(List.of(5L, 11L, 17L), expired);
+	}
+}
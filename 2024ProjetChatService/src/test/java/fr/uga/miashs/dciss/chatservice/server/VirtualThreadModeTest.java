@@ -0,0 +1,93 @@
+package fr.uga.miashs.dciss.chatservice.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Connects a large number of loopback clients (10000 by default, see the
+ * property chatservice.test.clients) to a server in VIRTUAL mode and makes
+ * each of them send a message to the next one. Skipped when the JVM has no
+ * virtual threads or when the file descriptor limit is too low.
+ */
+class VirtualThreadModeTest {
+
+	private static final int NB_CLIENTS = Integer.getInteger("chatservice.test.clients", 10_000);
+
+	private ServerMsg server;
+	private Socket[] sockets;
+
+	@AfterEach
+	void tearDown() throws IOException {
+		if (sockets != null) {
+			for (Socket s : sockets) {
+				if (s != null)
+					s.close();
+			}
+		}
+		if (server != null)
+			server.stop();
+	}
+
+	@Test
+	void testManyConcurrentClients() throws Exception {
+		assumeTrue(ServerConfig.virtualThreadsSupported(), "virtual threads require Java 21");
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+			long maxFd = ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+			// deux descripteurs par client (côté client et côté serveur)
+			assumeTrue(maxFd > 2L * NB_CLIENTS + 500, "file descriptor limit too low: " + maxFd);
+		}
+
+		server = new ServerMsg(0, new ServerConfig().setMode(ServerConfig.Mode.VIRTUAL));
+		Thread acceptor = new Thread(server::start);
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		// connexion de tous les clients, qui restent ouverts en même temps
+		sockets = new Socket[NB_CLIENTS];
+		int[] ids = new int[NB_CLIENTS];
+		for (int i = 0; i < NB_CLIENTS; i++) {
+			sockets[i] = new Socket("localhost", server.getPort());
+			DataOutputStream dos = new DataOutputStream(sockets[i].getOutputStream());
+			dos.writeInt(0);
+			dos.flush();
+			ids[i] = new DataInputStream(sockets[i].getInputStream()).readInt();
+		}
+
+		// chaque client écrit au suivant
+		for (int i = 0; i < NB_CLIENTS; i++) {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(sockets[i].getOutputStream()));
+			byte[] msg = ("message " + i).getBytes();
+			dos.writeInt(ids[(i + 1) % NB_CLIENTS]);
+			dos.writeInt(msg.length);
+			dos.write(msg);
+			dos.flush();
+		}
+
+		// chaque client reçoit le message du précédent
+		for (int i = 0; i < NB_CLIENTS; i++) {
+			sockets[i].setSoTimeout(30_000);
+			DataInputStream dis = new DataInputStream(sockets[i].getInputStream());
+			int prev = (i + NB_CLIENTS - 1) % NB_CLIENTS;
+			assertEquals(ids[prev], dis.readInt());
+			assertEquals(ids[i], dis.readInt());
+			byte[] msg = new byte[dis.readInt()];
+			dis.readFully(msg);
+			assertEquals("message " + prev, new String(msg));
+		}
+
+		int connected = 0;
+		for (int id : ids) {
+			if (server.getUser(id).isConnected())
+				connected++;
+		}
+		assertEquals(NB_CLIENTS, connected);
+	}
+}